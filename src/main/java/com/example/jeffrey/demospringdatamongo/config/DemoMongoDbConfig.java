@@ -1,19 +1,28 @@
 package com.example.jeffrey.demospringdatamongo.config;
 
 import com.example.jeffrey.demospringdatamongo.model.Account;
+import com.example.jeffrey.demospringdatamongo.retry.RetryableTransaction;
+import com.example.jeffrey.demospringdatamongo.retry.RetryableTransactionInterceptor;
+import com.example.jeffrey.demospringdatamongo.retry.TransactionRetryExecutor;
 import com.mongodb.*;
 import com.mongodb.client.MongoClient;
 import com.mongodb.client.MongoClients;
 import org.junit.Assert;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.aop.Advisor;
+import org.springframework.aop.support.DefaultPointcutAdvisor;
+import org.springframework.aop.support.annotation.AnnotationMatchingPointcut;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Qualifier;
 import org.springframework.beans.factory.annotation.Value;
+import org.springframework.beans.factory.config.BeanDefinition;
 import org.springframework.boot.context.event.ApplicationReadyEvent;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
+import org.springframework.context.annotation.Role;
 import org.springframework.context.event.EventListener;
+import org.springframework.core.Ordered;
 import org.springframework.data.mongodb.MongoDbFactory;
 import org.springframework.data.mongodb.MongoTransactionManager;
 import org.springframework.data.mongodb.config.AbstractMongoClientConfiguration;
@@ -47,10 +56,19 @@ public class DemoMongoDbConfig extends AbstractMongoClientConfiguration {
     MongoTransactionManager transactionManager(
             @Autowired
             @Qualifier("mongoDbFactory")
-            MongoDbFactory dbFactory
+            MongoDbFactory dbFactory,
+            @Autowired
+            TransactionRetryExecutor transactionRetryExecutor
     ) {
         // MongoDB Rollback does not work with @Transactional and MongoTransactionManager.
-        MongoTransactionManager transactionManager = new MongoTransactionManager(dbFactory);
+        MongoTransactionManager transactionManager = new MongoTransactionManager(dbFactory) {
+            @Override
+            protected void doCommit(MongoTransactionObject transactionObject) throws Exception {
+                // re-run only the commit on UnknownTransactionCommitResult, not the whole transaction,
+                // within the attempts of the enclosing TransactionRetryExecutor call if any
+                transactionRetryExecutor.commit(() -> super.doCommit(transactionObject));
+            }
+        };
         transactionManager.setRollbackOnCommitFailure(true);
         transactionManager.setOptions(
                 TransactionOptions.builder()
@@ -61,6 +79,26 @@ public class DemoMongoDbConfig extends AbstractMongoClientConfiguration {
         return transactionManager;
     }
 
+    @Bean
+    TransactionRetryExecutor transactionRetryExecutor() {
+        return new TransactionRetryExecutor();
+    }
+
+    @Bean
+    @Role(BeanDefinition.ROLE_INFRASTRUCTURE)
+    Advisor retryableTransactionAdvisor(
+            @Autowired
+            TransactionRetryExecutor transactionRetryExecutor
+    ) {
+        // order ahead of the transaction advisor (LOWEST_PRECEDENCE), so that the
+        // retry wraps the transaction and every attempt starts a new transaction
+        DefaultPointcutAdvisor advisor = new DefaultPointcutAdvisor(
+                new AnnotationMatchingPointcut(null, RetryableTransaction.class, true),
+                new RetryableTransactionInterceptor(transactionRetryExecutor));
+        advisor.setOrder(Ordered.LOWEST_PRECEDENCE - 1);
+        return advisor;
+    }
+
     @Override
     protected String getDatabaseName() {
         String dbName = mongoDbFactory().getDb().getName();
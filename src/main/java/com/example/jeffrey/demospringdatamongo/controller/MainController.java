@@ -1,17 +1,54 @@
 package com.example.jeffrey.demospringdatamongo.controller;
 
+import com.example.jeffrey.demospringdatamongo.model.Account;
 import com.example.jeffrey.demospringdatamongo.model.Customer;
 import com.example.jeffrey.demospringdatamongo.model.Event;
+import com.example.jeffrey.demospringdatamongo.model.EventKey;
+import com.example.jeffrey.demospringdatamongo.model.EventPage;
+import com.example.jeffrey.demospringdatamongo.model.MoneyAuditReport;
+import com.example.jeffrey.demospringdatamongo.model.PostingJob;
+import com.example.jeffrey.demospringdatamongo.model.PostingOperation;
+import com.example.jeffrey.demospringdatamongo.model.SequenceAuditReport;
+import com.example.jeffrey.demospringdatamongo.model.SequenceRange;
+import com.example.jeffrey.demospringdatamongo.model.Transfer;
+import com.example.jeffrey.demospringdatamongo.service.AccountLoader;
+import com.example.jeffrey.demospringdatamongo.service.AccountNotFoundException;
+import com.example.jeffrey.demospringdatamongo.service.AccountService;
+import com.example.jeffrey.demospringdatamongo.service.AccountStripeService;
+import com.example.jeffrey.demospringdatamongo.service.BadRequestException;
+import com.example.jeffrey.demospringdatamongo.service.BalancePostingService;
 import com.example.jeffrey.demospringdatamongo.service.CustomerService;
 import com.example.jeffrey.demospringdatamongo.service.EventService;
+import com.example.jeffrey.demospringdatamongo.service.EventSubscriptionService;
+import com.example.jeffrey.demospringdatamongo.service.InsufficientFundsException;
+import com.example.jeffrey.demospringdatamongo.service.MoneyAuditService;
+import com.example.jeffrey.demospringdatamongo.service.SequenceAuditService;
 import com.example.jeffrey.demospringdatamongo.service.SequenceService;
+import com.example.jeffrey.demospringdatamongo.service.SnowflakeIdGenerator;
+import com.example.jeffrey.demospringdatamongo.service.StripedAccountException;
 import com.example.jeffrey.demospringdatamongo.model.Sequence;
+import com.fasterxml.jackson.databind.ObjectMapper;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.*;
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
 
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.time.format.DateTimeParseException;
+import java.util.Collection;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.RejectedExecutionException;
 
 @RestController
 public class MainController {
@@ -22,9 +59,36 @@ public class MainController {
     @Autowired
     SequenceService sequenceService;
 
+    @Autowired
+    AccountService accountService;
+
+    @Autowired
+    AccountStripeService accountStripeService;
+
+    @Autowired
+    AccountLoader accountLoader;
+
+    @Autowired
+    MoneyAuditService moneyAuditService;
+
+    @Autowired
+    BalancePostingService balancePostingService;
+
     @Autowired
     EventService eventService;
 
+    @Autowired
+    EventSubscriptionService eventSubscriptionService;
+
+    @Autowired
+    SnowflakeIdGenerator snowflakeIdGenerator;
+
+    @Autowired
+    SequenceAuditService sequenceAuditService;
+
+    @Autowired
+    ObjectMapper objectMapper;
+
     @RequestMapping("/")
     public @ResponseBody
     String test() {
@@ -53,8 +117,18 @@ public class MainController {
     }
 
     @GetMapping(path="/sequence/append")
-    public @ResponseBody int appendSequenceNumber() {
-        return sequenceService.appendSequenceNumber();
+    public @ResponseBody int appendSequenceNumber(@RequestParam(required = false) String name) {
+        return sequenceService.appendSequenceNumber(name);
+    }
+
+    @GetMapping(path="/sequence/append", params="count")
+    public @ResponseBody SequenceRange appendSequenceNumbers(@RequestParam int count, @RequestParam(required = false) String name) {
+        return sequenceService.appendSequenceNumbers(name, count);
+    }
+
+    @GetMapping(path="/sequence/id")
+    public @ResponseBody long nextId() {
+        return snowflakeIdGenerator.nextId();
     }
 
     @GetMapping(path="/sequence/query")
@@ -62,9 +136,211 @@ public class MainController {
         return sequenceService.querySequenceNumber();
     }
 
+    @GetMapping(path="/sequence/audit")
+    public @ResponseBody ResponseEntity<SequenceAuditReport> auditSequenceNumber(@RequestParam(required = false) String name) {
+        if (!sequenceAuditService.isEnabled()) {
+            return ResponseEntity.status(HttpStatus.NOT_FOUND).build();
+        }
+        return ResponseEntity.ok(sequenceAuditService.report(name));
+    }
+
+    /**
+     * Stream every gap as one JSON object per line, the gaps are never materialized
+     */
+    @GetMapping(path="/sequence/audit/gaps")
+    public ResponseEntity<StreamingResponseBody> auditSequenceGaps(@RequestParam(required = false) String name) {
+        if (!sequenceAuditService.isEnabled()) {
+            return ResponseEntity.status(HttpStatus.NOT_FOUND).build();
+        }
+
+        StreamingResponseBody body = outputStream -> {
+            Writer writer = new BufferedWriter(new OutputStreamWriter(outputStream, StandardCharsets.UTF_8));
+            try {
+                sequenceAuditService.forEachGap(name, (start, end) -> {
+                    try {
+                        writer.write(String.format("{\"start\":%d,\"end\":%d}%n", start, end));
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                });
+            } catch (UncheckedIOException e) {
+                throw e.getCause();
+            }
+            writer.flush();
+        };
+        return ResponseEntity.ok().contentType(MediaType.parseMediaType("application/x-ndjson")).body(body);
+    }
+
+    @PostMapping(path="/account/transfers")
+    public @ResponseBody Map<String, Long> executeTransfers(@RequestBody List<Transfer> transfers) {
+        return accountService.executeTransfers(transfers);
+    }
+
+    @PostMapping(path="/account/transfer")
+    public @ResponseBody long executeTransfer(@RequestParam long amount, @RequestParam String debitAccountNumber, @RequestParam String creditAccountNumber) {
+        return accountService.executeTransferTx_conditional(amount, debitAccountNumber, creditAccountNumber);
+    }
+
+    @PostMapping(path="/account/transfer/journal")
+    public @ResponseBody String executeTransferWithJournal(@RequestParam long amount, @RequestParam String debitAccountNumber, @RequestParam String creditAccountNumber) {
+        return accountService.executeTransfer_withJournal(amount, debitAccountNumber, creditAccountNumber);
+    }
+
+    @PostMapping(path="/account/stripe")
+    public @ResponseBody int stripeAccount(@RequestParam String accountNumber, @RequestParam int stripes) {
+        return accountStripeService.stripeAccount(accountNumber, stripes);
+    }
+
+    @GetMapping(path="/accounts")
+    public @ResponseBody Collection<Account> getAccounts(@RequestParam List<String> numbers) {
+        return accountLoader.loadAll(numbers).values();
+    }
+
+    @PostMapping(path="/accounts")
+    public @ResponseBody List<String> openAccounts(@RequestParam int count, @RequestParam(defaultValue = "100") long initialBalance) {
+        return accountService.openAccounts(count, initialBalance);
+    }
+
+    @GetMapping(path="/account/balance")
+    public @ResponseBody long getAccountBalance(@RequestParam String accountNumber, @RequestParam(defaultValue = "false") boolean includePending) {
+        return accountService.getAccountBalance(accountNumber, includePending);
+    }
+
+    @GetMapping(path="/account/audit")
+    public @ResponseBody ResponseEntity<MoneyAuditReport> auditAccounts() {
+        if (!moneyAuditService.isEnabled()) {
+            return ResponseEntity.status(HttpStatus.NOT_FOUND).build();
+        }
+        return ResponseEntity.ok(moneyAuditService.report());
+    }
+
+    @PostMapping(path="/account/postings")
+    public @ResponseBody PostingJob startPostingJob(@RequestParam PostingOperation operation, @RequestParam(defaultValue = "0") long amount) {
+        return balancePostingService.start(operation, amount);
+    }
+
+    @PostMapping(path="/account/postings/{jobId}/resume")
+    public @ResponseBody PostingJob resumePostingJob(@PathVariable String jobId) {
+        return balancePostingService.resume(jobId);
+    }
+
+    @GetMapping(path="/account/postings/{jobId}")
+    public @ResponseBody ResponseEntity<PostingJob> getPostingJob(@PathVariable String jobId) {
+        PostingJob job = balancePostingService.getJob(jobId);
+        return job == null ? ResponseEntity.status(HttpStatus.NOT_FOUND).build() : ResponseEntity.ok(job);
+    }
+
     @GetMapping(path="/event/add")
-    public @ResponseBody ResponseEntity addEvent(@RequestParam String collectionName, @RequestParam String payload) {
-        eventService.create(collectionName, payload);
-        return ResponseEntity.status(HttpStatus.CREATED).body(HttpStatus.CREATED.toString());
+    public @ResponseBody CompletableFuture<ResponseEntity> addEvent(@RequestParam String collectionName, @RequestParam String payload) {
+        // the request thread is released while the event waits for its batch
+        return eventService.create(collectionName, payload)
+                .thenApply(written -> ResponseEntity.status(HttpStatus.CREATED).body(HttpStatus.CREATED.toString()));
+    }
+
+    /**
+     * Stream the events as one JSON object per line in (createdOn, _id) order, read over a
+     * cursor and written as they come, a slow client slows down the cursor.
+     *
+     * The next page starts after the last event received, its token being its createdOn
+     * and id joined by an underscore, see EventKey.
+     */
+    @GetMapping(path="/event/stream")
+    public ResponseEntity<StreamingResponseBody> streamEvents(
+            @RequestParam String collectionName,
+            @RequestParam(required = false) String after,
+            @RequestParam(defaultValue = "0") int limit
+    ) {
+        EventKey afterKey = parseEventKey(after);
+
+        StreamingResponseBody body = outputStream -> {
+            Writer writer = new BufferedWriter(new OutputStreamWriter(outputStream, StandardCharsets.UTF_8));
+            try {
+                eventService.streamEvents(collectionName, afterKey, limit, event -> {
+                    try {
+                        writer.write(objectMapper.writeValueAsString(event));
+                        writer.write('\n');
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                });
+            } catch (UncheckedIOException e) {
+                throw e.getCause();
+            }
+            writer.flush();
+        };
+        return ResponseEntity.ok().contentType(MediaType.parseMediaType("application/x-ndjson")).body(body);
+    }
+
+    /**
+     * Events created within [from, to[, instants formatted as ISO-8601 e.g. 2020-05-01T10:15:30Z
+     */
+    @GetMapping(path="/event/range")
+    public @ResponseBody EventPage findEvents(
+            @RequestParam String collectionName,
+            @RequestParam String from,
+            @RequestParam String to,
+            @RequestParam(required = false) String after,
+            @RequestParam(defaultValue = "100") int limit,
+            @RequestParam(defaultValue = "false") boolean idsOnly
+    ) {
+        try {
+            return eventService.findEvents(collectionName, Instant.parse(from), Instant.parse(to),
+                    parseEventKey(after), limit, idsOnly);
+        } catch (DateTimeParseException e) {
+            throw new BadRequestException(e.getMessage());
+        }
+    }
+
+    /**
+     * Push the events inserted into the collection as server-sent events, a client reconnecting
+     * with Last-Event-ID continues right after the last event it received
+     */
+    @GetMapping(path="/event/subscribe", produces = MediaType.TEXT_EVENT_STREAM_VALUE)
+    public ResponseEntity<SseEmitter> subscribeEvents(
+            @RequestParam String collectionName,
+            @RequestHeader(value = "Last-Event-ID", required = false) String lastEventId
+    ) {
+        if (!eventSubscriptionService.isEnabled()) {
+            return ResponseEntity.status(HttpStatus.NOT_FOUND).build();
+        }
+        return ResponseEntity.ok(eventSubscriptionService.subscribe(collectionName, lastEventId));
+    }
+
+    @GetMapping(path="/event/count")
+    public @ResponseBody long countEvents(@RequestParam String collectionName) {
+        return eventService.countEvents(collectionName);
+    }
+
+    private static EventKey parseEventKey(String token) {
+        try {
+            return EventKey.fromToken(token);
+        } catch (IllegalArgumentException e) {
+            throw new BadRequestException(e.getMessage());
+        }
+    }
+
+    @ExceptionHandler(BadRequestException.class)
+    public ResponseEntity handleBadRequest(BadRequestException e) {
+        return ResponseEntity.status(HttpStatus.BAD_REQUEST).body(e.getMessage());
+    }
+
+    @ExceptionHandler(AccountNotFoundException.class)
+    public ResponseEntity handleAccountNotFound(AccountNotFoundException e) {
+        return ResponseEntity.status(HttpStatus.NOT_FOUND).body(e.getMessage());
+    }
+
+    @ExceptionHandler(RejectedExecutionException.class)
+    public ResponseEntity handleRejectedExecution(RejectedExecutionException e) {
+        return ResponseEntity.status(HttpStatus.SERVICE_UNAVAILABLE).body(e.getMessage());
+    }
+
+    @ExceptionHandler(InsufficientFundsException.class)
+    public ResponseEntity handleInsufficientFunds(InsufficientFundsException e) {
+        return ResponseEntity.status(HttpStatus.CONFLICT).body(e.getMessage());
+    }
+
+    @ExceptionHandler(StripedAccountException.class)
+    public ResponseEntity handleStripedAccount(StripedAccountException e) {
+        return ResponseEntity.status(HttpStatus.CONFLICT).body(e.getMessage());
     }
 }
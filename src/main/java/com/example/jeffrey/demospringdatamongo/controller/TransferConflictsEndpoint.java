@@ -0,0 +1,32 @@
+package com.example.jeffrey.demospringdatamongo.controller;
+
+import com.example.jeffrey.demospringdatamongo.model.TransferProfileReport;
+import com.example.jeffrey.demospringdatamongo.service.TransferProfiler;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.actuate.endpoint.annotation.DeleteOperation;
+import org.springframework.boot.actuate.endpoint.annotation.Endpoint;
+import org.springframework.boot.actuate.endpoint.annotation.ReadOperation;
+import org.springframework.stereotype.Component;
+
+/**
+ * Hot accounts of the transfer write-conflicts and latency per transfer method,
+ * exposed at /actuator/transferconflicts
+ */
+@Component
+@Endpoint(id = "transferconflicts")
+public class TransferConflictsEndpoint {
+
+    @Autowired
+    TransferProfiler transferProfiler;
+
+    @ReadOperation
+    public TransferProfileReport report() {
+        return transferProfiler.report();
+    }
+
+    @DeleteOperation
+    public void reset() {
+        transferProfiler.reset();
+    }
+
+}
@@ -0,0 +1,128 @@
+package com.example.jeffrey.demospringdatamongo.dao;
+
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeParseException;
+import java.util.Objects;
+import java.util.regex.Pattern;
+
+/**
+ * One day of a stream in the BUCKETED layout, stored in its own collection named after the
+ * stream and the UTC day of its events, e.g. event-stream-0.2020-05-01
+ *
+ * - Buckets of a stream never overlap in time, reading them by day reads the stream in order
+ * - An expired bucket is dropped as a whole, see EventArchiver
+ * - While archived, a bucket is renamed with the .archiving suffix, out of reach of the writers,
+ *   which re-create the bucket if an event of its day is appended meanwhile
+ */
+public final class EventBucket implements Comparable<EventBucket> {
+
+    private static final char SEPARATOR = '.';
+    private static final String ARCHIVING_SUFFIX = ".archiving";
+    // yyyy-MM-dd
+    private static final int DAY_LENGTH = 10;
+
+    public final String stream;
+
+    public final LocalDate day;
+
+    public EventBucket(String stream, LocalDate day) {
+        this.stream = Objects.requireNonNull(stream);
+        this.day = Objects.requireNonNull(day);
+    }
+
+    public static EventBucket of(String stream, Instant createdOn) {
+        return new EventBucket(stream, createdOn.atOffset(ZoneOffset.UTC).toLocalDate());
+    }
+
+    /**
+     * @return null if the collection is not a bucket, being archived or not
+     */
+    public static EventBucket parse(String collectionName) {
+        if (isArchiving(collectionName)) {
+            collectionName = collectionName.substring(0, collectionName.length() - ARCHIVING_SUFFIX.length());
+        }
+        int separator = collectionName.length() - DAY_LENGTH - 1;
+        if (separator < 1 || collectionName.charAt(separator) != SEPARATOR || collectionName.startsWith("system.")) {
+            return null;
+        }
+        try {
+            return new EventBucket(collectionName.substring(0, separator), LocalDate.parse(collectionName.substring(separator + 1)));
+        } catch (DateTimeParseException e) {
+            return null;
+        }
+    }
+
+    public static boolean isArchiving(String collectionName) {
+        return collectionName.endsWith(ARCHIVING_SUFFIX);
+    }
+
+    /**
+     * @param archiving include the buckets being archived
+     * @return regular expression matching the collection names of the buckets of the stream
+     */
+    public static String collectionNamePattern(String stream, boolean archiving) {
+        return "^" + Pattern.quote(stream) + "\\.\\d{4}-\\d{2}-\\d{2}" + (archiving ? "(" + Pattern.quote(ARCHIVING_SUFFIX) + ")?$" : "$");
+    }
+
+    public String collectionName() {
+        return stream + SEPARATOR + day;
+    }
+
+    /**
+     * @return name of the bucket while archived
+     */
+    public String archivingCollectionName() {
+        return collectionName() + ARCHIVING_SUFFIX;
+    }
+
+    /**
+     * @return the first instant of the bucket, inclusive
+     */
+    public Instant start() {
+        return day.atStartOfDay(ZoneOffset.UTC).toInstant();
+    }
+
+    /**
+     * @return the last instant of the bucket, exclusive
+     */
+    public Instant end() {
+        return day.plusDays(1).atStartOfDay(ZoneOffset.UTC).toInstant();
+    }
+
+    /**
+     * @param from inclusive, null for no lower bound
+     * @param to exclusive, null for no upper bound
+     */
+    public boolean overlaps(Instant from, Instant to) {
+        return (from == null || end().isAfter(from)) && (to == null || start().isBefore(to));
+    }
+
+    @Override
+    public int compareTo(EventBucket other) {
+        int result = day.compareTo(other.day);
+        return result != 0 ? result : stream.compareTo(other.stream);
+    }
+
+    @Override
+    public boolean equals(Object other) {
+        if (this == other) {
+            return true;
+        }
+        if (!(other instanceof EventBucket)) {
+            return false;
+        }
+        return stream.equals(((EventBucket) other).stream) && day.equals(((EventBucket) other).day);
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(stream, day);
+    }
+
+    @Override
+    public String toString() {
+        return collectionName();
+    }
+}
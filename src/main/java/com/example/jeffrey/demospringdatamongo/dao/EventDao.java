@@ -2,13 +2,64 @@ package com.example.jeffrey.demospringdatamongo.dao;
 
 import com.example.jeffrey.demospringdatamongo.config.DemoMongoDbConfig;
 import com.example.jeffrey.demospringdatamongo.model.Event;
+import com.example.jeffrey.demospringdatamongo.model.EventKey;
+import com.example.jeffrey.demospringdatamongo.model.EventPage;
+import com.mongodb.MongoBulkWriteException;
+import com.mongodb.MongoCommandException;
+import com.mongodb.MongoNamespace;
+import com.mongodb.WriteConcern;
+import com.mongodb.bulk.BulkWriteError;
+import com.mongodb.bulk.BulkWriteResult;
+import com.mongodb.bulk.WriteRequest;
+import com.mongodb.client.ChangeStreamIterable;
+import com.mongodb.client.MongoCursor;
+import com.mongodb.client.model.InsertManyOptions;
+import com.mongodb.client.model.UpdateOptions;
+import org.bson.Document;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.domain.Sort;
 import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.index.HashedIndex;
+import org.springframework.data.mongodb.core.index.Index;
+import org.springframework.data.mongodb.core.index.IndexOperations;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
 import org.springframework.data.mongodb.repository.config.EnableMongoRepositories;
+import org.springframework.data.util.CloseableIterator;
 import org.springframework.stereotype.Component;
 
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
 import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Consumer;
 
+import static com.mongodb.client.model.Aggregates.match;
+import static com.mongodb.client.model.Filters.and;
+import static com.mongodb.client.model.Filters.eq;
+import static com.mongodb.client.model.Filters.regex;
+import static com.mongodb.client.model.Sorts.ascending;
+import static com.mongodb.client.model.Updates.setOnInsert;
+import static org.springframework.data.mongodb.core.query.Criteria.where;
+
+/**
+ * Events are appended to named streams, stored according to event.storage.layout:
+ *
+ * - COLLECTION_PER_STREAM: one collection per stream, named after it (default)
+ * - CONSOLIDATED: one collection for all the streams, each event tagged with its stream, see
+ *   EventStorageLayout
+ * - BUCKETED: one collection per stream and day, see EventBucket, reads fan out over the buckets
+ *   of the stream in day order, listed by name; every stream is registered on its first write,
+ *   so that retention only ever lists the buckets of the known streams
+ *
+ * Either way, the streams are passed as collectionName and the API is the same.
+ */
 @Component("EventDao")
 @EnableMongoRepositories
 public class EventDao {
@@ -19,17 +70,394 @@ public class EventDao {
     @Autowired
     MongoTemplate mongoTemplate;
 
+    // events fetched per round trip of a cursor
+    @Value("${event.read.batch-size:1000}")
+    int readBatchSize;
+
+    @Value("${event.storage.layout:COLLECTION_PER_STREAM}")
+    EventStorageLayout storageLayout;
+
+    @Value("${event.storage.collection:EventCollection}")
+    String consolidatedCollection;
+
+    @Value("${event.storage.stream-collection:EventStreamCollection}")
+    String streamCollection;
+
+    // collections known to have their indexes
+    private final Set<String> indexedCollections = ConcurrentHashMap.newKeySet();
+
+    // BUCKETED streams known to be registered
+    private final Set<String> registeredStreams = ConcurrentHashMap.newKeySet();
+
     public void deleteAll(String collectionName) {
-        mongoTemplate.dropCollection(collectionName);
+        if (storageLayout == EventStorageLayout.CONSOLIDATED) {
+            mongoTemplate.remove(new Query(stream(collectionName)), consolidatedCollection);
+            return;
+        }
+        for (String collection : collectionsOf(collectionName, null, null)) {
+            mongoTemplate.dropCollection(collection);
+            indexedCollections.remove(collection);
+        }
     }
 
     public void createEvent(String collectionName, String payload) {
         Event event = new Event(payload);
-        mongoTemplate.save(event, collectionName);
+        String collection = collectionOf(collectionName, event);
+        registerStream(collectionName);
+        ensureIndexes(collection);
+        if (storageLayout == EventStorageLayout.CONSOLIDATED) {
+            Document document = new Document();
+            mongoTemplate.getConverter().write(event, document);
+            document.put("stream", collectionName);
+            mongoTemplate.insert(document, consolidatedCollection);
+            return;
+        }
+        mongoTemplate.save(event, collection);
+    }
+
+    /**
+     * Insert the events with one unordered insertMany, acknowledged once journaled on a
+     * majority of the replica set.
+     *
+     * @throws com.mongodb.MongoBulkWriteException listing the events not inserted, by index
+     */
+    public void createEvents(String collectionName, List<Event> events) {
+        createEvents(collectionName, events, false);
+    }
+
+    /**
+     * @param ordered stop at the first event which fails, the events after it are not inserted
+     */
+    public void createEvents(String collectionName, List<Event> events, boolean ordered) {
+        List<Document> documents = new ArrayList<>(events.size());
+        for (Event event : events) {
+            Document document = new Document();
+            mongoTemplate.getConverter().write(event, document);
+            if (storageLayout == EventStorageLayout.CONSOLIDATED) {
+                document.put("stream", collectionName);
+            }
+            documents.add(document);
+        }
+        if (storageLayout != EventStorageLayout.BUCKETED) {
+            insert(collectionOf(collectionName), documents, ordered);
+            return;
+        }
+
+        registerStream(collectionName);
+
+        // one insertMany per run of consecutive events of the same bucket, usually a single one
+        List<BulkWriteError> errors = new ArrayList<>();
+        MongoBulkWriteException failure = null;
+        int inserted = 0;
+        int start = 0;
+        while (start < events.size()) {
+            String bucket = collectionOf(collectionName, events.get(start));
+            int end = start + 1;
+            while (end < events.size() && bucket.equals(collectionOf(collectionName, events.get(end)))) {
+                end++;
+            }
+            try {
+                insert(bucket, documents.subList(start, end), ordered);
+                inserted += end - start;
+            } catch (MongoBulkWriteException e) {
+                failure = e;
+                inserted += e.getWriteResult().getInsertedCount();
+                // indexed within the run, re-indexed within the events
+                for (BulkWriteError error : e.getWriteErrors()) {
+                    errors.add(new BulkWriteError(error.getCode(), error.getMessage(), error.getDetails(), error.getIndex() + start));
+                }
+                if (ordered) {
+                    break;
+                }
+            }
+            start = end;
+        }
+        if (failure != null) {
+            throw new MongoBulkWriteException(
+                    BulkWriteResult.acknowledged(WriteRequest.Type.INSERT, inserted, 0, Collections.emptyList()),
+                    errors, failure.getWriteConcernError(), failure.getServerAddress());
+        }
+    }
+
+    private void insert(String collection, List<Document> documents, boolean ordered) {
+        ensureIndexes(collection);
+        mongoTemplate.getCollection(collection)
+                .withWriteConcern(WriteConcern.MAJORITY.withJournal(true))
+                .insertMany(documents, new InsertManyOptions().ordered(ordered));
     }
 
+    /**
+     * @deprecated loads the whole collection in memory, see {@link #streamEvents}
+     */
+    @Deprecated
     public List<Event> findAllEvents(String collectionName) {
-        return mongoTemplate.findAll(Event.class, collectionName);
+        List<Event> events = new ArrayList<>();
+        for (String collection : collectionsOf(collectionName, null, null)) {
+            events.addAll(mongoTemplate.find(new Query(stream(collectionName)), Event.class, collection));
+        }
+        return events;
+    }
+
+    /**
+     * Stream the events in (createdOn, _id) order over a cursor, fetching read-batch-size
+     * events per round trip, memory stays flat whatever the size of the collection.
+     *
+     * The next batch is only fetched once the consumer took the current one, a slow consumer
+     * slows down the cursor rather than buffering events.
+     *
+     * @param after resume right after this event, null to start from the first event
+     * @param limit 0 for no limit
+     * @return the key of the last event streamed, to resume after it, or null if none
+     */
+    public EventKey streamEvents(String collectionName, EventKey after, int limit, Consumer<Event> consumer) {
+        EventKey last = null;
+        int streamed = 0;
+        // buckets do not overlap, streamed one after the other they are merged in order
+        for (String collection : collectionsOf(collectionName, after == null ? null : after.createdOn, null)) {
+            ensureIndexes(collection);
+
+            Query query = new Query(new Criteria().andOperator(stream(collectionName), after(after)))
+                    .with(Sort.by(Sort.Direction.ASC, "createdOn", "_id"))
+                    .limit(limit == 0 ? 0 : limit - streamed)
+                    .cursorBatchSize(readBatchSize);
+
+            try (CloseableIterator<Event> events = mongoTemplate.stream(query, Event.class, collection)) {
+                while (events.hasNext()) {
+                    Event event = events.next();
+                    consumer.accept(event);
+                    last = EventKey.of(event);
+                    streamed++;
+                }
+            }
+            if (limit > 0 && streamed >= limit) {
+                break;
+            }
+        }
+        return last;
+    }
+
+    /**
+     * Find the events created within [from, to[, a page at a time, over the (createdOn, _id)
+     * index.
+     *
+     * @param after resume right after this event, null for the first page
+     * @param idsOnly only the id and createdOn of the events, read from the index alone
+     *                (covered query) without fetching the documents
+     */
+    public EventPage findEvents(String collectionName, Instant from, Instant to, EventKey after, int limit, boolean idsOnly) {
+        EventPage page = new EventPage();
+        page.events = new ArrayList<>();
+        // only the buckets within [from, to[, in order, until one more event than the page is
+        // found, to tell whether there is a next page
+        for (String collection : collectionsOf(collectionName, after == null ? from : after.createdOn, to)) {
+            ensureIndexes(collection);
+
+            Query query = new Query(new Criteria().andOperator(
+                            stream(collectionName), where("createdOn").gte(from).lt(to), after(after)))
+                    .with(Sort.by(Sort.Direction.ASC, "createdOn", "_id"))
+                    .limit(limit + 1 - page.events.size());
+            if (idsOnly) {
+                query.fields().include("_id").include("createdOn");
+            }
+
+            page.events.addAll(mongoTemplate.find(query, Event.class, collection));
+            if (page.events.size() > limit) {
+                break;
+            }
+        }
+
+        if (page.events.size() > limit) {
+            page.events = page.events.subList(0, limit);
+            page.nextPageToken = EventKey.of(page.events.get(limit - 1)).toToken();
+        }
+        return page;
+    }
+
+    public long countEvents(String collectionName) {
+        long count = 0;
+        for (String collection : collectionsOf(collectionName, null, null)) {
+            count += mongoTemplate.count(new Query(stream(collectionName)), collection);
+        }
+        return count;
+    }
+
+    /**
+     * Change stream of the events inserted into the stream
+     */
+    public ChangeStreamIterable<Document> watchEvents(String collectionName) {
+        if (storageLayout == EventStorageLayout.CONSOLIDATED) {
+            return mongoTemplate.getCollection(consolidatedCollection).watch(Collections.singletonList(
+                    match(and(eq("operationType", "insert"), eq("fullDocument.stream", collectionName)))));
+        }
+        if (storageLayout == EventStorageLayout.BUCKETED) {
+            // the buckets of the stream, including the ones created after the stream is opened
+            return mongoTemplate.getDb().watch(Collections.singletonList(match(and(eq("operationType", "insert"),
+                    regex("ns.coll", EventBucket.collectionNamePattern(collectionName, false))))));
+        }
+        return mongoTemplate.getCollection(collectionName)
+                .watch(Collections.singletonList(match(eq("operationType", "insert"))));
+    }
+
+    public boolean isBucketed() {
+        return storageLayout == EventStorageLayout.BUCKETED;
+    }
+
+    /**
+     * @return the buckets of the registered streams which end at or before the instant, the
+     * oldest first, including the ones being archived, empty unless BUCKETED
+     */
+    public List<EventBucket> findBuckets(Instant before) {
+        Set<EventBucket> buckets = new TreeSet<>();
+        if (storageLayout != EventStorageLayout.BUCKETED) {
+            return new ArrayList<>(buckets);
+        }
+        for (Document stream : mongoTemplate.getCollection(streamCollection).find()) {
+            for (String collection : bucketCollectionsOf(stream.getString("_id"))) {
+                EventBucket bucket = EventBucket.parse(collection);
+                if (!bucket.end().isAfter(before)) {
+                    buckets.add(bucket);
+                }
+            }
+        }
+        return new ArrayList<>(buckets);
+    }
+
+    /**
+     * Rename the bucket to its archiving name, out of reach of the writers: an event of its day
+     * appended meanwhile re-creates the bucket, archived on a next round.
+     *
+     * Left as is if the bucket is being archived already, e.g. by a round which did not complete.
+     */
+    public void freezeBucket(EventBucket bucket) {
+        try {
+            mongoTemplate.getCollection(bucket.collectionName()).renameCollection(
+                    new MongoNamespace(mongoTemplate.getDb().getName(), bucket.archivingCollectionName()));
+        } catch (MongoCommandException e) {
+            // NamespaceExists: being archived already, NamespaceNotFound: only the archiving one is left
+            if (e.getErrorCode() != 48 && e.getErrorCode() != 26) {
+                throw e;
+            }
+        }
+        indexedCollections.remove(bucket.collectionName());
+    }
+
+    /**
+     * Stream the documents of the frozen bucket as stored, in (createdOn, _id) order
+     *
+     * @return amount of documents streamed
+     */
+    public long exportBucket(EventBucket bucket, Consumer<Document> consumer) {
+        long count = 0;
+        try (MongoCursor<Document> documents = mongoTemplate.getCollection(bucket.archivingCollectionName()).find()
+                .sort(ascending("createdOn", "_id"))
+                .batchSize(readBatchSize)
+                .iterator()) {
+            while (documents.hasNext()) {
+                consumer.accept(documents.next());
+                count++;
+            }
+        }
+        return count;
+    }
+
+    public long countBucket(EventBucket bucket) {
+        return mongoTemplate.getCollection(bucket.archivingCollectionName()).countDocuments();
+    }
+
+    /**
+     * Drop the frozen bucket as a whole, much cheaper than deleting its events one by one
+     */
+    public void dropBucket(EventBucket bucket) {
+        mongoTemplate.dropCollection(bucket.archivingCollectionName());
+    }
+
+    private String collectionOf(String collectionName) {
+        return storageLayout == EventStorageLayout.CONSOLIDATED ? consolidatedCollection : collectionName;
+    }
+
+    private String collectionOf(String collectionName, Event event) {
+        return storageLayout == EventStorageLayout.BUCKETED
+                ? EventBucket.of(collectionName, event.getCreatedOn()).collectionName()
+                : collectionOf(collectionName);
+    }
+
+    /**
+     * @param from inclusive, null for no lower bound
+     * @param to exclusive, null for no upper bound
+     * @return the collections of the stream with events within [from, to[, the oldest first
+     */
+    private List<String> collectionsOf(String collectionName, Instant from, Instant to) {
+        if (storageLayout != EventStorageLayout.BUCKETED) {
+            return Collections.singletonList(collectionOf(collectionName));
+        }
+        // a bucket being archived holds older events of its day than the bucket re-created meanwhile
+        List<String> collections = new ArrayList<>();
+        for (String collection : bucketCollectionsOf(collectionName)) {
+            if (EventBucket.parse(collection).overlaps(from, to)) {
+                collections.add(collection);
+            }
+        }
+        collections.sort(Comparator.comparing(EventBucket::parse)
+                .thenComparing(collection -> !EventBucket.isArchiving(collection)));
+        return collections;
+    }
+
+    /**
+     * List by name the buckets of the stream, including the ones being archived, rather than
+     * every collection of the database
+     */
+    private List<String> bucketCollectionsOf(String collectionName) {
+        List<String> collections = new ArrayList<>();
+        for (Document collection : mongoTemplate.getDb().listCollections()
+                .filter(regex("name", EventBucket.collectionNamePattern(collectionName, true)))) {
+            collections.add(collection.getString("name"));
+        }
+        return collections;
+    }
+
+    /**
+     * Register the BUCKETED stream, once per node
+     */
+    private void registerStream(String collectionName) {
+        if (storageLayout != EventStorageLayout.BUCKETED || registeredStreams.contains(collectionName)) {
+            return;
+        }
+        mongoTemplate.getCollection(streamCollection).updateOne(eq("_id", collectionName),
+                setOnInsert("registeredOn", new Date()), new UpdateOptions().upsert(true));
+        registeredStreams.add(collectionName);
+    }
+
+    private Criteria stream(String collectionName) {
+        return storageLayout == EventStorageLayout.CONSOLIDATED ? where("stream").is(collectionName) : new Criteria();
+    }
+
+    private static Criteria after(EventKey after) {
+        return after == null ? new Criteria() : new Criteria().orOperator(
+                where("createdOn").gt(after.createdOn),
+                where("createdOn").is(after.createdOn).and("_id").gt(after.id));
+    }
+
+    /**
+     * Index (createdOn, _id) the first time a collection is written or read by this node,
+     * collections are created on the fly and a time query must never scan one.
+     *
+     * The consolidated collection is indexed on (stream, createdOn, _id) instead, plus a hashed
+     * index on the stream, the shard key candidate.
+     */
+    private void ensureIndexes(String collectionName) {
+        if (indexedCollections.contains(collectionName)) {
+            return;
+        }
+        // no-op if the index exists already
+        IndexOperations indexOps = mongoTemplate.indexOps(collectionName);
+        if (storageLayout == EventStorageLayout.CONSOLIDATED) {
+            indexOps.ensureIndex(HashedIndex.hashed("stream"));
+            indexOps.ensureIndex(new Index().on("stream", Sort.Direction.ASC)
+                    .on("createdOn", Sort.Direction.ASC).on("_id", Sort.Direction.ASC));
+        } else {
+            indexOps.ensureIndex(new Index().on("createdOn", Sort.Direction.ASC).on("_id", Sort.Direction.ASC));
+        }
+        indexedCollections.add(collectionName);
     }
 
 }
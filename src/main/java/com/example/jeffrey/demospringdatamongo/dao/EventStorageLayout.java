@@ -0,0 +1,27 @@
+package com.example.jeffrey.demospringdatamongo.dao;
+
+/**
+ * How {@link EventDao} stores the events of its streams,
+ * configured with the property event.storage.layout
+ */
+public enum EventStorageLayout {
+
+    /**
+     * One collection per stream, named after it (default), each one with its own
+     * indexes and data files
+     */
+    COLLECTION_PER_STREAM,
+
+    /**
+     * One collection for all the streams, each event tagged with its stream, indexed on
+     * (stream, createdOn, _id) and hashed on the stream so that it can be sharded by stream
+     */
+    CONSOLIDATED,
+
+    /**
+     * One collection per stream and UTC day of the events, see {@link EventBucket}, so that
+     * the days past the retention can be archived and dropped as a whole
+     */
+    BUCKETED
+
+}
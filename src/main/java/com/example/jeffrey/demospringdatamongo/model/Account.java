@@ -6,8 +6,6 @@ import org.springframework.data.annotation.Id;
 import org.springframework.data.mongodb.core.index.Indexed;
 import org.springframework.data.mongodb.core.mapping.Document;
 
-import java.util.UUID;
-
 @Document(collection = "AccountCollection") // specify the name of the collection in MongoDB
 public class Account {
     private static final Logger LOGGER = LoggerFactory.getLogger(Account.class);
@@ -23,8 +21,16 @@ public class Account {
 
     public Long ledgerBalance;
 
+    // Amount of AccountStripe sub-balances of a hot account, null if not striped.
+    // The balance of a striped account is accountBalance plus the sum of its stripes.
+    public Integer stripeCount;
+
+    // Id of the last PostingJob applied to the account, so that a resumed job posts it only once
+    public String lastPostingJobId;
+
     public Account() {
-        this.accountNumber = UUID.randomUUID().toString();
+        // not UUID.randomUUID(), which serializes every thread on the lock of one SecureRandom
+        this.accountNumber = AccountNumberGenerator.next();
         this.accountBalance = 100L;
         this.ledgerBalance = accountBalance;
     }
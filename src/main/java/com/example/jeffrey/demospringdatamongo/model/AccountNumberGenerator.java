@@ -0,0 +1,64 @@
+package com.example.jeffrey.demospringdatamongo.model;
+
+import java.security.SecureRandom;
+import java.util.UUID;
+
+/**
+ * Generates account numbers formatted as random (version 4) UUID, without the lock of the
+ * SecureRandom shared by UUID.randomUUID().
+ *
+ * - Each thread draws a random 60-bit prefix and a random key once, from SecureRandom
+ * - The low 62 bits are a per-thread counter passed through a keyed bijection
+ *
+ * Numbers of the same thread never repeat (the bijection of distinct counters), numbers of
+ * different threads or nodes collide only if their prefixes do, about 2^-60 per pair of
+ * threads. Consecutive numbers do not look sequential, but unlike UUID.randomUUID() they are
+ * not meant to be unguessable.
+ */
+public final class AccountNumberGenerator {
+
+    private static final long MASK_62 = (1L << 62) - 1;
+
+    private static final SecureRandom SEEDER = new SecureRandom();
+
+    private static final ThreadLocal<State> STATE = ThreadLocal.withInitial(() -> {
+        synchronized (SEEDER) {
+            return new State(SEEDER.nextLong(), SEEDER.nextLong());
+        }
+    });
+
+    private AccountNumberGenerator() {}
+
+    public static String next() {
+        State state = STATE.get();
+        // version 4 in the most significant bits, IETF variant in the least significant bits
+        long mostSigBits = (state.prefix & ~0xf000L) | 0x4000L;
+        long leastSigBits = mix(state.counter++ + state.key) | 0x8000000000000000L;
+        return new UUID(mostSigBits, leastSigBits).toString();
+    }
+
+    /**
+     * A bijection of [0, 2^62), every step (xor-shift, odd multiplier) is invertible modulo 2^62
+     */
+    static long mix(long x) {
+        x &= MASK_62;
+        x ^= x >>> 31;
+        x = (x * 0x7fb5d329728ea185L) & MASK_62;
+        x ^= x >>> 27;
+        x = (x * 0x81dadef4bc2dd44dL) & MASK_62;
+        x ^= x >>> 33;
+        return x;
+    }
+
+    private static final class State {
+        private final long prefix;
+        private final long key;
+        private long counter;
+
+        private State(long prefix, long key) {
+            this.prefix = prefix;
+            this.key = key;
+        }
+    }
+
+}
@@ -0,0 +1,27 @@
+package com.example.jeffrey.demospringdatamongo.model;
+
+import org.springframework.data.annotation.Id;
+import org.springframework.data.mongodb.core.mapping.Document;
+
+/**
+ * One of the sub-balances of a striped (hot) account, see AccountStripeService
+ */
+@Document(collection = "AccountStripeCollection") // specify the name of the collection in MongoDB
+public class AccountStripe {
+
+    // accountNumber#stripe, so that a stripe is addressed without any lookup
+    @Id
+    public String id;
+
+    // indexed on (accountNumber, stripe) by AccountStripeService
+    public String accountNumber;
+
+    public int stripe;
+
+    public long balance;
+
+    public static String idOf(String accountNumber, int stripe) {
+        return accountNumber + "#" + stripe;
+    }
+
+}
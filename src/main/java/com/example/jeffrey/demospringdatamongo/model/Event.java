@@ -2,6 +2,7 @@ package com.example.jeffrey.demospringdatamongo.model;
 
 import com.fasterxml.jackson.annotation.JsonProperty;
 import org.springframework.data.annotation.Id;
+import org.springframework.data.annotation.PersistenceConstructor;
 import org.springframework.data.mongodb.core.mapping.Document;
 
 import java.time.Instant;
@@ -25,4 +26,26 @@ public class Event {
         this.payload = payload;
     }
 
+    /**
+     * An event created earlier, e.g. replayed from the spool with the id it was given then
+     */
+    @PersistenceConstructor
+    public Event(String id, Instant createdOn, String payload) {
+        this.id = id;
+        this.createdOn = createdOn;
+        this.payload = payload;
+    }
+
+    public String getId() {
+        return id;
+    }
+
+    public Instant getCreatedOn() {
+        return createdOn;
+    }
+
+    public String getPayload() {
+        return payload;
+    }
+
 }
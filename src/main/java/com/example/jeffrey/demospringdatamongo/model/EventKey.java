@@ -0,0 +1,56 @@
+package com.example.jeffrey.demospringdatamongo.model;
+
+import java.time.Instant;
+import java.time.format.DateTimeParseException;
+
+/**
+ * Position of an event in the (createdOn, _id) order, to resume a read right after it.
+ *
+ * Its token is the createdOn of the event and its id joined by an underscore,
+ * e.g. 2020-05-01T10:15:30.123Z_5eabf5b2c9e77c0001a1b2c3
+ */
+public class EventKey {
+
+    public Instant createdOn;
+
+    public String id;
+
+    public EventKey() {}
+
+    public EventKey(Instant createdOn, String id) {
+        this.createdOn = createdOn;
+        this.id = id;
+    }
+
+    public static EventKey of(Event event) {
+        return new EventKey(event.getCreatedOn(), event.getId());
+    }
+
+    /**
+     * @return null if the token is null
+     * @throws IllegalArgumentException if the token is malformed
+     */
+    public static EventKey fromToken(String token) {
+        if (token == null) {
+            return null;
+        }
+        int separator = token.lastIndexOf('_');
+        if (separator < 0) {
+            throw new IllegalArgumentException("malformed event key: " + token);
+        }
+        try {
+            return new EventKey(Instant.parse(token.substring(0, separator)), token.substring(separator + 1));
+        } catch (DateTimeParseException e) {
+            throw new IllegalArgumentException("malformed event key: " + token);
+        }
+    }
+
+    public String toToken() {
+        return createdOn + "_" + id;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("EventKey[createdOn=%s, id='%s']", createdOn, id);
+    }
+}
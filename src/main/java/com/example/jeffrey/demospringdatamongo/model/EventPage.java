@@ -0,0 +1,16 @@
+package com.example.jeffrey.demospringdatamongo.model;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A page of events in (createdOn, _id) order
+ */
+public class EventPage {
+
+    public List<Event> events = new ArrayList<>();
+
+    // pass as the after token to get the next page, null on the last page
+    public String nextPageToken;
+
+}
@@ -0,0 +1,27 @@
+package com.example.jeffrey.demospringdatamongo.model;
+
+import org.springframework.data.annotation.Id;
+import org.springframework.data.mongodb.core.mapping.Document;
+
+import java.util.Date;
+
+/**
+ * Progress of the transfer journal materializer, updated in the same transaction as the balances
+ */
+@Document(collection = "JournalCheckpointCollection") // specify the name of the collection in MongoDB
+public class JournalCheckpoint {
+
+    public static final String TRANSFER_JOURNAL = "transfer-journal";
+
+    @Id
+    public String name;
+
+    // Highest entry id of the last materialized batch
+    public String lastEntryId;
+
+    // Total amount of entries materialized so far
+    public long materializedCount;
+
+    public Date updatedOn;
+
+}
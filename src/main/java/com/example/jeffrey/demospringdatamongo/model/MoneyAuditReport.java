@@ -0,0 +1,45 @@
+package com.example.jeffrey.demospringdatamongo.model;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+
+/**
+ * Running totals of the money held by the accounts, see MoneyAuditService
+ */
+public class MoneyAuditReport {
+
+    // sum of the account balances and stripes, as of the last change applied
+    public long total;
+
+    // amount of account and stripe documents tracked
+    public long documents;
+
+    // committed transactions audited
+    public long transactions;
+
+    public long unbalancedTransactions;
+
+    // first unbalanced transactions, bounded
+    public List<UnbalancedTransaction> unbalancedSamples = new ArrayList<>();
+
+    // changes outside of any transaction (e.g. accounts opened or deleted), they can not be audited
+    public long nonTransactionalChanges;
+
+    // net money created by the changes outside of any transaction
+    public long nonTransactionalDelta;
+
+    // transactions not audited, they changed a document whose previous balance was not known
+    public long unverifiableTransactions;
+
+    public long reconciliations;
+
+    public Date lastReconciledOn;
+
+    // snapshot total minus running total at the last reconciliation, 0 if consistent
+    public long lastDrift;
+
+    // wall clock minus cluster time of the last change applied
+    public long lagMillis;
+
+}
@@ -0,0 +1,61 @@
+package com.example.jeffrey.demospringdatamongo.model;
+
+import org.springframework.data.annotation.Id;
+import org.springframework.data.annotation.Transient;
+import org.springframework.data.mongodb.core.mapping.Document;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+
+/**
+ * Checkpoint of a bulk balance posting over every account, see BalancePostingService.
+ * Updated after every chunk, so that an interrupted job resumes where it stopped.
+ */
+@Document(collection = "PostingJobCollection") // specify the name of the collection in MongoDB
+public class PostingJob {
+
+    public enum Status { RUNNING, COMPLETED, FAILED }
+
+    @Id
+    public String id;
+
+    public PostingOperation operation;
+
+    public long amount;
+
+    public Status status;
+
+    public List<PostingRange> ranges = new ArrayList<>();
+
+    // amount of accounts when the job started, estimated from the ranges
+    public long accounts;
+
+    public long processed;
+
+    // accounts updated by this job
+    public long posted;
+
+    // striped accounts, or accounts already posted before an interruption
+    public long skipped;
+
+    // accounts whose balance kept changing concurrently, not posted
+    public long conflicts;
+
+    public String error;
+
+    public Date startedOn;
+
+    public Date updatedOn;
+
+    public Date completedOn;
+
+    // accounts per second since the job was (re)started on this node, null if not running here
+    @Transient
+    public Double throughput;
+
+    // estimated seconds to completion, null if not running here
+    @Transient
+    public Long etaSeconds;
+
+}
@@ -0,0 +1,23 @@
+package com.example.jeffrey.demospringdatamongo.model;
+
+/**
+ * Operation applied to every account by a PostingJob, see BalancePostingService
+ */
+public enum PostingOperation {
+
+    /**
+     * Debit a flat fee, amount in the currency's minor unit
+     */
+    FEE,
+
+    /**
+     * Credit interest on positive balances, amount is the rate in basis points
+     */
+    INTEREST,
+
+    /**
+     * Set ledgerBalance to accountBalance, amount is ignored
+     */
+    RECOMPUTE_LEDGER
+
+}
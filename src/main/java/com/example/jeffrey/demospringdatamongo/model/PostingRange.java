@@ -0,0 +1,37 @@
+package com.example.jeffrey.demospringdatamongo.model;
+
+import org.bson.types.ObjectId;
+
+/**
+ * A range of account _id processed by one worker of a PostingJob, [min, max) or [min, max]
+ * for the last range.
+ */
+public class PostingRange {
+
+    public ObjectId min;
+
+    public ObjectId max;
+
+    // true if max is inclusive
+    public boolean last;
+
+    // highest _id processed so far, the range resumes after it, null if not started
+    public ObjectId lastId;
+
+    public long processed;
+
+    public boolean done;
+
+    public PostingRange() {}
+
+    public PostingRange(ObjectId min, ObjectId max, boolean last) {
+        this.min = min;
+        this.max = max;
+        this.last = last;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("PostingRange[min=%s, max=%s, lastId=%s, processed=%d, done=%b]", min, max, lastId, processed, done);
+    }
+}
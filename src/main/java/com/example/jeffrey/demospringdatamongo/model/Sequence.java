@@ -1,6 +1,7 @@
 package com.example.jeffrey.demospringdatamongo.model;
 
 import org.springframework.data.annotation.Id;
+import org.springframework.data.mongodb.core.index.Indexed;
 import org.springframework.data.mongodb.core.mapping.Document;
 
 @Document(collection = "SequenceCollection") // specify the name of the collection in MongoDB
@@ -10,10 +11,20 @@ public class Sequence {
     @Id
     public String id;
 
+    // Name of the sequence, the anonymous sequence does not carry this field at all
+    // hence the sparse index, so that it never collides with the named sequences.
+    @Indexed(unique = true, sparse = true)
+    public String name;
+
     public int sequenceNumber;
 
     public Sequence() {
         this.sequenceNumber = 0;
     }
 
+    public Sequence(String name) {
+        this();
+        this.name = name;
+    }
+
 }
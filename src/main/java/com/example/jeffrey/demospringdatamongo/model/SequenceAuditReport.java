@@ -0,0 +1,36 @@
+package com.example.jeffrey.demospringdatamongo.model;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Summary of the sequence numbers issued by this node, see SequenceAuditService
+ */
+public class SequenceAuditReport {
+
+    public String sequenceName;
+
+    // amount of distinct numbers issued
+    public long issued;
+
+    public Integer min;
+
+    public Integer max;
+
+    public long duplicates;
+
+    // first duplicated numbers, bounded
+    public List<Integer> duplicateSamples = new ArrayList<>();
+
+    // amount of numbers missing between min and max
+    public long missing;
+
+    public long gaps;
+
+    // first gaps, bounded
+    public List<SequenceRange> gapSamples = new ArrayList<>();
+
+    // approximate memory held by the bitmap
+    public long bitmapBytes;
+
+}
@@ -0,0 +1,24 @@
+package com.example.jeffrey.demospringdatamongo.model;
+
+/**
+ * A contiguous range of sequence numbers [start, end], both inclusive,
+ * exclusively allocated to the caller.
+ */
+public class SequenceRange {
+
+    public int start;
+
+    public int end;
+
+    public SequenceRange() {}
+
+    public SequenceRange(int start, int end) {
+        this.start = start;
+        this.end = end;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("SequenceRange[start=%d, end=%d]", start, end);
+    }
+}
@@ -0,0 +1,28 @@
+package com.example.jeffrey.demospringdatamongo.model;
+
+/**
+ * A request to move amount from the debit account to the credit account
+ */
+public class Transfer {
+
+    public long amount;
+
+    public String debitAccountNumber;
+
+    public String creditAccountNumber;
+
+    public Transfer() {}
+
+    public Transfer(long amount, String debitAccountNumber, String creditAccountNumber) {
+        this.amount = amount;
+        this.debitAccountNumber = debitAccountNumber;
+        this.creditAccountNumber = creditAccountNumber;
+    }
+
+    @Override
+    public String toString() {
+        return String.format(
+                "Transfer[amount=%d, debitAccountNumber='%s', creditAccountNumber='%s']",
+                amount, debitAccountNumber, creditAccountNumber);
+    }
+}
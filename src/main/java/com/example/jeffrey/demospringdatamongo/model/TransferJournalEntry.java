@@ -0,0 +1,46 @@
+package com.example.jeffrey.demospringdatamongo.model;
+
+import org.springframework.data.annotation.Id;
+import org.springframework.data.mongodb.core.index.CompoundIndex;
+import org.springframework.data.mongodb.core.index.CompoundIndexes;
+import org.springframework.data.mongodb.core.mapping.Document;
+
+import java.time.Instant;
+
+/**
+ * An immutable record of a transfer, the account balances are updated later by the materializer
+ */
+@Document(collection = "TransferJournalCollection") // specify the name of the collection in MongoDB
+@CompoundIndexes({
+        // the materializer scans pending entries in insertion order
+        @CompoundIndex(name = "materialized_id", def = "{'materialized': 1, '_id': 1}"),
+        // pending entries of an account, see AccountService.getAccountBalance
+        @CompoundIndex(name = "debit_materialized", def = "{'debitAccountNumber': 1, 'materialized': 1}"),
+        @CompoundIndex(name = "credit_materialized", def = "{'creditAccountNumber': 1, 'materialized': 1}")
+})
+public class TransferJournalEntry extends Transfer {
+
+    // ObjectId assigned on insert, roughly ordered by insertion time
+    @Id
+    public String id;
+
+    public Instant createdOn;
+
+    // Set once the amount is folded into the balances of both accounts, never reset
+    public boolean materialized;
+
+    // Set instead if an account is not found, never materialized nor counted as pending
+    public boolean quarantined;
+
+    // Why the entry is quarantined
+    public String error;
+
+    public TransferJournalEntry() {}
+
+    public TransferJournalEntry(long amount, String debitAccountNumber, String creditAccountNumber) {
+        super(amount, debitAccountNumber, creditAccountNumber);
+        this.createdOn = Instant.now();
+        this.materialized = false;
+    }
+
+}
@@ -0,0 +1,65 @@
+package com.example.jeffrey.demospringdatamongo.model;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Write-conflicts and latency of the transfers since the last reset, see TransferProfiler
+ */
+public class TransferProfileReport {
+
+    public static class HotAccount {
+
+        public String accountNumber;
+
+        // upper bound of the conflicts the account took part in
+        public long conflicts;
+
+        public HotAccount() {}
+
+        public HotAccount(String accountNumber, long conflicts) {
+            this.accountNumber = accountNumber;
+            this.conflicts = conflicts;
+        }
+    }
+
+    public static class StrategyProfile {
+
+        public long calls;
+
+        // transactions re-run after a transient error
+        public long retries;
+
+        // calls which failed, whatever the error
+        public long aborts;
+
+        // calls which failed with a write-conflict once the retries were used up
+        public long conflictAborts;
+
+        public double meanMicros;
+
+        public long p50Micros;
+
+        public long p99Micros;
+
+        public long maxMicros;
+    }
+
+    public Date since;
+
+    // accounts involved in a write-conflict, counted once per conflict
+    public long conflicts;
+
+    // accounts with the most conflicts, the highest first
+    public List<HotAccount> hotAccounts = new ArrayList<>();
+
+    // keyed by executeTransfer* method
+    public Map<String, StrategyProfile> strategies = new LinkedHashMap<>();
+
+    // memory held by the sketch of the conflicting accounts, whatever the amount of accounts
+    public long sketchBytes;
+
+}
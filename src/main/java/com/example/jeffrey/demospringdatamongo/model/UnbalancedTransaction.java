@@ -0,0 +1,34 @@
+package com.example.jeffrey.demospringdatamongo.model;
+
+/**
+ * A committed transaction whose balance changes do not sum up to zero, see MoneyAuditService
+ */
+public class UnbalancedTransaction {
+
+    // lsid and txnNumber of the transaction
+    public String transaction;
+
+    // cluster time of the commit, seconds since epoch
+    public long clusterTime;
+
+    // sum of the balance changes, money created (positive) or destroyed (negative)
+    public long netDelta;
+
+    // amount of balance changes within the transaction
+    public int changes;
+
+    public UnbalancedTransaction() {}
+
+    public UnbalancedTransaction(String transaction, long clusterTime, long netDelta, int changes) {
+        this.transaction = transaction;
+        this.clusterTime = clusterTime;
+        this.netDelta = netDelta;
+        this.changes = changes;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("UnbalancedTransaction[transaction=%s, clusterTime=%d, netDelta=%d, changes=%d]",
+                transaction, clusterTime, netDelta, changes);
+    }
+}
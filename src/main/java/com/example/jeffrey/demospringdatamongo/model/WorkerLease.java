@@ -0,0 +1,24 @@
+package com.example.jeffrey.demospringdatamongo.model;
+
+import org.springframework.data.annotation.Id;
+import org.springframework.data.mongodb.core.mapping.Document;
+
+import java.time.Instant;
+
+@Document(collection = "WorkerLeaseCollection") // specify the name of the collection in MongoDB
+public class WorkerLease {
+
+    // The worker id embedded into the generated ids, one document per worker id
+    @Id
+    public Integer workerId;
+
+    // Identity of the node currently holding the lease
+    public String owner;
+
+    // The lease can be taken over by another node once expired
+    public Instant expiresAt;
+
+    // Highest timestamp used by the owner as of its last heartbeat
+    public long lastTimestamp;
+
+}
@@ -0,0 +1,34 @@
+package com.example.jeffrey.demospringdatamongo.retry;
+
+import java.lang.annotation.Documented;
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Re-run the annotated method with backoff if it fails with a TransientTransactionError,
+ * see TransactionRetryExecutor.
+ *
+ * Meant to sit on a @Transactional method, the retry advice always wraps the transaction
+ * advice so every attempt runs in a fresh transaction. Calls made while a transaction is
+ * already active are not retried, only the outermost transaction can be re-run.
+ *
+ * Like @Transactional, only calls coming through the Spring proxy are intercepted.
+ */
+@Target(ElementType.METHOD)
+@Retention(RetentionPolicy.RUNTIME)
+@Documented
+public @interface RetryableTransaction {
+
+    /**
+     * @return max attempts including the first one, 0 falls back to transaction.retry.max-attempts
+     */
+    int maxAttempts() default 0;
+
+    /**
+     * @return time budget of the call in milliseconds, 0 falls back to transaction.retry.deadline-ms
+     */
+    long deadlineMillis() default 0;
+
+}
@@ -0,0 +1,55 @@
+package com.example.jeffrey.demospringdatamongo.retry;
+
+import org.aopalliance.intercept.MethodInterceptor;
+import org.aopalliance.intercept.MethodInvocation;
+import org.springframework.aop.ProxyMethodInvocation;
+import org.springframework.aop.support.AopUtils;
+import org.springframework.core.annotation.AnnotatedElementUtils;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import java.lang.reflect.Method;
+import java.lang.reflect.UndeclaredThrowableException;
+
+/**
+ * Applies @RetryableTransaction, each attempt replays the rest of the advice chain
+ * (including the transaction advice) on a fresh copy of the invocation.
+ */
+public class RetryableTransactionInterceptor implements MethodInterceptor {
+
+    private final TransactionRetryExecutor transactionRetryExecutor;
+
+    public RetryableTransactionInterceptor(TransactionRetryExecutor transactionRetryExecutor) {
+        this.transactionRetryExecutor = transactionRetryExecutor;
+    }
+
+    @Override
+    public Object invoke(MethodInvocation invocation) throws Throwable {
+        if (TransactionSynchronizationManager.isActualTransactionActive()) {
+            // re-running a nested call can not help, the outer transaction is aborted already
+            return invocation.proceed();
+        }
+
+        Class<?> targetClass = invocation.getThis() == null ? null : AopUtils.getTargetClass(invocation.getThis());
+        Method method = AopUtils.getMostSpecificMethod(invocation.getMethod(), targetClass);
+        RetryableTransaction retryable = AnnotatedElementUtils.findMergedAnnotation(method, RetryableTransaction.class);
+        int maxAttempts = retryable == null ? 0 : retryable.maxAttempts();
+        long deadlineMillis = retryable == null ? 0 : retryable.deadlineMillis();
+
+        try {
+            return transactionRetryExecutor.execute(() -> {
+                try {
+                    return ((ProxyMethodInvocation) invocation).invocableClone().proceed();
+                } catch (RuntimeException | Error e) {
+                    throw e;
+                } catch (Throwable t) {
+                    throw new UndeclaredThrowableException(t);
+                }
+            }, maxAttempts, deadlineMillis);
+
+        } catch (UndeclaredThrowableException e) {
+            // checked exception declared by the method, rethrow it as is
+            throw e.getUndeclaredThrowable();
+        }
+    }
+
+}
@@ -0,0 +1,229 @@
+package com.example.jeffrey.demospringdatamongo.retry;
+
+import com.mongodb.MongoException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+import java.util.function.Supplier;
+
+/**
+ * Re-runs MongoDB transactions failing with a retryable error, thread-safe and shared by all callers.
+ *
+ * - TransientTransactionError: the whole transaction is re-run, see {@link #execute(Supplier)}
+ * - UnknownTransactionCommitResult: only the commit is re-run, see {@link #commit(CommitCallback)}
+ * - any other error is thrown to the caller right away
+ * - nested calls on the same thread, e.g. the commit of a transaction run by {@link #execute(Supplier)},
+ *   count against the attempts and deadline of the outermost call, one logical transaction
+ *   is retried by a single layer and earns back the budget once
+ *
+ * Retries are paced with exponential backoff and full jitter, i.e. a random sleep between 0
+ * and min(max-backoff, initial-backoff * 2^(attempt-1)), so that transactions conflicting on
+ * the same document spread out instead of colliding again in lockstep.
+ *
+ * A call gives up once its attempts or its deadline are used up, or once the retry budget
+ * shared by all callers is exhausted. The budget works like a token bucket: every retry costs
+ * one token, every success earns back a fraction of a token, and retries are only allowed
+ * while the bucket is more than half full. Under sustained contention the retry rate is capped
+ * to a fraction of the success rate, rather than multiplying the load on the database.
+ */
+public class TransactionRetryExecutor {
+    private static final Logger LOGGER = LoggerFactory.getLogger(TransactionRetryExecutor.class);
+
+    @FunctionalInterface
+    public interface CommitCallback<E extends Exception> {
+        void commit() throws E;
+    }
+
+    @FunctionalInterface
+    interface Sleeper {
+        void sleep(long millis) throws InterruptedException;
+    }
+
+    @Value("${transaction.retry.max-attempts:10}")
+    int maxAttempts;
+
+    @Value("${transaction.retry.initial-backoff-ms:10}")
+    long initialBackoffMillis;
+
+    @Value("${transaction.retry.max-backoff-ms:1000}")
+    long maxBackoffMillis;
+
+    @Value("${transaction.retry.deadline-ms:5000}")
+    long deadlineMillis;
+
+    @Value("${transaction.retry.budget.max-tokens:100}")
+    double budgetMaxTokens;
+
+    @Value("${transaction.retry.budget.token-ratio:0.1}")
+    double budgetTokenRatio;
+
+    @Autowired(required = false)
+    List<TransactionRetryListener> listeners = Collections.emptyList();
+
+    LongSupplier nanoClock = System::nanoTime;
+    Sleeper sleeper = Thread::sleep;
+
+    // the outermost call in progress on the thread, if any
+    private final ThreadLocal<Call> currentCall = new ThreadLocal<>();
+
+    // NaN until first used, so that the bucket starts full whatever max-tokens is configured to
+    private double budgetTokens = Double.NaN;
+
+    /**
+     * Run the transaction, re-run it as a whole on TransientTransactionError
+     */
+    public <T> T execute(Supplier<T> transaction) {
+        return execute(transaction, 0, 0);
+    }
+
+    /**
+     * @param maxAttempts 0 falls back to transaction.retry.max-attempts
+     * @param deadlineMillis 0 falls back to transaction.retry.deadline-ms
+     */
+    public <T> T execute(Supplier<T> transaction, int maxAttempts, long deadlineMillis) {
+        if (currentCall.get() != null) {
+            // e.g. a TransactionTemplate within a @RetryableTransaction, the outermost call re-runs it all
+            return transaction.get();
+        }
+        Call call = new Call(maxAttempts > 0 ? maxAttempts : this.maxAttempts, deadlineMillis > 0 ? deadlineMillis : this.deadlineMillis);
+        currentCall.set(call);
+        try {
+            while (true) {
+                try {
+                    T result = transaction.get();
+                    onSuccess();
+                    return result;
+
+                } catch (RuntimeException e) {
+                    if (!hasErrorLabel(e, MongoException.TRANSIENT_TRANSACTION_ERROR_LABEL) || !backoff(call, e)) {
+                        throw e;
+                    }
+                }
+            }
+        } finally {
+            currentCall.remove();
+        }
+    }
+
+    /**
+     * Run the commit, re-run it on UnknownTransactionCommitResult.
+     *
+     * Committing again is safe, the server applies the transaction at most once.
+     */
+    public <E extends Exception> void commit(CommitCallback<E> commit) throws E {
+        Call outer = currentCall.get();
+        Call call = outer != null ? outer : new Call(maxAttempts, deadlineMillis);
+
+        while (true) {
+            try {
+                commit.commit();
+                if (outer == null) {
+                    onSuccess();
+                }
+                return;
+
+            } catch (Exception e) {
+                if (!hasErrorLabel(e, MongoException.UNKNOWN_TRANSACTION_COMMIT_RESULT_LABEL) || !backoff(call, e)) {
+                    throw e;
+                }
+            }
+        }
+    }
+
+    /**
+     * @return true if the error or any of its causes is a MongoException carrying the label,
+     * Spring wraps driver errors e.g. in a DataAccessException or TransactionSystemException
+     */
+    public static boolean hasErrorLabel(Throwable error, String label) {
+        for (Throwable cause = error; cause != null; cause = cause.getCause()) {
+            if (cause instanceof MongoException && ((MongoException) cause).hasErrorLabel(label)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return the tokens left in the retry budget
+     */
+    public synchronized double budgetTokens() {
+        if (Double.isNaN(budgetTokens)) {
+            budgetTokens = budgetMaxTokens;
+        }
+        return budgetTokens;
+    }
+
+    private synchronized void onSuccess() {
+        budgetTokens = Math.min(budgetMaxTokens, budgetTokens() + budgetTokenRatio);
+    }
+
+    private synchronized boolean acquireRetryToken() {
+        if (budgetTokens() <= budgetMaxTokens / 2) {
+            return false;
+        }
+        budgetTokens -= 1;
+        return true;
+    }
+
+    /**
+     * Sleep before the next attempt
+     *
+     * @return false if no retry is left
+     */
+    private boolean backoff(Call call, Exception error) {
+        int attempt = ++call.failedAttempts;
+        if (attempt >= call.maxAttempts) {
+            return giveUp(attempt, "max attempts", error);
+        }
+
+        long ceiling = Math.min(maxBackoffMillis, initialBackoffMillis << Math.min(attempt - 1, 30));
+        long backoffMillis = ThreadLocalRandom.current().nextLong(ceiling + 1);
+
+        if (nanoClock.getAsLong() + TimeUnit.MILLISECONDS.toNanos(backoffMillis) - call.deadline > 0) {
+            return giveUp(attempt, "deadline", error);
+        }
+        if (!acquireRetryToken()) {
+            return giveUp(attempt, "retry budget", error);
+        }
+
+        LOGGER.debug("attempt-{} failed, retrying in {} ms: {} ... {}", attempt, backoffMillis, Thread.currentThread().getName(), error.getMessage());
+        for (TransactionRetryListener listener : listeners) {
+            listener.onRetry(attempt, backoffMillis, error);
+        }
+
+        try {
+            sleeper.sleep(backoffMillis);
+            return true;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return giveUp(attempt, "interrupted", error);
+        }
+    }
+
+    private boolean giveUp(int attempts, String reason, Exception error) {
+        LOGGER.error("giving up after {} attempt(s) ({}): {}", attempts, reason, error.getMessage());
+        for (TransactionRetryListener listener : listeners) {
+            listener.onGiveUp(attempts, reason, error);
+        }
+        return false;
+    }
+
+    private final class Call {
+        final int maxAttempts;
+        final long deadline;
+        int failedAttempts;
+
+        Call(int maxAttempts, long deadlineMillis) {
+            this.maxAttempts = maxAttempts;
+            this.deadline = nanoClock.getAsLong() + TimeUnit.MILLISECONDS.toNanos(deadlineMillis);
+        }
+    }
+
+}
@@ -0,0 +1,24 @@
+package com.example.jeffrey.demospringdatamongo.retry;
+
+/**
+ * Callback of TransactionRetryExecutor, register as a bean to be picked up.
+ *
+ * Invoked on the thread running the transaction.
+ */
+public interface TransactionRetryListener {
+
+    /**
+     * A retryable error happened, the transaction will be re-run after the backoff
+     *
+     * @param attempt the attempt which failed, starting from 1
+     */
+    default void onRetry(int attempt, long backoffMillis, Throwable error) {}
+
+    /**
+     * A retryable error happened but no retry is left, the error is thrown to the caller
+     *
+     * @param reason max attempts, deadline, retry budget or interrupted
+     */
+    default void onGiveUp(int attempts, String reason, Throwable error) {}
+
+}
@@ -0,0 +1,320 @@
+package com.example.jeffrey.demospringdatamongo.service;
+
+import com.example.jeffrey.demospringdatamongo.model.Account;
+import com.mongodb.client.ChangeStreamIterable;
+import com.mongodb.client.MongoCursor;
+import com.mongodb.client.model.ReplaceOptions;
+import com.mongodb.client.model.changestream.ChangeStreamDocument;
+import com.mongodb.client.model.changestream.FullDocument;
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.bson.BsonDocument;
+import org.bson.BsonTimestamp;
+import org.bson.BsonValue;
+import org.bson.Document;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import static com.mongodb.client.model.Filters.eq;
+
+/**
+ * Read-through cache of Account snapshots keyed by account number, bounded in size (LRU)
+ * and in age (TTL), kept up to date by a change stream on the AccountCollection.
+ *
+ * - Updates and replaces of a cached account replace the snapshot with the post-image
+ * - Deletes, and events without a post-image, evict the account
+ * - A lookup racing with a change of the same account is returned but not cached
+ * - The whole cache is cleared whenever the change stream breaks, events may have been missed
+ *
+ * The resume token is persisted in the ResumeTokenCollection, so that the stream resumes
+ * where it stopped rather than from "now" after a restart or a failover, and the staleness
+ * lag (wall clock minus cluster time of the last event applied) stays meaningful.
+ *
+ * Snapshots are shared, callers must not modify the returned Account.
+ * Disabled by default, reads then go straight to the AccountLoader.
+ */
+@Component
+public class AccountCache {
+    private static final Logger LOGGER = LoggerFactory.getLogger(AccountCache.class);
+
+    static final String RESUME_TOKEN_ID = "account-cache";
+
+    @Autowired
+    MongoTemplate mongoTemplate;
+
+    @Autowired
+    AccountLoader accountLoader;
+
+    @Autowired(required = false)
+    MeterRegistry meterRegistry;
+
+    @Value("${account.cache.enabled:false}")
+    boolean enabled;
+
+    @Value("${account.cache.max-size:10000}")
+    int maxSize;
+
+    @Value("${account.cache.ttl-ms:60000}")
+    long ttlMillis;
+
+    @Value("${account.cache.resume-token-interval-ms:1000}")
+    long resumeTokenIntervalMillis;
+
+    private final LinkedHashMap<String, CachedAccount> entries = new LinkedHashMap<String, CachedAccount>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, CachedAccount> eldest) {
+            return size() > maxSize;
+        }
+    };
+
+    // lookups in progress, a change of the account in the meantime drops the marker
+    private final Map<String, Object> loading = new HashMap<>();
+    // bumped by changes that can not be attributed to an account number, e.g. deletes
+    private long evictGeneration;
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private volatile long stalenessMillis;
+
+    private ChangeStreamWatcher<ChangeStreamDocument<Document>> watcher;
+    private final CountDownLatch watching = new CountDownLatch(1);
+
+    @PostConstruct
+    public void initialize() {
+        if (!enabled) {
+            return;
+        }
+        if (meterRegistry != null) {
+            FunctionCounter.builder("account.cache.requests", hits, LongAdder::doubleValue).tag("result", "hit").register(meterRegistry);
+            FunctionCounter.builder("account.cache.requests", misses, LongAdder::doubleValue).tag("result", "miss").register(meterRegistry);
+            Gauge.builder("account.cache.hit.ratio", this, AccountCache::hitRatio).register(meterRegistry);
+            Gauge.builder("account.cache.size", this, AccountCache::size).register(meterRegistry);
+            Gauge.builder("account.cache.staleness", this, cache -> cache.stalenessMillis)
+                    .baseUnit("milliseconds")
+                    .description("wall clock minus cluster time of the last change applied")
+                    .register(meterRegistry);
+        }
+
+        BsonDocument resumeToken = loadResumeToken();
+        watcher = new Watcher(resumeToken);
+        watcher.start(resumeToken);
+        LOGGER.info("account cache enabled, max size: {}, ttl: {} ms", maxSize, ttlMillis);
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        if (watcher != null) {
+            watcher.close();
+        }
+    }
+
+    /**
+     * @return the account, or null if not found
+     */
+    public Account get(String accountNumber) {
+        if (!enabled) {
+            return accountLoader.load(accountNumber);
+        }
+
+        Object marker = new Object();
+        long generation;
+        synchronized (this) {
+            CachedAccount entry = entries.get(accountNumber);
+            if (entry != null && System.nanoTime() - entry.loadedAtNanos < TimeUnit.MILLISECONDS.toNanos(ttlMillis)) {
+                hits.increment();
+                return entry.account;
+            }
+            misses.increment();
+            loading.put(accountNumber, marker);
+            generation = evictGeneration;
+        }
+
+        Account account = accountLoader.load(accountNumber);
+
+        synchronized (this) {
+            if (loading.get(accountNumber) == marker) {
+                loading.remove(accountNumber);
+                if (account != null && generation == evictGeneration) {
+                    entries.put(accountNumber, new CachedAccount(account));
+                }
+            }
+        }
+        return account;
+    }
+
+    public synchronized void invalidate(String accountNumber) {
+        loading.remove(accountNumber);
+        entries.remove(accountNumber);
+    }
+
+    public synchronized void invalidateAll() {
+        loading.clear();
+        entries.clear();
+        evictGeneration++;
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    public double hitRatio() {
+        long hit = hits.sum();
+        long total = hit + misses.sum();
+        return total == 0 ? 0 : (double) hit / total;
+    }
+
+    public long stalenessMillis() {
+        return stalenessMillis;
+    }
+
+    /**
+     * @return true once the change stream is open, changes made from then on are applied
+     */
+    boolean awaitWatching(long timeout, TimeUnit unit) throws InterruptedException {
+        return watching.await(timeout, unit);
+    }
+
+    /**
+     * @return true once the watcher stopped after shutdown, it no longer saves the resume token
+     */
+    boolean awaitStopped(long timeout, TimeUnit unit) throws InterruptedException {
+        return watcher == null || watcher.awaitStopped(timeout, unit);
+    }
+
+    private void apply(ChangeStreamDocument<Document> event) {
+        BsonTimestamp clusterTime = event.getClusterTime();
+        if (clusterTime != null) {
+            stalenessMillis = Math.max(0, System.currentTimeMillis() - clusterTime.getTime() * 1000L);
+        }
+
+        Document fullDocument = event.getFullDocument();
+        String accountNumber = fullDocument == null ? null : fullDocument.getString("accountNumber");
+
+        synchronized (this) {
+            if (accountNumber == null) {
+                // e.g. delete, only the _id is known
+                BsonValue id = event.getDocumentKey() == null ? null : event.getDocumentKey().get("_id");
+                evictById(id);
+                return;
+            }
+
+            loading.remove(accountNumber);
+            if (entries.containsKey(accountNumber)) {
+                entries.put(accountNumber, new CachedAccount(mongoTemplate.getConverter().read(Account.class, fullDocument)));
+            }
+        }
+    }
+
+    private void evictById(BsonValue id) {
+        evictGeneration++;
+        loading.clear();
+        if (id == null || !id.isObjectId()) {
+            entries.clear();
+            return;
+        }
+        String hexId = id.asObjectId().getValue().toHexString();
+        for (Iterator<CachedAccount> iterator = entries.values().iterator(); iterator.hasNext(); ) {
+            if (hexId.equals(iterator.next().account.id)) {
+                iterator.remove();
+            }
+        }
+    }
+
+    private BsonDocument loadResumeToken() {
+        try {
+            BsonDocument saved = mongoTemplate.getCollection("ResumeTokenCollection")
+                    .withDocumentClass(BsonDocument.class)
+                    .find(eq("_id", RESUME_TOKEN_ID))
+                    .first();
+            return saved == null ? null : saved.getDocument("token");
+        } catch (RuntimeException e) {
+            LOGGER.warn("resume token not loaded: {}", e.getMessage());
+            return null;
+        }
+    }
+
+    private void saveResumeToken(BsonDocument resumeToken) {
+        try {
+            mongoTemplate.getCollection("ResumeTokenCollection").replaceOne(
+                    eq("_id", RESUME_TOKEN_ID),
+                    new Document("_id", RESUME_TOKEN_ID).append("token", resumeToken).append("updatedOn", new Date()),
+                    new ReplaceOptions().upsert(true));
+        } catch (RuntimeException e) {
+            LOGGER.warn("resume token not saved: {}", e.getMessage());
+        }
+    }
+
+    private final class Watcher extends ChangeStreamWatcher<ChangeStreamDocument<Document>> {
+        private BsonDocument savedToken;
+        private long lastSavedNanos = System.nanoTime();
+
+        private Watcher(BsonDocument savedToken) {
+            super("account-cache-watcher");
+            this.savedToken = savedToken;
+        }
+
+        @Override
+        protected MongoCursor<ChangeStreamDocument<Document>> open(BsonDocument resumeToken) {
+            ChangeStreamIterable<Document> stream = mongoTemplate.getCollection("AccountCollection")
+                    .watch()
+                    .fullDocument(FullDocument.UPDATE_LOOKUP);
+            return (resumeToken == null ? stream : stream.resumeAfter(resumeToken)).iterator();
+        }
+
+        @Override
+        protected void opened() {
+            watching.countDown();
+        }
+
+        @Override
+        protected BsonDocument apply(ChangeStreamDocument<Document> event) {
+            AccountCache.this.apply(event);
+            return event.getResumeToken();
+        }
+
+        @Override
+        protected void polled(boolean idle) {
+            BsonDocument resumeToken = resumeToken();
+            if (resumeToken != null && !resumeToken.equals(savedToken)
+                    && System.nanoTime() - lastSavedNanos > TimeUnit.MILLISECONDS.toNanos(resumeTokenIntervalMillis)) {
+                saveResumeToken(resumeToken);
+                savedToken = resumeToken;
+                lastSavedNanos = System.nanoTime();
+            }
+        }
+
+        @Override
+        protected boolean broken(RuntimeException e) {
+            LOGGER.warn("account change stream broken, clearing the cache: {}", e.getMessage());
+            invalidateAll();
+            // the token fell off the oplog, nothing to resume, start from now
+            return isHistoryLost(e);
+        }
+    }
+
+    private static final class CachedAccount {
+        private final Account account;
+        private final long loadedAtNanos = System.nanoTime();
+
+        private CachedAccount(Account account) {
+            this.account = account;
+        }
+    }
+
+}
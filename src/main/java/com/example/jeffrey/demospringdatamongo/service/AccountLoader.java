@@ -0,0 +1,233 @@
+package com.example.jeffrey.demospringdatamongo.service;
+
+import com.example.jeffrey.demospringdatamongo.model.Account;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.stereotype.Component;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Function;
+
+/**
+ * Coalesces the account lookups of concurrent threads into one $in query.
+ *
+ * The first caller finding no query in flight becomes the leader, waits for the window
+ * (account.loader.window-us) so that concurrent lookups can queue up, then resolves the
+ * whole queue with one query and hands every waiter its account. Callers arriving while
+ * a query is in flight are served by the next one, performed by one of them.
+ *
+ * - No background thread, the leader performs the query for everyone queued, then hands
+ *   over once its own lookups are served
+ * - A lookup costs at most one window of extra latency
+ * - Reads outside of any transaction, not suited to read an account within a transaction
+ */
+@Component
+public class AccountLoader {
+    private static final Logger LOGGER = LoggerFactory.getLogger(AccountLoader.class);
+
+    @Autowired
+    MongoTemplate mongoTemplate;
+
+    @Value("${account.loader.window-us:200}")
+    long windowMicros;
+
+    @Value("${account.loader.max-batch:1000}")
+    int maxBatchSize;
+
+    // resolves a batch of account numbers, accounts not found are simply missing
+    Function<Collection<String>, List<Account>> batchQuery = this::findByAccountNumbers;
+
+    private final Queue<Lookup> lookups = new ConcurrentLinkedQueue<>();
+    private final AtomicBoolean inFlight = new AtomicBoolean(false);
+    private final Object released = new Object();
+
+    public AccountLoader() {}
+
+    AccountLoader(Function<Collection<String>, List<Account>> batchQuery, long windowMicros, int maxBatchSize) {
+        this.batchQuery = batchQuery;
+        this.windowMicros = windowMicros;
+        this.maxBatchSize = maxBatchSize;
+    }
+
+    /**
+     * @return the account, or null if not found
+     */
+    public Account load(String accountNumber) {
+        try {
+            return loadAsync(accountNumber).join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw e;
+        }
+    }
+
+    public CompletableFuture<Account> loadAsync(String accountNumber) {
+        Lookup lookup = new Lookup(accountNumber);
+        lookups.add(lookup);
+        drain(Collections.singletonList(lookup));
+        return lookup.result;
+    }
+
+    /**
+     * Queue the lookups together, so that they are resolved by the same query
+     *
+     * @return the accounts in the order requested, null if not found
+     */
+    public List<CompletableFuture<Account>> loadAsync(Collection<String> accountNumbers) {
+        List<Lookup> mine = new ArrayList<>(accountNumbers.size());
+        for (String accountNumber : accountNumbers) {
+            mine.add(new Lookup(accountNumber));
+        }
+        lookups.addAll(mine);
+        drain(mine);
+
+        List<CompletableFuture<Account>> results = new ArrayList<>(mine.size());
+        for (Lookup lookup : mine) {
+            results.add(lookup.result);
+        }
+        return results;
+    }
+
+    /**
+     * Resolve the account numbers with one query, bypassing the window
+     *
+     * @return the accounts found, keyed by account number in the order requested
+     */
+    public Map<String, Account> loadAll(Collection<String> accountNumbers) {
+        if (accountNumbers.size() > maxBatchSize) {
+            throw new BadRequestException(String.format("at most %d account numbers per lookup", maxBatchSize));
+        }
+
+        Map<String, Account> found = new HashMap<>();
+        for (Account account : batchQuery.apply(new LinkedHashSet<>(accountNumbers))) {
+            found.put(account.accountNumber, account);
+        }
+
+        Map<String, Account> accounts = new LinkedHashMap<>();
+        for (String accountNumber : accountNumbers) {
+            if (found.containsKey(accountNumber)) {
+                accounts.put(accountNumber, found.get(accountNumber));
+            }
+        }
+        return accounts;
+    }
+
+    /**
+     * Serve one batch at a time until the lookups are served, by this thread or another one.
+     *
+     * The flag is released after every batch, then the threads waiting are woken up and one of
+     * them takes the next batch, a caller stops querying once its own lookups are served rather
+     * than draining the callers arriving behind it for as long as they keep coming.
+     */
+    private void drain(List<Lookup> mine) {
+        boolean leader = true;
+        boolean interrupted = false;
+        while (!isServed(mine)) {
+            if (inFlight.compareAndSet(false, true)) {
+                try {
+                    if (leader && windowMicros > 0) {
+                        // let concurrent lookups join the batch
+                        LockSupport.parkNanos(TimeUnit.MICROSECONDS.toNanos(windowMicros));
+                    }
+                    leader = false;
+
+                    List<Lookup> batch = new ArrayList<>();
+                    Lookup lookup;
+                    while (batch.size() < maxBatchSize && (lookup = lookups.poll()) != null) {
+                        batch.add(lookup);
+                    }
+                    if (!batch.isEmpty()) {
+                        serve(batch);
+                    }
+                } finally {
+                    inFlight.set(false);
+                    synchronized (released) {
+                        released.notifyAll();
+                    }
+                }
+                continue;
+            }
+
+            // the flag is re-checked under the monitor, a release can not be missed
+            synchronized (released) {
+                try {
+                    if (inFlight.get() && !isServed(mine)) {
+                        released.wait();
+                    }
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static boolean isServed(List<Lookup> lookups) {
+        for (Lookup lookup : lookups) {
+            if (!lookup.result.isDone()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void serve(List<Lookup> batch) {
+        Set<String> accountNumbers = new LinkedHashSet<>();
+        for (Lookup lookup : batch) {
+            accountNumbers.add(lookup.accountNumber);
+        }
+
+        Map<String, Account> accounts = new HashMap<>();
+        try {
+            for (Account account : batchQuery.apply(accountNumbers)) {
+                accounts.put(account.accountNumber, account);
+            }
+        } catch (RuntimeException e) {
+            batch.forEach(lookup -> lookup.result.completeExceptionally(e));
+            return;
+        }
+
+        LOGGER.debug("served {} lookups of {} accounts with one query", batch.size(), accountNumbers.size());
+        for (Lookup lookup : batch) {
+            lookup.result.complete(accounts.get(lookup.accountNumber));
+        }
+    }
+
+    private List<Account> findByAccountNumbers(Collection<String> accountNumbers) {
+        return mongoTemplate.find(Query.query(Criteria.where("accountNumber").in(accountNumbers)), Account.class);
+    }
+
+    private static final class Lookup {
+        private final String accountNumber;
+        private final CompletableFuture<Account> result = new CompletableFuture<>();
+
+        private Lookup(String accountNumber) {
+            this.accountNumber = accountNumber;
+        }
+    }
+
+}
@@ -0,0 +1,20 @@
+package com.example.jeffrey.demospringdatamongo.service;
+
+/**
+ * The account does not exist, a BadRequestException for the callers which
+ * do not tell it from any other invalid argument.
+ */
+public class AccountNotFoundException extends BadRequestException {
+
+    private final String accountNumber;
+
+    public AccountNotFoundException(String accountNumber) {
+        super("account not found: " + accountNumber);
+        this.accountNumber = accountNumber;
+    }
+
+    public String getAccountNumber() {
+        return accountNumber;
+    }
+
+}
@@ -0,0 +1,214 @@
+package com.example.jeffrey.demospringdatamongo.service;
+
+import com.example.jeffrey.demospringdatamongo.model.Account;
+import com.mongodb.MongoException;
+import com.mongodb.client.ChangeStreamIterable;
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.MongoCursor;
+import com.mongodb.client.model.changestream.ChangeStreamDocument;
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.bson.BsonDocument;
+import org.bson.Document;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.mapping.event.AbstractMongoEventListener;
+import org.springframework.data.mongodb.core.mapping.event.AfterSaveEvent;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.util.Collections;
+import java.util.concurrent.atomic.LongAdder;
+
+import static com.mongodb.client.model.Aggregates.match;
+import static com.mongodb.client.model.Filters.in;
+import static com.mongodb.client.model.Projections.excludeId;
+import static com.mongodb.client.model.Projections.fields;
+import static com.mongodb.client.model.Projections.include;
+
+/**
+ * Negative lookup of account numbers: a Bloom filter over every accountNumber, so that a
+ * transfer to an account which definitely does not exist is rejected without any query.
+ *
+ * - Built on startup with a streamed scan projecting only the accountNumber
+ * - Accounts saved by this node are added right away (AfterSaveEvent, openAccounts)
+ * - Accounts inserted by other nodes are added from a change stream, opened before the scan
+ *   so that no insert falls in between
+ *
+ * Fails open: every account number is reported as possibly existing until the filter is
+ * built, and while it is rebuilt after the change stream lost its history. An account opened
+ * on another node may be rejected here for the change stream delay, hence disabled by default.
+ */
+@Component
+public class AccountNumberFilter extends AbstractMongoEventListener<Account> {
+    private static final Logger LOGGER = LoggerFactory.getLogger(AccountNumberFilter.class);
+
+    @Autowired
+    MongoTemplate mongoTemplate;
+
+    @Autowired(required = false)
+    MeterRegistry meterRegistry;
+
+    @Value("${account.filter.enabled:false}")
+    boolean enabled;
+
+    // sized for at least twice the accounts found on startup
+    @Value("${account.filter.expected-accounts:1000000}")
+    long expectedAccounts;
+
+    @Value("${account.filter.false-positive-rate:0.01}")
+    double falsePositiveRate;
+
+    @Value("${account.filter.max-bytes:16777216}")
+    long maxBytes;
+
+    // null until built, lookups then fail open
+    private volatile BloomFilter filter;
+    // being built, accounts saved meanwhile are added to it as well
+    private volatile BloomFilter building;
+    private final LongAdder rejections = new LongAdder();
+
+    private ChangeStreamWatcher<ChangeStreamDocument<Document>> watcher;
+
+    @PostConstruct
+    public void initialize() {
+        if (!enabled) {
+            return;
+        }
+        if (meterRegistry != null) {
+            FunctionCounter.builder("account.filter.rejections", rejections, LongAdder::doubleValue)
+                    .description("lookups of account numbers which definitely do not exist")
+                    .register(meterRegistry);
+            Gauge.builder("account.filter.false.positive.rate", this, AccountNumberFilter::expectedFalsePositiveRate)
+                    .register(meterRegistry);
+        }
+
+        watcher = new Watcher();
+        watcher.start(null);
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        if (watcher != null) {
+            watcher.close();
+        }
+    }
+
+    /**
+     * @return false if the account definitely does not exist
+     */
+    public boolean mightContain(String accountNumber) {
+        BloomFilter current = filter;
+        if (current == null || accountNumber == null || current.mightContain(accountNumber)) {
+            return true;
+        }
+        rejections.increment();
+        return false;
+    }
+
+    public void add(String accountNumber) {
+        if (accountNumber == null) {
+            return;
+        }
+        BloomFilter current = filter;
+        if (current != null) {
+            current.add(accountNumber);
+        }
+        BloomFilter next = building;
+        if (next != null) {
+            next.add(accountNumber);
+        }
+    }
+
+    public boolean isReady() {
+        return filter != null;
+    }
+
+    public double expectedFalsePositiveRate() {
+        BloomFilter current = filter;
+        return current == null ? 1.0 : current.expectedFalsePositiveRate();
+    }
+
+    @Override
+    public void onAfterSave(AfterSaveEvent<Account> event) {
+        add(event.getSource().accountNumber);
+    }
+
+    private BloomFilter build() {
+        long startNanos = System.nanoTime();
+        BloomFilter built = BloomFilter.create(
+                Math.max(expectedAccounts, accounts().estimatedDocumentCount() * 2), falsePositiveRate, maxBytes);
+        building = built;
+
+        try (MongoCursor<Document> accounts = accounts().find()
+                .projection(fields(include("accountNumber"), excludeId()))
+                .batchSize(10_000)
+                .iterator()) {
+            while (accounts.hasNext()) {
+                String accountNumber = accounts.next().getString("accountNumber");
+                if (accountNumber != null) {
+                    built.add(accountNumber);
+                }
+            }
+        }
+
+        LOGGER.info("account number filter built in {} ms, {} accounts, {} bytes, {} hashes, false positive rate: {}",
+                (System.nanoTime() - startNanos) / 1_000_000, built.insertions(), built.sizeInBytes(), built.hashes(),
+                String.format("%.4f", built.expectedFalsePositiveRate()));
+        if (built.expectedFalsePositiveRate() > falsePositiveRate) {
+            LOGGER.warn("account number filter above its false positive rate, raise account.filter.max-bytes");
+        }
+        return built;
+    }
+
+    private MongoCollection<Document> accounts() {
+        return mongoTemplate.getCollection("AccountCollection");
+    }
+
+    private final class Watcher extends ChangeStreamWatcher<ChangeStreamDocument<Document>> {
+
+        private Watcher() {
+            super("account-number-filter");
+        }
+
+        @Override
+        protected MongoCursor<ChangeStreamDocument<Document>> open(BsonDocument resumeToken) {
+            ChangeStreamIterable<Document> stream = accounts()
+                    .watch(Collections.singletonList(match(in("operationType", "insert", "replace"))));
+            return (resumeToken == null ? stream : stream.resumeAfter(resumeToken)).iterator();
+        }
+
+        @Override
+        protected void opened() {
+            if (filter == null) {
+                // inserts during the scan are buffered by the stream opened above
+                filter = build();
+                building = null;
+            }
+        }
+
+        @Override
+        protected BsonDocument apply(ChangeStreamDocument<Document> event) {
+            Document account = event.getFullDocument();
+            add(account == null ? null : account.getString("accountNumber"));
+            return event.getResumeToken();
+        }
+
+        @Override
+        protected boolean broken(RuntimeException e) {
+            LOGGER.warn("account number change stream broken: {}", e.getMessage());
+            if (!(e instanceof MongoException) || isHistoryLost(e)) {
+                // inserts may have been missed, fail open until rebuilt
+                filter = null;
+                return true;
+            }
+            return false;
+        }
+    }
+
+}
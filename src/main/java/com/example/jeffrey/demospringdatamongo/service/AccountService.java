@@ -2,35 +2,83 @@ package com.example.jeffrey.demospringdatamongo.service;
 
 import com.example.jeffrey.demospringdatamongo.config.DemoMongoDbConfig;
 import com.example.jeffrey.demospringdatamongo.model.Account;
+import com.example.jeffrey.demospringdatamongo.model.AccountNumberGenerator;
+import com.example.jeffrey.demospringdatamongo.model.JournalCheckpoint;
+import com.example.jeffrey.demospringdatamongo.model.Transfer;
+import com.example.jeffrey.demospringdatamongo.model.TransferJournalEntry;
 import com.example.jeffrey.demospringdatamongo.repository.AccountRepository;
+import com.example.jeffrey.demospringdatamongo.retry.RetryableTransaction;
+import com.example.jeffrey.demospringdatamongo.retry.TransactionRetryExecutor;
+import com.mongodb.ClientSessionOptions;
+import com.mongodb.MongoBulkWriteException;
+import com.mongodb.MongoCommandException;
 import com.mongodb.MongoException;
+import com.mongodb.ReadConcern;
+import com.mongodb.TransactionOptions;
+import com.mongodb.bulk.BulkWriteError;
+import com.mongodb.bulk.BulkWriteResult;
 import com.mongodb.client.ClientSession;
+import com.mongodb.client.FindIterable;
 import com.mongodb.client.MongoClient;
 import com.mongodb.client.MongoCollection;
+import com.mongodb.client.model.BulkWriteOptions;
+import com.mongodb.client.model.InsertManyOptions;
+import com.mongodb.client.model.UpdateOneModel;
+import com.mongodb.client.model.UpdateOptions;
+import com.mongodb.client.model.WriteModel;
+import com.mongodb.client.result.UpdateResult;
 import org.bson.Document;
+import org.bson.types.ObjectId;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.data.mongodb.MongoTransactionManager;
-import org.springframework.data.mongodb.SessionSynchronization;
+import org.springframework.data.domain.Sort;
 import org.springframework.data.mongodb.core.FindAndModifyOptions;
 import org.springframework.data.mongodb.core.MongoTemplate;
 import org.springframework.data.mongodb.core.query.Criteria;
 import org.springframework.data.mongodb.core.query.Query;
 import org.springframework.data.mongodb.core.query.Update;
+import org.springframework.stereotype.Service;
 import org.springframework.transaction.TransactionStatus;
 import org.springframework.transaction.annotation.Transactional;
 import org.springframework.transaction.support.TransactionCallbackWithoutResult;
 import org.springframework.transaction.support.TransactionTemplate;
 
+import javax.annotation.PostConstruct;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
 
+import static com.mongodb.client.model.Filters.and;
 import static com.mongodb.client.model.Filters.eq;
+import static com.mongodb.client.model.Filters.in;
+import static com.mongodb.client.model.Filters.ne;
+import static com.mongodb.client.model.Filters.or;
+import static com.mongodb.client.model.Projections.include;
+import static com.mongodb.client.model.Updates.combine;
 import static com.mongodb.client.model.Updates.inc;
+import static com.mongodb.client.model.Updates.set;
 
+@Service
 public class AccountService {
     private static final Logger LOGGER = LoggerFactory.getLogger(AccountService.class);
 
+    private static final int DUPLICATE_KEY = 11000;
+    private static final int MAX_OPEN_ATTEMPTS = 5;
+
     @Autowired
     DemoMongoDbConfig dbConfig;
 
@@ -43,8 +91,52 @@ public class AccountService {
     @Autowired
     MongoTransactionManager mongoTransactionManager;
 
+    @Autowired
+    TransferLaneExecutor transferLaneExecutor;
+
+    @Autowired
+    TransactionRetryExecutor transactionRetryExecutor;
+
+    @Autowired
+    AccountStripeService accountStripeService;
+
+    @Autowired
+    AccountLoader accountLoader;
+
+    @Autowired
+    AccountCache accountCache;
+
+    @Autowired
+    AccountNumberFilter accountNumberFilter;
+
+    @Value("${account.open.batch-size:1000}")
+    int openBatchSize;
+
+    @Value("${account.open.max-count:100000}")
+    int maxOpenCount;
+
     AtomicInteger counter = new AtomicInteger();
 
+    @PostConstruct
+    public void initialize() {
+        // only ever written within a transaction, which can not create a collection on MongoDB 4.0
+        createCollection("JournalCheckpointCollection");
+    }
+
+    private void createCollection(String collectionName) {
+        if (mongoTemplate.collectionExists(collectionName)) {
+            return;
+        }
+        try {
+            mongoTemplate.getDb().createCollection(collectionName);
+        } catch (MongoCommandException e) {
+            // NamespaceExists, created concurrently by another node
+            if (e.getErrorCode() != 48) {
+                throw e;
+            }
+        }
+    }
+
     /**
      * Does not support concurrent update triggered from distributed nodes
      * since it involve 2 separate operation, even though each operation
@@ -60,6 +152,8 @@ public class AccountService {
      * @param creditAccountNumber
      */
     public void executeTransfer(long amount, String debitAccountNumber, String creditAccountNumber) {
+        requireKnownAccounts(debitAccountNumber, creditAccountNumber);
+
         mongoTemplate.findAndModify(
                 Query.query(Criteria.where("accountNumber").is(debitAccountNumber)),
                 new Update().inc("accountBalance", -amount),
@@ -80,7 +174,10 @@ public class AccountService {
                 Account.class
         );
 
-        LOGGER.debug("account: {}, balance: {}", debitAccountNumber, accountRepository.findByAccountNumber(debitAccountNumber).accountBalance);
+        if (LOGGER.isDebugEnabled()) {
+            Account debitAccount = accountLoader.load(debitAccountNumber);
+            LOGGER.debug("account: {}, balance: {}", debitAccountNumber, debitAccount == null ? null : debitAccount.accountBalance);
+        }
     }
 
     /**
@@ -93,19 +190,28 @@ public class AccountService {
      * - No loss-update, but will encounter write-conflict modifying same document
      * - Automatic rollback if crash before commit
      * - Automatic abort if exception
-     * - Manual retry to handle error (can only be made on the caller due to AOP)
+     * - Automatic retry with backoff if error is transient, see @RetryableTransaction
      *
      * @param amount
      * @param debitAccountNumber
      * @param creditAccountNumber
      */
+    @RetryableTransaction
     @Transactional
     public void executeTransferTx_withMongoRepository(long amount, String debitAccountNumber, String creditAccountNumber) {
+        requireKnownAccounts(debitAccountNumber, creditAccountNumber);
+
         Account debitAccount = accountRepository.findByAccountNumber(debitAccountNumber);
+        if (debitAccount == null) {
+            throw new AccountNotFoundException(debitAccountNumber);
+        }
         debitAccount.accountBalance -= amount;
         accountRepository.save(debitAccount);
 
         Account creditAccount = accountRepository.findByAccountNumber(creditAccountNumber);
+        if (creditAccount == null) {
+            throw new AccountNotFoundException(creditAccountNumber);
+        }
         creditAccount.accountBalance += amount;
         accountRepository.save(creditAccount);
 
@@ -115,8 +221,7 @@ public class AccountService {
             throw new RuntimeException("interrupt!");
         }
 
-        LOGGER.debug("debit account: {}, balance: {}", debitAccountNumber, accountRepository.findByAccountNumber(debitAccountNumber).accountBalance);
-        LOGGER.debug("credit account: {}, balance: {}", creditAccountNumber, accountRepository.findByAccountNumber(creditAccountNumber).accountBalance);
+        logBalances(debitAccountNumber, creditAccountNumber);
     }
 
     /**
@@ -129,19 +234,22 @@ public class AccountService {
      * - No loss-update, but will encounter write-conflict modifying same document
      * - Automatic rollback if crash before commit
      * - Automatic abort if exception
-     * - Manual retry to handle error (can only be made on the caller due to AOP)
+     * - Automatic retry with backoff if error is transient, see @RetryableTransaction
      *
      * @param amount
      * @param debitAccountNumber
      * @param creditAccountNumber
      */
+    @RetryableTransaction
     @Transactional
     public void executeTransferTx_withMongoTemplate(long amount, String debitAccountNumber, String creditAccountNumber) {
-        Account debitAccount = mongoTemplate.find(Query.query(Criteria.where("accountNumber").is(debitAccountNumber)), Account.class).get(0);
+        requireKnownAccounts(debitAccountNumber, creditAccountNumber);
+
+        Account debitAccount = findAccount(debitAccountNumber);
         debitAccount.accountBalance -= amount;
         mongoTemplate.save(debitAccount);
 
-        Account creditAccount = mongoTemplate.find(Query.query(Criteria.where("accountNumber").is(creditAccountNumber)), Account.class).get(0);
+        Account creditAccount = findAccount(creditAccountNumber);
         creditAccount.accountBalance += amount;
         mongoTemplate.save(creditAccount);
 
@@ -151,8 +259,7 @@ public class AccountService {
             throw new RuntimeException("interrupt!");
         }
 
-        LOGGER.debug("debit account: {}, balance: {}", debitAccountNumber, accountRepository.findByAccountNumber(debitAccountNumber).accountBalance);
-        LOGGER.debug("credit account: {}, balance: {}", creditAccountNumber, accountRepository.findByAccountNumber(creditAccountNumber).accountBalance);
+        logBalances(debitAccountNumber, creditAccountNumber);
     }
 
     /**
@@ -165,14 +272,17 @@ public class AccountService {
      * - No loss-update, but will encounter write-conflict modifying same document
      * - Automatic rollback if crash before commit
      * - Automatic abort if exception
-     * - Manual retry to handle error (can only be made on the caller due to AOP)
+     * - Automatic retry with backoff if error is transient, see @RetryableTransaction
      *
      * @param amount
      * @param debitAccountNumber
      * @param creditAccountNumber
      */
+    @RetryableTransaction
     @Transactional
     public void executeTransferTx_withMongoTemplate_atomicReadWrite(long amount, String debitAccountNumber, String creditAccountNumber) {
+        requireKnownAccounts(debitAccountNumber, creditAccountNumber);
+
         mongoTemplate
                 .update(Account.class)
                 .matching(Query.query(Criteria.where("accountNumber").is(debitAccountNumber)))
@@ -191,51 +301,106 @@ public class AccountService {
             throw new RuntimeException("interrupt!");
         }
 
-        LOGGER.debug("debit account: {}, balance: {}", debitAccountNumber, accountRepository.findByAccountNumber(debitAccountNumber).accountBalance);
-        LOGGER.debug("credit account: {}, balance: {}", creditAccountNumber, accountRepository.findByAccountNumber(creditAccountNumber).accountBalance);
+        logBalances(debitAccountNumber, creditAccountNumber);
+    }
+
+    /**
+     * Support concurrent update triggered from distributed nodes
+     *
+     * Use Spring managed transaction features, each account is updated with a single conditional
+     * findAndModify ($inc filtered on the balance) instead of loading and saving the document.
+     *
+     * - One round trip per account, no Java-side read-modify-write
+     * - Overdraft check on the server, no match means insufficient funds (or no such account)
+     * - Automatic rollback if crash before commit
+     * - Automatic abort if exception, e.g. InsufficientFundsException
+     * - Automatic retry with backoff if error is transient, see @RetryableTransaction
+     * - Striped debit accounts are refused (StripedAccountException), their balance is not held
+     *   by the account document, see executeTransferTx_withStripes
+     *
+     * @param amount
+     * @param debitAccountNumber
+     * @param creditAccountNumber
+     * @return the new balance of the debit account
+     */
+    @RetryableTransaction
+    @Transactional
+    public long executeTransferTx_conditional(long amount, String debitAccountNumber, String creditAccountNumber) {
+        requireKnownAccounts(debitAccountNumber, creditAccountNumber);
+
+        netDeltas(Collections.singletonList(new Transfer(amount, debitAccountNumber, creditAccountNumber)));
+
+        Account debitAccount = mongoTemplate.findAndModify(
+                Query.query(Criteria.where("accountNumber").is(debitAccountNumber)
+                        .and("stripeCount").is(null)
+                        .and("accountBalance").gte(amount)),
+                new Update().inc("accountBalance", -amount),
+                new FindAndModifyOptions().returnNew(true),
+                Account.class
+        );
+        if (debitAccount == null) {
+            // only look further on the failure path, to tell a missing or striped account from a low balance
+            Query query = Query.query(Criteria.where("accountNumber").is(debitAccountNumber));
+            query.fields().include("stripeCount");
+            Account account = mongoTemplate.findOne(query, Account.class);
+            if (account == null) {
+                throw new AccountNotFoundException(debitAccountNumber);
+            }
+            if (account.stripeCount != null) {
+                throw new StripedAccountException(debitAccountNumber);
+            }
+            throw new InsufficientFundsException(debitAccountNumber, amount);
+        }
+
+        Account creditAccount = mongoTemplate.findAndModify(
+                Query.query(Criteria.where("accountNumber").is(creditAccountNumber)),
+                new Update().inc("accountBalance", +amount),
+                new FindAndModifyOptions().returnNew(true),
+                Account.class
+        );
+        if (creditAccount == null) {
+            throw new AccountNotFoundException(creditAccountNumber);
+        }
+
+        if (LOGGER.isDebugEnabled()) {
+            LOGGER.debug("debit account: {}, balance: {}", debitAccountNumber, debitAccount.accountBalance);
+            LOGGER.debug("credit account: {}, balance: {}", creditAccountNumber, creditAccount.accountBalance);
+        }
+        return debitAccount.accountBalance;
     }
 
     /**
      * Support concurrent update triggered from distributed nodes
      *
-     * Use MongoTransactionManager and setSessionSynchronization(ALWAYS) to
-     * participating MongoTemplate in managed transactions
+     * Use MongoTransactionManager, MongoTemplate participates in its transactions with the
+     * default session synchronization (ON_ACTUAL_TRANSACTION)
      *
      * - No loss-update, but will encounter write-conflict modifying same document
      * - Automatic rollback if crash before commit
      * - Automatic abort if exception
-     * - Manual retry to handle error
+     * - Automatic retry with backoff if error is transient, see TransactionRetryExecutor
      *
      * @param amount
      * @param debitAccountNumber
      * @param creditAccountNumber
      */
     public void executeTransferTx_withTransactionTemplate(long amount, String debitAccountNumber, String creditAccountNumber) {
-        final int maxAttempt = 10;
-        int attempt = 1;
-
-        while (true) {
-            if (attempt >= maxAttempt) {
-                break;
-            } else {
-                LOGGER.debug("attempt-{}: {}", attempt, Thread.currentThread().getName());
-                attempt++;
-            }
+        requireKnownAccounts(debitAccountNumber, creditAccountNumber);
 
-            mongoTemplate.setSessionSynchronization(SessionSynchronization.ALWAYS);
+        TransactionTemplate txTemplate = new TransactionTemplate(mongoTransactionManager);
 
+        transactionRetryExecutor.execute(() -> {
             try {
                 LOGGER.debug("start tx: {}", Thread.currentThread().getName());
 
-                TransactionTemplate txTemplate = new TransactionTemplate(mongoTransactionManager);
                 txTemplate.execute(new TransactionCallbackWithoutResult() {
                     @Override
                     protected void doInTransactionWithoutResult(TransactionStatus status) {
-                        Account debitAccount = mongoTemplate.find(Query.query(Criteria.where("accountNumber").is(debitAccountNumber)), Account.class).get(0);
+                        Account debitAccount = findAccount(debitAccountNumber);
                         debitAccount.accountBalance -= amount;
                         mongoTemplate.save(debitAccount);
 
-                        Account creditAccount = mongoTemplate.find(Query.query(Criteria.where("accountNumber").is(creditAccountNumber)), Account.class).get(0);
+                        Account creditAccount = findAccount(creditAccountNumber);
                         creditAccount.accountBalance += amount;
                         mongoTemplate.save(creditAccount);
 
@@ -245,34 +410,18 @@ public class AccountService {
                             throw new RuntimeException("interrupt!");
                         }
 
-                        LOGGER.debug("debit account: {}, balance: {}", debitAccountNumber, accountRepository.findByAccountNumber(debitAccountNumber).accountBalance);
-                        LOGGER.debug("credit account: {}, balance: {}", creditAccountNumber, accountRepository.findByAccountNumber(creditAccountNumber).accountBalance);
+                        logBalances(debitAccountNumber, creditAccountNumber);
                     }
                 });
 
                 LOGGER.debug("commit tx: {}", Thread.currentThread().getName());
-                break;
+                return null;
 
             } catch (RuntimeException e) {
                 LOGGER.debug("abort tx: {}", Thread.currentThread().getName());
-
-                if (e.getCause() instanceof MongoException) {
-                    MongoException mongoException = (MongoException) e.getCause();
-                    // error is a transient commit error, can retry commit
-                    if (mongoException.hasErrorLabel(MongoException.TRANSIENT_TRANSACTION_ERROR_LABEL)) {
-                        LOGGER.error("retrying commit operation: {} ... {}", Thread.currentThread().getName(), e.getMessage());
-                        continue;
-
-                    } else {
-                        LOGGER.error("error not retryable: {}", e.getMessage());
-                        throw e;
-                    }
-
-                } else {
-                    throw e;
-                }
+                throw e;
             }
-        }
+        });
     }
 
     /**
@@ -290,6 +439,8 @@ public class AccountService {
      * @param creditAccountNumber
      */
     public void executeTransferTx_withSession_AutoRetry(long amount, String debitAccountNumber, String creditAccountNumber) {
+        requireKnownAccounts(debitAccountNumber, creditAccountNumber);
+
         MongoClient client = dbConfig.mongoClient();
         String dbName = dbConfig.mongoDbFactory().getDb().getName();
 
@@ -315,11 +466,12 @@ public class AccountService {
 
                 LOGGER.debug("commit tx: {}", Thread.currentThread().getName());
 
-                Document debitAccount = collection.find(session, eq("accountNumber", debitAccountNumber)).first();
-                Document creditAccount = collection.find(session, eq("accountNumber", creditAccountNumber)).first();
-                LOGGER.debug("debit account: {} balance: {}", debitAccount.get("accountNumber"), debitAccount.get("accountBalance"));
-                LOGGER.debug("credit account: {} balance: {}", creditAccount.get("accountNumber"), creditAccount.get("accountBalance"));
-                return debitAccount;
+                if (LOGGER.isDebugEnabled()) {
+                    for (Document account : collection.find(session, in("accountNumber", debitAccountNumber, creditAccountNumber))) {
+                        LOGGER.debug("account: {} balance: {}", account.get("accountNumber"), account.get("accountBalance"));
+                    }
+                }
+                return null;
             });
 
         } catch (RuntimeException e) {
@@ -336,13 +488,15 @@ public class AccountService {
      * - No loss-update, but concurrent write will encounter write-conflict modifying same document
      * - Automatic rollback if crash before commit
      * - Manual abort to handle exception
-     * - Manual retry to handle error
+     * - Retry with backoff if error is transient, see TransactionRetryExecutor
      *
      * @param amount
      * @param debitAccountNumber
      * @param creditAccountNumber
      */
     public void executeTransferTx_withSession_ManualRetry(long amount, String debitAccountNumber, String creditAccountNumber) {
+        requireKnownAccounts(debitAccountNumber, creditAccountNumber);
+
         MongoClient client = dbConfig.mongoClient();
         String dbName = dbConfig.mongoDbFactory().getDb().getName();
 
@@ -354,17 +508,7 @@ public class AccountService {
 
         // client session should be short-lived and released once no longer needed
         try (ClientSession session = client.startSession()) {
-            final int maxAttempt = 10;
-            int attempt = 1;
-
-            while (true) {
-                if (attempt >= maxAttempt) {
-                    break;
-                } else {
-                    LOGGER.debug("attempt-{}: {}", attempt, Thread.currentThread().getName());
-                    attempt++;
-                }
-
+            transactionRetryExecutor.execute(() -> {
                 LOGGER.debug("start tx: {}", Thread.currentThread().getName());
 
                 // Start a transaction
@@ -391,33 +535,537 @@ public class AccountService {
                         throw new RuntimeException("interrupt!");
                     }
 
-                    Document debitAccount = collection.find(session, eq("accountNumber", debitAccountNumber)).first();
-                    Document creditAccount = collection.find(session, eq("accountNumber", creditAccountNumber)).first();
-                    LOGGER.debug("debit account: {} balance: {}", debitAccount.get("accountNumber"), debitAccount.get("accountBalance"));
-                    LOGGER.debug("credit account: {} balance: {}", creditAccount.get("accountNumber"), creditAccount.get("accountBalance"));
-
-                    // Commit the transaction using write concern set at transaction start
-                    LOGGER.debug("commit tx: {}", Thread.currentThread().getName());
-                    session.commitTransaction();
-
-                    break;
+                    if (LOGGER.isDebugEnabled()) {
+                        for (Document account : collection.find(session, in("accountNumber", debitAccountNumber, creditAccountNumber))) {
+                            LOGGER.debug("account: {} balance: {}", account.get("accountNumber"), account.get("accountBalance"));
+                        }
+                    }
 
                 } catch (MongoException e) {
                     LOGGER.debug("abort tx: {}", Thread.currentThread().getName());
                     session.abortTransaction();
 
-                    // error is a transient commit error, can retry commit
-                    if (e.hasErrorLabel(MongoException.TRANSIENT_TRANSACTION_ERROR_LABEL)) {
-                        LOGGER.error("retrying commit operation: {} ... {}", Thread.currentThread().getName(), e.getMessage());
-                        continue;
-
-                    } else {
+                    // error is a transient transaction error, the executor re-runs the whole transaction
+                    if (!e.hasErrorLabel(MongoException.TRANSIENT_TRANSACTION_ERROR_LABEL)) {
                         LOGGER.error("error not retryable: {}", e.getMessage());
+                    }
+                    throw e;
+                }
+
+                // Commit the transaction using write concern set at transaction start,
+                // the commit alone is re-run on UnknownTransactionCommitResult, within the attempts of the transaction
+                LOGGER.debug("commit tx: {}", Thread.currentThread().getName());
+                transactionRetryExecutor.commit(session::commitTransaction);
+                return null;
+            });
+        }
+    }
+
+    /**
+     * Support concurrent update triggered from distributed nodes
+     *
+     * Net the deltas of a batch of transfers per account, and apply them with one unordered
+     * bulkWrite of $inc inside a single transaction.
+     *
+     * - One commit for the whole batch instead of one per transfer
+     * - Each account document is written once per batch, fewer write-conflict
+     * - The whole batch commits or aborts together, e.g. if any account does not exist, even one
+     *   whose transfers net to zero, all checked with a single $in query
+     * - Automatic retry if error is transient
+     *
+     * @param transfers
+     * @return the net delta applied to each account
+     */
+    public Map<String, Long> executeTransfers(List<Transfer> transfers) {
+        Map<String, Long> deltas = netDeltas(transfers);
+        requireKnownAccounts(deltas.keySet().toArray(new String[0]));
+
+        MongoCollection<Document> collection = mongoTemplate.getCollection("AccountCollection");
+        List<WriteModel<Document>> updates = balanceUpdates(deltas);
+        if (updates.isEmpty()) {
+            // nothing to write, the accounts must still exist
+            requireExistingAccounts(null, collection, deltas.keySet());
+            return deltas;
+        }
+
+        // client session should be short-lived and released once no longer needed
+        try (ClientSession session = mongoTemplate.getMongoDbFactory().getSession(ClientSessionOptions.builder().build())) {
+            LOGGER.debug("start tx: {}", Thread.currentThread().getName());
+
+            session.withTransaction(() -> {
+                // abort the whole batch if any account is missing, the ones netted to zero included
+                requireExistingAccounts(session, collection, deltas.keySet());
+                BulkWriteResult result = collection.bulkWrite(session, updates, new BulkWriteOptions().ordered(false));
+
+                LOGGER.debug("commit tx: {}, {} transfers netted into {} updates",
+                        Thread.currentThread().getName(), transfers.size(), updates.size());
+                return result;
+            });
+
+        } catch (RuntimeException e) {
+            LOGGER.debug("abort tx: {}", Thread.currentThread().getName());
+            throw e;
+        }
+
+        return deltas;
+    }
+
+    /**
+     * Support concurrent update triggered from distributed nodes
+     *
+     * Dispatch the transfer onto the single-threaded lanes owning the debit and credit accounts,
+     * see TransferLaneExecutor, and run it in a client session once both lanes are held.
+     *
+     * - No write-conflict between transfers of this node touching the same account
+     * - Transfers of unrelated accounts still run in parallel
+     * - Automatic rollback if crash before commit
+     * - Automatic retry if error is transient, e.g. write-conflict with another node
+     *
+     * @param amount
+     * @param debitAccountNumber
+     * @param creditAccountNumber
+     */
+    public void executeTransferTx_withAccountLanes(long amount, String debitAccountNumber, String creditAccountNumber) {
+        requireKnownAccounts(debitAccountNumber, creditAccountNumber);
+
+        try {
+            transferLaneExecutor.submit(debitAccountNumber, creditAccountNumber, () -> {
+                executeTransferWithinSession(amount, debitAccountNumber, creditAccountNumber);
+                return null;
+            }).join();
+
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw e;
+        }
+    }
+
+    private void executeTransferWithinSession(long amount, String debitAccountNumber, String creditAccountNumber) {
+        // client session should be short-lived and released once no longer needed
+        try (ClientSession session = mongoTemplate.getMongoDbFactory().getSession(ClientSessionOptions.builder().build())) {
+            LOGGER.debug("start tx: {}", Thread.currentThread().getName());
+
+            session.withTransaction(() -> {
+                MongoCollection<Document> collection = mongoTemplate.getCollection("AccountCollection");
+                collection.updateOne(session, eq("accountNumber", debitAccountNumber), inc("accountBalance", -amount));
+                collection.updateOne(session, eq("accountNumber", creditAccountNumber), inc("accountBalance", +amount));
+
+                LOGGER.debug("commit tx: {}", Thread.currentThread().getName());
+                return null;
+            });
+
+        } catch (RuntimeException e) {
+            LOGGER.debug("abort tx: {}", Thread.currentThread().getName());
+            throw e;
+        }
+    }
+
+    /**
+     * Support concurrent update triggered from distributed nodes
+     *
+     * Use client session to coordinate operations, hot accounts are updated on one of their
+     * stripes rather than on the account document, see AccountStripeService.
+     *
+     * - No loss-update, write-conflict on a hot account drops roughly linearly with its stripes
+     * - Automatic rollback if crash before commit
+     * - Automatic retry if error is transient
+     *
+     * @param amount
+     * @param debitAccountNumber
+     * @param creditAccountNumber
+     */
+    public void executeTransferTx_withStripes(long amount, String debitAccountNumber, String creditAccountNumber) {
+        requireKnownAccounts(debitAccountNumber, creditAccountNumber);
+
+        netDeltas(Collections.singletonList(new Transfer(amount, debitAccountNumber, creditAccountNumber)));
+
+        // client session should be short-lived and released once no longer needed
+        try (ClientSession session = mongoTemplate.getMongoDbFactory().getSession(ClientSessionOptions.builder().build())) {
+            LOGGER.debug("start tx: {}", Thread.currentThread().getName());
+
+            session.withTransaction(() -> {
+                accountStripeService.applyDelta(session, debitAccountNumber, -amount);
+                accountStripeService.applyDelta(session, creditAccountNumber, +amount);
+
+                LOGGER.debug("commit tx: {}", Thread.currentThread().getName());
+                return null;
+            });
+
+        } catch (RuntimeException e) {
+            LOGGER.debug("abort tx: {}", Thread.currentThread().getName());
+            throw e;
+        }
+    }
+
+    /**
+     * Support concurrent update triggered from distributed nodes
+     *
+     * Append one immutable journal entry for the transfer, a single document insert without
+     * any transaction. The balances are updated later in batches, see materializeJournal.
+     *
+     * - No write-conflict, concurrent transfers never modify the same document
+     * - Atomic, the transfer is either journaled or not
+     * - Account.accountBalance lags behind until the entry is materialized,
+     *   use getAccountBalance(accountNumber, true) to include pending entries
+     * - No overdraft check, the balance is not known at the time of the transfer
+     *
+     * @param amount
+     * @param debitAccountNumber
+     * @param creditAccountNumber
+     * @return the id of the journal entry
+     */
+    public String executeTransfer_withJournal(long amount, String debitAccountNumber, String creditAccountNumber) {
+        requireKnownAccounts(debitAccountNumber, creditAccountNumber);
+
+        TransferJournalEntry entry = new TransferJournalEntry(amount, debitAccountNumber, creditAccountNumber);
+        netDeltas(Collections.singletonList(entry));
+
+        // fail fast, the materializer could never apply an entry of a missing account, both
+        // lookups are queued together and coalesced with the ones of concurrent transfers
+        List<CompletableFuture<Account>> accounts = accountLoader.loadAsync(Arrays.asList(debitAccountNumber, creditAccountNumber));
+        try {
+            if (accounts.get(0).join() == null) {
+                throw new AccountNotFoundException(debitAccountNumber);
+            }
+            if (accounts.get(1).join() == null) {
+                throw new AccountNotFoundException(creditAccountNumber);
+            }
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw e;
+        }
+
+        mongoTemplate.insert(entry);
+        return entry.id;
+    }
+
+    /**
+     * Fold the oldest pending journal entries into the account balances.
+     *
+     * A single transaction claims the entries (materialized=true), applies the netted deltas
+     * with one bulkWrite and advances the checkpoint, so every entry is applied exactly once
+     * even with several materializers running. The flag rather than the checkpoint decides
+     * what is pending, entries inserted concurrently may become visible out of id order.
+     *
+     * The accounts of the batch are checked first with one query, an entry of an account not
+     * found is quarantined (quarantined=true) rather than failing every batch it is part of.
+     *
+     * @param batchSize max entries to materialize
+     * @return amount of entries materialized or quarantined
+     */
+    public int materializeJournal(int batchSize) {
+        List<TransferJournalEntry> entries = mongoTemplate.find(
+                Query.query(Criteria.where("materialized").is(false).and("quarantined").ne(true))
+                        .with(Sort.by(Sort.Direction.ASC, "_id"))
+                        .limit(batchSize),
+                TransferJournalEntry.class);
+        int fetched = entries.size();
+        entries = quarantineUnknownAccounts(entries);
+        if (entries.isEmpty()) {
+            return fetched;
+        }
+
+        List<WriteModel<Document>> updates = balanceUpdates(netDeltas(entries));
+        List<ObjectId> entryIds = new ArrayList<>();
+        for (TransferJournalEntry entry : entries) {
+            entryIds.add(new ObjectId(entry.id));
+        }
+        ObjectId lastEntryId = entryIds.get(entryIds.size() - 1);
+
+        // client session should be short-lived and released once no longer needed
+        try (ClientSession session = mongoTemplate.getMongoDbFactory().getSession(ClientSessionOptions.builder().build())) {
+            LOGGER.debug("start tx: {}", Thread.currentThread().getName());
+
+            session.withTransaction(() -> {
+                // claim the entries first, write-conflict with a concurrent materializer aborts one of them
+                UpdateResult claimed = mongoTemplate.getCollection("TransferJournalCollection").updateMany(session,
+                        and(in("_id", entryIds), eq("materialized", false)), set("materialized", true));
+                if (claimed.getModifiedCount() != entryIds.size()) {
+                    throw new IllegalStateException(String.format(
+                            "%d of %d journal entries already materialized", entryIds.size() - claimed.getModifiedCount(), entryIds.size()));
+                }
+
+                if (!updates.isEmpty()) {
+                    BulkWriteResult result = mongoTemplate.getCollection("AccountCollection")
+                            .bulkWrite(session, updates, new BulkWriteOptions().ordered(false));
+                    if (result.getMatchedCount() != updates.size()) {
+                        throw new IllegalStateException(String.format(
+                                "%d of %d accounts not found", updates.size() - result.getMatchedCount(), updates.size()));
+                    }
+                }
+
+                mongoTemplate.getCollection("JournalCheckpointCollection").updateOne(session,
+                        eq("_id", JournalCheckpoint.TRANSFER_JOURNAL),
+                        combine(
+                                set("lastEntryId", lastEntryId),
+                                inc("materializedCount", (long) entryIds.size()),
+                                set("updatedOn", new Date())),
+                        new UpdateOptions().upsert(true));
+
+                LOGGER.debug("commit tx: {}, {} journal entries netted into {} updates",
+                        Thread.currentThread().getName(), entryIds.size(), updates.size());
+                return null;
+            });
+
+        } catch (RuntimeException e) {
+            LOGGER.debug("abort tx: {}", Thread.currentThread().getName());
+            throw e;
+        }
+
+        return fetched;
+    }
+
+    /**
+     * @return the entries whose accounts are both found, the others are quarantined
+     */
+    private List<TransferJournalEntry> quarantineUnknownAccounts(List<TransferJournalEntry> entries) {
+        Set<String> accountNumbers = new HashSet<>();
+        for (TransferJournalEntry entry : entries) {
+            accountNumbers.add(entry.debitAccountNumber);
+            accountNumbers.add(entry.creditAccountNumber);
+        }
+        Set<String> found = new HashSet<>();
+        for (Document account : mongoTemplate.getCollection("AccountCollection")
+                .find(in("accountNumber", accountNumbers)).projection(include("accountNumber"))) {
+            found.add(account.getString("accountNumber"));
+        }
+        if (found.size() == accountNumbers.size()) {
+            return entries;
+        }
+
+        List<TransferJournalEntry> valid = new ArrayList<>();
+        for (TransferJournalEntry entry : entries) {
+            String missing = !found.contains(entry.debitAccountNumber) ? entry.debitAccountNumber
+                    : !found.contains(entry.creditAccountNumber) ? entry.creditAccountNumber : null;
+            if (missing == null) {
+                valid.add(entry);
+                continue;
+            }
+            mongoTemplate.getCollection("TransferJournalCollection").updateOne(
+                    and(eq("_id", new ObjectId(entry.id)), eq("materialized", false)),
+                    combine(set("quarantined", true), set("error", "account not found: " + missing)));
+            LOGGER.error("journal entry {} quarantined, account not found: {}", entry.id, missing);
+        }
+        return valid;
+    }
+
+    /**
+     * @return progress of the journal materializer, null if nothing was materialized yet
+     */
+    public JournalCheckpoint getJournalCheckpoint() {
+        return mongoTemplate.findById(JournalCheckpoint.TRANSFER_JOURNAL, JournalCheckpoint.class);
+    }
+
+    /**
+     * The materialized balance is served from the AccountCache if enabled, it may then lag
+     * behind the latest transfers by the change stream delay. Otherwise, as on a cache miss, it
+     * is read through the AccountLoader, concurrent lookups sharing one query.
+     *
+     * @param accountNumber
+     * @param includePending add the journal entries not yet materialized, always read from the primary
+     * @return the balance of the account
+     */
+    public long getAccountBalance(String accountNumber, boolean includePending) {
+        if (!includePending) {
+            Account account = accountCache.get(accountNumber);
+            if (account == null) {
+                throw new AccountNotFoundException(accountNumber);
+            }
+            return account.stripeCount == null
+                    ? account.accountBalance
+                    : account.accountBalance + accountStripeService.stripedBalance(null, accountNumber);
+        }
+
+        // client session should be short-lived and released once no longer needed
+        try (ClientSession session = mongoTemplate.getMongoDbFactory().getSession(ClientSessionOptions.builder().build())) {
+            // read the balance and the pending entries from the same snapshot, so that an entry
+            // materialized in between is counted exactly once
+            return session.withTransaction(() -> {
+                Document account = mongoTemplate.getCollection("AccountCollection")
+                        .find(session, eq("accountNumber", accountNumber)).first();
+                if (account == null) {
+                    throw new AccountNotFoundException(accountNumber);
+                }
+
+                long balance = account.getLong("accountBalance");
+                if (account.containsKey("stripeCount")) {
+                    balance += accountStripeService.stripedBalance(session, accountNumber);
+                }
+                for (Document entry : mongoTemplate.getCollection("TransferJournalCollection").find(session, and(
+                        eq("materialized", false),
+                        ne("quarantined", true),
+                        or(eq("debitAccountNumber", accountNumber), eq("creditAccountNumber", accountNumber))))) {
+                    long amount = entry.getLong("amount");
+                    balance += accountNumber.equals(entry.getString("creditAccountNumber")) ? amount : -amount;
+                }
+                return balance;
+
+            }, TransactionOptions.builder().readConcern(ReadConcern.SNAPSHOT).build());
+        }
+    }
+
+    /**
+     * Open accounts in bulk, with unordered insertMany batches against the unique accountNumber index
+     *
+     * - Account numbers come from AccountNumberGenerator, no lock shared between threads
+     * - Accounts rejected with a duplicate key get a new account number and are inserted again,
+     *   the rest of the batch is not affected
+     * - Not atomic, the accounts inserted before an error stay open
+     * - The account numbers are added to the AccountNumberFilter
+     *
+     * @param count amount of accounts, at most account.open.max-count
+     * @param initialBalance
+     * @return the account numbers opened
+     */
+    public List<String> openAccounts(int count, long initialBalance) {
+        return openAccounts(count, initialBalance, AccountNumberGenerator::next);
+    }
+
+    List<String> openAccounts(int count, long initialBalance, Supplier<String> accountNumbers) {
+        if (count <= 0 || count > maxOpenCount) {
+            throw new BadRequestException(String.format("count must be within [1, %d]: %d", maxOpenCount, count));
+        }
+
+        List<String> opened = new ArrayList<>(count);
+        MongoCollection<Document> collection = mongoTemplate.getCollection("AccountCollection");
+
+        for (int from = 0; from < count; from += openBatchSize) {
+            List<Document> batch = new ArrayList<>();
+            for (int i = from; i < Math.min(count, from + openBatchSize); i++) {
+                batch.add(new Document("accountNumber", accountNumbers.get())
+                        .append("accountBalance", initialBalance)
+                        .append("ledgerBalance", initialBalance)
+                        .append("_class", Account.class.getName()));
+            }
+
+            int openedBefore = opened.size();
+            for (int attempt = 1; !batch.isEmpty(); attempt++) {
+                try {
+                    collection.insertMany(batch, new InsertManyOptions().ordered(false));
+                    batch.forEach(account -> opened.add(account.getString("accountNumber")));
+                    batch = Collections.emptyList();
+
+                } catch (MongoBulkWriteException e) {
+                    Set<Integer> duplicates = new HashSet<>();
+                    for (BulkWriteError error : e.getWriteErrors()) {
+                        if (error.getCode() != DUPLICATE_KEY || attempt == MAX_OPEN_ATTEMPTS) {
+                            throw e;
+                        }
+                        duplicates.add(error.getIndex());
+                    }
+                    if (e.getWriteConcernError() != null) {
                         throw e;
                     }
+
+                    List<Document> rejected = new ArrayList<>();
+                    for (int i = 0; i < batch.size(); i++) {
+                        Document account = batch.get(i);
+                        if (duplicates.contains(i)) {
+                            account.remove("_id");
+                            account.put("accountNumber", accountNumbers.get());
+                            rejected.add(account);
+                        } else {
+                            opened.add(account.getString("accountNumber"));
+                        }
+                    }
+                    LOGGER.debug("{} duplicate account numbers regenerated", rejected.size());
+                    batch = rejected;
                 }
             }
+            // no AfterSaveEvent for raw inserts, transfers to these accounts must pass the filter right away
+            opened.subList(openedBefore, opened.size()).forEach(accountNumberFilter::add);
+        }
+
+        LOGGER.debug("{} accounts opened", opened.size());
+        return opened;
+    }
+
+    /**
+     * Reject the account numbers which definitely do not exist, before any session or query,
+     * see AccountNumberFilter
+     */
+    private void requireKnownAccounts(String... accountNumbers) {
+        for (String accountNumber : accountNumbers) {
+            if (!accountNumberFilter.mightContain(accountNumber)) {
+                throw new AccountNotFoundException(accountNumber);
+            }
+        }
+    }
+
+    /**
+     * Read within the transaction of the caller, hence not through the AccountLoader
+     */
+    private Account findAccount(String accountNumber) {
+        Account account = mongoTemplate.findOne(Query.query(Criteria.where("accountNumber").is(accountNumber)), Account.class);
+        if (account == null) {
+            throw new AccountNotFoundException(accountNumber);
+        }
+        return account;
+    }
+
+    /**
+     * Log the balance of both accounts with a single query, only if debug is enabled.
+     * Called within a managed transaction, the query sees the uncommitted balances.
+     */
+    private void logBalances(String debitAccountNumber, String creditAccountNumber) {
+        if (!LOGGER.isDebugEnabled()) {
+            return;
+        }
+        List<Account> accounts = mongoTemplate.find(
+                Query.query(Criteria.where("accountNumber").in(debitAccountNumber, creditAccountNumber)), Account.class);
+        for (Account account : accounts) {
+            LOGGER.debug("{} account: {}, balance: {}",
+                    account.accountNumber.equals(debitAccountNumber) ? "debit" : "credit", account.accountNumber, account.accountBalance);
+        }
+    }
+
+    /**
+     * Check with a single $in query that every account exists, within the session if any
+     */
+    private void requireExistingAccounts(ClientSession session, MongoCollection<Document> collection, Set<String> accountNumbers) {
+        Set<String> missing = new TreeSet<>(accountNumbers);
+        FindIterable<Document> found = session != null
+                ? collection.find(session, in("accountNumber", accountNumbers))
+                : collection.find(in("accountNumber", accountNumbers));
+        for (Document account : found.projection(include("accountNumber"))) {
+            missing.remove(account.getString("accountNumber"));
+        }
+        if (!missing.isEmpty()) {
+            throw new AccountNotFoundException(missing.iterator().next());
+        }
+    }
+
+    private List<WriteModel<Document>> balanceUpdates(Map<String, Long> deltas) {
+        List<WriteModel<Document>> updates = new ArrayList<>();
+        deltas.forEach((accountNumber, delta) -> {
+            if (delta != 0) {
+                updates.add(new UpdateOneModel<>(eq("accountNumber", accountNumber), inc("accountBalance", delta)));
+            }
+        });
+        return updates;
+    }
+
+    private Map<String, Long> netDeltas(List<? extends Transfer> transfers) {
+        // sorted for a deterministic result only, the unordered bulkWrite applies the updates in any order
+        Map<String, Long> deltas = new TreeMap<>();
+        for (Transfer transfer : transfers) {
+            if (transfer.amount <= 0) {
+                throw new BadRequestException("amount must be positive: " + transfer);
+            }
+            if (transfer.debitAccountNumber == null || transfer.creditAccountNumber == null) {
+                throw new BadRequestException("account number must not be null: " + transfer);
+            }
+            if (transfer.debitAccountNumber.equals(transfer.creditAccountNumber)) {
+                throw new BadRequestException("debit and credit account must differ: " + transfer);
+            }
+            deltas.merge(transfer.debitAccountNumber, -transfer.amount, Long::sum);
+            deltas.merge(transfer.creditAccountNumber, transfer.amount, Long::sum);
         }
+        return deltas;
     }
 
 }
@@ -0,0 +1,182 @@
+package com.example.jeffrey.demospringdatamongo.service;
+
+import com.example.jeffrey.demospringdatamongo.model.AccountStripe;
+import com.mongodb.ClientSessionOptions;
+import com.mongodb.client.ClientSession;
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.model.FindOneAndUpdateOptions;
+import com.mongodb.client.model.ReturnDocument;
+import org.bson.Document;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.domain.Sort;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.index.Index;
+import org.springframework.stereotype.Service;
+
+import javax.annotation.PostConstruct;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+
+import static com.mongodb.client.model.Filters.and;
+import static com.mongodb.client.model.Filters.eq;
+import static com.mongodb.client.model.Filters.exists;
+import static com.mongodb.client.model.Filters.gte;
+import static com.mongodb.client.model.Projections.include;
+import static com.mongodb.client.model.Updates.combine;
+import static com.mongodb.client.model.Updates.inc;
+import static com.mongodb.client.model.Updates.set;
+
+/**
+ * Splits the balance of hot accounts (e.g. settlement or fee accounts) into N stripe documents,
+ * so that concurrent transfers touching the same hot account mostly write different documents.
+ *
+ * - Credits go to a random stripe
+ * - Debits go to the first stripe with enough funds, starting from a random one
+ * - The balance is the account's own accountBalance plus the sum of its stripes
+ *
+ * Any path still applying $inc to Account.accountBalance stays correct, it only does not
+ * benefit from the striping. Hence a node which does not know an account is striped, e.g.
+ * striped by another node after startup, keeps working on the account document.
+ */
+@Service
+public class AccountStripeService {
+    private static final Logger LOGGER = LoggerFactory.getLogger(AccountStripeService.class);
+
+    static final int MAX_STRIPES = 1024;
+
+    @Autowired
+    MongoTemplate mongoTemplate;
+
+    @Value("${account.striping.hot-accounts:}")
+    String[] hotAccounts;
+
+    @Value("${account.striping.stripes:8}")
+    int stripes;
+
+    // striped accounts known to this node, an account is never un-striped
+    private final Map<String, Integer> stripeCounts = new ConcurrentHashMap<>();
+
+    @PostConstruct
+    public void initialize() {
+        // creates the collection as well, stripes are only ever inserted within a transaction,
+        // which can not create a collection on MongoDB 4.0
+        mongoTemplate.indexOps(AccountStripe.class).ensureIndex(
+                new Index().on("accountNumber", Sort.Direction.ASC).on("stripe", Sort.Direction.ASC));
+
+        for (Document account : accounts().find(exists("stripeCount")).projection(include("accountNumber", "stripeCount"))) {
+            stripeCounts.put(account.getString("accountNumber"), account.getInteger("stripeCount"));
+        }
+        for (String accountNumber : hotAccounts) {
+            try {
+                stripeAccount(accountNumber.trim(), stripes);
+            } catch (IllegalArgumentException e) {
+                LOGGER.warn("hot account not striped: {}", e.getMessage());
+            }
+        }
+        LOGGER.info("{} striped accounts", stripeCounts.size());
+    }
+
+    /**
+     * Move the balance of the account into N stripes, no-op if the account is already striped
+     *
+     * @return the stripe count of the account
+     */
+    public int stripeAccount(String accountNumber, int stripes) {
+        if (stripes < 2 || stripes > MAX_STRIPES) {
+            throw new BadRequestException(String.format("stripes must be within [2, %d]: %d", MAX_STRIPES, stripes));
+        }
+
+        // client session should be short-lived and released once no longer needed
+        try (ClientSession session = mongoTemplate.getMongoDbFactory().getSession(ClientSessionOptions.builder().build())) {
+            int stripeCount = session.withTransaction(() -> {
+                Document account = accounts().findOneAndUpdate(session,
+                        and(eq("accountNumber", accountNumber), exists("stripeCount", false)),
+                        combine(set("stripeCount", stripes), set("accountBalance", 0L)),
+                        new FindOneAndUpdateOptions().returnDocument(ReturnDocument.BEFORE));
+
+                if (account == null) {
+                    Document existing = accounts().find(session, eq("accountNumber", accountNumber)).first();
+                    if (existing == null) {
+                        throw new AccountNotFoundException(accountNumber);
+                    }
+                    return existing.getInteger("stripeCount");
+                }
+
+                // spread the balance evenly, the remainder goes to the first stripe
+                long balance = account.getLong("accountBalance");
+                List<Document> documents = new ArrayList<>();
+                for (int i = 0; i < stripes; i++) {
+                    documents.add(new Document("_id", AccountStripe.idOf(accountNumber, i))
+                            .append("accountNumber", accountNumber)
+                            .append("stripe", i)
+                            .append("balance", balance / stripes + (i == 0 ? balance % stripes : 0)));
+                }
+                stripes().insertMany(session, documents);
+                return stripes;
+            });
+
+            stripeCounts.put(accountNumber, stripeCount);
+            LOGGER.debug("account: {}, stripes: {}", accountNumber, stripeCount);
+            return stripeCount;
+        }
+    }
+
+    public boolean isStriped(String accountNumber) {
+        return stripeCounts.containsKey(accountNumber);
+    }
+
+    /**
+     * Apply the delta within the session's transaction, to a stripe if the account is striped
+     * or to Account.accountBalance otherwise.
+     *
+     * A debit larger than the funds of every single stripe is applied to a random stripe, the
+     * account can go negative just like an account which is not striped.
+     */
+    void applyDelta(ClientSession session, String accountNumber, long delta) {
+        Integer stripeCount = stripeCounts.get(accountNumber);
+        if (stripeCount == null) {
+            accounts().updateOne(session, eq("accountNumber", accountNumber), inc("accountBalance", delta));
+            return;
+        }
+
+        int start = ThreadLocalRandom.current().nextInt(stripeCount);
+        if (delta < 0) {
+            for (int i = 0; i < stripeCount; i++) {
+                String stripeId = AccountStripe.idOf(accountNumber, (start + i) % stripeCount);
+                if (stripes().updateOne(session, and(eq("_id", stripeId), gte("balance", -delta)), inc("balance", delta)).getMatchedCount() == 1) {
+                    return;
+                }
+            }
+        }
+        stripes().updateOne(session, eq("_id", AccountStripe.idOf(accountNumber, start)), inc("balance", delta));
+    }
+
+    /**
+     * @param session null to read outside of any transaction
+     * @return the sum of the stripes of the account, 0 if not striped
+     */
+    long stripedBalance(ClientSession session, String accountNumber) {
+        long balance = 0;
+        for (Document stripe : session == null
+                ? stripes().find(eq("accountNumber", accountNumber)).projection(include("balance"))
+                : stripes().find(session, eq("accountNumber", accountNumber)).projection(include("balance"))) {
+            balance += stripe.getLong("balance");
+        }
+        return balance;
+    }
+
+    private MongoCollection<Document> accounts() {
+        return mongoTemplate.getCollection("AccountCollection");
+    }
+
+    private MongoCollection<Document> stripes() {
+        return mongoTemplate.getCollection("AccountStripeCollection");
+    }
+
+}
@@ -0,0 +1,42 @@
+package com.example.jeffrey.demospringdatamongo.service;
+
+/**
+ * Batch size steered by the latency of the batches, additive increase and multiplicative
+ * decrease (AIMD):
+ *
+ * - a full batch written within the target latency grows the size by the minimum size
+ * - a batch slower than the target halves the size
+ * - a batch not full leaves the size as it is, there is nothing more to gain
+ *
+ * Converges to the largest batch the database writes within the target latency.
+ */
+class AdaptiveBatchSize {
+
+    private final int minSize;
+    private final int maxSize;
+    private final long targetNanos;
+    private int size;
+
+    AdaptiveBatchSize(int minSize, int maxSize, long targetNanos) {
+        if (minSize < 1 || maxSize < minSize) {
+            throw new IllegalArgumentException(String.format("batch size must be within [1, max]: %d, %d", minSize, maxSize));
+        }
+        this.minSize = minSize;
+        this.maxSize = maxSize;
+        this.targetNanos = targetNanos;
+        this.size = minSize;
+    }
+
+    synchronized int get() {
+        return size;
+    }
+
+    synchronized void onBatch(int batchSize, long latencyNanos) {
+        if (latencyNanos > targetNanos) {
+            size = Math.max(minSize, size / 2);
+        } else if (batchSize >= size) {
+            size = Math.min(maxSize, size + minSize);
+        }
+    }
+
+}
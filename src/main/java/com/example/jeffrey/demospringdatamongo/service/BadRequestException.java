@@ -0,0 +1,14 @@
+package com.example.jeffrey.demospringdatamongo.service;
+
+/**
+ * The request is invalid, e.g. a parameter out of range, reported to the client as 400.
+ *
+ * Any other IllegalArgumentException, e.g. thrown by the driver or a bug, is an internal error.
+ */
+public class BadRequestException extends IllegalArgumentException {
+
+    public BadRequestException(String message) {
+        super(message);
+    }
+
+}
@@ -0,0 +1,381 @@
+package com.example.jeffrey.demospringdatamongo.service;
+
+import com.example.jeffrey.demospringdatamongo.model.PostingJob;
+import com.example.jeffrey.demospringdatamongo.model.PostingOperation;
+import com.example.jeffrey.demospringdatamongo.model.PostingRange;
+import com.mongodb.bulk.BulkWriteResult;
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.model.BulkWriteOptions;
+import com.mongodb.client.model.UpdateOneModel;
+import com.mongodb.client.model.WriteModel;
+import org.bson.Document;
+import org.bson.conversions.Bson;
+import org.bson.types.ObjectId;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.stereotype.Service;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+import static com.mongodb.client.model.Aggregates.bucketAuto;
+import static com.mongodb.client.model.Filters.and;
+import static com.mongodb.client.model.Filters.eq;
+import static com.mongodb.client.model.Filters.gt;
+import static com.mongodb.client.model.Filters.gte;
+import static com.mongodb.client.model.Filters.in;
+import static com.mongodb.client.model.Filters.lt;
+import static com.mongodb.client.model.Filters.lte;
+import static com.mongodb.client.model.Filters.ne;
+import static com.mongodb.client.model.Projections.include;
+import static com.mongodb.client.model.Sorts.ascending;
+import static com.mongodb.client.model.Updates.combine;
+import static com.mongodb.client.model.Updates.inc;
+import static com.mongodb.client.model.Updates.set;
+
+/**
+ * Applies a PostingOperation (fee, interest, ledger recompute) to every account.
+ *
+ * - The AccountCollection is split into _id ranges of similar size with $bucketAuto,
+ *   the ranges are processed in parallel by account.posting.workers threads
+ * - Each range is walked in _id order by chunks, one unordered bulkWrite per chunk
+ * - The PostingJob document is checkpointed after every chunk, a resumed job restarts
+ *   every range after its last processed _id
+ * - A checkpoint only applies on top of the previous one of the range, a chunk processed twice,
+ *   e.g. by a job resumed on two nodes, is counted once and the range left to the first one
+ * - The job is COMPLETED once every range is done, a shutdown leaves it RUNNING to be resumed
+ *
+ * Every update is conditional on the balance read (optimistic concurrency with concurrent
+ * transfers, the misses are re-read and retried) and on lastPostingJobId, so that a chunk
+ * replayed after an interruption, or a job resumed on two nodes, posts an account only once.
+ * Striped (hot) accounts are skipped, their balance is not held by the account document.
+ */
+@Service
+public class BalancePostingService {
+    private static final Logger LOGGER = LoggerFactory.getLogger(BalancePostingService.class);
+
+    @Autowired
+    MongoTemplate mongoTemplate;
+
+    @Value("${account.posting.workers:4}")
+    int workers;
+
+    // amount of _id ranges, more ranges than workers balances uneven ranges
+    @Value("${account.posting.ranges:32}")
+    int ranges;
+
+    @Value("${account.posting.chunk-size:500}")
+    int chunkSize;
+
+    // attempts to post an account whose balance changes concurrently
+    @Value("${account.posting.max-attempts:3}")
+    int maxAttempts;
+
+    @Value("${account.posting.progress-interval-ms:5000}")
+    long progressIntervalMillis;
+
+    private ExecutorService executor;
+    private ScheduledExecutorService progressReporter;
+    private volatile boolean running;
+
+    // jobs running on this node
+    private final Map<String, Run> runs = new ConcurrentHashMap<>();
+
+    @PostConstruct
+    public void initialize() {
+        AtomicInteger threadCount = new AtomicInteger();
+        executor = Executors.newFixedThreadPool(workers, runnable -> {
+            Thread thread = new Thread(runnable, "balance-posting-" + threadCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        progressReporter = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "balance-posting-progress");
+            thread.setDaemon(true);
+            return thread;
+        });
+        running = true;
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        // jobs stay RUNNING in their checkpoint, to be resumed
+        running = false;
+        executor.shutdownNow();
+        progressReporter.shutdownNow();
+    }
+
+    /**
+     * Start a job in the background
+     *
+     * @param amount fee in minor unit, or interest rate in basis points
+     * @return the job as checkpointed when started
+     */
+    public PostingJob start(PostingOperation operation, long amount) {
+        if (operation == PostingOperation.FEE && amount <= 0) {
+            throw new BadRequestException("fee must be positive: " + amount);
+        }
+        if (operation == PostingOperation.INTEREST && (amount <= 0 || amount > 10_000)) {
+            throw new BadRequestException("interest rate must be within ]0, 10000] basis points: " + amount);
+        }
+
+        PostingJob job = new PostingJob();
+        job.id = new ObjectId().toHexString();
+        job.operation = operation;
+        job.amount = amount;
+        job.status = PostingJob.Status.RUNNING;
+        job.startedOn = new Date();
+        job.updatedOn = job.startedOn;
+        split(job);
+        mongoTemplate.insert(job);
+
+        LOGGER.info("posting job {} started, {} of {} over {} accounts in {} ranges",
+                job.id, operation, amount, job.accounts, job.ranges.size());
+        run(job);
+        return getJob(job.id);
+    }
+
+    /**
+     * Resume an interrupted or failed job from its checkpoint
+     */
+    public PostingJob resume(String jobId) {
+        PostingJob job = mongoTemplate.findById(jobId, PostingJob.class);
+        if (job == null) {
+            throw new BadRequestException("posting job not found: " + jobId);
+        }
+        if (job.status == PostingJob.Status.COMPLETED) {
+            throw new BadRequestException("posting job already completed: " + jobId);
+        }
+        if (runs.containsKey(jobId)) {
+            throw new BadRequestException("posting job already running: " + jobId);
+        }
+
+        mongoTemplate.getCollection("PostingJobCollection").updateOne(eq("_id", new ObjectId(jobId)),
+                combine(set("status", PostingJob.Status.RUNNING.name()), set("error", null), set("updatedOn", new Date())));
+        job.status = PostingJob.Status.RUNNING;
+
+        LOGGER.info("posting job {} resumed, {} of {} accounts processed", job.id, job.processed, job.accounts);
+        run(job);
+        return getJob(job.id);
+    }
+
+    /**
+     * @return the checkpoint of the job, with throughput and ETA if it runs on this node, null if not found
+     */
+    public PostingJob getJob(String jobId) {
+        PostingJob job = mongoTemplate.findById(jobId, PostingJob.class);
+        Run run = runs.get(jobId);
+        if (job != null && run != null) {
+            double seconds = Math.max(1e-3, (System.nanoTime() - run.startNanos) / 1e9);
+            job.throughput = run.processed.sum() / seconds;
+            job.etaSeconds = job.throughput > 0 ? (long) (Math.max(0, job.accounts - job.processed) / job.throughput) : null;
+        }
+        return job;
+    }
+
+    /**
+     * Split the accounts into ranges of similar size, based on the _id index
+     */
+    private void split(PostingJob job) {
+        List<Document> buckets = accounts()
+                .aggregate(Collections.singletonList(bucketAuto("$_id", ranges)))
+                .allowDiskUse(true)
+                .into(new ArrayList<>());
+
+        for (int i = 0; i < buckets.size(); i++) {
+            Document bounds = buckets.get(i).get("_id", Document.class);
+            job.ranges.add(new PostingRange(bounds.getObjectId("min"), bounds.getObjectId("max"), i == buckets.size() - 1));
+            job.accounts += buckets.get(i).getInteger("count");
+        }
+    }
+
+    private void run(PostingJob job) {
+        Run run = new Run();
+        runs.put(job.id, run);
+
+        List<CompletableFuture<Void>> futures = new ArrayList<>();
+        for (int i = 0; i < job.ranges.size(); i++) {
+            if (!job.ranges.get(i).done) {
+                int index = i;
+                futures.add(CompletableFuture.runAsync(() -> process(job, index, run), executor));
+            }
+        }
+
+        ScheduledFuture<?> progress = progressReporter.scheduleWithFixedDelay(() -> logProgress(job.id),
+                progressIntervalMillis, progressIntervalMillis, TimeUnit.MILLISECONDS);
+
+        CompletableFuture.allOf(futures.toArray(new CompletableFuture[0])).whenComplete((ignored, error) -> {
+            progress.cancel(false);
+            try {
+                if (error == null) {
+                    // ranges taken over by another node may still be running
+                    long completed = jobs().updateOne(and(eq("_id", new ObjectId(job.id)), ne("ranges.done", false)), combine(
+                            set("status", PostingJob.Status.COMPLETED.name()), set("completedOn", new Date()), set("updatedOn", new Date())))
+                            .getModifiedCount();
+                    logProgress(job.id);
+                    if (completed > 0) {
+                        LOGGER.info("posting job {} completed", job.id);
+                    } else {
+                        LOGGER.info("posting job {} done on this node, ranges left running elsewhere", job.id);
+                    }
+                } else if (running) {
+                    Throwable cause = error.getCause() != null ? error.getCause() : error;
+                    jobs().updateOne(eq("_id", new ObjectId(job.id)), combine(
+                            set("status", PostingJob.Status.FAILED.name()), set("error", String.valueOf(cause.getMessage())), set("updatedOn", new Date())));
+                    LOGGER.error("posting job {} failed, resume it once fixed: {}", job.id, cause.getMessage());
+                }
+            } finally {
+                runs.remove(job.id);
+            }
+        });
+    }
+
+    private void process(PostingJob job, int index, Run run) {
+        PostingRange range = job.ranges.get(index);
+        ObjectId lastId = range.lastId;
+
+        while (true) {
+            if (!running) {
+                // not COMPLETED, the job stays RUNNING in its checkpoint
+                throw new CancellationException("posting job " + job.id + " interrupted by shutdown");
+            }
+            Bson filter = and(
+                    lastId == null ? gte("_id", range.min) : gt("_id", lastId),
+                    range.last ? lte("_id", range.max) : lt("_id", range.max));
+            List<Document> chunk = accounts().find(filter)
+                    .projection(include("accountBalance", "stripeCount", "lastPostingJobId"))
+                    .sort(ascending("_id"))
+                    .limit(chunkSize)
+                    .into(new ArrayList<>());
+            if (chunk.isEmpty()) {
+                jobs().updateOne(eq("_id", new ObjectId(job.id)), set("ranges." + index + ".done", true));
+                return;
+            }
+
+            Chunk result = post(job, chunk);
+            ObjectId previousId = lastId;
+            lastId = chunk.get(chunk.size() - 1).getObjectId("_id");
+
+            // checkpoint on top of the previous one, a chunk replayed after an interruption is
+            // skipped by lastPostingJobId, one processed meanwhile by another run is not counted twice
+            long checkpointed = jobs().updateOne(and(eq("_id", new ObjectId(job.id)), eq("ranges." + index + ".lastId", previousId)), combine(
+                    set("ranges." + index + ".lastId", lastId),
+                    inc("ranges." + index + ".processed", (long) chunk.size()),
+                    inc("processed", (long) chunk.size()),
+                    inc("posted", result.posted),
+                    inc("skipped", result.skipped),
+                    inc("conflicts", result.conflicts),
+                    set("updatedOn", new Date())))
+                    .getMatchedCount();
+            if (checkpointed == 0) {
+                LOGGER.warn("posting job {}: range {} checkpointed by another run, left to it", job.id, index);
+                return;
+            }
+            run.processed.add(chunk.size());
+        }
+    }
+
+    private Chunk post(PostingJob job, List<Document> chunk) {
+        Chunk result = new Chunk();
+        List<Document> pending = chunk;
+
+        for (int attempt = 1; ; attempt++) {
+            List<WriteModel<Document>> updates = new ArrayList<>();
+            List<ObjectId> ids = new ArrayList<>();
+            for (Document account : pending) {
+                if (account.containsKey("stripeCount") || job.id.equals(account.getString("lastPostingJobId"))) {
+                    result.skipped++;
+                    continue;
+                }
+                long balance = ((Number) account.get("accountBalance")).longValue();
+                ObjectId id = account.getObjectId("_id");
+                ids.add(id);
+                updates.add(new UpdateOneModel<>(
+                        and(eq("_id", id), eq("accountBalance", balance), ne("lastPostingJobId", job.id)),
+                        update(job, balance)));
+            }
+            if (updates.isEmpty()) {
+                return result;
+            }
+
+            BulkWriteResult written = accounts().bulkWrite(updates, new BulkWriteOptions().ordered(false));
+            result.posted += written.getMatchedCount();
+            if (written.getMatchedCount() == updates.size()) {
+                return result;
+            }
+
+            // the balance of some accounts moved in between, re-read the ones not posted yet
+            pending = accounts().find(and(in("_id", ids), ne("lastPostingJobId", job.id)))
+                    .projection(include("accountBalance", "stripeCount", "lastPostingJobId"))
+                    .into(new ArrayList<>());
+            if (attempt == maxAttempts) {
+                result.conflicts += pending.size();
+                LOGGER.warn("posting job {}: {} accounts not posted, balance changed concurrently {} times", job.id, pending.size(), maxAttempts);
+                return result;
+            }
+        }
+    }
+
+    private static Bson update(PostingJob job, long balance) {
+        Bson posted = set("lastPostingJobId", job.id);
+        switch (job.operation) {
+            case FEE:
+                return combine(inc("accountBalance", -job.amount), posted);
+            case INTEREST:
+                return combine(inc("accountBalance", balance > 0 ? balance * job.amount / 10_000 : 0L), posted);
+            case RECOMPUTE_LEDGER:
+                return combine(set("ledgerBalance", balance), posted);
+            default:
+                throw new IllegalArgumentException("unsupported posting operation: " + job.operation);
+        }
+    }
+
+    private void logProgress(String jobId) {
+        PostingJob job = getJob(jobId);
+        if (job == null) {
+            return;
+        }
+        LOGGER.info("posting job {}: {}/{} accounts, {} posted, {} skipped, {} conflicts, {} accounts/s, eta {} s",
+                job.id, job.processed, job.accounts, job.posted, job.skipped, job.conflicts,
+                job.throughput == null ? "-" : String.format("%.0f", job.throughput),
+                job.etaSeconds == null ? "-" : job.etaSeconds);
+    }
+
+    private MongoCollection<Document> accounts() {
+        return mongoTemplate.getCollection("AccountCollection");
+    }
+
+    private MongoCollection<Document> jobs() {
+        return mongoTemplate.getCollection("PostingJobCollection");
+    }
+
+    private static final class Run {
+        private final long startNanos = System.nanoTime();
+        private final LongAdder processed = new LongAdder();
+    }
+
+    private static final class Chunk {
+        private long posted;
+        private long skipped;
+        private long conflicts;
+    }
+
+}
@@ -0,0 +1,115 @@
+package com.example.jeffrey.demospringdatamongo.service;
+
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Bloom filter of strings, lock-free: adds and lookups can run concurrently from any thread.
+ *
+ * - No false negative, a string added is always reported as possibly present
+ * - False positive rate of about (1 - e^(-k * n / m))^k for n strings, m bits, k hashes
+ * - The k bit positions are derived from two 64-bit hashes (Kirsch-Mitzenmacher)
+ *
+ * Strings can not be removed.
+ */
+class BloomFilter {
+
+    private final AtomicLongArray words;
+    private final long bits;
+    private final int hashes;
+    private final AtomicLong insertions = new AtomicLong();
+
+    BloomFilter(long bits, int hashes) {
+        if (bits < 64 || bits > (long) Integer.MAX_VALUE * 64) {
+            throw new IllegalArgumentException("bits must be within [64, 2^37]: " + bits);
+        }
+        if (hashes < 1) {
+            throw new IllegalArgumentException("hashes must be positive: " + hashes);
+        }
+        this.words = new AtomicLongArray((int) ((bits + 63) >>> 6));
+        this.bits = (long) words.length() << 6;
+        this.hashes = hashes;
+    }
+
+    /**
+     * Size the filter for the expected amount of strings and false positive rate,
+     * within the memory budget
+     */
+    static BloomFilter create(long expectedInsertions, double falsePositiveRate, long maxBytes) {
+        if (falsePositiveRate <= 0 || falsePositiveRate >= 1) {
+            throw new IllegalArgumentException("false positive rate must be within ]0, 1[: " + falsePositiveRate);
+        }
+        long n = Math.max(1, expectedInsertions);
+        long bits = (long) Math.ceil(-n * Math.log(falsePositiveRate) / (Math.log(2) * Math.log(2)));
+        bits = Math.max(64, Math.min(bits, maxBytes * 8));
+        int hashes = (int) Math.max(1, Math.round((double) bits / n * Math.log(2)));
+        return new BloomFilter(bits, hashes);
+    }
+
+    void add(String value) {
+        long hash1 = hash(value);
+        long hash2 = mix(hash1 + 0x9e3779b97f4a7c15L);
+        for (int i = 0; i < hashes; i++) {
+            long bit = Long.remainderUnsigned(hash1 + i * hash2, bits);
+            int index = (int) (bit >>> 6);
+            long mask = 1L << bit;
+            // skip the write when set already, the common case once the filter fills up
+            if ((words.get(index) & mask) == 0) {
+                words.getAndAccumulate(index, mask, (word, m) -> word | m);
+            }
+        }
+        insertions.incrementAndGet();
+    }
+
+    boolean mightContain(String value) {
+        long hash1 = hash(value);
+        long hash2 = mix(hash1 + 0x9e3779b97f4a7c15L);
+        for (int i = 0; i < hashes; i++) {
+            long bit = Long.remainderUnsigned(hash1 + i * hash2, bits);
+            if ((words.get((int) (bit >>> 6)) & (1L << bit)) == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return the false positive rate expected for the amount of strings added so far
+     */
+    double expectedFalsePositiveRate() {
+        return Math.pow(1 - Math.exp(-hashes * (double) insertions.get() / bits), hashes);
+    }
+
+    long insertions() {
+        return insertions.get();
+    }
+
+    long sizeInBytes() {
+        return bits / 8;
+    }
+
+    int hashes() {
+        return hashes;
+    }
+
+    private static long hash(String value) {
+        // FNV-1a over the UTF-8 bytes, then finalized to spread the bits
+        long hash = 0xcbf29ce484222325L;
+        for (byte b : value.getBytes(StandardCharsets.UTF_8)) {
+            hash = (hash ^ (b & 0xff)) * 0x100000001b3L;
+        }
+        return mix(hash);
+    }
+
+    private static long mix(long x) {
+        // finalizer of MurmurHash3
+        x ^= x >>> 33;
+        x *= 0xff51afd7ed558ccdL;
+        x ^= x >>> 33;
+        x *= 0xc4ceb9fe1a85ec53L;
+        x ^= x >>> 33;
+        return x;
+    }
+
+}
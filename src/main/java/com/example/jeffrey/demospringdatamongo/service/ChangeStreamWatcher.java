@@ -0,0 +1,157 @@
+package com.example.jeffrey.demospringdatamongo.service;
+
+import com.mongodb.MongoCommandException;
+import com.mongodb.client.MongoCursor;
+import org.bson.BsonDocument;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tails a change stream from a daemon thread of its own, shared by the services kept in sync
+ * by a change stream.
+ *
+ * - The stream is opened again one second after an error, resumed after the last change applied
+ * - Opened from now on instead once the history to resume from is lost, see {@link #broken}
+ * - {@link #close()} closes the cursor and stops the thread, the changes not applied yet are dropped
+ *
+ * @param <T> type of the change documents
+ */
+abstract class ChangeStreamWatcher<T> {
+    private static final Logger LOGGER = LoggerFactory.getLogger(ChangeStreamWatcher.class);
+
+    private static final long RETRY_DELAY_MILLIS = 1000;
+
+    private final String name;
+
+    private volatile boolean running;
+    private volatile MongoCursor<T> cursor;
+    private Thread thread;
+
+    // of the last change applied, null to open the stream from now on
+    private volatile BsonDocument resumeToken;
+
+    ChangeStreamWatcher(String name) {
+        this.name = name;
+    }
+
+    /**
+     * Open the stream, on the current thread, every time it is opened again
+     *
+     * @param resumeToken resume after this change, null to start from now on
+     */
+    protected abstract MongoCursor<T> open(BsonDocument resumeToken);
+
+    /**
+     * @return the resume token of the change, null to resume from the previous one
+     */
+    protected abstract BsonDocument apply(T change);
+
+    /**
+     * Called once the stream is open, before the first change is applied
+     */
+    protected void opened() {}
+
+    /**
+     * Called after every wait for a change, whether one was returned or not
+     *
+     * @param idle no change within the server side max await time
+     */
+    protected void polled(boolean idle) {}
+
+    /**
+     * Called once the stream is broken, before it is opened again
+     *
+     * @return true to open the stream from now on rather than resume it, by default only once
+     * the history to resume from is lost
+     */
+    protected boolean broken(RuntimeException e) {
+        LOGGER.warn("{} change stream broken: {}", name, e.getMessage());
+        return isHistoryLost(e);
+    }
+
+    /**
+     * @param resumeToken resume after this change, null to start from now on
+     */
+    void start(BsonDocument resumeToken) {
+        this.resumeToken = resumeToken;
+        running = true;
+        thread = new Thread(this::watch, name);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    void close() {
+        running = false;
+        MongoCursor<T> current = cursor;
+        if (current != null) {
+            current.close();
+        }
+        if (thread != null) {
+            thread.interrupt();
+        }
+    }
+
+    boolean isRunning() {
+        return running;
+    }
+
+    BsonDocument resumeToken() {
+        return resumeToken;
+    }
+
+    /**
+     * @return true once the thread stopped after close, or was never started
+     */
+    boolean awaitStopped(long timeout, TimeUnit unit) throws InterruptedException {
+        Thread current = thread;
+        if (current == null) {
+            return true;
+        }
+        current.join(unit.toMillis(timeout));
+        return !current.isAlive();
+    }
+
+    static boolean isHistoryLost(RuntimeException e) {
+        // ChangeStreamHistoryLost, ChangeStreamFatalError
+        return e instanceof MongoCommandException
+                && (((MongoCommandException) e).getErrorCode() == 286 || ((MongoCommandException) e).getErrorCode() == 280);
+    }
+
+    private void watch() {
+        while (running) {
+            try {
+                try (MongoCursor<T> current = open(resumeToken)) {
+                    cursor = current;
+                    opened();
+                    while (running) {
+                        // waits up to the server side max await time
+                        T change = current.tryNext();
+                        if (change != null) {
+                            BsonDocument token = apply(change);
+                            if (token != null) {
+                                resumeToken = token;
+                            }
+                        }
+                        polled(change == null);
+                    }
+                }
+
+            } catch (RuntimeException e) {
+                if (!running) {
+                    return;
+                }
+                if (broken(e)) {
+                    resumeToken = null;
+                }
+                try {
+                    Thread.sleep(RETRY_DELAY_MILLIS);
+                } catch (InterruptedException ie) {
+                    return;
+                }
+            }
+        }
+    }
+
+}
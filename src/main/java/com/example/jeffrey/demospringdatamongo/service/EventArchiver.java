@@ -0,0 +1,208 @@
+package com.example.jeffrey.demospringdatamongo.service;
+
+import com.example.jeffrey.demospringdatamongo.dao.EventBucket;
+import com.example.jeffrey.demospringdatamongo.dao.EventDao;
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.io.BufferedWriter;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Retention of the BUCKETED event streams: periodically archives the buckets past the
+ * retention, one gzip'ed NDJSON segment file per bucket, then drops them.
+ *
+ * - The bucket is first renamed out of reach of the writers, see EventDao#freezeBucket, an event
+ *   appended late to its day, e.g. replayed from the spool, lands in a new bucket archived next round
+ * - One document per line, as stored (extended JSON), in (createdOn, _id) order
+ * - Written to a temporary file, fsync'ed, then renamed, a segment file is always complete
+ * - Named after the bucket and its first event, a bucket archived again, e.g. after a crash
+ *   before the drop, replaces its own segment file rather than adding a duplicate
+ * - The bucket is only dropped once as many documents were archived as it holds, otherwise
+ *   the segment file is deleted and the bucket kept until next round
+ *
+ * Archives to the local disk of the node, hence to be enabled on a single node, into an
+ * explicit event.retention.directory.
+ */
+@Component
+public class EventArchiver {
+    private static final Logger LOGGER = LoggerFactory.getLogger(EventArchiver.class);
+
+    private static final String SUFFIX = ".ndjson.gz";
+
+    @Autowired
+    EventDao eventDao;
+
+    @Autowired(required = false)
+    MeterRegistry meterRegistry;
+
+    @Value("${event.retention.enabled:false}")
+    boolean enabled;
+
+    // days of events kept in MongoDB, on top of the current day
+    @Value("${event.retention.days:30}")
+    int retentionDays;
+
+    // required once enabled, the archive is the only copy of the dropped events
+    @Value("${event.retention.directory:}")
+    String directory;
+
+    @Value("${event.retention.interval-ms:3600000}")
+    long intervalMillis;
+
+    private final LongAdder archivedBuckets = new LongAdder();
+    private final LongAdder archivedEvents = new LongAdder();
+
+    private ScheduledExecutorService executor;
+
+    @PostConstruct
+    public void initialize() throws IOException {
+        if (!enabled) {
+            return;
+        }
+        if (!eventDao.isBucketed()) {
+            LOGGER.warn("event retention disabled, requires event.storage.layout=BUCKETED");
+            return;
+        }
+        if (directory.isEmpty()) {
+            throw new IllegalStateException("event.retention.directory is required once event.retention.enabled");
+        }
+        Files.createDirectories(Paths.get(directory));
+        if (meterRegistry != null) {
+            FunctionCounter.builder("event.retention.archived.buckets", archivedBuckets, LongAdder::doubleValue)
+                    .description("event buckets archived then dropped")
+                    .register(meterRegistry);
+            FunctionCounter.builder("event.retention.archived.events", archivedEvents, LongAdder::doubleValue)
+                    .register(meterRegistry);
+        }
+
+        executor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "event-archiver");
+            thread.setDaemon(true);
+            return thread;
+        });
+        executor.scheduleWithFixedDelay(this::archive, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        if (executor != null) {
+            executor.shutdownNow();
+            executor = null;
+        }
+    }
+
+    /**
+     * Archive then drop every bucket which ended more than the retention ago
+     *
+     * @return the segment files written
+     */
+    public List<Path> archive() {
+        return archive(Instant.now().minus(Duration.ofDays(retentionDays)));
+    }
+
+    List<Path> archive(Instant before) {
+        List<Path> segments = new ArrayList<>();
+        try {
+            for (EventBucket bucket : eventDao.findBuckets(before)) {
+                try {
+                    Path segment = archive(bucket);
+                    if (segment != null) {
+                        segments.add(segment);
+                    }
+                } catch (RuntimeException | IOException e) {
+                    // kept as is, tried again on the next round
+                    LOGGER.warn("archive of event bucket {} failed: {}", bucket, e.getMessage());
+                }
+            }
+
+        } catch (RuntimeException e) {
+            // e.g. no primary during an election, an exception would cancel the next rounds
+            LOGGER.warn("event retention failed: {}", e.getMessage());
+        }
+        return segments;
+    }
+
+    /**
+     * @return null if the bucket was empty, dropped without a segment file
+     */
+    private Path archive(EventBucket bucket) throws IOException {
+        long startNanos = System.nanoTime();
+        eventDao.freezeBucket(bucket);
+        Path temporary = Paths.get(directory, bucket.archivingCollectionName() + ".tmp");
+
+        long count;
+        Object[] firstId = new Object[1];
+        try (FileOutputStream file = new FileOutputStream(temporary.toFile())) {
+            GZIPOutputStream gzip = new GZIPOutputStream(file, 65536);
+            Writer writer = new BufferedWriter(new OutputStreamWriter(gzip, StandardCharsets.UTF_8), 65536);
+            count = eventDao.exportBucket(bucket, document -> {
+                if (firstId[0] == null) {
+                    firstId[0] = document.get("_id");
+                }
+                try {
+                    writer.write(document.toJson());
+                    writer.write('\n');
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            });
+            writer.flush();
+            gzip.finish();
+            file.getFD().sync();
+        } catch (RuntimeException | IOException e) {
+            Files.deleteIfExists(temporary);
+            throw e;
+        }
+        if (count == 0) {
+            Files.delete(temporary);
+            eventDao.dropBucket(bucket);
+            return null;
+        }
+        Path segment = segmentOf(bucket, firstId[0]);
+        Files.move(temporary, segment, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+
+        long stored = eventDao.countBucket(bucket);
+        if (stored != count) {
+            Files.delete(segment);
+            throw new IllegalStateException(String.format("%d events archived out of %d, kept until next round", count, stored));
+        }
+        eventDao.dropBucket(bucket);
+
+        archivedBuckets.increment();
+        archivedEvents.add(count);
+        LOGGER.info("event bucket {} archived to {} in {} ms, {} events, {} bytes",
+                bucket, segment, (System.nanoTime() - startNanos) / 1_000_000, count, Files.size(segment));
+        return segment;
+    }
+
+    private Path segmentOf(EventBucket bucket, Object firstId) {
+        return Paths.get(directory, bucket.collectionName() + "." + String.valueOf(firstId).replaceAll("[^A-Za-z0-9_-]", "_") + SUFFIX);
+    }
+
+}
@@ -0,0 +1,247 @@
+package com.example.jeffrey.demospringdatamongo.service;
+
+import com.example.jeffrey.demospringdatamongo.dao.EventDao;
+import com.example.jeffrey.demospringdatamongo.model.Event;
+import com.mongodb.MongoBulkWriteException;
+import com.mongodb.bulk.BulkWriteError;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Group commit of events: callers queue their event and get a future, writer threads insert
+ * the queued events with one insertMany per collection, instead of one round trip per event.
+ *
+ * - A batch is written once it reaches the batch size, or max-delay-ms after its first event
+ * - The batch size adapts to the latency of the writes, see AdaptiveBatchSize
+ * - The future completes once the event is journaled on a majority of the replica set, or
+ *   exceptionally if its insert failed
+ * - The queue is bounded, callers wait for room up to offer-timeout-ms and are then rejected,
+ *   rather than piling up events in memory
+ *
+ * Events of the same collection may be written out of submission order across writer threads.
+ */
+@Component
+public class EventBatchWriter {
+    private static final Logger LOGGER = LoggerFactory.getLogger(EventBatchWriter.class);
+
+    @Autowired
+    @Qualifier("EventDao")
+    EventDao eventDao;
+
+    @Autowired(required = false)
+    MeterRegistry meterRegistry;
+
+    @Value("${event.writer.async:false}")
+    boolean enabled;
+
+    @Value("${event.writer.threads:2}")
+    int threads;
+
+    @Value("${event.writer.queue-capacity:10000}")
+    int queueCapacity;
+
+    @Value("${event.writer.offer-timeout-ms:1000}")
+    long offerTimeoutMillis;
+
+    @Value("${event.writer.min-batch-size:16}")
+    int minBatchSize;
+
+    @Value("${event.writer.max-batch-size:1000}")
+    int maxBatchSize;
+
+    @Value("${event.writer.max-delay-ms:5}")
+    long maxDelayMillis;
+
+    @Value("${event.writer.target-latency-ms:50}")
+    long targetLatencyMillis;
+
+    private BlockingQueue<PendingEvent> queue;
+    private AdaptiveBatchSize batchSize;
+    private final List<Thread> writers = new ArrayList<>();
+    private volatile boolean running;
+
+    @PostConstruct
+    public void initialize() {
+        if (!enabled) {
+            return;
+        }
+        queue = new ArrayBlockingQueue<>(queueCapacity);
+        batchSize = new AdaptiveBatchSize(minBatchSize, maxBatchSize, TimeUnit.MILLISECONDS.toNanos(targetLatencyMillis));
+
+        if (meterRegistry != null) {
+            Gauge.builder("event.writer.queue", queue, BlockingQueue::size)
+                    .description("events waiting to be written")
+                    .register(meterRegistry);
+            Gauge.builder("event.writer.batch.size", batchSize, AdaptiveBatchSize::get)
+                    .register(meterRegistry);
+        }
+
+        running = true;
+        for (int i = 0; i < threads; i++) {
+            Thread writer = new Thread(this::write, "event-writer-" + i);
+            writer.setDaemon(true);
+            writer.start();
+            writers.add(writer);
+        }
+        LOGGER.info("{} event writers started, queue of {} events", threads, queueCapacity);
+    }
+
+    @PreDestroy
+    public void shutdown() throws InterruptedException {
+        running = false;
+        // writers drain the queue before they stop
+        for (Thread writer : writers) {
+            writer.join(TimeUnit.SECONDS.toMillis(10));
+        }
+        if (queue != null) {
+            for (PendingEvent pending; (pending = queue.poll()) != null; ) {
+                pending.written.completeExceptionally(new RejectedExecutionException("event writer stopped"));
+            }
+        }
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * @return completes once the event is written, or exceptionally if it can not be
+     */
+    public CompletableFuture<Void> submit(String collectionName, Event event) {
+        CompletableFuture<Void> written = new CompletableFuture<>();
+        if (!running) {
+            written.completeExceptionally(new RejectedExecutionException("event writer stopped"));
+            return written;
+        }
+
+        try {
+            if (!queue.offer(new PendingEvent(collectionName, event, written), offerTimeoutMillis, TimeUnit.MILLISECONDS)) {
+                written.completeExceptionally(new RejectedExecutionException(
+                        String.format("event queue full, %d events waiting", queue.size())));
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            written.completeExceptionally(new RejectedExecutionException("interrupted waiting for the event queue", e));
+        }
+        return written;
+    }
+
+    private void write() {
+        List<PendingEvent> batch = new ArrayList<>();
+
+        while (running || !queue.isEmpty()) {
+            try {
+                PendingEvent first = queue.poll(100, TimeUnit.MILLISECONDS);
+                if (first == null) {
+                    continue;
+                }
+                batch.add(first);
+
+                int limit = batchSize.get();
+                long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(maxDelayMillis);
+                while (batch.size() < limit) {
+                    // take what is queued already, then wait for more until the time limit
+                    if (queue.drainTo(batch, limit - batch.size()) > 0) {
+                        continue;
+                    }
+                    long remainingNanos = deadline - System.nanoTime();
+                    PendingEvent next = remainingNanos > 0 ? queue.poll(remainingNanos, TimeUnit.NANOSECONDS) : null;
+                    if (next == null) {
+                        break;
+                    }
+                    batch.add(next);
+                }
+
+                long startNanos = System.nanoTime();
+                flush(batch);
+                batchSize.onBatch(batch.size(), System.nanoTime() - startNanos);
+
+            } catch (InterruptedException e) {
+                flush(batch);
+                return;
+
+            } catch (RuntimeException e) {
+                LOGGER.error("event writer failed: {}", e.getMessage(), e);
+
+            } finally {
+                batch.clear();
+            }
+        }
+    }
+
+    private void flush(List<PendingEvent> batch) {
+        Map<String, List<PendingEvent>> collections = new LinkedHashMap<>();
+        for (PendingEvent pending : batch) {
+            collections.computeIfAbsent(pending.collectionName, name -> new ArrayList<>()).add(pending);
+        }
+
+        for (Map.Entry<String, List<PendingEvent>> collection : collections.entrySet()) {
+            List<PendingEvent> pendings = collection.getValue();
+            List<Event> events = new ArrayList<>(pendings.size());
+            for (PendingEvent pending : pendings) {
+                events.add(pending.event);
+            }
+
+            try {
+                eventDao.createEvents(collection.getKey(), events);
+                for (PendingEvent pending : pendings) {
+                    pending.written.complete(null);
+                }
+
+            } catch (MongoBulkWriteException e) {
+                // unordered, the events not listed in the errors are written
+                Set<Integer> failed = new HashSet<>();
+                for (BulkWriteError error : e.getWriteErrors()) {
+                    failed.add(error.getIndex());
+                }
+                boolean concernFailed = e.getWriteConcernError() != null;
+                for (int i = 0; i < pendings.size(); i++) {
+                    if (failed.contains(i) || concernFailed) {
+                        pendings.get(i).written.completeExceptionally(e);
+                    } else {
+                        pendings.get(i).written.complete(null);
+                    }
+                }
+
+            } catch (RuntimeException e) {
+                LOGGER.warn("{} events not written to {}: {}", pendings.size(), collection.getKey(), e.getMessage());
+                for (PendingEvent pending : pendings) {
+                    pending.written.completeExceptionally(e);
+                }
+            }
+        }
+    }
+
+    private static final class PendingEvent {
+        private final String collectionName;
+        private final Event event;
+        private final CompletableFuture<Void> written;
+
+        private PendingEvent(String collectionName, Event event, CompletableFuture<Void> written) {
+            this.collectionName = collectionName;
+            this.event = event;
+            this.written = written;
+        }
+    }
+
+}
@@ -1,19 +1,96 @@
 package com.example.jeffrey.demospringdatamongo.service;
 
 import com.example.jeffrey.demospringdatamongo.dao.EventDao;
+import com.example.jeffrey.demospringdatamongo.model.Event;
+import com.example.jeffrey.demospringdatamongo.model.EventKey;
+import com.example.jeffrey.demospringdatamongo.model.EventPage;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Service;
 
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Consumer;
+
 @Service
 public class EventService {
 
+    // leaves room for the database name and the day suffix of a bucket, within the 120 bytes
+    // of a MongoDB 4.0 namespace
+    private static final int MAX_STREAM_NAME_BYTES = 64;
+
     @Autowired
     @Qualifier("EventDao")
     EventDao eventDao;
 
-    public void create(String collectionName, String payload) {
+    @Autowired
+    EventBatchWriter eventBatchWriter;
+
+    @Autowired
+    EventSpool eventSpool;
+
+    @Value("${event.read.max-page-size:1000}")
+    int maxPageSize;
+
+    /**
+     * - Synchronous by default, one insert per event, the future is complete on return
+     * - Spooled to local disk if event.spool.enabled, see EventSpool, the future is complete
+     *   on return and the event reaches MongoDB later
+     * - Group commit if event.writer.async is enabled, see EventBatchWriter
+     *
+     * @return completes once the event is written
+     * @throws BadRequestException if the stream is not a valid collection name, checked before the
+     * event is acknowledged, a spooled event would otherwise be rejected once drained
+     */
+    public CompletableFuture<Void> create(String collectionName, String payload) {
+        requireValidStreamName(collectionName);
+        if (eventSpool.isEnabled()) {
+            eventSpool.append(collectionName, payload);
+            return CompletableFuture.completedFuture(null);
+        }
+        if (eventBatchWriter.isEnabled()) {
+            return eventBatchWriter.submit(collectionName, new Event(payload));
+        }
         eventDao.createEvent(collectionName, payload);
+        return CompletableFuture.completedFuture(null);
+    }
+
+    /**
+     * Stream the events in (createdOn, _id) order, see EventDao.streamEvents
+     *
+     * @return the key of the last event streamed, null if none
+     */
+    public EventKey streamEvents(String collectionName, EventKey after, int limit, Consumer<Event> consumer) {
+        return eventDao.streamEvents(collectionName, after, limit, consumer);
+    }
+
+    /**
+     * Find the events created within [from, to[, see EventDao.findEvents
+     */
+    public EventPage findEvents(String collectionName, Instant from, Instant to, EventKey after, int limit, boolean idsOnly) {
+        if (!from.isBefore(to)) {
+            throw new BadRequestException(String.format("from must be before to: %s, %s", from, to));
+        }
+        if (limit < 1 || limit > maxPageSize) {
+            throw new BadRequestException(String.format("limit must be within [1, %d]: %d", maxPageSize, limit));
+        }
+        return eventDao.findEvents(collectionName, from, to, after, limit, idsOnly);
+    }
+
+    public long countEvents(String collectionName) {
+        return eventDao.countEvents(collectionName);
+    }
+
+    private static void requireValidStreamName(String collectionName) {
+        if (collectionName.isEmpty() || collectionName.indexOf('$') >= 0 || collectionName.indexOf('\0') >= 0
+                || collectionName.startsWith("system.")) {
+            throw new BadRequestException(String.format("invalid stream name: %s", collectionName));
+        }
+        if (collectionName.getBytes(StandardCharsets.UTF_8).length > MAX_STREAM_NAME_BYTES) {
+            throw new BadRequestException(String.format("stream name longer than %d bytes: %s", MAX_STREAM_NAME_BYTES, collectionName));
+        }
     }
 
 }
@@ -0,0 +1,372 @@
+package com.example.jeffrey.demospringdatamongo.service;
+
+import com.example.jeffrey.demospringdatamongo.dao.EventDao;
+import com.example.jeffrey.demospringdatamongo.model.Event;
+import com.mongodb.MongoBulkWriteException;
+import com.mongodb.MongoCommandException;
+import com.mongodb.bulk.BulkWriteError;
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.bson.Document;
+import org.bson.types.ObjectId;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.UncheckedIOException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Write-ahead spool of events on local disk, so that creating an event does not depend on
+ * MongoDB being available, e.g. during the election of a new primary.
+ *
+ * - Events are appended to memory-mapped segment files, see EventSpoolSegment, and
+ *   acknowledged once fsync'ed; concurrent appends share one fsync (group commit)
+ * - A drainer thread replays the events into MongoDB in spool order, with one ordered
+ *   insertMany per collection, and deletes the segments once fully drained
+ * - Events are given their id when spooled, an event replayed twice after a crash is
+ *   rejected as a duplicate key and skipped
+ * - Disk usage is bounded by max-segments, appends are rejected once it is reached
+ * - An event MongoDB rejects for good, e.g. failing a document validation, is moved to the
+ *   dead-letter file of the spool directory rather than blocking the events after it
+ *
+ * Where the drainer is in the oldest segment is not persisted, after a restart that segment
+ * is replayed from its start, relying on the duplicate keys.
+ */
+@Component
+public class EventSpool {
+    private static final Logger LOGGER = LoggerFactory.getLogger(EventSpool.class);
+
+    private static final int DUPLICATE_KEY = 11000;
+    private static final int INVALID_NAMESPACE = 73;
+
+    static final String DEAD_LETTER_FILE = "dead-letter.ndjson";
+
+    @Autowired
+    @Qualifier("EventDao")
+    EventDao eventDao;
+
+    @Autowired(required = false)
+    MeterRegistry meterRegistry;
+
+    @Value("${event.spool.enabled:false}")
+    boolean enabled;
+
+    // required once enabled, the spool must survive a restart
+    @Value("${event.spool.directory:}")
+    String directory;
+
+    @Value("${event.spool.segment-bytes:67108864}")
+    int segmentBytes;
+
+    @Value("${event.spool.max-segments:64}")
+    int maxSegments;
+
+    // wait before fsync, so that more appends share it
+    @Value("${event.spool.fsync-delay-ms:2}")
+    long fsyncDelayMillis;
+
+    @Value("${event.spool.drain-batch-size:500}")
+    int drainBatchSize;
+
+    // keyed by sequence, the last one is appended to
+    private final ConcurrentSkipListMap<Long, EventSpoolSegment> segments = new ConcurrentSkipListMap<>();
+    private EventSpoolSegment current;
+    private final Object appendLock = new Object();
+
+    // (segment sequence, position) packed into a long, see lsn()
+    private volatile long durableLsn;
+    private boolean syncing;
+    private final Object syncLock = new Object();
+
+    private volatile boolean running;
+    private Thread drainer;
+
+    private final LongAdder deadLetters = new LongAdder();
+
+    @PostConstruct
+    public void initialize() throws IOException {
+        if (!enabled) {
+            return;
+        }
+        if (directory.isEmpty()) {
+            throw new IllegalStateException("event.spool.directory is required once event.spool.enabled");
+        }
+        Path path = Paths.get(directory);
+        Files.createDirectories(path);
+
+        // segments left by a previous run are sealed, appends go to a new segment
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(path, "*" + EventSpoolSegment.SUFFIX)) {
+            for (Path file : files) {
+                EventSpoolSegment segment = EventSpoolSegment.open(file);
+                segments.put(segment.sequence, segment);
+            }
+        }
+        current = EventSpoolSegment.create(path, segments.isEmpty() ? 1 : segments.lastKey() + 1, segmentBytes);
+        segments.put(current.sequence, current);
+        durableLsn = lsn(current.sequence, 0);
+        LOGGER.info("event spool at {}, {} segment(s) left to drain", path, segments.size() - 1);
+
+        if (meterRegistry != null) {
+            Gauge.builder("event.spool.segments", segments, Map::size)
+                    .description("segments not fully drained into MongoDB")
+                    .register(meterRegistry);
+            FunctionCounter.builder("event.spool.dead-letters", deadLetters, LongAdder::doubleValue)
+                    .description("events rejected for good by MongoDB, moved to the dead-letter file")
+                    .register(meterRegistry);
+        }
+
+        running = true;
+        drainer = new Thread(this::drain, "event-spool-drainer");
+        drainer.setDaemon(true);
+        drainer.start();
+    }
+
+    @PreDestroy
+    public void shutdown() throws IOException {
+        running = false;
+        if (drainer != null) {
+            drainer.interrupt();
+        }
+        for (EventSpoolSegment segment : segments.values()) {
+            segment.force();
+            segment.close();
+        }
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Append the event to the spool, returns once it is on disk
+     *
+     * @throws RejectedExecutionException if the spool holds max-segments already
+     */
+    public Event append(String collectionName, String payload) {
+        Event event = new Event(new ObjectId().toHexString(), Instant.now(), payload);
+        EventSpoolSegment.Record record = new EventSpoolSegment.Record(
+                collectionName, event.getId(), event.getCreatedOn(), payload);
+
+        long lsn;
+        synchronized (appendLock) {
+            if (!running) {
+                throw new RejectedExecutionException("event spool stopped");
+            }
+            if (!current.append(record)) {
+                roll();
+                if (!current.append(record)) {
+                    throw new BadRequestException(String.format("event larger than a spool segment: %d bytes", segmentBytes));
+                }
+            }
+            lsn = lsn(current.sequence, current.position());
+        }
+
+        try {
+            awaitDurable(lsn);
+        } catch (InterruptedIOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return event;
+    }
+
+    private void roll() {
+        if (segments.size() >= maxSegments) {
+            throw new RejectedExecutionException(String.format("event spool full, %d segments not drained", segments.size()));
+        }
+        try {
+            // the next fsync only covers the new segment
+            current.force();
+            current.seal();
+            EventSpoolSegment next = EventSpoolSegment.create(Paths.get(directory), current.sequence + 1, segmentBytes);
+            segments.put(next.sequence, next);
+            current = next;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private void awaitDurable(long lsn) throws InterruptedIOException {
+        synchronized (syncLock) {
+            try {
+                while (durableLsn < lsn) {
+                    if (syncing) {
+                        syncLock.wait();
+                        continue;
+                    }
+
+                    // this thread fsyncs on behalf of every append so far
+                    syncing = true;
+                    try {
+                        if (fsyncDelayMillis > 0) {
+                            syncLock.wait(fsyncDelayMillis);
+                        }
+                        EventSpoolSegment segment;
+                        long target;
+                        synchronized (appendLock) {
+                            segment = current;
+                            target = lsn(segment.sequence, segment.position());
+                        }
+                        segment.force();
+                        durableLsn = Math.max(durableLsn, target);
+                    } finally {
+                        syncing = false;
+                        syncLock.notifyAll();
+                    }
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("interrupted waiting for fsync");
+            }
+        }
+    }
+
+    private void drain() {
+        int position = 0;
+        long drainingSequence = 0;
+
+        while (running) {
+            try {
+                Map.Entry<Long, EventSpoolSegment> oldest = segments.firstEntry();
+                EventSpoolSegment segment = oldest.getValue();
+                if (segment.sequence != drainingSequence) {
+                    drainingSequence = segment.sequence;
+                    position = 0;
+                }
+
+                // only the acknowledged events, a sealed segment is on disk up to its end
+                long durable = durableLsn;
+                int limit = segment.sealedAt() >= 0 ? segment.sealedAt()
+                        : sequenceOf(durable) == segment.sequence ? positionOf(durable) : 0;
+
+                int start = position;
+                List<EventSpoolSegment.Record> records = new ArrayList<>();
+                for (EventSpoolSegment.Record record; records.size() < drainBatchSize
+                        && (record = segment.read(position, limit)) != null; position = record.end) {
+                    records.add(record);
+                }
+
+                if (records.isEmpty()) {
+                    if (segment.sealedAt() >= 0 && position >= segment.sealedAt()) {
+                        segments.remove(segment.sequence);
+                        segment.delete();
+                        LOGGER.debug("event spool segment {} drained", segment.sequence);
+                    } else {
+                        Thread.sleep(50);
+                    }
+                    continue;
+                }
+
+                try {
+                    insert(records);
+                } catch (RuntimeException | IOException e) {
+                    // e.g. no primary, replay the same records once it is back
+                    position = start;
+                    LOGGER.warn("event spool drain failed, retrying: {}", e.getMessage());
+                    Thread.sleep(1000);
+                }
+
+            } catch (InterruptedException e) {
+                return;
+            } catch (IOException e) {
+                LOGGER.error("event spool segment not deleted: {}", e.getMessage());
+            }
+        }
+    }
+
+    private void insert(List<EventSpoolSegment.Record> records) throws IOException {
+        Map<String, List<EventSpoolSegment.Record>> collections = new LinkedHashMap<>();
+        for (EventSpoolSegment.Record record : records) {
+            collections.computeIfAbsent(record.collectionName, name -> new ArrayList<>()).add(record);
+        }
+
+        for (Map.Entry<String, List<EventSpoolSegment.Record>> collection : collections.entrySet()) {
+            List<EventSpoolSegment.Record> pending = collection.getValue();
+            while (!pending.isEmpty()) {
+                List<Event> events = new ArrayList<>(pending.size());
+                for (EventSpoolSegment.Record record : pending) {
+                    events.add(new Event(record.id, record.createdOn, record.payload));
+                }
+                try {
+                    eventDao.createEvents(collection.getKey(), events, true);
+                    break;
+                } catch (MongoBulkWriteException e) {
+                    // ordered, the events before the error are inserted and none after it
+                    BulkWriteError error = e.getWriteErrors().isEmpty() ? null : e.getWriteErrors().get(0);
+                    if (error == null) {
+                        throw e;
+                    }
+                    // a write error is specific to the event, it would fail the same way again
+                    if (error.getCode() != DUPLICATE_KEY) {
+                        deadLetter(pending.get(error.getIndex()), error.getMessage());
+                    }
+                    pending = pending.subList(error.getIndex() + 1, pending.size());
+                } catch (IllegalArgumentException | MongoCommandException e) {
+                    // e.g. a collection name MongoDB does not accept, spooled before it was validated
+                    if (e instanceof MongoCommandException && ((MongoCommandException) e).getErrorCode() != INVALID_NAMESPACE) {
+                        throw e;
+                    }
+                    for (EventSpoolSegment.Record record : pending) {
+                        deadLetter(record, e.getMessage());
+                    }
+                    break;
+                }
+            }
+        }
+    }
+
+    /**
+     * Append the event to the dead-letter file, one JSON document per line, fsync'ed before the
+     * drainer moves past it
+     */
+    private void deadLetter(EventSpoolSegment.Record record, String reason) throws IOException {
+        Document document = new Document("collectionName", record.collectionName)
+                .append("_id", record.id)
+                .append("createdOn", Date.from(record.createdOn))
+                .append("payload", record.payload)
+                .append("error", reason);
+        try (FileChannel file = FileChannel.open(Paths.get(directory, DEAD_LETTER_FILE),
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND)) {
+            file.write(StandardCharsets.UTF_8.encode(document.toJson() + "\n"));
+            file.force(false);
+        }
+        deadLetters.increment();
+        LOGGER.error("event {} of {} moved to the spool dead-letter file: {}", record.id, record.collectionName, reason);
+    }
+
+    private static long lsn(long sequence, int position) {
+        return sequence << 32 | position;
+    }
+
+    private static long sequenceOf(long lsn) {
+        return lsn >>> 32;
+    }
+
+    private static int positionOf(long lsn) {
+        return (int) lsn;
+    }
+
+}
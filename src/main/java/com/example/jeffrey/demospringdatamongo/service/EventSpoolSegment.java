@@ -0,0 +1,174 @@
+package com.example.jeffrey.demospringdatamongo.service;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.util.zip.CRC32;
+
+/**
+ * A memory-mapped file of fixed size holding spooled events one after another, see EventSpool.
+ *
+ * Each record is framed as [body length][CRC32 of the body][body], the file is zero-filled
+ * hence a length of 0 marks the end of the records. A record torn by a crash fails its CRC
+ * and ends the segment as well, it was never acknowledged since fsync covers a prefix.
+ *
+ * Appends are not thread-safe, the spool serializes them.
+ */
+class EventSpoolSegment implements Closeable {
+
+    static final String SUFFIX = ".spool";
+
+    private static final int HEADER_BYTES = 8;
+
+    static class Record {
+        final String collectionName;
+        final String id;
+        final Instant createdOn;
+        final String payload;
+        // position of the next record
+        int end;
+
+        Record(String collectionName, String id, Instant createdOn, String payload) {
+            this.collectionName = collectionName;
+            this.id = id;
+            this.createdOn = createdOn;
+            this.payload = payload;
+        }
+    }
+
+    final long sequence;
+    final Path path;
+    private final FileChannel channel;
+    private final MappedByteBuffer buffer;
+    private int position;
+    // end of the records once no more appends, -1 while appended to
+    private volatile int sealedAt = -1;
+
+    private EventSpoolSegment(long sequence, Path path, FileChannel channel, MappedByteBuffer buffer) {
+        this.sequence = sequence;
+        this.path = path;
+        this.channel = channel;
+        this.buffer = buffer;
+    }
+
+    static EventSpoolSegment create(Path directory, long sequence, int size) throws IOException {
+        Path path = directory.resolve(String.format("%020d%s", sequence, SUFFIX));
+        FileChannel channel = FileChannel.open(path,
+                StandardOpenOption.CREATE_NEW, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        return new EventSpoolSegment(sequence, path, channel, channel.map(FileChannel.MapMode.READ_WRITE, 0, size));
+    }
+
+    /**
+     * Open a segment left by a previous run, sealed at the end of its valid records
+     */
+    static EventSpoolSegment open(Path path) throws IOException {
+        String name = path.getFileName().toString();
+        long sequence = Long.parseLong(name.substring(0, name.length() - SUFFIX.length()));
+        FileChannel channel = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        EventSpoolSegment segment = new EventSpoolSegment(
+                sequence, path, channel, channel.map(FileChannel.MapMode.READ_WRITE, 0, channel.size()));
+
+        int end = 0;
+        for (Record record; (record = segment.read(end, segment.buffer.capacity())) != null; ) {
+            end = record.end;
+        }
+        segment.position = end;
+        segment.seal();
+        return segment;
+    }
+
+    /**
+     * @return false if the segment has no room left for the record
+     */
+    boolean append(Record record) {
+        byte[] collectionName = record.collectionName.getBytes(StandardCharsets.UTF_8);
+        byte[] id = record.id.getBytes(StandardCharsets.UTF_8);
+        byte[] payload = record.payload.getBytes(StandardCharsets.UTF_8);
+        int bodyBytes = 4 + collectionName.length + 4 + id.length + 8 + 4 + 4 + payload.length;
+        if (position + HEADER_BYTES + bodyBytes > buffer.capacity()) {
+            return false;
+        }
+
+        ByteBuffer body = buffer.duplicate();
+        body.position(position + HEADER_BYTES);
+        body.putInt(collectionName.length).put(collectionName);
+        body.putInt(id.length).put(id);
+        body.putLong(record.createdOn.getEpochSecond()).putInt(record.createdOn.getNano());
+        body.putInt(payload.length).put(payload);
+
+        // the length last, so that a record is never seen before its body
+        buffer.putInt(position + 4, crc(position + HEADER_BYTES, bodyBytes));
+        buffer.putInt(position, bodyBytes);
+        position += HEADER_BYTES + bodyBytes;
+        record.end = position;
+        return true;
+    }
+
+    /**
+     * @return the record at the position, null if there is none before the limit
+     */
+    Record read(int from, int limit) {
+        if (from + HEADER_BYTES > limit) {
+            return null;
+        }
+        int bodyBytes = buffer.getInt(from);
+        int start = from + HEADER_BYTES;
+        if (bodyBytes <= 0 || start + bodyBytes > limit || buffer.getInt(from + 4) != crc(start, bodyBytes)) {
+            return null;
+        }
+
+        ByteBuffer body = buffer.duplicate();
+        body.position(start);
+        Record record = new Record(string(body), string(body), Instant.ofEpochSecond(body.getLong(), body.getInt()), string(body));
+        record.end = start + bodyBytes;
+        return record;
+    }
+
+    int position() {
+        return position;
+    }
+
+    void seal() {
+        sealedAt = position;
+    }
+
+    int sealedAt() {
+        return sealedAt;
+    }
+
+    void force() {
+        buffer.force();
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+
+    void delete() throws IOException {
+        close();
+        Files.deleteIfExists(path);
+    }
+
+    private int crc(int from, int bytes) {
+        ByteBuffer body = buffer.duplicate();
+        body.position(from).limit(from + bytes);
+        CRC32 crc = new CRC32();
+        crc.update(body);
+        return (int) crc.getValue();
+    }
+
+    private static String string(ByteBuffer body) {
+        byte[] bytes = new byte[body.getInt()];
+        body.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+}
@@ -0,0 +1,455 @@
+package com.example.jeffrey.demospringdatamongo.service;
+
+import com.example.jeffrey.demospringdatamongo.dao.EventDao;
+import com.example.jeffrey.demospringdatamongo.model.Event;
+import com.mongodb.MongoException;
+import com.mongodb.client.ChangeStreamIterable;
+import com.mongodb.client.MongoCursor;
+import com.mongodb.client.model.changestream.ChangeStreamDocument;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.bson.BsonDocument;
+import org.bson.Document;
+import org.bson.json.JsonParseException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.stereotype.Component;
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Pushes the events inserted into a collection to its subscribers as server-sent events,
+ * instead of each consumer polling the collection.
+ *
+ * - One change stream per collection with subscribers, whatever the amount of subscribers,
+ *   see EventDao.watchEvents
+ * - The latest buffer-size events of a collection are kept in a ring buffer, each subscriber
+ *   is sent the events from its own position by a small pool of dispatcher threads, so that
+ *   a slow subscriber does not hold back the others: the backlog of a subscriber is bounded by
+ *   the ring buffer, a dispatcher sends at most a few events per turn to the same subscriber,
+ *   and a subscriber whose send blocks longer than send-timeout-ms is disconnected
+ * - The id of each event sent is its change stream resume token, a client reconnecting with
+ *   Last-Event-ID continues right after it: from the ring buffer if the event is still there,
+ *   otherwise from a change stream of its own resumed after it, until it catches up with the
+ *   ring buffer, on one of the catch-up-threads
+ * - A subscriber falling more than buffer-size events behind is disconnected, to reconnect
+ *   and catch up the same way
+ *
+ * The change stream of a collection is closed once its last subscriber is gone.
+ */
+@Component
+public class EventSubscriptionService {
+    private static final Logger LOGGER = LoggerFactory.getLogger(EventSubscriptionService.class);
+
+    // events sent to a subscriber before the dispatcher moves on to the next one
+    private static final int SENDS_PER_TURN = 64;
+
+    @Autowired
+    MongoTemplate mongoTemplate;
+
+    @Autowired
+    @Qualifier("EventDao")
+    EventDao eventDao;
+
+    @Autowired(required = false)
+    MeterRegistry meterRegistry;
+
+    @Value("${event.subscription.enabled:false}")
+    boolean enabled;
+
+    @Value("${event.subscription.buffer-size:1024}")
+    int bufferSize;
+
+    @Value("${event.subscription.max-subscribers:1000}")
+    int maxSubscribers;
+
+    @Value("${event.subscription.dispatchers:4}")
+    int dispatcherThreads;
+
+    // the client reconnects once the subscription times out
+    @Value("${event.subscription.timeout-ms:1800000}")
+    long timeoutMillis;
+
+    // a send blocked longer, e.g. by a client no longer reading, disconnects the subscriber
+    @Value("${event.subscription.send-timeout-ms:10000}")
+    long sendTimeoutMillis;
+
+    @Value("${event.subscription.catch-up-threads:4}")
+    int catchUpThreads;
+
+    private final Map<String, Topic> topics = new ConcurrentHashMap<>();
+    private final AtomicInteger subscriberCount = new AtomicInteger();
+    private ExecutorService dispatchers;
+    private ExecutorService catchUps;
+    private ScheduledExecutorService sendTimeouts;
+
+    @PostConstruct
+    public void initialize() {
+        if (!enabled) {
+            return;
+        }
+        AtomicInteger threadCount = new AtomicInteger();
+        dispatchers = Executors.newFixedThreadPool(dispatcherThreads, runnable -> {
+            Thread thread = new Thread(runnable, "event-subscription-" + threadCount.getAndIncrement());
+            thread.setDaemon(true);
+            return thread;
+        });
+        // queued beyond the threads, up to one catch-up per subscriber
+        AtomicInteger catchUpCount = new AtomicInteger();
+        catchUps = new ThreadPoolExecutor(catchUpThreads, catchUpThreads, 0L, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(maxSubscribers), runnable -> {
+            Thread thread = new Thread(runnable, "event-subscription-catch-up-" + catchUpCount.getAndIncrement());
+            thread.setDaemon(true);
+            return thread;
+        });
+        sendTimeouts = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "event-subscription-send-timeout");
+            thread.setDaemon(true);
+            return thread;
+        });
+        long checkMillis = Math.max(10, sendTimeoutMillis / 4);
+        sendTimeouts.scheduleWithFixedDelay(this::disconnectStalled, checkMillis, checkMillis, TimeUnit.MILLISECONDS);
+
+        if (meterRegistry != null) {
+            Gauge.builder("event.subscription.subscribers", subscriberCount, AtomicInteger::get)
+                    .register(meterRegistry);
+            Gauge.builder("event.subscription.streams", topics, Map::size)
+                    .description("change streams open, one per collection with subscribers")
+                    .register(meterRegistry);
+        }
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        for (Topic topic : topics.values()) {
+            topic.close();
+        }
+        if (dispatchers != null) {
+            dispatchers.shutdownNow();
+            catchUps.shutdownNow();
+            sendTimeouts.shutdownNow();
+        }
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * @param lastEventId id of the last event received, to continue right after it,
+     *                    null to receive the events inserted from now on
+     * @throws IllegalArgumentException if the last event id is not a resume token
+     * @throws RejectedExecutionException if there are max-subscribers already
+     */
+    public SseEmitter subscribe(String collectionName, String lastEventId) {
+        return subscribe(collectionName, lastEventId, new SseEmitter(timeoutMillis));
+    }
+
+    SseEmitter subscribe(String collectionName, String lastEventId, SseEmitter emitter) {
+        BsonDocument resumeToken = parseResumeToken(lastEventId);
+        if (subscriberCount.incrementAndGet() > maxSubscribers) {
+            subscriberCount.decrementAndGet();
+            throw new RejectedExecutionException(String.format("%d event subscribers already", maxSubscribers));
+        }
+
+        Subscriber subscriber = new Subscriber(emitter);
+        Topic topic = topics.compute(collectionName, (name, existing) -> {
+            Topic current = existing != null ? existing : new Topic(name);
+            current.subscribers.add(subscriber);
+            return current;
+        });
+        emitter.onCompletion(() -> unsubscribe(topic, subscriber));
+        emitter.onTimeout(() -> unsubscribe(topic, subscriber));
+        emitter.onError(error -> unsubscribe(topic, subscriber));
+
+        topic.attach(subscriber, resumeToken);
+        return emitter;
+    }
+
+    boolean awaitWatching(String collectionName, long timeout, TimeUnit unit) throws InterruptedException {
+        Topic topic = topics.get(collectionName);
+        return topic != null && topic.watching.await(timeout, unit);
+    }
+
+    private void unsubscribe(Topic topic, Subscriber subscriber) {
+        if (subscriber.closed.getAndSet(true)) {
+            return;
+        }
+        subscriberCount.decrementAndGet();
+        topics.computeIfPresent(topic.collectionName, (name, current) -> {
+            current.subscribers.remove(subscriber);
+            if (current == topic && current.subscribers.isEmpty()) {
+                current.close();
+                return null;
+            }
+            return current;
+        });
+    }
+
+    private static BsonDocument parseResumeToken(String lastEventId) {
+        if (lastEventId == null || lastEventId.isEmpty()) {
+            return null;
+        }
+        try {
+            return BsonDocument.parse(lastEventId);
+        } catch (JsonParseException e) {
+            throw new BadRequestException("malformed last event id: " + lastEventId);
+        }
+    }
+
+    /**
+     * Disconnect the subscribers blocked in a send for longer than the send timeout, the
+     * dispatcher blocked is released once the connection is closed
+     */
+    private void disconnectStalled() {
+        long now = System.nanoTime();
+        for (Topic topic : topics.values()) {
+            for (Subscriber subscriber : topic.subscribers) {
+                long since = subscriber.sendingSince;
+                if (since != 0 && now - since > TimeUnit.MILLISECONDS.toNanos(sendTimeoutMillis)) {
+                    LOGGER.debug("event subscriber of {} blocked for more than {} ms", topic.collectionName, sendTimeoutMillis);
+                    unsubscribe(topic, subscriber);
+                    subscriber.emitter.completeWithError(new TimeoutException("event subscriber send timed out"));
+                }
+            }
+        }
+    }
+
+    private static final class Change {
+        private final String id;
+        private final BsonDocument resumeToken;
+        private final Event event;
+
+        private Change(BsonDocument resumeToken, Event event) {
+            this.id = resumeToken.toJson();
+            this.resumeToken = resumeToken;
+            this.event = event;
+        }
+    }
+
+    private static final class Subscriber {
+        private final SseEmitter emitter;
+        private final AtomicBoolean closed = new AtomicBoolean();
+        // a dispatcher is sending to the subscriber
+        private final AtomicBoolean dispatching = new AtomicBoolean();
+        // sent from a change stream of its own until it reaches the ring buffer
+        private volatile boolean catchingUp;
+        // sequence of the next change to send, only updated by the thread sending to it
+        private long next;
+        // System.nanoTime() the send in progress started at, 0 if none
+        private volatile long sendingSince;
+
+        private Subscriber(SseEmitter emitter) {
+            this.emitter = emitter;
+        }
+
+        private void send(Change change) throws IOException {
+            sendingSince = System.nanoTime() | 1;
+            try {
+                emitter.send(SseEmitter.event().id(change.id).name("event").data(change.event));
+            } finally {
+                sendingSince = 0;
+            }
+        }
+    }
+
+    private final class Topic {
+        private final String collectionName;
+        private final Set<Subscriber> subscribers = ConcurrentHashMap.newKeySet();
+        private final CountDownLatch watching = new CountDownLatch(1);
+
+        // the latest changes, the change of sequence s at s % length, guarded by this
+        private final Change[] ring = new Change[bufferSize];
+        private final Map<BsonDocument, Long> sequences = new HashMap<>();
+        private long head;
+
+        // the events in between are lost to the subscribers once the history is lost, goes on from now
+        private final ChangeStreamWatcher<ChangeStreamDocument<Document>> watcher;
+
+        private Topic(String collectionName) {
+            this.collectionName = collectionName;
+            watcher = new ChangeStreamWatcher<ChangeStreamDocument<Document>>("event-subscription-" + collectionName) {
+                @Override
+                protected MongoCursor<ChangeStreamDocument<Document>> open(BsonDocument resumeToken) {
+                    return (resumeToken == null ? stream() : stream().resumeAfter(resumeToken)).iterator();
+                }
+
+                @Override
+                protected void opened() {
+                    watching.countDown();
+                }
+
+                @Override
+                protected BsonDocument apply(ChangeStreamDocument<Document> change) {
+                    publish(toChange(change));
+                    return change.getResumeToken();
+                }
+            };
+            watcher.start(null);
+        }
+
+        private void close() {
+            watcher.close();
+            for (Subscriber subscriber : subscribers) {
+                subscriber.emitter.complete();
+            }
+        }
+
+        private void attach(Subscriber subscriber, BsonDocument resumeToken) {
+            synchronized (this) {
+                Long sequence = resumeToken == null ? null : sequences.get(resumeToken);
+                if (resumeToken == null || sequence != null) {
+                    subscriber.next = resumeToken == null ? head : sequence + 1;
+                } else {
+                    subscriber.catchingUp = true;
+                }
+            }
+
+            if (subscriber.catchingUp) {
+                try {
+                    catchUps.execute(() -> catchUp(subscriber, resumeToken));
+                } catch (RejectedExecutionException e) {
+                    unsubscribe(this, subscriber);
+                    subscriber.emitter.complete();
+                    throw e;
+                }
+            } else {
+                dispatch(subscriber);
+            }
+        }
+
+        private void publish(Change change) {
+            synchronized (this) {
+                int index = (int) (head % ring.length);
+                if (ring[index] != null) {
+                    sequences.remove(ring[index].resumeToken);
+                }
+                ring[index] = change;
+                sequences.put(change.resumeToken, head);
+                head++;
+            }
+            for (Subscriber subscriber : subscribers) {
+                dispatch(subscriber);
+            }
+        }
+
+        private void dispatch(Subscriber subscriber) {
+            if (subscriber.catchingUp || subscriber.closed.get() || !subscriber.dispatching.compareAndSet(false, true)) {
+                return;
+            }
+            try {
+                dispatchers.execute(() -> send(subscriber));
+            } catch (RejectedExecutionException e) {
+                subscriber.dispatching.set(false);
+            }
+        }
+
+        private void send(Subscriber subscriber) {
+            boolean overrun = false;
+            try {
+                for (int sent = 0; sent < SENDS_PER_TURN && !subscriber.closed.get(); sent++) {
+                    Change change;
+                    synchronized (this) {
+                        if (subscriber.next >= head) {
+                            break;
+                        }
+                        if (subscriber.next < head - ring.length) {
+                            overrun = true;
+                            break;
+                        }
+                        change = ring[(int) (subscriber.next % ring.length)];
+                    }
+                    // blocks while the client is slow, up to the send timeout
+                    subscriber.send(change);
+                    subscriber.next++;
+                }
+            } catch (IOException | IllegalStateException e) {
+                // disconnected
+                subscriber.emitter.completeWithError(e);
+                return;
+            } finally {
+                subscriber.dispatching.set(false);
+            }
+
+            if (overrun) {
+                // the client reconnects with its last event id and catches up
+                LOGGER.debug("event subscriber of {} fell more than {} events behind", collectionName, ring.length);
+                subscriber.emitter.complete();
+                return;
+            }
+
+            // the turn is over, or a change was published after the loop ended but before the
+            // flag was cleared, queued behind the other subscribers
+            boolean behind;
+            synchronized (this) {
+                behind = subscriber.next < head;
+            }
+            if (behind) {
+                dispatch(subscriber);
+            }
+        }
+
+        private void catchUp(Subscriber subscriber, BsonDocument resumeToken) {
+            BsonDocument lastToken = resumeToken;
+
+            try (MongoCursor<ChangeStreamDocument<Document>> changes = stream().resumeAfter(resumeToken).iterator()) {
+                while (watcher.isRunning() && !subscriber.closed.get()) {
+                    ChangeStreamDocument<Document> change = changes.tryNext();
+                    if (change != null) {
+                        subscriber.send(toChange(change));
+                        lastToken = change.getResumeToken();
+                    }
+
+                    // caught up once the last change sent is in the ring buffer, checked
+                    // when idle as well in case the shared stream was behind
+                    synchronized (this) {
+                        Long sequence = sequences.get(lastToken);
+                        if (sequence != null) {
+                            subscriber.next = sequence + 1;
+                            subscriber.catchingUp = false;
+                        }
+                    }
+                    if (!subscriber.catchingUp) {
+                        dispatch(subscriber);
+                        return;
+                    }
+                }
+            } catch (MongoException | IOException | IllegalStateException e) {
+                // e.g. the event is no longer in the oplog
+                LOGGER.debug("event subscriber of {} can not catch up: {}", collectionName, e.getMessage());
+                subscriber.emitter.completeWithError(e);
+            }
+        }
+
+        private ChangeStreamIterable<Document> stream() {
+            return eventDao.watchEvents(collectionName);
+        }
+
+        private Change toChange(ChangeStreamDocument<Document> change) {
+            return new Change(change.getResumeToken(), mongoTemplate.getConverter().read(Event.class, change.getFullDocument()));
+        }
+    }
+
+}
@@ -0,0 +1,149 @@
+package com.example.jeffrey.demospringdatamongo.service;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+
+/**
+ * Approximate frequency of keys in constant memory: a count-min sketch of depth x width
+ * counters, plus a min-heap of the K keys with the highest estimates.
+ *
+ * - An estimate never undercounts, it overcounts by at most 2N / width with probability
+ *   1 - (1/2)^depth, N being the total of the increments
+ * - Conservative update, only the counters equal to the current minimum are incremented
+ * - A key enters the top-K once its estimate exceeds the smallest estimate of the heap
+ *
+ * Thread-safe, meant for rare events (e.g. write conflicts) rather than every request.
+ */
+class HotKeySketch {
+
+    private final int depth;
+    private final int width;
+    private final int capacity;
+    private final long[][] counters;
+    private long total;
+
+    // top-K, ordered by estimate, the smallest first
+    private final PriorityQueue<HotKey> heap = new PriorityQueue<>(Comparator.comparingLong(hotKey -> hotKey.estimate));
+    private final Map<String, HotKey> hotKeys = new HashMap<>();
+
+    HotKeySketch(int depth, int width, int capacity) {
+        if (depth < 1 || width < 1 || capacity < 1) {
+            throw new IllegalArgumentException(String.format("depth, width and capacity must be positive: %d, %d, %d", depth, width, capacity));
+        }
+        this.depth = depth;
+        this.width = width;
+        this.capacity = capacity;
+        this.counters = new long[depth][width];
+    }
+
+    /**
+     * @return the new estimate of the key
+     */
+    synchronized long add(String key) {
+        long hash1 = hash(key);
+        long hash2 = (hash1 >>> 32) | 1;
+
+        int[] columns = new int[depth];
+        long estimate = Long.MAX_VALUE;
+        for (int row = 0; row < depth; row++) {
+            columns[row] = (int) Long.remainderUnsigned(hash1 + row * hash2, width);
+            estimate = Math.min(estimate, counters[row][columns[row]]);
+        }
+        for (int row = 0; row < depth; row++) {
+            if (counters[row][columns[row]] == estimate) {
+                counters[row][columns[row]]++;
+            }
+        }
+        estimate++;
+        total++;
+
+        HotKey hotKey = hotKeys.get(key);
+        if (hotKey != null) {
+            heap.remove(hotKey);
+            hotKey.estimate = estimate;
+            heap.add(hotKey);
+        } else if (hotKeys.size() < capacity || estimate > heap.peek().estimate) {
+            if (hotKeys.size() == capacity) {
+                hotKeys.remove(heap.poll().key);
+            }
+            hotKey = new HotKey(key, estimate);
+            hotKeys.put(key, hotKey);
+            heap.add(hotKey);
+        }
+        return estimate;
+    }
+
+    synchronized long estimate(String key) {
+        long hash1 = hash(key);
+        long hash2 = (hash1 >>> 32) | 1;
+
+        long estimate = Long.MAX_VALUE;
+        for (int row = 0; row < depth; row++) {
+            estimate = Math.min(estimate, counters[row][(int) Long.remainderUnsigned(hash1 + row * hash2, width)]);
+        }
+        return estimate;
+    }
+
+    /**
+     * @return the top-K keys and their estimates, the highest first
+     */
+    synchronized Map<String, Long> top() {
+        List<HotKey> sorted = new ArrayList<>(heap);
+        sorted.sort(Comparator.comparingLong((HotKey hotKey) -> hotKey.estimate).reversed());
+
+        Map<String, Long> top = new LinkedHashMap<>();
+        for (HotKey hotKey : sorted) {
+            top.put(hotKey.key, hotKey.estimate);
+        }
+        return top;
+    }
+
+    synchronized long total() {
+        return total;
+    }
+
+    synchronized void reset() {
+        for (long[] row : counters) {
+            Arrays.fill(row, 0L);
+        }
+        total = 0;
+        heap.clear();
+        hotKeys.clear();
+    }
+
+    long sizeInBytes() {
+        return (long) depth * width * Long.BYTES;
+    }
+
+    private static long hash(String key) {
+        // FNV-1a over the UTF-8 bytes, then the finalizer of MurmurHash3 to spread the bits
+        long hash = 0xcbf29ce484222325L;
+        for (byte b : key.getBytes(StandardCharsets.UTF_8)) {
+            hash = (hash ^ (b & 0xff)) * 0x100000001b3L;
+        }
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= hash >>> 33;
+        hash *= 0xc4ceb9fe1a85ec53L;
+        hash ^= hash >>> 33;
+        return hash;
+    }
+
+    private static final class HotKey {
+        private final String key;
+        private long estimate;
+
+        private HotKey(String key, long estimate) {
+            this.key = key;
+            this.estimate = estimate;
+        }
+    }
+
+}
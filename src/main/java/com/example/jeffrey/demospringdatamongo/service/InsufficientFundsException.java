@@ -0,0 +1,25 @@
+package com.example.jeffrey.demospringdatamongo.service;
+
+/**
+ * The debit account does not hold enough funds for the transfer, the transfer is aborted
+ */
+public class InsufficientFundsException extends RuntimeException {
+
+    private final String accountNumber;
+    private final long amount;
+
+    public InsufficientFundsException(String accountNumber, long amount) {
+        super(String.format("insufficient funds, account: %s, amount: %d", accountNumber, amount));
+        this.accountNumber = accountNumber;
+        this.amount = amount;
+    }
+
+    public String getAccountNumber() {
+        return accountNumber;
+    }
+
+    public long getAmount() {
+        return amount;
+    }
+
+}
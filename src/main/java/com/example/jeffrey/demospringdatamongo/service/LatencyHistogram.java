@@ -0,0 +1,74 @@
+package com.example.jeffrey.demospringdatamongo.service;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Latency histogram of constant memory, one bucket per power of two of microseconds.
+ *
+ * Percentiles are reported as the upper bound of their bucket, within a factor of 2.
+ * Lock-free, recorded from any thread.
+ */
+class LatencyHistogram {
+
+    private static final int BUCKETS = 64;
+
+    // bucket i counts the latencies within [2^(i-1), 2^i) microseconds, bucket 0 below 1 us
+    private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+    private final LongAdder count = new LongAdder();
+    private final LongAdder totalMicros = new LongAdder();
+    private final LongAccumulator maxMicros = new LongAccumulator(Math::max, 0);
+
+    void record(long nanos) {
+        long micros = Math.max(0, nanos / 1000);
+        buckets.incrementAndGet(BUCKETS - Long.numberOfLeadingZeros(micros));
+        count.increment();
+        totalMicros.add(micros);
+        maxMicros.accumulate(micros);
+    }
+
+    long count() {
+        return count.sum();
+    }
+
+    long totalMicros() {
+        return totalMicros.sum();
+    }
+
+    double meanMicros() {
+        long n = count.sum();
+        return n == 0 ? 0 : (double) totalMicros.sum() / n;
+    }
+
+    long maxMicros() {
+        return maxMicros.get();
+    }
+
+    /**
+     * @param quantile within [0, 1]
+     * @return upper bound in microseconds of the bucket holding the quantile, 0 if empty
+     */
+    long percentileMicros(double quantile) {
+        long[] snapshot = new long[BUCKETS];
+        long n = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            snapshot[i] = buckets.get(i);
+            n += snapshot[i];
+        }
+        if (n == 0) {
+            return 0;
+        }
+
+        long rank = (long) Math.ceil(quantile * n);
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += snapshot[i];
+            if (seen >= rank && snapshot[i] > 0) {
+                return Math.min(i == 0 ? 1 : 1L << i, maxMicros.get());
+            }
+        }
+        return maxMicros.get();
+    }
+
+}
@@ -0,0 +1,157 @@
+package com.example.jeffrey.demospringdatamongo.service;
+
+import com.example.jeffrey.demospringdatamongo.model.MoneyAuditReport;
+import com.example.jeffrey.demospringdatamongo.model.UnbalancedTransaction;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.function.Consumer;
+
+/**
+ * Incremental bookkeeping of the balance documents, fed with the changes in commit order.
+ *
+ * - The last known balance of every document turns each new balance into a delta
+ * - Consecutive changes of the same transaction are summed up, the net delta is checked
+ *   once the next change belongs to another transaction, or on close()
+ * - Changes outside of any transaction are tracked but can not be audited
+ *
+ * Not thread-safe.
+ */
+class MoneyAuditLedger {
+
+    private final int maxSamples;
+    private final Consumer<UnbalancedTransaction> alert;
+
+    private final Map<String, Long> balances = new HashMap<>();
+    private long total;
+
+    private long transactions;
+    private long unbalancedTransactions;
+    private final List<UnbalancedTransaction> unbalancedSamples = new ArrayList<>();
+    private long nonTransactionalChanges;
+    private long nonTransactionalDelta;
+    private long unverifiableTransactions;
+
+    // the transaction whose changes are being summed up, null if none
+    private String openTransaction;
+    private long openClusterTime;
+    private long openDelta;
+    private int openChanges;
+    private boolean openUnverifiable;
+
+    MoneyAuditLedger(int maxSamples, Consumer<UnbalancedTransaction> alert) {
+        this.maxSamples = maxSamples;
+        this.alert = alert;
+    }
+
+    /**
+     * Start over from a consistent snapshot, document key to balance
+     */
+    void seed(Map<String, Long> snapshot) {
+        openTransaction = null;
+        balances.clear();
+        balances.putAll(snapshot);
+        total = sum(snapshot);
+    }
+
+    /**
+     * @param transaction null if the change is outside of any transaction
+     * @param document key of the changed document
+     * @param balance the new balance, null if the document was deleted
+     * @param inserted true if the document is new, its previous balance is then 0
+     */
+    void apply(String transaction, long clusterTime, String document, Long balance, boolean inserted) {
+        if (!Objects.equals(transaction, openTransaction)) {
+            close();
+        }
+
+        Long previous = balance == null ? balances.remove(document) : balances.put(document, balance);
+        boolean known = previous != null || inserted;
+        long delta = (balance == null ? 0 : balance) - (previous == null ? 0 : previous);
+        total += delta;
+
+        if (transaction == null) {
+            nonTransactionalChanges++;
+            nonTransactionalDelta += delta;
+            return;
+        }
+
+        openTransaction = transaction;
+        openClusterTime = clusterTime;
+        openDelta += delta;
+        openChanges++;
+        openUnverifiable |= !known;
+    }
+
+    /**
+     * Check the transaction being summed up, if any
+     */
+    void close() {
+        if (openTransaction == null) {
+            return;
+        }
+
+        transactions++;
+        if (openUnverifiable) {
+            unverifiableTransactions++;
+        } else if (openDelta != 0) {
+            UnbalancedTransaction unbalanced = new UnbalancedTransaction(openTransaction, openClusterTime, openDelta, openChanges);
+            unbalancedTransactions++;
+            if (unbalancedSamples.size() < maxSamples) {
+                unbalancedSamples.add(unbalanced);
+            }
+            alert.accept(unbalanced);
+        }
+
+        openTransaction = null;
+        openDelta = 0;
+        openChanges = 0;
+        openUnverifiable = false;
+    }
+
+    /**
+     * Compare with a snapshot taken at the position of the last change applied,
+     * and adopt the snapshot if they differ.
+     *
+     * @return snapshot total minus running total, 0 if consistent
+     */
+    long reconcile(Map<String, Long> snapshot) {
+        close();
+        long drift = sum(snapshot) - total;
+        if (drift != 0 || !balances.equals(snapshot)) {
+            seed(snapshot);
+        }
+        return drift;
+    }
+
+    long total() {
+        return total;
+    }
+
+    long unbalancedTransactions() {
+        return unbalancedTransactions;
+    }
+
+    void report(MoneyAuditReport report) {
+        report.total = total;
+        report.documents = balances.size();
+        report.transactions = transactions;
+        report.unbalancedTransactions = unbalancedTransactions;
+        report.unbalancedSamples.addAll(unbalancedSamples);
+        report.nonTransactionalChanges = nonTransactionalChanges;
+        report.nonTransactionalDelta = nonTransactionalDelta;
+        report.unverifiableTransactions = unverifiableTransactions;
+    }
+
+    private static long sum(Map<String, Long> balances) {
+        long sum = 0;
+        for (long balance : balances.values()) {
+            sum += balance;
+        }
+        return sum;
+    }
+
+}
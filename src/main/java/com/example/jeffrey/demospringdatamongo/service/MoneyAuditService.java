@@ -0,0 +1,313 @@
+package com.example.jeffrey.demospringdatamongo.service;
+
+import com.example.jeffrey.demospringdatamongo.model.MoneyAuditReport;
+import com.example.jeffrey.demospringdatamongo.model.UnbalancedTransaction;
+import com.mongodb.ClientSessionOptions;
+import com.mongodb.MongoException;
+import com.mongodb.ReadConcern;
+import com.mongodb.TransactionOptions;
+import com.mongodb.client.ClientSession;
+import com.mongodb.client.MongoCursor;
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.bson.BsonDocument;
+import org.bson.BsonTimestamp;
+import org.bson.BsonValue;
+import org.bson.conversions.Bson;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.stereotype.Service;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import static com.mongodb.client.model.Aggregates.match;
+import static com.mongodb.client.model.Filters.in;
+import static com.mongodb.client.model.Projections.include;
+
+/**
+ * Verifies that transfers conserve money without scanning the accounts, by tailing a change
+ * stream on the AccountCollection and the AccountStripeCollection.
+ *
+ * - The balance of every account and stripe is known since the last snapshot, each change
+ *   event (post-image or updated fields) is turned into a delta
+ * - The deltas of a committed transaction are summed up, a non-zero sum is logged as an
+ *   error and counted (account.audit.unbalanced)
+ * - Every reconcile-interval-ms a snapshot is read within a snapshot transaction and compared
+ *   with the running total at the same cluster time, the snapshot is adopted on drift
+ *
+ * Changes outside of any transaction, e.g. accounts opened or the non-transactional transfer,
+ * move the running total but can not be audited. Memory is proportional to the amount of
+ * accounts and stripes. Disabled by default.
+ */
+@Service
+public class MoneyAuditService {
+    private static final Logger LOGGER = LoggerFactory.getLogger(MoneyAuditService.class);
+
+    private static final String ACCOUNTS = "AccountCollection";
+    private static final String STRIPES = "AccountStripeCollection";
+
+    @Autowired
+    MongoTemplate mongoTemplate;
+
+    @Autowired(required = false)
+    MeterRegistry meterRegistry;
+
+    @Value("${account.audit.enabled:false}")
+    boolean enabled;
+
+    @Value("${account.audit.reconcile-interval-ms:600000}")
+    long reconcileIntervalMillis;
+
+    @Value("${account.audit.max-samples:100}")
+    int maxSamples;
+
+    private MoneyAuditLedger ledger;
+    private long reconciliations;
+    private Date lastReconciledOn;
+    private long lastDrift;
+    private volatile long lagMillis;
+    private volatile boolean reconcileRequested;
+
+    private ChangeStreamWatcher<BsonDocument> auditor;
+
+    @PostConstruct
+    public void initialize() {
+        if (!enabled) {
+            return;
+        }
+        ledger = new MoneyAuditLedger(maxSamples, unbalanced -> LOGGER.error("money not conserved: {}", unbalanced));
+
+        if (meterRegistry != null) {
+            FunctionCounter.builder("account.audit.unbalanced", this, MoneyAuditService::unbalancedTransactions)
+                    .description("committed transactions whose balance changes do not sum up to zero")
+                    .register(meterRegistry);
+            Gauge.builder("account.audit.total", this, MoneyAuditService::total).register(meterRegistry);
+            Gauge.builder("account.audit.lag", this, service -> service.lagMillis)
+                    .baseUnit("milliseconds")
+                    .register(meterRegistry);
+        }
+
+        // no resume token, starts over from a new snapshot
+        auditor = new Auditor();
+        auditor.start(null);
+        LOGGER.info("money audit enabled, reconcile interval: {} ms", reconcileIntervalMillis);
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        if (auditor != null) {
+            auditor.close();
+        }
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    public synchronized MoneyAuditReport report() {
+        MoneyAuditReport report = new MoneyAuditReport();
+        if (ledger == null) {
+            return report;
+        }
+        ledger.report(report);
+        report.reconciliations = reconciliations;
+        report.lastReconciledOn = lastReconciledOn;
+        report.lastDrift = lastDrift;
+        report.lagMillis = lagMillis;
+        return report;
+    }
+
+    private synchronized double unbalancedTransactions() {
+        return ledger.unbalancedTransactions();
+    }
+
+    private synchronized double total() {
+        return ledger.total();
+    }
+
+    /**
+     * Reconcile with a snapshot as soon as possible rather than at the next interval
+     */
+    public void requestReconcile() {
+        reconcileRequested = true;
+    }
+
+    private void apply(BsonDocument event, BsonTimestamp clusterTime) {
+        String operationType = event.getString("operationType").getValue();
+        if (!Arrays.asList("insert", "replace", "update", "delete").contains(operationType)) {
+            // e.g. drop or invalidate, start over from a new snapshot
+            throw new IllegalStateException("unexpected change: " + operationType);
+        }
+
+        String collection = event.getDocument("ns").getString("coll").getValue();
+        String field = ACCOUNTS.equals(collection) ? "accountBalance" : "balance";
+        String document = collection + ":" + event.getDocument("documentKey").get("_id");
+
+        Long balance;
+        if ("delete".equals(operationType)) {
+            balance = null;
+        } else if ("update".equals(operationType)) {
+            BsonDocument updatedFields = event.getDocument("updateDescription").getDocument("updatedFields");
+            if (!updatedFields.containsKey(field)) {
+                return;
+            }
+            balance = longValue(updatedFields.get(field));
+        } else {
+            balance = longValue(event.getDocument("fullDocument").get(field));
+        }
+
+        // lsid and txnNumber are only present for changes within a multi-document transaction
+        String transaction = event.containsKey("txnNumber")
+                ? event.getDocument("lsid").getBinary("id").asUuid() + ":" + event.getInt64("txnNumber").getValue()
+                : null;
+
+        synchronized (this) {
+            ledger.apply(transaction, clusterTime.getTime(), document, balance, "insert".equals(operationType));
+        }
+    }
+
+    private void reconcile(Snapshot snapshot) {
+        long drift;
+        synchronized (this) {
+            drift = ledger.reconcile(snapshot.balances);
+            reconciliations++;
+            lastReconciledOn = new Date();
+            lastDrift = drift;
+        }
+        if (drift != 0) {
+            LOGGER.error("money audit drift: {}, snapshot adopted", drift);
+        } else {
+            LOGGER.debug("money audit reconciled, total: {}", ledger.total());
+        }
+    }
+
+    /**
+     * Read every balance within a snapshot transaction, the operation time of the session is
+     * the cluster time of the snapshot.
+     */
+    private Snapshot snapshot() {
+        // client session should be short-lived and released once no longer needed
+        try (ClientSession session = mongoTemplate.getMongoDbFactory().getSession(ClientSessionOptions.builder().build())) {
+            return session.withTransaction(() -> {
+                Map<String, Long> balances = new HashMap<>();
+                read(session, ACCOUNTS, "accountBalance", balances);
+                read(session, STRIPES, "balance", balances);
+                return new Snapshot(balances, session.getOperationTime());
+
+            }, TransactionOptions.builder().readConcern(ReadConcern.SNAPSHOT).build());
+        }
+    }
+
+    private void read(ClientSession session, String collection, String field, Map<String, Long> balances) {
+        for (BsonDocument document : mongoTemplate.getCollection(collection)
+                .withDocumentClass(BsonDocument.class)
+                .find(session)
+                .projection(include(field))) {
+            balances.put(collection + ":" + document.get("_id"), longValue(document.get(field)));
+        }
+    }
+
+    private static long longValue(BsonValue value) {
+        return value == null || value.isNull() ? 0L : value.asNumber().longValue();
+    }
+
+    private final class Auditor extends ChangeStreamWatcher<BsonDocument> {
+        private Snapshot seed;
+        // taken while tailing, reconciled once the stream reaches its cluster time
+        private Snapshot pending;
+        private long lastReconcileNanos;
+
+        private Auditor() {
+            super("money-auditor");
+        }
+
+        @Override
+        protected MongoCursor<BsonDocument> open(BsonDocument resumeToken) {
+            if (resumeToken == null) {
+                seed = snapshot();
+                synchronized (MoneyAuditService.this) {
+                    ledger.seed(seed.balances);
+                }
+                LOGGER.info("money audit seeded, {} documents, total: {}", seed.balances.size(), ledger.total());
+            }
+            pending = null;
+            lastReconcileNanos = System.nanoTime();
+
+            List<Bson> pipeline = Collections.singletonList(match(in("ns.coll", ACCOUNTS, STRIPES)));
+            return (resumeToken == null
+                    ? mongoTemplate.getDb().watch(pipeline).startAtOperationTime(seed.operationTime)
+                    : mongoTemplate.getDb().watch(pipeline).resumeAfter(resumeToken))
+                    .withDocumentClass(BsonDocument.class)
+                    .iterator();
+        }
+
+        @Override
+        protected BsonDocument apply(BsonDocument event) {
+            BsonTimestamp clusterTime = event.getTimestamp("clusterTime");
+            if (clusterTime.compareTo(seed.operationTime) <= 0) {
+                // already part of the seed, startAtOperationTime is inclusive
+                return null;
+            }
+            if (pending != null && clusterTime.compareTo(pending.operationTime) > 0) {
+                // the running total is now at the cluster time of the snapshot
+                reconcile(pending);
+                pending = null;
+                lastReconcileNanos = System.nanoTime();
+            }
+
+            MoneyAuditService.this.apply(event, clusterTime);
+            lagMillis = Math.max(0, System.currentTimeMillis() - clusterTime.getTime() * 1000L);
+            return event.getDocument("_id");
+        }
+
+        @Override
+        protected void polled(boolean idle) {
+            if (idle) {
+                synchronized (MoneyAuditService.this) {
+                    ledger.close();
+                }
+                // every change up to the snapshot was returned by now
+                if (pending != null) {
+                    reconcile(pending);
+                    pending = null;
+                    lastReconcileNanos = System.nanoTime();
+                }
+            }
+            if (pending == null && (reconcileRequested
+                    || System.nanoTime() - lastReconcileNanos > TimeUnit.MILLISECONDS.toNanos(reconcileIntervalMillis))) {
+                reconcileRequested = false;
+                pending = snapshot();
+            }
+        }
+
+        @Override
+        protected boolean broken(RuntimeException e) {
+            LOGGER.warn("money audit change stream broken: {}", e.getMessage());
+            // changes were missed, the running total is meaningless, start from a new snapshot
+            return !(e instanceof MongoException) || isHistoryLost(e);
+        }
+    }
+
+    private static final class Snapshot {
+        private final Map<String, Long> balances;
+        private final BsonTimestamp operationTime;
+
+        private Snapshot(Map<String, Long> balances, BsonTimestamp operationTime) {
+            this.balances = balances;
+            this.operationTime = operationTime;
+        }
+    }
+
+}
@@ -0,0 +1,26 @@
+package com.example.jeffrey.demospringdatamongo.service;
+
+/**
+ * Strategy used by {@link SequenceService} to hand out sequence numbers,
+ * configured with the property sequence.allocation.mode
+ */
+public enum SequenceAllocationMode {
+
+    /**
+     * One findAndModify round trip per sequence number (default)
+     */
+    SINGLE,
+
+    /**
+     * Lease a block of numbers with one $inc and hand them out locally,
+     * numbers are unique across nodes but no longer dense nor ordered
+     */
+    BLOCK,
+
+    /**
+     * Queue callers arriving while a round trip is in flight and serve them all
+     * with the next $inc, numbers stay dense and gap-free
+     */
+    COMBINING
+
+}
@@ -0,0 +1,139 @@
+package com.example.jeffrey.demospringdatamongo.service;
+
+import com.example.jeffrey.demospringdatamongo.model.SequenceAuditReport;
+import com.example.jeffrey.demospringdatamongo.model.SequenceRange;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Records the sequence numbers issued by this node in a compressed bitmap, so that
+ * duplicates and gaps can be detected over hundreds of millions of numbers with memory
+ * proportional to the holes rather than to the amount of numbers issued.
+ *
+ * Only numbers issued by this node are known, gaps are therefore expected when several
+ * nodes share a sequence, or with the BLOCK allocation mode.
+ */
+@Service
+public class SequenceAuditService {
+
+    // key used for the anonymous sequence, ConcurrentHashMap does not accept null key
+    private static final String ANONYMOUS_SEQUENCE = "";
+
+    @Value("${sequence.audit.enabled:false}")
+    boolean enabled;
+
+    @Value("${sequence.audit.max-samples:100}")
+    int maxSamples;
+
+    private final ConcurrentMap<String, SequenceAudit> audits = new ConcurrentHashMap<>();
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    public void record(String sequenceName, int sequenceNumber) {
+        if (enabled) {
+            audit(sequenceName).record(sequenceNumber);
+        }
+    }
+
+    public void record(String sequenceName, SequenceRange range) {
+        if (enabled) {
+            audit(sequenceName).record(range);
+        }
+    }
+
+    public SequenceAuditReport report(String sequenceName) {
+        SequenceAudit audit = audit(sequenceName);
+
+        SequenceAuditReport report = new SequenceAuditReport();
+        report.sequenceName = sequenceName;
+
+        SequenceBitmap bitmap;
+        synchronized (audit) {
+            report.duplicates = audit.duplicates;
+            report.duplicateSamples.addAll(audit.duplicateSamples);
+            // gaps are computed on a copy so that issuing numbers is not blocked meanwhile
+            bitmap = audit.bitmap.copy();
+        }
+
+        report.issued = bitmap.cardinality();
+        report.bitmapBytes = bitmap.sizeInBytes();
+        if (bitmap.isEmpty()) {
+            return report;
+        }
+
+        report.min = bitmap.min();
+        report.max = bitmap.max();
+        bitmap.forEachGap((start, end) -> {
+            report.gaps++;
+            report.missing += (long) end - start + 1;
+            if (report.gapSamples.size() < maxSamples) {
+                report.gapSamples.add(new SequenceRange(start, end));
+            }
+        });
+        return report;
+    }
+
+    /**
+     * Stream every gap in ascending order, without materializing them.
+     */
+    public void forEachGap(String sequenceName, SequenceBitmap.RangeConsumer consumer) {
+        snapshot(sequenceName).forEachGap(consumer);
+    }
+
+    /**
+     * Stream every run of issued numbers in ascending order, without materializing them.
+     */
+    public void forEachRange(String sequenceName, SequenceBitmap.RangeConsumer consumer) {
+        snapshot(sequenceName).forEachRange(consumer);
+    }
+
+    public void reset(String sequenceName) {
+        audits.remove(key(sequenceName));
+    }
+
+    private SequenceBitmap snapshot(String sequenceName) {
+        SequenceAudit audit = audit(sequenceName);
+        synchronized (audit) {
+            return audit.bitmap.copy();
+        }
+    }
+
+    private SequenceAudit audit(String sequenceName) {
+        return audits.computeIfAbsent(key(sequenceName), key -> new SequenceAudit());
+    }
+
+    private static String key(String sequenceName) {
+        return sequenceName == null ? ANONYMOUS_SEQUENCE : sequenceName;
+    }
+
+    private final class SequenceAudit {
+        private final SequenceBitmap bitmap = new SequenceBitmap();
+        private final List<Integer> duplicateSamples = new ArrayList<>();
+        private long duplicates;
+
+        private synchronized void record(int sequenceNumber) {
+            if (!bitmap.add(sequenceNumber)) {
+                duplicate(sequenceNumber);
+            }
+        }
+
+        private synchronized void record(SequenceRange range) {
+            bitmap.addRange(range.start, range.end, this::duplicate);
+        }
+
+        private void duplicate(int sequenceNumber) {
+            duplicates++;
+            if (duplicateSamples.size() < maxSamples) {
+                duplicateSamples.add(sequenceNumber);
+            }
+        }
+    }
+
+}
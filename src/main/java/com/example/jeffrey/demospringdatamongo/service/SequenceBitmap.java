@@ -0,0 +1,502 @@
+package com.example.jeffrey.demospringdatamongo.service;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.TreeMap;
+import java.util.function.IntConsumer;
+
+/**
+ * A compressed bitmap of non-negative int values, in the spirit of roaring bitmaps.
+ *
+ * Values are split into chunks of 2^16 by their high 16 bits, each chunk picks the
+ * cheapest container for its content:
+ * - array of present values, while the chunk is sparse (up to 4096 values)
+ * - plain bitmap of 8 KB, while the chunk is neither sparse nor nearly full
+ * - array of absent values, once less than 4096 values are missing
+ * - a shared singleton, once the chunk is full
+ *
+ * Issued sequence numbers are dense, so nearly every chunk ends up full and the memory
+ * is proportional to the holes rather than to the amount of numbers recorded.
+ *
+ * Not thread-safe.
+ */
+public class SequenceBitmap {
+
+    static final int CHUNK_SIZE = 1 << 16;
+    private static final int ARRAY_LIMIT = 4096;
+
+    @FunctionalInterface
+    public interface RangeConsumer {
+        void accept(int start, int end);
+    }
+
+    private final TreeMap<Integer, Container> containers = new TreeMap<>();
+    private long cardinality;
+
+    /**
+     * @return false if the value was already present
+     */
+    boolean add(int value) {
+        checkValue(value);
+        int key = value >>> 16;
+        char low = (char) value;
+
+        Container container = containers.get(key);
+        if (container == null) {
+            containers.put(key, new ArrayContainer().add(low));
+            cardinality++;
+            return true;
+        }
+        if (container.contains(low)) {
+            return false;
+        }
+
+        Container updated = container.add(low);
+        if (updated != container) {
+            containers.put(key, updated);
+        }
+        cardinality++;
+        return true;
+    }
+
+    /**
+     * Add every value of [start, end], chunks entirely covered by the range
+     * and not yet present are marked full without touching single values.
+     *
+     * @param duplicateConsumer receives the values that were already present
+     * @return amount of values that were already present
+     */
+    long addRange(int start, int end, IntConsumer duplicateConsumer) {
+        checkValue(start);
+        if (end < start) {
+            throw new IllegalArgumentException(String.format("invalid range [%d, %d]", start, end));
+        }
+
+        long duplicates = 0;
+        long value = start;
+        while (value <= end) {
+            int key = (int) (value >>> 16);
+            long chunkStart = (long) key << 16;
+            long chunkEnd = chunkStart + CHUNK_SIZE - 1;
+            if (value == chunkStart && chunkEnd <= end && !containers.containsKey(key)) {
+                containers.put(key, FullContainer.INSTANCE);
+                cardinality += CHUNK_SIZE;
+                value = chunkEnd + 1;
+                continue;
+            }
+            if (!add((int) value)) {
+                duplicateConsumer.accept((int) value);
+                duplicates++;
+            }
+            value++;
+        }
+        return duplicates;
+    }
+
+    boolean contains(int value) {
+        if (value < 0) {
+            return false;
+        }
+        Container container = containers.get(value >>> 16);
+        return container != null && container.contains((char) value);
+    }
+
+    long cardinality() {
+        return cardinality;
+    }
+
+    boolean isEmpty() {
+        return cardinality == 0;
+    }
+
+    int min() {
+        if (isEmpty()) {
+            throw new NoSuchElementException();
+        }
+        Map.Entry<Integer, Container> first = containers.firstEntry();
+        return (first.getKey() << 16) | first.getValue().first();
+    }
+
+    int max() {
+        if (isEmpty()) {
+            throw new NoSuchElementException();
+        }
+        Map.Entry<Integer, Container> last = containers.lastEntry();
+        return (last.getKey() << 16) | last.getValue().last();
+    }
+
+    /**
+     * Stream the maximal runs of present values in ascending order.
+     */
+    void forEachRange(RangeConsumer consumer) {
+        long[] pending = {-1L, -1L};
+        for (Map.Entry<Integer, Container> entry : containers.entrySet()) {
+            int base = entry.getKey() << 16;
+            entry.getValue().forEachRun((start, end) -> {
+                if (pending[0] >= 0 && base + start == pending[1] + 1) {
+                    // run continues across the chunk boundary
+                    pending[1] = base + end;
+                    return;
+                }
+                if (pending[0] >= 0) {
+                    consumer.accept((int) pending[0], (int) pending[1]);
+                }
+                pending[0] = base + start;
+                pending[1] = base + end;
+            });
+        }
+        if (pending[0] >= 0) {
+            consumer.accept((int) pending[0], (int) pending[1]);
+        }
+    }
+
+    /**
+     * Stream the maximal runs of absent values between {@link #min()} and {@link #max()}.
+     */
+    void forEachGap(RangeConsumer consumer) {
+        long[] previousEnd = {-1L};
+        forEachRange((start, end) -> {
+            if (previousEnd[0] >= 0) {
+                consumer.accept((int) previousEnd[0] + 1, start - 1);
+            }
+            previousEnd[0] = end;
+        });
+    }
+
+    /**
+     * @return approximate heap usage of the containers in bytes
+     */
+    long sizeInBytes() {
+        long size = 0;
+        for (Container container : containers.values()) {
+            // key and tree node overhead
+            size += 48 + container.sizeInBytes();
+        }
+        return size;
+    }
+
+    SequenceBitmap copy() {
+        SequenceBitmap copy = new SequenceBitmap();
+        containers.forEach((key, container) -> copy.containers.put(key, container.copy()));
+        copy.cardinality = cardinality;
+        return copy;
+    }
+
+    private static void checkValue(int value) {
+        if (value < 0) {
+            throw new IllegalArgumentException("negative value not supported: " + value);
+        }
+    }
+
+    private abstract static class Container {
+        abstract boolean contains(char low);
+
+        /**
+         * Add a value known to be absent.
+         *
+         * @return this container, or the container replacing it
+         */
+        abstract Container add(char low);
+
+        abstract int first();
+
+        abstract int last();
+
+        abstract void forEachRun(RangeConsumer consumer);
+
+        abstract long sizeInBytes();
+
+        abstract Container copy();
+    }
+
+    /**
+     * Sorted present values, for sparse chunks
+     */
+    private static final class ArrayContainer extends Container {
+        private char[] values = new char[4];
+        private int size;
+
+        @Override
+        boolean contains(char low) {
+            return Arrays.binarySearch(values, 0, size, low) >= 0;
+        }
+
+        @Override
+        Container add(char low) {
+            if (size == ARRAY_LIMIT) {
+                return BitmapContainer.of(this).add(low);
+            }
+            int index = -Arrays.binarySearch(values, 0, size, low) - 1;
+            if (size == values.length) {
+                values = Arrays.copyOf(values, Math.min(ARRAY_LIMIT, size * 2));
+            }
+            System.arraycopy(values, index, values, index + 1, size - index);
+            values[index] = low;
+            size++;
+            return this;
+        }
+
+        @Override
+        int first() {
+            return values[0];
+        }
+
+        @Override
+        int last() {
+            return values[size - 1];
+        }
+
+        @Override
+        void forEachRun(RangeConsumer consumer) {
+            int i = 0;
+            while (i < size) {
+                int start = values[i];
+                while (i + 1 < size && values[i + 1] == values[i] + 1) {
+                    i++;
+                }
+                consumer.accept(start, values[i]);
+                i++;
+            }
+        }
+
+        @Override
+        long sizeInBytes() {
+            return 32 + values.length * 2L;
+        }
+
+        @Override
+        Container copy() {
+            ArrayContainer copy = new ArrayContainer();
+            copy.values = Arrays.copyOf(values, values.length);
+            copy.size = size;
+            return copy;
+        }
+    }
+
+    /**
+     * One bit per value of the chunk
+     */
+    private static final class BitmapContainer extends Container {
+        private final long[] words = new long[CHUNK_SIZE / 64];
+        private int cardinality;
+
+        private static BitmapContainer of(ArrayContainer array) {
+            BitmapContainer bitmap = new BitmapContainer();
+            for (int i = 0; i < array.size; i++) {
+                bitmap.set(array.values[i]);
+            }
+            return bitmap;
+        }
+
+        private void set(int low) {
+            words[low >>> 6] |= 1L << low;
+            cardinality++;
+        }
+
+        @Override
+        boolean contains(char low) {
+            return (words[low >>> 6] & (1L << low)) != 0;
+        }
+
+        @Override
+        Container add(char low) {
+            set(low);
+            if (cardinality > CHUNK_SIZE - ARRAY_LIMIT) {
+                return InvertedContainer.of(this);
+            }
+            return this;
+        }
+
+        @Override
+        int first() {
+            for (int i = 0; i < words.length; i++) {
+                if (words[i] != 0) {
+                    return i * 64 + Long.numberOfTrailingZeros(words[i]);
+                }
+            }
+            throw new NoSuchElementException();
+        }
+
+        @Override
+        int last() {
+            for (int i = words.length - 1; i >= 0; i--) {
+                if (words[i] != 0) {
+                    return i * 64 + 63 - Long.numberOfLeadingZeros(words[i]);
+                }
+            }
+            throw new NoSuchElementException();
+        }
+
+        @Override
+        void forEachRun(RangeConsumer consumer) {
+            int start = nextSetBit(0);
+            while (start >= 0) {
+                int end = nextClearBit(start);
+                consumer.accept(start, end - 1);
+                start = end < CHUNK_SIZE ? nextSetBit(end) : -1;
+            }
+        }
+
+        private int nextSetBit(int from) {
+            int index = from >>> 6;
+            long word = words[index] & (-1L << from);
+            while (true) {
+                if (word != 0) {
+                    return index * 64 + Long.numberOfTrailingZeros(word);
+                }
+                if (++index == words.length) {
+                    return -1;
+                }
+                word = words[index];
+            }
+        }
+
+        private int nextClearBit(int from) {
+            int index = from >>> 6;
+            long word = ~words[index] & (-1L << from);
+            while (true) {
+                if (word != 0) {
+                    return index * 64 + Long.numberOfTrailingZeros(word);
+                }
+                if (++index == words.length) {
+                    return CHUNK_SIZE;
+                }
+                word = ~words[index];
+            }
+        }
+
+        @Override
+        long sizeInBytes() {
+            return 32 + words.length * 8L;
+        }
+
+        @Override
+        Container copy() {
+            BitmapContainer copy = new BitmapContainer();
+            System.arraycopy(words, 0, copy.words, 0, words.length);
+            copy.cardinality = cardinality;
+            return copy;
+        }
+    }
+
+    /**
+     * Sorted absent values, for nearly full chunks
+     */
+    private static final class InvertedContainer extends Container {
+        private char[] absent;
+        private int size;
+
+        private static InvertedContainer of(BitmapContainer bitmap) {
+            InvertedContainer inverted = new InvertedContainer();
+            inverted.absent = new char[CHUNK_SIZE - bitmap.cardinality];
+            for (int low = 0; low < CHUNK_SIZE; low++) {
+                if (!bitmap.contains((char) low)) {
+                    inverted.absent[inverted.size++] = (char) low;
+                }
+            }
+            return inverted;
+        }
+
+        @Override
+        boolean contains(char low) {
+            return Arrays.binarySearch(absent, 0, size, low) < 0;
+        }
+
+        @Override
+        Container add(char low) {
+            int index = Arrays.binarySearch(absent, 0, size, low);
+            System.arraycopy(absent, index + 1, absent, index, size - index - 1);
+            size--;
+            return size == 0 ? FullContainer.INSTANCE : this;
+        }
+
+        @Override
+        int first() {
+            int low = 0;
+            for (int i = 0; i < size && absent[i] == low; i++) {
+                low++;
+            }
+            return low;
+        }
+
+        @Override
+        int last() {
+            int low = CHUNK_SIZE - 1;
+            for (int i = size - 1; i >= 0 && absent[i] == low; i--) {
+                low--;
+            }
+            return low;
+        }
+
+        @Override
+        void forEachRun(RangeConsumer consumer) {
+            int start = 0;
+            for (int i = 0; i < size; i++) {
+                if (absent[i] > start) {
+                    consumer.accept(start, absent[i] - 1);
+                }
+                start = absent[i] + 1;
+            }
+            if (start < CHUNK_SIZE) {
+                consumer.accept(start, CHUNK_SIZE - 1);
+            }
+        }
+
+        @Override
+        long sizeInBytes() {
+            return 32 + absent.length * 2L;
+        }
+
+        @Override
+        Container copy() {
+            InvertedContainer copy = new InvertedContainer();
+            copy.absent = Arrays.copyOf(absent, size);
+            copy.size = size;
+            return copy;
+        }
+    }
+
+    /**
+     * Every value of the chunk is present, shared by all full chunks
+     */
+    private static final class FullContainer extends Container {
+        private static final FullContainer INSTANCE = new FullContainer();
+
+        @Override
+        boolean contains(char low) {
+            return true;
+        }
+
+        @Override
+        Container add(char low) {
+            throw new IllegalStateException("chunk is already full");
+        }
+
+        @Override
+        int first() {
+            return 0;
+        }
+
+        @Override
+        int last() {
+            return CHUNK_SIZE - 1;
+        }
+
+        @Override
+        void forEachRun(RangeConsumer consumer) {
+            consumer.accept(0, CHUNK_SIZE - 1);
+        }
+
+        @Override
+        long sizeInBytes() {
+            return 0;
+        }
+
+        @Override
+        Container copy() {
+            return this;
+        }
+    }
+
+}
@@ -0,0 +1,152 @@
+package com.example.jeffrey.demospringdatamongo.service;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Hi/lo allocation of sequence numbers.
+ *
+ * Each node leases a block of numbers with a single $inc of the block size and
+ * hands them out locally from an atomic counter, the database therefore sees one
+ * write per block instead of one write per number.
+ *
+ * - Unique across nodes, every lease is an atomic findAndModify on the shared sequence document
+ * - Not dense, numbers left in a block are lost when the node stops
+ * - Not ordered across nodes, each node consumes its own block
+ * - The next block is leased asynchronously once the current block runs low
+ */
+class SequenceBlockAllocator {
+    private static final Logger LOGGER = LoggerFactory.getLogger(SequenceBlockAllocator.class);
+
+    // key used for the anonymous sequence, ConcurrentHashMap does not accept null key
+    private static final String ANONYMOUS_SEQUENCE = "";
+
+    private final SequenceIncrementer incrementer;
+    private final int blockSize;
+    private final int refillThreshold;
+    private final ExecutorService refillExecutor;
+
+    private final ConcurrentMap<String, BlockHolder> holders = new ConcurrentHashMap<>();
+
+    /**
+     * @param incrementer performs the $inc against the sequence document
+     * @param blockSize amount of numbers leased per round trip
+     * @param refillRatio fraction of the block remaining when the next block is leased in background
+     */
+    SequenceBlockAllocator(SequenceIncrementer incrementer, int blockSize, double refillRatio) {
+        if (blockSize < 1) {
+            throw new IllegalArgumentException("block size must be positive: " + blockSize);
+        }
+        if (refillRatio < 0 || refillRatio > 1) {
+            throw new IllegalArgumentException("refill ratio must be between 0 and 1: " + refillRatio);
+        }
+        this.incrementer = incrementer;
+        this.blockSize = blockSize;
+        this.refillThreshold = (int) Math.ceil(blockSize * refillRatio);
+        this.refillExecutor = Executors.newSingleThreadExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "sequence-block-refill");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    int next(String sequenceName) {
+        BlockHolder holder = holders.computeIfAbsent(
+                sequenceName == null ? ANONYMOUS_SEQUENCE : sequenceName,
+                key -> new BlockHolder(sequenceName));
+
+        while (true) {
+            Block block = holder.current;
+            if (block != null) {
+                long value = block.next.getAndIncrement();
+                if (value <= block.end) {
+                    if (block.end - value <= refillThreshold) {
+                        prefetch(holder, block);
+                    }
+                    return (int) value;
+                }
+            }
+
+            // current block exhausted, only one thread swaps in the successor
+            synchronized (holder) {
+                if (holder.current == block) {
+                    holder.current = successorOf(holder, block);
+                }
+            }
+        }
+    }
+
+    void shutdown() {
+        refillExecutor.shutdownNow();
+    }
+
+    private void prefetch(BlockHolder holder, Block block) {
+        CompletableFuture<Block> successor = new CompletableFuture<>();
+        if (!block.successor.compareAndSet(null, successor)) {
+            return; // already leased or being leased
+        }
+
+        try {
+            refillExecutor.execute(() -> {
+                try {
+                    successor.complete(lease(holder.sequenceName));
+                } catch (RuntimeException e) {
+                    successor.completeExceptionally(e);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            successor.completeExceptionally(e);
+        }
+    }
+
+    private Block successorOf(BlockHolder holder, Block block) {
+        CompletableFuture<Block> successor = block == null ? null : block.successor.get();
+        if (successor != null) {
+            try {
+                return successor.join();
+            } catch (CompletionException e) {
+                LOGGER.warn("background lease failed for sequence {}, leasing in foreground: {}",
+                        holder.sequenceName, e.getMessage());
+            }
+        }
+        return lease(holder.sequenceName);
+    }
+
+    private Block lease(String sequenceName) {
+        int high = incrementer.increment(sequenceName, blockSize);
+        LOGGER.debug("leased block [{}, {}] of sequence {}", high - blockSize + 1, high, sequenceName);
+        return new Block(high - blockSize + 1, high);
+    }
+
+    private static final class BlockHolder {
+        private final String sequenceName;
+        private volatile Block current;
+
+        private BlockHolder(String sequenceName) {
+            this.sequenceName = sequenceName;
+        }
+    }
+
+    private static final class Block {
+        private final long end;
+        // long so that threads racing past the end of the block can never wrap around
+        private final AtomicLong next;
+        private final AtomicReference<CompletableFuture<Block>> successor = new AtomicReference<>();
+
+        private Block(int start, int end) {
+            this.next = new AtomicLong(start);
+            this.end = end;
+        }
+    }
+
+}
@@ -0,0 +1,141 @@
+package com.example.jeffrey.demospringdatamongo.service;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Request-combining allocation of sequence numbers.
+ *
+ * Callers arriving while a findAndModify is in flight are queued, the next round trip
+ * then increments the sequence by the queue length and hands every waiter a consecutive
+ * number. The database sees one write per batch instead of one write per caller.
+ *
+ * - Dense, every number of a batch is handed out (unless the round trip itself fails)
+ * - No background thread, the caller winning the race performs the round trip for everyone
+ *   queued at that moment, then hands over once its own number is served
+ * - Batches are served in arrival order, so numbers are ordered within a node
+ */
+class SequenceCombiningAllocator {
+    private static final Logger LOGGER = LoggerFactory.getLogger(SequenceCombiningAllocator.class);
+
+    // key used for the anonymous sequence, ConcurrentHashMap does not accept null key
+    private static final String ANONYMOUS_SEQUENCE = "";
+
+    private final SequenceIncrementer incrementer;
+    private final int maxBatchSize;
+
+    private final ConcurrentMap<String, Combiner> combiners = new ConcurrentHashMap<>();
+
+    /**
+     * @param incrementer performs the $inc against the sequence document
+     * @param maxBatchSize maximum amount of waiters served by one round trip
+     */
+    SequenceCombiningAllocator(SequenceIncrementer incrementer, int maxBatchSize) {
+        if (maxBatchSize < 1) {
+            throw new IllegalArgumentException("max batch size must be positive: " + maxBatchSize);
+        }
+        this.incrementer = incrementer;
+        this.maxBatchSize = maxBatchSize;
+    }
+
+    int next(String sequenceName) {
+        Combiner combiner = combiners.computeIfAbsent(
+                sequenceName == null ? ANONYMOUS_SEQUENCE : sequenceName,
+                key -> new Combiner(sequenceName));
+
+        CompletableFuture<Integer> waiter = new CompletableFuture<>();
+        combiner.waiters.add(waiter);
+        combiner.await(waiter);
+
+        try {
+            return waiter.join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw e;
+        }
+    }
+
+    private final class Combiner {
+        private final String sequenceName;
+        private final Queue<CompletableFuture<Integer>> waiters = new ConcurrentLinkedQueue<>();
+        private final AtomicBoolean inFlight = new AtomicBoolean(false);
+
+        private Combiner(String sequenceName) {
+            this.sequenceName = sequenceName;
+        }
+
+        /**
+         * Serve one batch at a time until the waiter is served, by this thread or another one.
+         *
+         * The flag is released after every batch, then the threads waiting are woken up and one
+         * of them takes the next batch, a caller stops serving once its own batch is served
+         * rather than draining the callers arriving behind it for as long as they keep coming.
+         */
+        private void await(CompletableFuture<Integer> mine) {
+            boolean interrupted = false;
+            while (!mine.isDone()) {
+                if (inFlight.compareAndSet(false, true)) {
+                    try {
+                        List<CompletableFuture<Integer>> batch = new ArrayList<>();
+                        CompletableFuture<Integer> waiter;
+                        while (batch.size() < maxBatchSize && (waiter = waiters.poll()) != null) {
+                            batch.add(waiter);
+                        }
+                        if (!batch.isEmpty()) {
+                            serve(batch);
+                        }
+                    } finally {
+                        inFlight.set(false);
+                        synchronized (this) {
+                            notifyAll();
+                        }
+                    }
+                    continue;
+                }
+
+                // the flag is re-checked under the monitor, a release can not be missed
+                synchronized (this) {
+                    try {
+                        if (inFlight.get() && !mine.isDone()) {
+                            wait();
+                        }
+                    } catch (InterruptedException e) {
+                        interrupted = true;
+                    }
+                }
+            }
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        private void serve(List<CompletableFuture<Integer>> batch) {
+            int high;
+            try {
+                high = incrementer.increment(sequenceName, batch.size());
+            } catch (RuntimeException e) {
+                batch.forEach(waiter -> waiter.completeExceptionally(e));
+                return;
+            }
+
+            LOGGER.debug("served {} waiters of sequence {} with one round trip", batch.size(), sequenceName);
+            int sequenceNumber = high - batch.size() + 1;
+            for (CompletableFuture<Integer> waiter : batch) {
+                waiter.complete(sequenceNumber++);
+            }
+        }
+    }
+
+}
@@ -0,0 +1,10 @@
+package com.example.jeffrey.demospringdatamongo.service;
+
+/**
+ * Atomically increments a sequence by the given delta and returns the new value,
+ * the numbers (newValue - delta, newValue] are then exclusively owned by the caller.
+ */
+@FunctionalInterface
+interface SequenceIncrementer {
+    int increment(String sequenceName, int delta);
+}
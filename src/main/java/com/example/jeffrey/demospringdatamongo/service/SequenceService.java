@@ -1,10 +1,13 @@
 package com.example.jeffrey.demospringdatamongo.service;
 
 import com.example.jeffrey.demospringdatamongo.model.Sequence;
+import com.example.jeffrey.demospringdatamongo.model.SequenceRange;
 import com.example.jeffrey.demospringdatamongo.repository.SequenceRepository;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.dao.DuplicateKeyException;
 import org.springframework.data.mongodb.core.FindAndModifyOptions;
 import org.springframework.data.mongodb.core.MongoTemplate;
 import org.springframework.data.mongodb.core.query.Criteria;
@@ -12,6 +15,8 @@ import org.springframework.data.mongodb.core.query.Query;
 import org.springframework.data.mongodb.core.query.Update;
 import org.springframework.stereotype.Service;
 
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
 import java.util.List;
 
 @Service
@@ -24,21 +29,136 @@ public class SequenceService {
     @Autowired
     MongoTemplate mongoTemplate;
 
+    @Autowired(required = false)
+    SequenceAuditService sequenceAuditService;
+
+    @Value("${sequence.allocation.mode:SINGLE}")
+    SequenceAllocationMode allocationMode;
+
+    @Value("${sequence.block.size:1000}")
+    int blockSize;
+
+    @Value("${sequence.block.refill-ratio:0.25}")
+    double blockRefillRatio;
+
+    @Value("${sequence.combining.max-batch:1000}")
+    int combiningMaxBatch;
+
+    @Value("${sequence.range.max-count:1000000}")
+    int rangeMaxCount;
+
+    private SequenceBlockAllocator blockAllocator;
+
+    private SequenceCombiningAllocator combiningAllocator;
+
+    @PostConstruct
+    public void initialize() {
+        if (allocationMode == SequenceAllocationMode.BLOCK) {
+            LOGGER.info("sequence block allocation enabled, block size: {}", blockSize);
+            blockAllocator = new SequenceBlockAllocator(this::incrementSequenceNumber, blockSize, blockRefillRatio);
+        }
+        if (allocationMode == SequenceAllocationMode.COMBINING) {
+            LOGGER.info("sequence request combining enabled, max batch: {}", combiningMaxBatch);
+            combiningAllocator = new SequenceCombiningAllocator(this::incrementSequenceNumber, combiningMaxBatch);
+        }
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        if (blockAllocator != null) {
+            blockAllocator.shutdown();
+        }
+    }
+
     public int appendSequenceNumber() {
-        Query query = new Query();
-        query.addCriteria(Criteria.where("sequenceNumber").gte(0));
-        Update update = new Update();
-        update.inc("sequenceNumber", 1);
-        Sequence sequence = mongoTemplate.findAndModify(
-                query,
-                update,
-                new FindAndModifyOptions().returnNew(true).upsert(true),
-                Sequence.class);
-        return sequence.sequenceNumber;
+        return appendSequenceNumber(null);
+    }
+
+    /**
+     * @param sequenceName name of the sequence, null refers to the anonymous sequence
+     * @return the next number of the sequence
+     */
+    public int appendSequenceNumber(String sequenceName) {
+        if (sequenceName != null && sequenceName.isEmpty()) {
+            throw new BadRequestException("sequence name must not be empty");
+        }
+
+        int sequenceNumber;
+        if (allocationMode == SequenceAllocationMode.BLOCK) {
+            sequenceNumber = blockAllocator.next(sequenceName);
+        } else if (allocationMode == SequenceAllocationMode.COMBINING) {
+            sequenceNumber = combiningAllocator.next(sequenceName);
+        } else {
+            sequenceNumber = incrementSequenceNumber(sequenceName, 1);
+        }
+
+        if (sequenceAuditService != null) {
+            sequenceAuditService.record(sequenceName, sequenceNumber);
+        }
+        return sequenceNumber;
+    }
+
+    /**
+     * Allocate count consecutive numbers with a single $inc of count, regardless
+     * of the allocation mode. The range never overlaps with numbers handed out by
+     * any other allocation since they all increment the same sequence document.
+     *
+     * @param sequenceName name of the sequence, null refers to the anonymous sequence
+     * @param count amount of numbers to allocate
+     * @return the allocated range, both ends inclusive
+     */
+    public SequenceRange appendSequenceNumbers(String sequenceName, int count) {
+        if (sequenceName != null && sequenceName.isEmpty()) {
+            throw new BadRequestException("sequence name must not be empty");
+        }
+        if (count < 1 || count > rangeMaxCount) {
+            throw new BadRequestException(String.format("count must be between 1 and %d: %d", rangeMaxCount, count));
+        }
+
+        int end = incrementSequenceNumber(sequenceName, count);
+        SequenceRange range = new SequenceRange(end - count + 1, end);
+
+        if (sequenceAuditService != null) {
+            sequenceAuditService.record(sequenceName, range);
+        }
+        return range;
     }
 
     public List<Sequence> querySequenceNumber() {
         return sequenceRepository.findAll();
     }
 
+    /**
+     * Increment the sequence by delta with a single findAndModify, the sequence
+     * document is created on first use.
+     *
+     * @return the new value of the sequence
+     */
+    int incrementSequenceNumber(String sequenceName, int delta) {
+        Query query = sequenceQuery(sequenceName);
+        Update update = new Update();
+        update.inc("sequenceNumber", delta);
+        FindAndModifyOptions options = new FindAndModifyOptions().returnNew(true).upsert(true);
+
+        Sequence sequence;
+        try {
+            sequence = mongoTemplate.findAndModify(query, update, options, Sequence.class);
+        } catch (DuplicateKeyException e) {
+            // another node created the named sequence concurrently, increment the winner's document
+            LOGGER.debug("sequence {} created concurrently, retrying", sequenceName);
+            sequence = mongoTemplate.findAndModify(query, update, options, Sequence.class);
+        }
+        return sequence.sequenceNumber;
+    }
+
+    private Query sequenceQuery(String sequenceName) {
+        Query query = new Query();
+        if (sequenceName == null) {
+            query.addCriteria(Criteria.where("sequenceNumber").gte(0).and("name").exists(false));
+        } else {
+            query.addCriteria(Criteria.where("name").is(sequenceName));
+        }
+        return query;
+    }
+
 }
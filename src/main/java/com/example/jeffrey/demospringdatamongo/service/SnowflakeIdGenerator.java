@@ -0,0 +1,261 @@
+package com.example.jeffrey.demospringdatamongo.service;
+
+import com.example.jeffrey.demospringdatamongo.model.WorkerLease;
+import com.mongodb.client.result.UpdateResult;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.dao.DuplicateKeyException;
+import org.springframework.data.mongodb.core.FindAndModifyOptions;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.Update;
+import org.springframework.stereotype.Service;
+
+import javax.annotation.PreDestroy;
+import java.time.Instant;
+import java.util.UUID;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+
+/**
+ * Generates unique, roughly time-ordered 64-bit ids without any database round trip per id.
+ *
+ * Layout of an id (most significant bit first):
+ * - 1 bit unused, ids are always positive
+ * - 41 bits milliseconds since {@link #EPOCH}, good for ~69 years
+ * - 10 bits worker id, leased from the WorkerLeaseCollection
+ * - 12 bits counter within the same millisecond
+ *
+ * The worker id is leased with a heartbeat and an expiry, a lease can only be taken over
+ * once it has expired (plus the tolerated clock skew), while the holder stops generating
+ * ids as soon as its own lease deadline passes without a successful heartbeat. Hence two
+ * live nodes can never share a worker id.
+ *
+ * Clock regressions smaller than sequence.snowflake.max-clock-backward-ms are waited out,
+ * larger regressions are refused rather than risking a duplicate id.
+ */
+@Service
+public class SnowflakeIdGenerator {
+    private static final Logger LOGGER = LoggerFactory.getLogger(SnowflakeIdGenerator.class);
+
+    // 2020-01-01T00:00:00Z
+    static final long EPOCH = 1577836800000L;
+
+    static final int WORKER_ID_BITS = 10;
+    static final int SEQUENCE_BITS = 12;
+    static final int MAX_WORKER_ID = (1 << WORKER_ID_BITS) - 1;
+    static final long SEQUENCE_MASK = (1L << SEQUENCE_BITS) - 1;
+
+    @Autowired
+    MongoTemplate mongoTemplate;
+
+    @Value("${sequence.snowflake.lease-ttl-ms:30000}")
+    long leaseTtlMillis;
+
+    @Value("${sequence.snowflake.clock-skew-ms:1000}")
+    long clockSkewMillis;
+
+    @Value("${sequence.snowflake.max-clock-backward-ms:5}")
+    long maxClockBackwardMillis;
+
+    LongSupplier clock = System::currentTimeMillis;
+
+    // identity of this node, only meaningful for the lifetime of the process
+    private final String owner = UUID.randomUUID().toString();
+
+    volatile int workerId = -1;
+    volatile long leaseDeadlineNanos;
+    // worker id of the last lease, renewed first once the lease is lost
+    private int lastWorkerId = -1;
+
+    private long lastTimestamp = -1L;
+    private long sequence;
+
+    private ScheduledExecutorService heartbeatExecutor;
+
+    public synchronized long nextId() {
+        if (workerId < 0 || System.nanoTime() - leaseDeadlineNanos >= 0) {
+            acquireLease();
+        }
+
+        long timestamp = clock.getAsLong();
+        if (timestamp < lastTimestamp) {
+            long backward = lastTimestamp - timestamp;
+            if (backward > maxClockBackwardMillis) {
+                throw new IllegalStateException(String.format(
+                        "clock moved backwards by %d ms, refusing to generate id", backward));
+            }
+            LOGGER.warn("clock moved backwards by {} ms, waiting", backward);
+            timestamp = waitUntil(lastTimestamp);
+        }
+
+        if (timestamp == lastTimestamp) {
+            sequence = (sequence + 1) & SEQUENCE_MASK;
+            if (sequence == 0) {
+                // counter exhausted within this millisecond
+                timestamp = waitUntil(lastTimestamp + 1);
+            }
+        } else {
+            sequence = 0;
+        }
+        lastTimestamp = timestamp;
+
+        return ((timestamp - EPOCH) << (WORKER_ID_BITS + SEQUENCE_BITS))
+                | ((long) workerId << SEQUENCE_BITS)
+                | sequence;
+    }
+
+    public static Instant timestampOf(long id) {
+        return Instant.ofEpochMilli((id >>> (WORKER_ID_BITS + SEQUENCE_BITS)) + EPOCH);
+    }
+
+    public static int workerIdOf(long id) {
+        return (int) ((id >>> SEQUENCE_BITS) & MAX_WORKER_ID);
+    }
+
+    @PreDestroy
+    public synchronized void releaseLease() {
+        if (heartbeatExecutor != null) {
+            heartbeatExecutor.shutdownNow();
+            heartbeatExecutor = null;
+        }
+        if (workerId < 0) {
+            return;
+        }
+
+        try {
+            // expire rather than delete, so the next owner still honours our last timestamp
+            mongoTemplate.updateFirst(
+                    Query.query(Criteria.where("_id").is(workerId).and("owner").is(owner)),
+                    new Update().set("expiresAt", Instant.ofEpochMilli(clock.getAsLong())).set("lastTimestamp", lastTimestamp),
+                    WorkerLease.class);
+            LOGGER.info("released worker id {}", workerId);
+        } catch (RuntimeException e) {
+            LOGGER.error("failed to release worker id {}, it expires on its own: {}", workerId, e.getMessage());
+        }
+        workerId = -1;
+    }
+
+    private long waitUntil(long timestamp) {
+        long now = clock.getAsLong();
+        while (now < timestamp) {
+            Thread.yield();
+            now = clock.getAsLong();
+        }
+        return now;
+    }
+
+    /**
+     * Renew the worker id of the last lease first, still ours unless another node took it
+     * over once expired, so that a node does not leave its old lease held until it expires.
+     *
+     * Otherwise try every worker id starting from a random one, an upsert on a lease held by
+     * another live node fails with a duplicate key on _id and the next one is tried.
+     */
+    private void acquireLease() {
+        int previousWorkerId = lastWorkerId;
+        if (previousWorkerId >= 0 && tryLease(previousWorkerId)) {
+            return;
+        }
+        int start = ThreadLocalRandom.current().nextInt(MAX_WORKER_ID + 1);
+        for (int i = 0; i <= MAX_WORKER_ID; i++) {
+            int candidate = (start + i) & MAX_WORKER_ID;
+            if (candidate != previousWorkerId && tryLease(candidate)) {
+                return;
+            }
+        }
+        throw new IllegalStateException("no worker id available, all " + (MAX_WORKER_ID + 1) + " leases are held");
+    }
+
+    /**
+     * @return false if the worker id is held by another live node
+     */
+    private boolean tryLease(int candidate) {
+        long sentAt = System.nanoTime();
+        long now = clock.getAsLong();
+
+        Query query = Query.query(Criteria.where("_id").is(candidate).orOperator(
+                Criteria.where("owner").is(owner),
+                Criteria.where("expiresAt").lt(Instant.ofEpochMilli(now - clockSkewMillis))));
+        Update update = new Update()
+                .set("owner", owner)
+                .set("expiresAt", Instant.ofEpochMilli(now + leaseTtlMillis));
+
+        WorkerLease previous;
+        try {
+            previous = mongoTemplate.findAndModify(
+                    query, update, new FindAndModifyOptions().returnNew(false).upsert(true), WorkerLease.class);
+        } catch (DuplicateKeyException e) {
+            return false; // held by a live node
+        }
+
+        if (previous != null && !owner.equals(previous.owner)) {
+            // never go below what the previous owner may have issued
+            long floor = Math.max(previous.lastTimestamp,
+                    previous.expiresAt == null ? -1L : previous.expiresAt.toEpochMilli());
+            lastTimestamp = Math.max(lastTimestamp, floor);
+        }
+        workerId = candidate;
+        lastWorkerId = candidate;
+        leaseDeadlineNanos = sentAt + TimeUnit.MILLISECONDS.toNanos(leaseTtlMillis);
+        startHeartbeat();
+
+        LOGGER.info("leased worker id {} until {}", candidate, Instant.ofEpochMilli(now + leaseTtlMillis));
+        return true;
+    }
+
+    private void startHeartbeat() {
+        if (heartbeatExecutor != null) {
+            return;
+        }
+        heartbeatExecutor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "snowflake-lease-heartbeat");
+            thread.setDaemon(true);
+            return thread;
+        });
+        long period = Math.max(1L, leaseTtlMillis / 3);
+        heartbeatExecutor.scheduleWithFixedDelay(this::heartbeat, period, period, TimeUnit.MILLISECONDS);
+    }
+
+    private void heartbeat() {
+        int leasedWorkerId = workerId;
+        if (leasedWorkerId < 0) {
+            return;
+        }
+
+        long sentAt = System.nanoTime();
+        long now = clock.getAsLong();
+        long issuedUntil;
+        synchronized (this) {
+            issuedUntil = lastTimestamp;
+        }
+
+        try {
+            UpdateResult result = mongoTemplate.updateFirst(
+                    Query.query(Criteria.where("_id").is(leasedWorkerId).and("owner").is(owner)),
+                    new Update().set("expiresAt", Instant.ofEpochMilli(now + leaseTtlMillis)).set("lastTimestamp", issuedUntil),
+                    WorkerLease.class);
+
+            if (result.getMatchedCount() == 1) {
+                leaseDeadlineNanos = sentAt + TimeUnit.MILLISECONDS.toNanos(leaseTtlMillis);
+            } else {
+                LOGGER.warn("lease of worker id {} lost, a new worker id will be leased", leasedWorkerId);
+                synchronized (this) {
+                    if (workerId == leasedWorkerId) {
+                        workerId = -1;
+                    }
+                }
+            }
+        } catch (RuntimeException e) {
+            // the deadline is left untouched, id generation stops if the lease cannot be renewed in time
+            LOGGER.error("heartbeat of worker id {} failed: {}", leasedWorkerId, e.getMessage());
+        }
+    }
+
+}
@@ -0,0 +1,20 @@
+package com.example.jeffrey.demospringdatamongo.service;
+
+/**
+ * The account keeps its balance in stripes, see AccountStripeService, which the transfer
+ * can not debit, the transfer is aborted
+ */
+public class StripedAccountException extends RuntimeException {
+
+    private final String accountNumber;
+
+    public StripedAccountException(String accountNumber) {
+        super("striped account, debit with executeTransferTx_withStripes: " + accountNumber);
+        this.accountNumber = accountNumber;
+    }
+
+    public String getAccountNumber() {
+        return accountNumber;
+    }
+
+}
@@ -0,0 +1,84 @@
+package com.example.jeffrey.demospringdatamongo.service;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Periodically folds the pending transfer journal entries into the account balances,
+ * see AccountService.materializeJournal.
+ *
+ * Safe to run on every node, a batch claimed by another node in the meantime is aborted.
+ * Disabled unless account.journal.materialize-interval-ms is set.
+ */
+@Component
+public class TransferJournalMaterializer {
+    private static final Logger LOGGER = LoggerFactory.getLogger(TransferJournalMaterializer.class);
+
+    @Autowired
+    AccountService accountService;
+
+    // 0 disables the background materializer, opt-in
+    @Value("${account.journal.materialize-interval-ms:0}")
+    long intervalMillis;
+
+    @Value("${account.journal.batch-size:1000}")
+    int batchSize;
+
+    private ScheduledExecutorService executor;
+
+    @PostConstruct
+    public void initialize() {
+        if (intervalMillis <= 0) {
+            LOGGER.info("transfer journal materializer disabled");
+            return;
+        }
+        executor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "transfer-journal-materializer");
+            thread.setDaemon(true);
+            return thread;
+        });
+        executor.scheduleWithFixedDelay(this::materialize, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        if (executor != null) {
+            executor.shutdownNow();
+            executor = null;
+        }
+    }
+
+    /**
+     * Materialize batches until the journal is drained
+     *
+     * @return amount of entries materialized
+     */
+    public long materialize() {
+        long total = 0;
+        try {
+            int count;
+            do {
+                count = accountService.materializeJournal(batchSize);
+                total += count;
+            } while (count == batchSize);
+
+        } catch (RuntimeException e) {
+            // e.g. a concurrent materializer claimed the batch, try again on the next round
+            LOGGER.warn("materialize journal failed: {}", e.getMessage());
+        }
+        if (total > 0) {
+            LOGGER.debug("{} journal entries materialized", total);
+        }
+        return total;
+    }
+
+}
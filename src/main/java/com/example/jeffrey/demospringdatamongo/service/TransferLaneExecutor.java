@@ -0,0 +1,163 @@
+package com.example.jeffrey.demospringdatamongo.service;
+
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+/**
+ * Dispatches transfers onto a fixed set of single-threaded lanes by hashing the account number,
+ * so that transfers of this node touching the same account run one after another without
+ * write-conflict, while transfers of unrelated accounts still run in parallel.
+ *
+ * A transfer touching two lanes runs on the lower lane, and occupies the higher lane for its
+ * whole duration. Lanes are always taken in ascending order, a lane only ever waits for a lane
+ * with a higher index, hence no cycle (no deadlock) can form.
+ */
+@Component
+public class TransferLaneExecutor {
+    private static final Logger LOGGER = LoggerFactory.getLogger(TransferLaneExecutor.class);
+
+    @Value("${account.transfer.lanes:0}")
+    int laneCount;
+
+    @Value("${account.transfer.lane-capacity:10000}")
+    int laneCapacity;
+
+    @Autowired(required = false)
+    MeterRegistry meterRegistry;
+
+    private ThreadPoolExecutor[] lanes;
+
+    public TransferLaneExecutor() {}
+
+    TransferLaneExecutor(int laneCount, int laneCapacity) {
+        this.laneCount = laneCount;
+        this.laneCapacity = laneCapacity;
+        initialize();
+    }
+
+    @PostConstruct
+    public void initialize() {
+        int count = laneCount > 0 ? laneCount : Runtime.getRuntime().availableProcessors();
+        lanes = new ThreadPoolExecutor[count];
+        for (int i = 0; i < count; i++) {
+            String name = "transfer-lane-" + i;
+            lanes[i] = new ThreadPoolExecutor(1, 1, 0L, TimeUnit.MILLISECONDS,
+                    new LinkedBlockingQueue<>(laneCapacity),
+                    runnable -> {
+                        Thread thread = new Thread(runnable, name);
+                        thread.setDaemon(true);
+                        return thread;
+                    });
+
+            if (meterRegistry != null) {
+                Gauge.builder("account.transfer.lane.queue", lanes[i], lane -> lane.getQueue().size())
+                        .tag("lane", String.valueOf(i))
+                        .description("transfers waiting in the lane")
+                        .register(meterRegistry);
+            }
+        }
+        LOGGER.info("{} transfer lanes started", count);
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        for (ThreadPoolExecutor lane : lanes) {
+            lane.shutdownNow();
+        }
+    }
+
+    /**
+     * Run the task once both accounts' lanes are exclusively held
+     *
+     * @return completes with the result of the task, or exceptionally if the lane is full
+     */
+    public <T> CompletableFuture<T> submit(String debitAccountNumber, String creditAccountNumber, Supplier<T> task) {
+        int debitLane = laneOf(debitAccountNumber);
+        int creditLane = laneOf(creditAccountNumber);
+        int lowerLane = Math.min(debitLane, creditLane);
+        int higherLane = Math.max(debitLane, creditLane);
+
+        CompletableFuture<T> result = new CompletableFuture<>();
+        try {
+            if (lowerLane == higherLane) {
+                lanes[lowerLane].execute(() -> run(task, result));
+            } else {
+                lanes[lowerLane].execute(() -> runAcross(lanes[higherLane], task, result));
+            }
+        } catch (RejectedExecutionException e) {
+            result.completeExceptionally(e);
+        }
+        return result;
+    }
+
+    /**
+     * @return amount of transfers waiting in each lane
+     */
+    public int[] queueDepths() {
+        int[] depths = new int[lanes.length];
+        for (int i = 0; i < lanes.length; i++) {
+            depths[i] = lanes[i].getQueue().size();
+        }
+        return depths;
+    }
+
+    int laneOf(String accountNumber) {
+        int hash = accountNumber.hashCode();
+        // spread the high bits, similar to HashMap
+        return Math.floorMod(hash ^ (hash >>> 16), lanes.length);
+    }
+
+    private <T> void runAcross(ThreadPoolExecutor higherLane, Supplier<T> task, CompletableFuture<T> result) {
+        CountDownLatch entered = new CountDownLatch(1);
+        CountDownLatch finished = new CountDownLatch(1);
+
+        try {
+            // park the higher lane until the task completes
+            higherLane.execute(() -> {
+                entered.countDown();
+                try {
+                    finished.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            result.completeExceptionally(e);
+            return;
+        }
+
+        try {
+            entered.await();
+            run(task, result);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            result.completeExceptionally(e);
+        } finally {
+            finished.countDown();
+        }
+    }
+
+    private static <T> void run(Supplier<T> task, CompletableFuture<T> result) {
+        try {
+            result.complete(task.get());
+        } catch (Throwable t) {
+            result.completeExceptionally(t);
+        }
+    }
+
+}
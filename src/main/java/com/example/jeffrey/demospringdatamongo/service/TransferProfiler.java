@@ -0,0 +1,241 @@
+package com.example.jeffrey.demospringdatamongo.service;
+
+import com.example.jeffrey.demospringdatamongo.model.TransferProfileReport;
+import com.example.jeffrey.demospringdatamongo.model.Transfer;
+import com.example.jeffrey.demospringdatamongo.retry.TransactionRetryExecutor;
+import com.example.jeffrey.demospringdatamongo.retry.TransactionRetryListener;
+import com.mongodb.MongoException;
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.FunctionTimer;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.aopalliance.intercept.MethodInterceptor;
+import org.aopalliance.intercept.MethodInvocation;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+
+import javax.annotation.PostConstruct;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Profiles the executeTransfer* methods of AccountService, to find out which accounts the
+ * write-conflicts are about.
+ *
+ * - Wraps each call (see TransferProfilingConfig) to count it and record its latency, per method
+ * - Listens to the retries of TransactionRetryExecutor, and to the calls failing with a
+ *   write-conflict, and adds the accounts of the transfer to a count-min sketch
+ * - The top-K accounts of the sketch are the hot accounts, see /actuator/transferconflicts
+ *
+ * Memory is constant whatever the amount of accounts: a sketch of depth x width counters,
+ * K hot accounts and one histogram per method.
+ *
+ * A conflict is counted against both accounts of the transfer, the error does not tell which
+ * document conflicted. The retries run by the driver within session.withTransaction() are not
+ * visible, only the calls which still fail once they are used up.
+ */
+public class TransferProfiler implements MethodInterceptor, TransactionRetryListener {
+    private static final Logger LOGGER = LoggerFactory.getLogger(TransferProfiler.class);
+
+    private static final int WRITE_CONFLICT = 112;
+
+    // resolved lazily, the profiler is created early along with the advisors
+    @Autowired
+    ObjectProvider<MeterRegistry> meterRegistry;
+
+    @Value("${account.profiler.top-k:20}")
+    int topK;
+
+    @Value("${account.profiler.sketch.width:2048}")
+    int sketchWidth;
+
+    @Value("${account.profiler.sketch.depth:4}")
+    int sketchDepth;
+
+    private HotKeySketch sketch;
+    private volatile Date since = new Date();
+
+    // keyed by method name, bounded by the methods of AccountService
+    private final Map<String, Strategy> strategies = new ConcurrentHashMap<>();
+
+    // the call of the current thread, so that a retry can be attributed to its method and accounts
+    private final ThreadLocal<Call> current = new ThreadLocal<>();
+
+    @PostConstruct
+    public void initialize() {
+        sketch = new HotKeySketch(sketchDepth, sketchWidth, topK);
+        LOGGER.info("transfer profiler: top {} accounts, sketch of {} bytes", topK, sketch.sizeInBytes());
+    }
+
+    @Override
+    public Object invoke(MethodInvocation invocation) throws Throwable {
+        Strategy strategy = strategy(invocation.getMethod().getName());
+        Call call = new Call(strategy, accountNumbers(invocation.getArguments()));
+
+        Call outer = current.get();
+        current.set(call);
+        long startNanos = System.nanoTime();
+        try {
+            return invocation.proceed();
+
+        } catch (Throwable e) {
+            strategy.aborts.increment();
+            if (isWriteConflict(e)) {
+                strategy.conflictAborts.increment();
+                addConflict(call.accountNumbers);
+            }
+            throw e;
+
+        } finally {
+            strategy.calls.increment();
+            strategy.latency.record(System.nanoTime() - startNanos);
+            current.set(outer);
+        }
+    }
+
+    @Override
+    public void onRetry(int attempt, long backoffMillis, Throwable error) {
+        Call call = current.get();
+        if (call == null) {
+            // e.g. a transaction run outside of the executeTransfer* methods
+            strategy("unknown").retries.increment();
+            return;
+        }
+        call.strategy.retries.increment();
+        if (isWriteConflict(error)) {
+            addConflict(call.accountNumbers);
+        }
+    }
+
+    public TransferProfileReport report() {
+        TransferProfileReport report = new TransferProfileReport();
+        report.since = since;
+        report.conflicts = sketch.total();
+        report.sketchBytes = sketch.sizeInBytes();
+        sketch.top().forEach((accountNumber, conflicts) ->
+                report.hotAccounts.add(new TransferProfileReport.HotAccount(accountNumber, conflicts)));
+
+        strategies.entrySet().stream()
+                .sorted(Map.Entry.comparingByKey())
+                .forEach(entry -> {
+                    Strategy strategy = entry.getValue();
+                    TransferProfileReport.StrategyProfile profile = new TransferProfileReport.StrategyProfile();
+                    profile.calls = strategy.calls.sum();
+                    profile.retries = strategy.retries.sum();
+                    profile.aborts = strategy.aborts.sum();
+                    profile.conflictAborts = strategy.conflictAborts.sum();
+                    profile.meanMicros = strategy.latency.meanMicros();
+                    profile.p50Micros = strategy.latency.percentileMicros(0.5);
+                    profile.p99Micros = strategy.latency.percentileMicros(0.99);
+                    profile.maxMicros = strategy.latency.maxMicros();
+                    report.strategies.put(entry.getKey(), profile);
+                });
+        return report;
+    }
+
+    /**
+     * Forget the hot accounts, e.g. once the contention is sorted out. The per-method counters
+     * are left as they are, they back monotonic metrics.
+     */
+    public void reset() {
+        sketch.reset();
+        since = new Date();
+    }
+
+    private void addConflict(Collection<String> accountNumbers) {
+        for (String accountNumber : accountNumbers) {
+            sketch.add(accountNumber);
+        }
+    }
+
+    private Strategy strategy(String name) {
+        return strategies.computeIfAbsent(name, key -> {
+            Strategy strategy = new Strategy();
+            MeterRegistry registry = meterRegistry == null ? null : meterRegistry.getIfAvailable();
+            if (registry != null) {
+                register(registry, key, strategy);
+            }
+            return strategy;
+        });
+    }
+
+    private static void register(MeterRegistry registry, String name, Strategy strategy) {
+        FunctionTimer.builder("account.transfer.latency", strategy,
+                s -> s.latency.count(), s -> s.latency.totalMicros(), TimeUnit.MICROSECONDS)
+                .tag("strategy", name)
+                .register(registry);
+        Gauge.builder("account.transfer.latency.p99", strategy, s -> s.latency.percentileMicros(0.99))
+                .tag("strategy", name)
+                .baseUnit("microseconds")
+                .register(registry);
+        FunctionCounter.builder("account.transfer.retries", strategy, s -> s.retries.doubleValue())
+                .tag("strategy", name)
+                .register(registry);
+        FunctionCounter.builder("account.transfer.aborts", strategy, s -> s.aborts.doubleValue())
+                .tag("strategy", name)
+                .register(registry);
+        FunctionCounter.builder("account.transfer.conflict.aborts", strategy, s -> s.conflictAborts.doubleValue())
+                .tag("strategy", name)
+                .register(registry);
+    }
+
+    private static List<String> accountNumbers(Object[] arguments) {
+        // (amount, debitAccountNumber, creditAccountNumber) or (transfers)
+        if (arguments.length == 3 && arguments[1] instanceof String && arguments[2] instanceof String) {
+            List<String> accountNumbers = new ArrayList<>(2);
+            accountNumbers.add((String) arguments[1]);
+            accountNumbers.add((String) arguments[2]);
+            return accountNumbers;
+        }
+        if (arguments.length == 1 && arguments[0] instanceof List) {
+            List<String> accountNumbers = new ArrayList<>();
+            for (Object transfer : (List<?>) arguments[0]) {
+                if (transfer instanceof Transfer) {
+                    accountNumbers.add(((Transfer) transfer).debitAccountNumber);
+                    accountNumbers.add(((Transfer) transfer).creditAccountNumber);
+                }
+            }
+            accountNumbers.removeIf(accountNumber -> accountNumber == null);
+            return accountNumbers;
+        }
+        return Collections.emptyList();
+    }
+
+    static boolean isWriteConflict(Throwable error) {
+        for (Throwable cause = error; cause != null; cause = cause.getCause()) {
+            if (cause instanceof MongoException && ((MongoException) cause).getCode() == WRITE_CONFLICT) {
+                return true;
+            }
+        }
+        return TransactionRetryExecutor.hasErrorLabel(error, MongoException.TRANSIENT_TRANSACTION_ERROR_LABEL);
+    }
+
+    private static final class Strategy {
+        private final LongAdder calls = new LongAdder();
+        private final LongAdder retries = new LongAdder();
+        private final LongAdder aborts = new LongAdder();
+        private final LongAdder conflictAborts = new LongAdder();
+        private final LatencyHistogram latency = new LatencyHistogram();
+    }
+
+    private static final class Call {
+        private final Strategy strategy;
+        private final List<String> accountNumbers;
+
+        private Call(Strategy strategy, List<String> accountNumbers) {
+            this.strategy = strategy;
+            this.accountNumbers = accountNumbers;
+        }
+    }
+
+}
@@ -0,0 +1,43 @@
+package com.example.jeffrey.demospringdatamongo.service;
+
+import org.springframework.aop.Advisor;
+import org.springframework.aop.support.ComposablePointcut;
+import org.springframework.aop.support.DefaultPointcutAdvisor;
+import org.springframework.aop.support.NameMatchMethodPointcut;
+import org.springframework.aop.support.RootClassFilter;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.config.BeanDefinition;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.context.annotation.Role;
+import org.springframework.core.Ordered;
+
+/**
+ * Wires the TransferProfiler around the executeTransfer* methods of AccountService, next to
+ * the service it profiles rather than in the MongoDB configuration.
+ */
+@Configuration
+public class TransferProfilingConfig {
+
+    @Bean
+    TransferProfiler transferProfiler() {
+        return new TransferProfiler();
+    }
+
+    @Bean
+    @Role(BeanDefinition.ROLE_INFRASTRUCTURE)
+    Advisor transferProfilingAdvisor(
+            @Autowired
+            TransferProfiler transferProfiler
+    ) {
+        // order ahead of the retry advisor, so that the latency of a call includes its retries
+        NameMatchMethodPointcut transferMethods = new NameMatchMethodPointcut();
+        transferMethods.setMappedName("executeTransfer*");
+        DefaultPointcutAdvisor advisor = new DefaultPointcutAdvisor(
+                new ComposablePointcut(new RootClassFilter(AccountService.class), transferMethods),
+                transferProfiler);
+        advisor.setOrder(Ordered.LOWEST_PRECEDENCE - 2);
+        return advisor;
+    }
+
+}
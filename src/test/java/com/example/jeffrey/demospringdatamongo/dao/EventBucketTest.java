@@ -0,0 +1,58 @@
+package com.example.jeffrey.demospringdatamongo.dao;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.time.Instant;
+import java.time.LocalDate;
+import java.util.regex.Pattern;
+
+public class EventBucketTest {
+
+    @Test
+    public void namedAfterStreamAndUtcDay() {
+        EventBucket bucket = EventBucket.of("event-stream.0", Instant.parse("2020-05-01T23:59:59.999Z"));
+        Assert.assertEquals("event-stream.0.2020-05-01", bucket.collectionName());
+        Assert.assertEquals(Instant.parse("2020-05-01T00:00:00Z"), bucket.start());
+        Assert.assertEquals(Instant.parse("2020-05-02T00:00:00Z"), bucket.end());
+        Assert.assertEquals(bucket, EventBucket.parse(bucket.collectionName()));
+        Assert.assertEquals("event-stream.0", EventBucket.parse(bucket.collectionName()).stream);
+    }
+
+    @Test
+    public void archivingNameParsesToSameBucket() {
+        EventBucket bucket = new EventBucket("event-stream-0", LocalDate.parse("2020-05-01"));
+        Assert.assertEquals("event-stream-0.2020-05-01.archiving", bucket.archivingCollectionName());
+        Assert.assertTrue(EventBucket.isArchiving(bucket.archivingCollectionName()));
+        Assert.assertFalse(EventBucket.isArchiving(bucket.collectionName()));
+        Assert.assertEquals(bucket, EventBucket.parse(bucket.archivingCollectionName()));
+
+        Pattern live = Pattern.compile(EventBucket.collectionNamePattern("event-stream-0", false));
+        Pattern all = Pattern.compile(EventBucket.collectionNamePattern("event-stream-0", true));
+        Assert.assertTrue(live.matcher(bucket.collectionName()).find());
+        Assert.assertFalse(live.matcher(bucket.archivingCollectionName()).find());
+        Assert.assertTrue(all.matcher(bucket.archivingCollectionName()).find());
+        Assert.assertFalse(all.matcher("event-stream-01.2020-05-01").find());
+        Assert.assertFalse(all.matcher("event-stream-0.2020-05-01.1").find());
+    }
+
+    @Test
+    public void parseIgnoresOtherCollections() {
+        Assert.assertNull(EventBucket.parse("EventCollection"));
+        Assert.assertNull(EventBucket.parse("event-stream-0"));
+        Assert.assertNull(EventBucket.parse(".2020-05-01"));
+        Assert.assertNull(EventBucket.parse("event-stream-0.2020-13-01"));
+        Assert.assertNull(EventBucket.parse("system.views.2020-05-01"));
+    }
+
+    @Test
+    public void overlapsHalfOpenRange() {
+        EventBucket bucket = new EventBucket("event-stream-0", LocalDate.parse("2020-05-01"));
+        Assert.assertTrue(bucket.overlaps(null, null));
+        Assert.assertTrue(bucket.overlaps(Instant.parse("2020-05-01T12:00:00Z"), null));
+        Assert.assertFalse(bucket.overlaps(Instant.parse("2020-05-02T00:00:00Z"), null));
+        Assert.assertFalse(bucket.overlaps(null, Instant.parse("2020-05-01T00:00:00Z")));
+        Assert.assertTrue(bucket.overlaps(null, Instant.parse("2020-05-01T00:00:00.001Z")));
+    }
+
+}
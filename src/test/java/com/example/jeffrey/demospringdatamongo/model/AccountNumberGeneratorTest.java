@@ -0,0 +1,54 @@
+package com.example.jeffrey.demospringdatamongo.model;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.HashSet;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+public class AccountNumberGeneratorTest {
+
+    @Test
+    public void formattedAsRandomUuid() {
+        UUID uuid = UUID.fromString(AccountNumberGenerator.next());
+        Assert.assertEquals(4, uuid.version());
+        Assert.assertEquals(2, uuid.variant());
+    }
+
+    @Test
+    public void mixIsBijective() {
+        // distinct inputs never map to the same output, sampled around the edges of the domain
+        Set<Long> outputs = new HashSet<>();
+        for (long i = 0; i < 100_000; i++) {
+            outputs.add(AccountNumberGenerator.mix(i));
+            outputs.add(AccountNumberGenerator.mix((1L << 62) - 1 - i));
+        }
+        Assert.assertEquals(200_000, outputs.size());
+    }
+
+    @Test
+    public void uniqueAcrossThreads() throws InterruptedException {
+        final int MAX_THREAD = 8;
+        final int PER_THREAD = 50_000;
+        Set<String> accountNumbers = ConcurrentHashMap.newKeySet();
+        ExecutorService executor = Executors.newFixedThreadPool(MAX_THREAD);
+
+        for (int i = 0; i < MAX_THREAD; i++) {
+            executor.execute(() -> {
+                for (int j = 0; j < PER_THREAD; j++) {
+                    accountNumbers.add(AccountNumberGenerator.next());
+                }
+            });
+        }
+        executor.shutdown();
+        Assert.assertTrue(executor.awaitTermination(30, TimeUnit.SECONDS));
+
+        Assert.assertEquals(MAX_THREAD * PER_THREAD, accountNumbers.size());
+    }
+
+}
@@ -0,0 +1,218 @@
+package com.example.jeffrey.demospringdatamongo.retry;
+
+import com.mongodb.MongoException;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class TransactionRetryExecutorTest {
+
+    private final AtomicLong now = new AtomicLong();
+    private final List<Long> sleeps = new ArrayList<>();
+    private final List<String> giveUps = new ArrayList<>();
+
+    private TransactionRetryExecutor executor;
+
+    @Before
+    public void initialize() {
+        // virtual clock, sleeping only moves the clock forward
+        executor = new TransactionRetryExecutor();
+        executor.maxAttempts = 10;
+        executor.initialBackoffMillis = 10;
+        executor.maxBackoffMillis = 1000;
+        executor.deadlineMillis = 5000;
+        executor.budgetMaxTokens = 100;
+        executor.budgetTokenRatio = 0.1;
+        executor.nanoClock = now::get;
+        executor.sleeper = millis -> {
+            sleeps.add(millis);
+            now.addAndGet(TimeUnit.MILLISECONDS.toNanos(millis));
+        };
+        executor.listeners = Collections.singletonList(new TransactionRetryListener() {
+            @Override
+            public void onGiveUp(int attempts, String reason, Throwable error) {
+                giveUps.add(attempts + ":" + reason);
+            }
+        });
+    }
+
+    private static MongoException error(String label) {
+        MongoException e = new MongoException(112, "WriteConflict");
+        e.addLabel(label);
+        return e;
+    }
+
+    @Test
+    public void transientErrorIsRetriedWithBoundedBackoff() {
+        AtomicInteger calls = new AtomicInteger();
+
+        String result = executor.execute(() -> {
+            if (calls.incrementAndGet() < 4) {
+                throw error(MongoException.TRANSIENT_TRANSACTION_ERROR_LABEL);
+            }
+            return "done";
+        });
+
+        Assert.assertEquals("done", result);
+        Assert.assertEquals(4, calls.get());
+        Assert.assertEquals(3, sleeps.size());
+        for (int i = 0; i < sleeps.size(); i++) {
+            Assert.assertTrue(sleeps.get(i) >= 0 && sleeps.get(i) <= 10L << i);
+        }
+    }
+
+    @Test
+    public void wrappedTransientErrorIsRetried() {
+        AtomicInteger calls = new AtomicInteger();
+
+        executor.execute(() -> {
+            if (calls.incrementAndGet() == 1) {
+                // e.g. DataAccessException translated by MongoTemplate
+                throw new IllegalStateException("translated", error(MongoException.TRANSIENT_TRANSACTION_ERROR_LABEL));
+            }
+            return null;
+        });
+
+        Assert.assertEquals(2, calls.get());
+    }
+
+    @Test
+    public void otherErrorIsNotRetried() {
+        AtomicInteger calls = new AtomicInteger();
+
+        try {
+            executor.execute(() -> {
+                calls.incrementAndGet();
+                throw new RuntimeException("interrupt!");
+            });
+            Assert.fail();
+        } catch (RuntimeException e) {
+            Assert.assertEquals("interrupt!", e.getMessage());
+        }
+
+        Assert.assertEquals(1, calls.get());
+        Assert.assertTrue(sleeps.isEmpty());
+    }
+
+    @Test
+    public void givesUpAfterMaxAttempts() {
+        AtomicInteger calls = new AtomicInteger();
+
+        try {
+            executor.execute(() -> {
+                calls.incrementAndGet();
+                throw error(MongoException.TRANSIENT_TRANSACTION_ERROR_LABEL);
+            }, 3, 0);
+            Assert.fail();
+        } catch (MongoException e) {
+            Assert.assertTrue(e.hasErrorLabel(MongoException.TRANSIENT_TRANSACTION_ERROR_LABEL));
+        }
+
+        Assert.assertEquals(3, calls.get());
+        Assert.assertEquals("[3:max attempts]", giveUps.toString());
+    }
+
+    @Test
+    public void givesUpAtDeadline() {
+        try {
+            executor.execute(() -> {
+                now.addAndGet(TimeUnit.MILLISECONDS.toNanos(40));
+                throw error(MongoException.TRANSIENT_TRANSACTION_ERROR_LABEL);
+            }, 100, 100);
+            Assert.fail();
+        } catch (MongoException e) {}
+
+        Assert.assertEquals(1, giveUps.size());
+        Assert.assertTrue(giveUps.get(0).endsWith(":deadline"));
+        Assert.assertTrue(now.get() <= TimeUnit.MILLISECONDS.toNanos(100 + 40));
+    }
+
+    @Test
+    public void budgetStopsRetryStorm() {
+        // a single failing call may use the whole budget above the half-full mark, and no more
+        for (int i = 0; i < 10; i++) {
+            try {
+                executor.execute(() -> {
+                    throw error(MongoException.TRANSIENT_TRANSACTION_ERROR_LABEL);
+                }, 1000, 1_000_000);
+            } catch (MongoException e) {}
+        }
+
+        Assert.assertEquals(50, sleeps.size());
+        Assert.assertEquals(50.0, executor.budgetTokens(), 0.0001);
+        Assert.assertTrue(giveUps.get(giveUps.size() - 1).endsWith(":retry budget"));
+
+        // successes earn the budget back
+        for (int i = 0; i < 10; i++) {
+            executor.execute(() -> null);
+        }
+        Assert.assertEquals(51.0, executor.budgetTokens(), 0.0001);
+    }
+
+    @Test
+    public void unknownCommitResultRetriesCommitOnly() {
+        AtomicInteger commits = new AtomicInteger();
+
+        executor.commit(() -> {
+            if (commits.incrementAndGet() < 3) {
+                throw error(MongoException.UNKNOWN_TRANSACTION_COMMIT_RESULT_LABEL);
+            }
+        });
+        Assert.assertEquals(3, commits.get());
+
+        // a transient error on commit re-runs the whole transaction, not only the commit
+        try {
+            executor.commit(() -> {
+                commits.incrementAndGet();
+                throw error(MongoException.TRANSIENT_TRANSACTION_ERROR_LABEL);
+            });
+            Assert.fail();
+        } catch (MongoException e) {}
+        Assert.assertEquals(4, commits.get());
+    }
+
+    @Test
+    public void commitWithinTransactionSharesItsAttempts() {
+        AtomicInteger calls = new AtomicInteger();
+        AtomicInteger commits = new AtomicInteger();
+
+        try {
+            executor.execute(() -> {
+                if (calls.incrementAndGet() < 2) {
+                    throw error(MongoException.TRANSIENT_TRANSACTION_ERROR_LABEL);
+                }
+                executor.commit(() -> {
+                    commits.incrementAndGet();
+                    throw error(MongoException.UNKNOWN_TRANSACTION_COMMIT_RESULT_LABEL);
+                });
+                return null;
+            }, 3, 0);
+            Assert.fail();
+        } catch (MongoException e) {
+            Assert.assertTrue(e.hasErrorLabel(MongoException.UNKNOWN_TRANSACTION_COMMIT_RESULT_LABEL));
+        }
+
+        // 1 transaction and 2 commit attempts out of the 3 of the call
+        Assert.assertEquals(2, calls.get());
+        Assert.assertEquals(2, commits.get());
+        Assert.assertEquals("[3:max attempts]", giveUps.toString());
+
+        // a nested transaction is re-run by the outermost call only
+        calls.set(0);
+        executor.execute(() -> executor.execute(() -> {
+            if (calls.incrementAndGet() < 2) {
+                throw error(MongoException.TRANSIENT_TRANSACTION_ERROR_LABEL);
+            }
+            return null;
+        }));
+        Assert.assertEquals(2, calls.get());
+    }
+
+}
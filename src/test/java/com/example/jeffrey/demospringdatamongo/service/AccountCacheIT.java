@@ -0,0 +1,124 @@
+package com.example.jeffrey.demospringdatamongo.service;
+
+import com.example.jeffrey.demospringdatamongo.model.Account;
+import com.example.jeffrey.demospringdatamongo.repository.AccountRepository;
+import com.example.jeffrey.demospringdatamongo.util.EmbeddedMongoDb;
+import org.bson.Document;
+import org.junit.*;
+import org.junit.runner.RunWith;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.test.autoconfigure.data.mongo.DataMongoTest;
+import org.springframework.context.annotation.Import;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.Update;
+import org.springframework.test.annotation.DirtiesContext;
+import org.springframework.test.context.ActiveProfiles;
+import org.springframework.test.context.TestPropertySource;
+import org.springframework.test.context.junit4.SpringRunner;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import static com.mongodb.client.model.Filters.eq;
+
+@RunWith(SpringRunner.class)
+@DataMongoTest
+@Import({AccountCache.class, AccountLoader.class})
+@ActiveProfiles("test")
+@DirtiesContext(classMode = DirtiesContext.ClassMode.AFTER_EACH_TEST_METHOD)
+@TestPropertySource(locations = "/application.properties", properties = {
+        "account.cache.enabled=true",
+        "account.cache.resume-token-interval-ms=0"
+})
+public class AccountCacheIT {
+
+    @Value("${spring.data.mongodb.uri:#{null}}")
+    protected static String mongoDbConnectionString;
+
+    @BeforeClass
+    public static void setUp() throws IOException {
+        EmbeddedMongoDb.replicaSetConfigurer().start(
+                mongoDbConnectionString == null ? EmbeddedMongoDb.DEFAULT_CONN_STR : mongoDbConnectionString
+        );
+    }
+
+    @Autowired
+    AccountRepository accountRepository;
+
+    @Autowired
+    MongoTemplate mongoTemplate;
+
+    @Autowired
+    AccountCache accountCache;
+
+    String accountNumber;
+
+    @Before
+    public void initialize() throws InterruptedException {
+        accountRepository.deleteAll();
+        accountNumber = accountRepository.save(new Account()).accountNumber;
+        Assert.assertTrue(accountCache.awaitWatching(10, TimeUnit.SECONDS));
+    }
+
+    @After
+    public void cleanUp() throws InterruptedException {
+        // the next context would resume after the token saved by this one and replay its changes,
+        // e.g. the deletes of deleteAll evicting entries while the next test reads through
+        accountCache.shutdown();
+        Assert.assertTrue(accountCache.awaitStopped(10, TimeUnit.SECONDS));
+        mongoTemplate.dropCollection("ResumeTokenCollection");
+    }
+
+    @Test
+    public void readThrough() {
+        Assert.assertEquals(100L, accountCache.get(accountNumber).accountBalance.longValue());
+        Assert.assertEquals(100L, accountCache.get(accountNumber).accountBalance.longValue());
+        Assert.assertNull(accountCache.get("unknown-account"));
+
+        Assert.assertEquals(1, accountCache.size());
+        Assert.assertTrue(accountCache.hitRatio() > 0);
+    }
+
+    @Test
+    public void updatedFromChangeStream() throws InterruptedException {
+        Assert.assertEquals(100L, accountCache.get(accountNumber).accountBalance.longValue());
+
+        mongoTemplate.updateFirst(
+                Query.query(Criteria.where("accountNumber").is(accountNumber)),
+                new Update().inc("accountBalance", 50L),
+                Account.class);
+
+        // the cache is eventually consistent, wait for the change event
+        long deadline = System.currentTimeMillis() + 10000;
+        while (accountCache.get(accountNumber).accountBalance != 150L && System.currentTimeMillis() < deadline) {
+            Thread.sleep(50);
+        }
+        Assert.assertEquals(150L, accountCache.get(accountNumber).accountBalance.longValue());
+
+        // resume token is persisted for the next start
+        deadline = System.currentTimeMillis() + 10000;
+        while (mongoTemplate.getCollection("ResumeTokenCollection").find(eq("_id", AccountCache.RESUME_TOKEN_ID)).first() == null
+                && System.currentTimeMillis() < deadline) {
+            Thread.sleep(50);
+        }
+        Document resumeToken = mongoTemplate.getCollection("ResumeTokenCollection").find(eq("_id", AccountCache.RESUME_TOKEN_ID)).first();
+        Assert.assertNotNull(resumeToken);
+    }
+
+    @Test
+    public void evictedOnDelete() throws InterruptedException {
+        Assert.assertNotNull(accountCache.get(accountNumber));
+
+        accountRepository.deleteAll();
+
+        long deadline = System.currentTimeMillis() + 10000;
+        while (accountCache.size() > 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(50);
+        }
+        Assert.assertNull(accountCache.get(accountNumber));
+    }
+
+}
@@ -0,0 +1,102 @@
+package com.example.jeffrey.demospringdatamongo.service;
+
+import com.example.jeffrey.demospringdatamongo.model.Account;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class AccountLoaderTest {
+
+    private final AtomicInteger queries = new AtomicInteger();
+
+    private List<Account> query(Collection<String> accountNumbers) {
+        queries.incrementAndGet();
+        List<Account> accounts = new ArrayList<>();
+        for (String accountNumber : accountNumbers) {
+            if (!accountNumber.startsWith("missing")) {
+                Account account = new Account();
+                account.accountNumber = accountNumber;
+                accounts.add(account);
+            }
+        }
+        return accounts;
+    }
+
+    @Test
+    public void concurrentLookupsAreCoalesced() throws Exception {
+        AccountLoader loader = new AccountLoader(this::query, 5000, 1000);
+        final int MAX_THREAD = 50;
+        ExecutorService executor = Executors.newFixedThreadPool(MAX_THREAD);
+        CountDownLatch start = new CountDownLatch(1);
+
+        List<CompletableFuture<Account>> results = new ArrayList<>();
+        for (int i = 0; i < MAX_THREAD; i++) {
+            String accountNumber = (i % 10 == 0 ? "missing-" : "account-") + i % 20;
+            results.add(CompletableFuture.supplyAsync(() -> {
+                try {
+                    start.await();
+                } catch (InterruptedException e) {}
+                return loader.load(accountNumber);
+            }, executor));
+        }
+        start.countDown();
+
+        for (int i = 0; i < MAX_THREAD; i++) {
+            Account account = results.get(i).get(10, TimeUnit.SECONDS);
+            if (i % 10 == 0) {
+                Assert.assertNull(account);
+            } else {
+                Assert.assertEquals("account-" + i % 20, account.accountNumber);
+            }
+        }
+        Assert.assertTrue("queries: " + queries.get(), queries.get() < MAX_THREAD / 5);
+        executor.shutdownNow();
+    }
+
+    @Test
+    public void queryFailureIsPropagated() {
+        AccountLoader loader = new AccountLoader(accountNumbers -> {
+            throw new IllegalStateException("boom");
+        }, 0, 1000);
+
+        try {
+            loader.load("account-1");
+            Assert.fail();
+        } catch (IllegalStateException e) {
+            Assert.assertEquals("boom", e.getMessage());
+        }
+    }
+
+    @Test
+    public void loadAllKeepsRequestedOrder() {
+        AccountLoader loader = new AccountLoader(this::query, 0, 1000);
+
+        Map<String, Account> accounts = loader.loadAll(Arrays.asList("b", "missing", "a", "b"));
+
+        Assert.assertEquals(Arrays.asList("b", "a"), new ArrayList<>(accounts.keySet()));
+        Assert.assertEquals(1, queries.get());
+    }
+
+    @Test
+    public void lookupsQueuedTogetherShareOneQuery() {
+        AccountLoader loader = new AccountLoader(this::query, 0, 1000);
+
+        List<CompletableFuture<Account>> accounts = loader.loadAsync(Arrays.asList("a", "missing"));
+
+        Assert.assertEquals("a", accounts.get(0).join().accountNumber);
+        Assert.assertNull(accounts.get(1).join());
+        Assert.assertEquals(1, queries.get());
+    }
+
+}
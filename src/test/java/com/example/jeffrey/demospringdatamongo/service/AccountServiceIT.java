@@ -2,6 +2,10 @@ package com.example.jeffrey.demospringdatamongo.service;
 
 import com.example.jeffrey.demospringdatamongo.config.DemoMongoDbConfig;
 import com.example.jeffrey.demospringdatamongo.model.Account;
+import com.example.jeffrey.demospringdatamongo.model.AccountNumberGenerator;
+import com.example.jeffrey.demospringdatamongo.model.Transfer;
+import com.example.jeffrey.demospringdatamongo.model.TransferJournalEntry;
+import com.example.jeffrey.demospringdatamongo.model.TransferProfileReport;
 import com.example.jeffrey.demospringdatamongo.repository.AccountRepository;
 import com.example.jeffrey.demospringdatamongo.util.EmbeddedMongoDb;
 import org.junit.*;
@@ -12,12 +16,17 @@ import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.boot.test.autoconfigure.data.mongo.DataMongoTest;
 import org.springframework.context.annotation.Import;
+import org.springframework.data.mongodb.core.MongoTemplate;
 import org.springframework.test.annotation.DirtiesContext;
 import org.springframework.test.context.ActiveProfiles;
 import org.springframework.test.context.TestPropertySource;
 import org.springframework.test.context.junit4.SpringRunner;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.Executor;
@@ -25,10 +34,13 @@ import java.util.concurrent.Executors;
 
 @RunWith(SpringRunner.class)
 @DataMongoTest
-@Import({DemoMongoDbConfig.class, AccountService.class})
+@Import({DemoMongoDbConfig.class, AccountService.class, TransferLaneExecutor.class, TransferJournalMaterializer.class, AccountStripeService.class, AccountLoader.class, AccountCache.class, AccountNumberFilter.class, TransferProfilingConfig.class})
 @ActiveProfiles("test")
 @DirtiesContext(classMode = DirtiesContext.ClassMode.AFTER_EACH_TEST_METHOD)
-@TestPropertySource(locations = "/application.properties")
+@TestPropertySource(locations = "/application.properties", properties = {
+        "account.journal.materialize-interval-ms=0",
+        "account.filter.enabled=true"
+})
 public class AccountServiceIT {
     private static final Logger LOGGER = LoggerFactory.getLogger(AccountServiceIT.class);
 
@@ -48,6 +60,21 @@ public class AccountServiceIT {
     @Autowired
     AccountService accountService;
 
+    @Autowired
+    TransferJournalMaterializer transferJournalMaterializer;
+
+    @Autowired
+    AccountStripeService accountStripeService;
+
+    @Autowired
+    AccountNumberFilter accountNumberFilter;
+
+    @Autowired
+    TransferProfiler transferProfiler;
+
+    @Autowired
+    MongoTemplate mongoTemplate;
+
     String accountNumberToDebit;
     String accountNumberToCredit;
     long transferAmount = 10L;
@@ -102,7 +129,7 @@ public class AccountServiceIT {
         });
     }
 
-    @Test(expected = AssertionError.class)
+    @Test
     public void test_executeTransferTx_withMongoRepository_runMultipleTransferConcurrently() {
         runMultipleTransferConcurrently(() -> {
             accountService.executeTransferTx_withMongoRepository(transferAmount, accountNumberToDebit, accountNumberToCredit);
@@ -125,7 +152,7 @@ public class AccountServiceIT {
         });
     }
 
-    @Test(expected = AssertionError.class)
+    @Test
     public void test_executeTransferTx_withMongoTemplate_runMultipleTransferConcurrently() {
         runMultipleTransferConcurrently(() -> {
             accountService.executeTransferTx_withMongoTemplate(transferAmount, accountNumberToDebit, accountNumberToCredit);
@@ -148,7 +175,7 @@ public class AccountServiceIT {
         });
     }
 
-    @Test(expected = AssertionError.class)
+    @Test
     public void test_executeTransferTx_withMongoTemplate_atomicReadWrite_runMultipleTransferConcurrently() {
         runMultipleTransferConcurrently(() -> {
             accountService.executeTransferTx_withMongoTemplate_atomicReadWrite(transferAmount, accountNumberToDebit, accountNumberToCredit);
@@ -224,6 +251,273 @@ public class AccountServiceIT {
         });
     }
 
+// TEST 8
+
+    @Test
+    public void test_executeTransfers_runBatch() {
+        List<Transfer> transfers = new ArrayList<>();
+        for (int i=0; i<3; i++) {
+            transfers.add(new Transfer(transferAmount, accountNumberToDebit, accountNumberToCredit));
+        }
+        transfers.add(new Transfer(transferAmount, accountNumberToCredit, accountNumberToDebit));
+
+        accountService.executeTransfers(transfers);
+
+        Assert.assertEquals(80L, accountRepository.findByAccountNumber(accountNumberToDebit).accountBalance.longValue());
+        Assert.assertEquals(120L, accountRepository.findByAccountNumber(accountNumberToCredit).accountBalance.longValue());
+    }
+
+    @Test
+    public void test_executeTransfers_unknownAccountAbortsBatch() {
+        List<Transfer> transfers = new ArrayList<>();
+        transfers.add(new Transfer(transferAmount, accountNumberToDebit, accountNumberToCredit));
+        transfers.add(new Transfer(transferAmount, accountNumberToDebit, "unknown-account"));
+
+        try {
+            accountService.executeTransfers(transfers);
+            Assert.fail("batch with unknown account should abort");
+        } catch (IllegalArgumentException e) {
+            LOGGER.debug("batch aborted: {}", e.getMessage());
+        }
+
+        Assert.assertEquals(100L, accountRepository.findByAccountNumber(accountNumberToDebit).accountBalance.longValue());
+        Assert.assertEquals(100L, accountRepository.findByAccountNumber(accountNumberToCredit).accountBalance.longValue());
+    }
+
+    @Test
+    public void test_executeTransfers_unknownAccountNettedToZeroAbortsBatch() {
+        List<Transfer> transfers = new ArrayList<>();
+        transfers.add(new Transfer(transferAmount, accountNumberToDebit, accountNumberToCredit));
+        transfers.add(new Transfer(transferAmount, accountNumberToDebit, "unknown-account"));
+        transfers.add(new Transfer(transferAmount, "unknown-account", accountNumberToDebit));
+
+        try {
+            accountService.executeTransfers(transfers);
+            Assert.fail("batch with unknown account should abort");
+        } catch (IllegalArgumentException e) {
+            LOGGER.debug("batch aborted: {}", e.getMessage());
+        }
+
+        Assert.assertEquals(100L, accountRepository.findByAccountNumber(accountNumberToDebit).accountBalance.longValue());
+        Assert.assertEquals(100L, accountRepository.findByAccountNumber(accountNumberToCredit).accountBalance.longValue());
+    }
+
+// TEST 9
+
+    @Test
+    public void test_executeTransferTx_withAccountLanes_runMultipleTransferConcurrently() {
+        final int MAX_THREAD = 4;
+        final CountDownLatch lock = new CountDownLatch(MAX_THREAD);
+        final Executor executor = Executors.newFixedThreadPool(MAX_THREAD);
+
+        for (int i=0; i<MAX_THREAD; i++) {
+            executor.execute(() -> {
+                try {
+                    accountService.executeTransferTx_withAccountLanes(transferAmount, accountNumberToDebit, accountNumberToCredit);
+                } catch (RuntimeException e) {
+                    LOGGER.error("error during debit: {}", e.getMessage());
+                }
+                lock.countDown();
+            });
+        }
+
+        try {
+            lock.await();
+        } catch (InterruptedException e) { }
+
+        // no simulated interruption on this path, every transfer is applied
+        Assert.assertEquals(60L, accountRepository.findByAccountNumber(accountNumberToDebit).accountBalance.longValue());
+        Assert.assertEquals(140L, accountRepository.findByAccountNumber(accountNumberToCredit).accountBalance.longValue());
+    }
+
+// TEST 10
+
+    @Test
+    public void test_executeTransfer_withJournal_materialize() {
+        for (int i=0; i<3; i++) {
+            accountService.executeTransfer_withJournal(transferAmount, accountNumberToDebit, accountNumberToCredit);
+        }
+
+        // journaled but not yet materialized
+        Assert.assertEquals(100L, accountService.getAccountBalance(accountNumberToDebit, false));
+        Assert.assertEquals(70L, accountService.getAccountBalance(accountNumberToDebit, true));
+        Assert.assertEquals(130L, accountService.getAccountBalance(accountNumberToCredit, true));
+
+        Assert.assertEquals(3L, transferJournalMaterializer.materialize());
+        Assert.assertEquals(0L, transferJournalMaterializer.materialize());
+
+        Assert.assertEquals(70L, accountService.getAccountBalance(accountNumberToDebit, false));
+        Assert.assertEquals(70L, accountService.getAccountBalance(accountNumberToDebit, true));
+        Assert.assertEquals(130L, accountService.getAccountBalance(accountNumberToCredit, false));
+        Assert.assertEquals(3L, accountService.getJournalCheckpoint().materializedCount);
+    }
+
+    @Test
+    public void test_executeTransfer_withJournal_quarantine() {
+        // e.g. journaled before the account was closed, bypassing the checks of the transfer
+        TransferJournalEntry orphan = new TransferJournalEntry(transferAmount, accountNumberToDebit, "unknown-account");
+        mongoTemplate.insert(orphan);
+        accountService.executeTransfer_withJournal(transferAmount, accountNumberToDebit, accountNumberToCredit);
+
+        // the orphan entry does not block the entry behind it
+        Assert.assertEquals(2L, transferJournalMaterializer.materialize());
+        Assert.assertEquals(90L, accountService.getAccountBalance(accountNumberToDebit, false));
+        Assert.assertEquals(90L, accountService.getAccountBalance(accountNumberToDebit, true));
+        Assert.assertEquals(110L, accountService.getAccountBalance(accountNumberToCredit, false));
+
+        TransferJournalEntry quarantined = mongoTemplate.findById(orphan.id, TransferJournalEntry.class);
+        Assert.assertTrue(quarantined.quarantined);
+        Assert.assertFalse(quarantined.materialized);
+        Assert.assertEquals(0L, transferJournalMaterializer.materialize());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void test_executeTransfer_withJournal_unknownAccount() {
+        accountService.executeTransfer_withJournal(transferAmount, accountNumberToDebit, "unknown-account");
+    }
+
+// TEST 11
+
+    @Test
+    public void test_executeTransferTx_withStripes_runMultipleTransferConcurrently() {
+        Assert.assertEquals(4, accountStripeService.stripeAccount(accountNumberToCredit, 4));
+        // already striped, no-op
+        Assert.assertEquals(4, accountStripeService.stripeAccount(accountNumberToCredit, 8));
+        Assert.assertEquals(100L, accountService.getAccountBalance(accountNumberToCredit, false));
+
+        final int MAX_THREAD = 4;
+        final CountDownLatch lock = new CountDownLatch(MAX_THREAD);
+        final Executor executor = Executors.newFixedThreadPool(MAX_THREAD);
+
+        for (int i=0; i<MAX_THREAD; i++) {
+            final boolean fromHotAccount = i % 2 == 0;
+            executor.execute(() -> {
+                try {
+                    if (fromHotAccount) {
+                        accountService.executeTransferTx_withStripes(transferAmount, accountNumberToCredit, accountNumberToDebit);
+                    } else {
+                        accountService.executeTransferTx_withStripes(transferAmount * 3, accountNumberToDebit, accountNumberToCredit);
+                    }
+                } catch (RuntimeException e) {
+                    LOGGER.error("error during debit: {}", e.getMessage());
+                }
+                lock.countDown();
+            });
+        }
+
+        try {
+            lock.await();
+        } catch (InterruptedException e) { }
+
+        // +60 and -20 on the hot account, the account document itself keeps its zero balance
+        Assert.assertEquals(140L, accountService.getAccountBalance(accountNumberToCredit, false));
+        Assert.assertEquals(140L, accountService.getAccountBalance(accountNumberToCredit, true));
+        Assert.assertEquals(0L, accountRepository.findByAccountNumber(accountNumberToCredit).accountBalance.longValue());
+        Assert.assertEquals(60L, accountService.getAccountBalance(accountNumberToDebit, false));
+    }
+
+// TEST 12
+
+    @Test
+    public void test_executeTransferTx_conditional_runMultipleTransferConcurrently() {
+        runMultipleTransferConcurrently(() -> {
+            accountService.executeTransferTx_conditional(transferAmount, accountNumberToDebit, accountNumberToCredit);
+        }, 60L, 140L);
+    }
+
+    @Test
+    public void test_executeTransferTx_conditional_insufficientFunds() {
+        Assert.assertEquals(0L, accountService.executeTransferTx_conditional(100L, accountNumberToDebit, accountNumberToCredit));
+
+        try {
+            accountService.executeTransferTx_conditional(transferAmount, accountNumberToDebit, accountNumberToCredit);
+            Assert.fail("overdraft should be refused");
+        } catch (InsufficientFundsException e) {
+            Assert.assertEquals(accountNumberToDebit, e.getAccountNumber());
+        }
+
+        Assert.assertEquals(0L, accountRepository.findByAccountNumber(accountNumberToDebit).accountBalance.longValue());
+        Assert.assertEquals(200L, accountRepository.findByAccountNumber(accountNumberToCredit).accountBalance.longValue());
+    }
+
+    @Test
+    public void test_executeTransferTx_conditional_stripedAccountRefused() {
+        accountStripeService.stripeAccount(accountNumberToDebit, 4);
+
+        try {
+            accountService.executeTransferTx_conditional(transferAmount, accountNumberToDebit, accountNumberToCredit);
+            Assert.fail("debit of a striped account should be refused");
+        } catch (StripedAccountException e) {
+            Assert.assertEquals(accountNumberToDebit, e.getAccountNumber());
+        }
+
+        // crediting a striped account still works on the account document
+        Assert.assertEquals(90L, accountService.executeTransferTx_conditional(transferAmount, accountNumberToCredit, accountNumberToDebit));
+        Assert.assertEquals(110L, accountService.getAccountBalance(accountNumberToDebit, false));
+        Assert.assertEquals(90L, accountService.getAccountBalance(accountNumberToCredit, false));
+    }
+
+// TEST 13
+
+    @Test
+    public void test_openAccounts_duplicateAccountNumberRegenerated() {
+        // the first number collides with an existing account, so does the second within the batch
+        Iterator<String> collisions = Arrays.asList(accountNumberToDebit, "duplicate", "duplicate").iterator();
+        List<String> opened = accountService.openAccounts(5, 50L,
+                () -> collisions.hasNext() ? collisions.next() : AccountNumberGenerator.next());
+
+        Assert.assertEquals(5, opened.size());
+        Assert.assertEquals(5, new HashSet<>(opened).size());
+        Assert.assertFalse(opened.contains(accountNumberToDebit));
+        Assert.assertEquals(7, accountRepository.count());
+        for (String accountNumber : opened) {
+            Assert.assertEquals(50L, accountRepository.findByAccountNumber(accountNumber).accountBalance.longValue());
+        }
+        Assert.assertEquals(100L, accountRepository.findByAccountNumber(accountNumberToDebit).accountBalance.longValue());
+    }
+
+// TEST 14
+
+    @Test
+    public void test_executeTransferTx_withMongoTemplate_unknownAccountRejected() throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 10000;
+        while (!accountNumberFilter.isReady() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(50);
+        }
+        Assert.assertTrue(accountNumberFilter.isReady());
+
+        try {
+            accountService.executeTransferTx_withMongoTemplate(transferAmount, accountNumberToDebit, "unknown-account");
+            Assert.fail("unknown account should be rejected");
+        } catch (AccountNotFoundException e) {
+            Assert.assertEquals("unknown-account", e.getAccountNumber());
+        }
+        Assert.assertEquals(100L, accountRepository.findByAccountNumber(accountNumberToDebit).accountBalance.longValue());
+
+        // an account saved by this node passes the filter right away
+        String accountNumber = accountRepository.save(new Account()).accountNumber;
+        accountService.executeTransferTx_withMongoTemplate(transferAmount, accountNumberToDebit, accountNumber);
+        Assert.assertEquals(110L, accountRepository.findByAccountNumber(accountNumber).accountBalance.longValue());
+    }
+
+// TEST 15
+
+    @Test
+    public void test_executeTransfer_profiled() {
+        accountService.executeTransferTx_withMongoTemplate(transferAmount, accountNumberToDebit, accountNumberToCredit);
+        try {
+            accountService.executeTransferTx_withMongoTemplate(transferAmount, accountNumberToDebit, "unknown-account");
+        } catch (AccountNotFoundException e) {}
+
+        TransferProfileReport.StrategyProfile profile = transferProfiler.report().strategies.get("executeTransferTx_withMongoTemplate");
+        Assert.assertNotNull(profile);
+        Assert.assertEquals(2, profile.calls);
+        Assert.assertEquals(1, profile.aborts);
+        Assert.assertEquals(0, profile.conflictAborts);
+        Assert.assertTrue(profile.maxMicros > 0);
+        Assert.assertTrue(transferProfiler.report().hotAccounts.isEmpty());
+    }
+
     protected void runOneTransfer(TransferCommand command) {
         List<Account> accounts = accountRepository.findAll();
         String accountNumberToDebit = accounts.get(0).accountNumber;
@@ -271,6 +565,10 @@ public class AccountServiceIT {
     }
 
     protected void runMultipleTransferConcurrently(TransferCommand command) throws AssertionError {
+        runMultipleTransferConcurrently(command, 70L, 130L);
+    }
+
+    protected void runMultipleTransferConcurrently(TransferCommand command, long expectedDebitBalance, long expectedCreditBalance) throws AssertionError {
         List<Account> accounts = accountRepository.findAll();
         String accountNumberToDebit = accounts.get(0).accountNumber;
         String accountNumberToCredit = accounts.get(1).accountNumber;
@@ -298,10 +596,10 @@ public class AccountServiceIT {
         long creditAccountBalance = accountRepository.findByAccountNumber(accountNumberToCredit).accountBalance;
 
         Assert.assertEquals(
-                Long.valueOf(70L).longValue(),
+                expectedDebitBalance,
                 debitAccountBalance);
         Assert.assertEquals(
-                Long.valueOf(130L).longValue(),
+                expectedCreditBalance,
                 creditAccountBalance);
     }
 }
@@ -0,0 +1,40 @@
+package com.example.jeffrey.demospringdatamongo.service;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class AdaptiveBatchSizeTest {
+
+    @Test
+    public void growsWhileFullAndFast() {
+        AdaptiveBatchSize batchSize = new AdaptiveBatchSize(10, 35, 1000);
+        Assert.assertEquals(10, batchSize.get());
+
+        batchSize.onBatch(10, 500);
+        Assert.assertEquals(20, batchSize.get());
+        batchSize.onBatch(20, 500);
+        batchSize.onBatch(30, 500);
+        Assert.assertEquals(35, batchSize.get());
+
+        // not full, nothing to gain
+        batchSize.onBatch(5, 500);
+        Assert.assertEquals(35, batchSize.get());
+    }
+
+    @Test
+    public void halvesWhenSlow() {
+        AdaptiveBatchSize batchSize = new AdaptiveBatchSize(10, 1000, 1000);
+        for (int i = 0; i < 10; i++) {
+            batchSize.onBatch(batchSize.get(), 500);
+        }
+        Assert.assertEquals(110, batchSize.get());
+
+        batchSize.onBatch(110, 2000);
+        Assert.assertEquals(55, batchSize.get());
+        batchSize.onBatch(55, 2000);
+        batchSize.onBatch(27, 2000);
+        batchSize.onBatch(13, 2000);
+        Assert.assertEquals(10, batchSize.get());
+    }
+
+}
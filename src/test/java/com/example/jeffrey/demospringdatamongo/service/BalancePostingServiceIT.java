@@ -0,0 +1,114 @@
+package com.example.jeffrey.demospringdatamongo.service;
+
+import com.example.jeffrey.demospringdatamongo.model.Account;
+import com.example.jeffrey.demospringdatamongo.model.PostingJob;
+import com.example.jeffrey.demospringdatamongo.model.PostingOperation;
+import com.example.jeffrey.demospringdatamongo.repository.AccountRepository;
+import com.example.jeffrey.demospringdatamongo.util.EmbeddedMongoDb;
+import org.bson.types.ObjectId;
+import org.junit.*;
+import org.junit.runner.RunWith;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.test.autoconfigure.data.mongo.DataMongoTest;
+import org.springframework.context.annotation.Import;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.test.annotation.DirtiesContext;
+import org.springframework.test.context.ActiveProfiles;
+import org.springframework.test.context.TestPropertySource;
+import org.springframework.test.context.junit4.SpringRunner;
+
+import java.io.IOException;
+
+import static com.mongodb.client.model.Filters.eq;
+import static com.mongodb.client.model.Updates.combine;
+import static com.mongodb.client.model.Updates.set;
+
+@RunWith(SpringRunner.class)
+@DataMongoTest
+@Import({BalancePostingService.class})
+@ActiveProfiles("test")
+@DirtiesContext(classMode = DirtiesContext.ClassMode.AFTER_EACH_TEST_METHOD)
+@TestPropertySource(locations = "/application.properties", properties = {
+        "account.posting.workers=2",
+        "account.posting.ranges=4",
+        "account.posting.chunk-size=3"
+})
+public class BalancePostingServiceIT {
+
+    private static final int ACCOUNTS = 20;
+
+    @Value("${spring.data.mongodb.uri:#{null}}")
+    protected static String mongoDbConnectionString;
+
+    @BeforeClass
+    public static void setUp() throws IOException {
+        EmbeddedMongoDb.replicaSetConfigurer().start(
+                mongoDbConnectionString == null ? EmbeddedMongoDb.DEFAULT_CONN_STR : mongoDbConnectionString
+        );
+    }
+
+    @Autowired
+    AccountRepository accountRepository;
+
+    @Autowired
+    MongoTemplate mongoTemplate;
+
+    @Autowired
+    BalancePostingService balancePostingService;
+
+    @Before
+    public void initialize() {
+        accountRepository.deleteAll();
+        for (int i = 0; i < ACCOUNTS; i++) {
+            accountRepository.save(new Account());
+        }
+    }
+
+    private PostingJob awaitCompletion(String jobId) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 10000;
+        PostingJob job = balancePostingService.getJob(jobId);
+        while (job.status == PostingJob.Status.RUNNING && System.currentTimeMillis() < deadline) {
+            Thread.sleep(50);
+            job = balancePostingService.getJob(jobId);
+        }
+        Assert.assertEquals(PostingJob.Status.COMPLETED, job.status);
+        return job;
+    }
+
+    @Test
+    public void feeIsPostedToEveryAccount() throws InterruptedException {
+        PostingJob job = awaitCompletion(balancePostingService.start(PostingOperation.FEE, 5).id);
+
+        Assert.assertEquals(4, job.ranges.size());
+        Assert.assertEquals(ACCOUNTS, job.accounts);
+        Assert.assertEquals(ACCOUNTS, job.processed);
+        Assert.assertEquals(ACCOUNTS, job.posted);
+        for (Account account : accountRepository.findAll()) {
+            Assert.assertEquals(95L, account.accountBalance.longValue());
+            Assert.assertEquals(job.id, account.lastPostingJobId);
+        }
+    }
+
+    @Test
+    public void resumedJobPostsEveryAccountOnce() throws InterruptedException {
+        PostingJob job = awaitCompletion(balancePostingService.start(PostingOperation.INTEREST, 1000).id);
+
+        // rewind the checkpoint as if the job was interrupted before its first checkpoint
+        for (int i = 0; i < job.ranges.size(); i++) {
+            mongoTemplate.getCollection("PostingJobCollection").updateOne(eq("_id", new ObjectId(job.id)), combine(
+                    set("ranges." + i + ".done", false),
+                    set("ranges." + i + ".lastId", null)));
+        }
+        mongoTemplate.getCollection("PostingJobCollection").updateOne(eq("_id", new ObjectId(job.id)),
+                set("status", PostingJob.Status.FAILED.name()));
+
+        job = awaitCompletion(balancePostingService.resume(job.id).id);
+
+        Assert.assertEquals(ACCOUNTS, job.skipped);
+        for (Account account : accountRepository.findAll()) {
+            Assert.assertEquals(110L, account.accountBalance.longValue());
+        }
+    }
+
+}
@@ -0,0 +1,52 @@
+package com.example.jeffrey.demospringdatamongo.service;
+
+import com.example.jeffrey.demospringdatamongo.model.AccountNumberGenerator;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+public class BloomFilterTest {
+
+    @Test
+    public void noFalseNegative() {
+        BloomFilter filter = BloomFilter.create(10_000, 0.01, 1 << 20);
+        List<String> accountNumbers = new ArrayList<>();
+        for (int i = 0; i < 10_000; i++) {
+            String accountNumber = AccountNumberGenerator.next();
+            accountNumbers.add(accountNumber);
+            filter.add(accountNumber);
+        }
+
+        for (String accountNumber : accountNumbers) {
+            Assert.assertTrue(filter.mightContain(accountNumber));
+        }
+        Assert.assertEquals(10_000, filter.insertions());
+    }
+
+    @Test
+    public void falsePositiveRateWithinBounds() {
+        BloomFilter filter = BloomFilter.create(10_000, 0.01, 1 << 20);
+        for (int i = 0; i < 10_000; i++) {
+            filter.add(AccountNumberGenerator.next());
+        }
+
+        int falsePositives = 0;
+        for (int i = 0; i < 100_000; i++) {
+            if (filter.mightContain(AccountNumberGenerator.next())) {
+                falsePositives++;
+            }
+        }
+        Assert.assertTrue(filter.expectedFalsePositiveRate() < 0.011);
+        Assert.assertTrue("false positives: " + falsePositives, falsePositives < 100_000 * 0.02);
+    }
+
+    @Test
+    public void memoryBudgetCapsTheSize() {
+        BloomFilter filter = BloomFilter.create(1_000_000, 0.001, 1024);
+        Assert.assertEquals(1024, filter.sizeInBytes());
+        Assert.assertTrue(filter.hashes() >= 1);
+    }
+
+}
@@ -0,0 +1,173 @@
+package com.example.jeffrey.demospringdatamongo.service;
+
+import com.example.jeffrey.demospringdatamongo.config.DemoMongoDbConfig;
+import com.example.jeffrey.demospringdatamongo.dao.EventBucket;
+import com.example.jeffrey.demospringdatamongo.dao.EventDao;
+import com.example.jeffrey.demospringdatamongo.model.Event;
+import com.example.jeffrey.demospringdatamongo.model.EventKey;
+import com.example.jeffrey.demospringdatamongo.model.EventPage;
+import com.example.jeffrey.demospringdatamongo.util.EmbeddedMongoDb;
+import org.bson.Document;
+import org.junit.*;
+import org.junit.runner.RunWith;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.test.autoconfigure.data.mongo.DataMongoTest;
+import org.springframework.context.annotation.Import;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.test.annotation.DirtiesContext;
+import org.springframework.test.context.ActiveProfiles;
+import org.springframework.test.context.TestPropertySource;
+import org.springframework.test.context.junit4.SpringRunner;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.zip.GZIPInputStream;
+
+@RunWith(SpringRunner.class)
+@DataMongoTest
+@Import({DemoMongoDbConfig.class, EventService.class, EventBatchWriter.class, EventSpool.class, EventDao.class, EventArchiver.class})
+@ActiveProfiles("test")
+@DirtiesContext(classMode = DirtiesContext.ClassMode.AFTER_EACH_TEST_METHOD)
+@TestPropertySource(locations = "/application.properties", properties = {
+        "event.storage.layout=BUCKETED",
+        "event.retention.enabled=true",
+        "event.retention.directory=${java.io.tmpdir}/event-archive-it",
+        "event.retention.interval-ms=3600000"
+})
+public class EventArchiverIT {
+
+    @Value("${spring.data.mongodb.uri:#{null}}")
+    protected static String mongoDbConnectionString;
+
+    @BeforeClass
+    public static void setUp() throws IOException {
+        EmbeddedMongoDb.replicaSetConfigurer().start(
+                mongoDbConnectionString == null ? EmbeddedMongoDb.DEFAULT_CONN_STR : mongoDbConnectionString
+        );
+    }
+
+    @Autowired
+    EventService eventService;
+
+    @Autowired
+    EventDao eventDao;
+
+    @Autowired
+    EventArchiver eventArchiver;
+
+    @Autowired
+    MongoTemplate mongoTemplate;
+
+    private final String stream = "event-stream-0";
+
+    // 3 days of 4 events, 6 hours apart
+    private final Instant start = Instant.parse("2020-05-01T00:00:00Z");
+
+    @Before
+    public void initialize() {
+        eventDao.deleteAll(stream);
+        List<Event> events = new ArrayList<>();
+        for (int i = 0; i < 12; i++) {
+            events.add(new Event(null, start.plusSeconds(i * 6 * 3600L), "payload-" + i));
+        }
+        eventDao.createEvents(stream, events);
+    }
+
+    @After
+    public void cleanUp() {
+        eventDao.deleteAll(stream);
+    }
+
+    @Test
+    public void readsFanOutOverBuckets() {
+        Assert.assertTrue(mongoTemplate.collectionExists(stream + ".2020-05-01"));
+        Assert.assertTrue(mongoTemplate.collectionExists(stream + ".2020-05-03"));
+        Assert.assertFalse(mongoTemplate.collectionExists(stream));
+        Assert.assertEquals(4, mongoTemplate.getCollection(stream + ".2020-05-02").countDocuments());
+        Assert.assertEquals(12, eventService.countEvents(stream));
+
+        List<Event> streamed = new ArrayList<>();
+        EventKey last = eventService.streamEvents(stream, null, 6, streamed::add);
+        eventService.streamEvents(stream, last, 0, streamed::add);
+        Assert.assertEquals(12, streamed.size());
+        for (int i = 0; i < 12; i++) {
+            Assert.assertEquals("payload-" + i, streamed.get(i).getPayload());
+        }
+
+        // [2020-05-01T12:00, 2020-05-02T18:00[ spans two buckets, read 3 events at a time
+        Instant from = start.plusSeconds(12 * 3600L);
+        Instant to = start.plusSeconds(42 * 3600L);
+        List<Event> found = new ArrayList<>();
+        EventKey after = null;
+        do {
+            EventPage page = eventService.findEvents(stream, from, to, after, 3, false);
+            found.addAll(page.events);
+            after = EventKey.fromToken(page.nextPageToken);
+        } while (after != null);
+        Assert.assertEquals(
+                Arrays.asList("payload-2", "payload-3", "payload-4", "payload-5", "payload-6"),
+                found.stream().map(Event::getPayload).collect(Collectors.toList()));
+    }
+
+    @Test
+    public void archivesThenDropsExpiredBuckets() throws IOException {
+        // the first two days are past the retention
+        List<Path> segments = eventArchiver.archive(Instant.parse("2020-05-03T00:00:00Z"));
+
+        Assert.assertEquals(2, segments.size());
+        Assert.assertFalse(mongoTemplate.collectionExists(stream + ".2020-05-01"));
+        Assert.assertFalse(mongoTemplate.collectionExists(stream + ".2020-05-02"));
+        Assert.assertEquals(4, eventService.countEvents(stream));
+
+        List<Document> archived = new ArrayList<>();
+        for (Path segment : segments) {
+            try (BufferedReader reader = new BufferedReader(new InputStreamReader(
+                    new GZIPInputStream(Files.newInputStream(segment)), StandardCharsets.UTF_8))) {
+                reader.lines().map(Document::parse).forEach(archived::add);
+            }
+            Files.delete(segment);
+        }
+        Assert.assertEquals(8, archived.size());
+        for (int i = 0; i < 8; i++) {
+            Assert.assertEquals("payload-" + i, archived.get(i).getString("payload"));
+        }
+
+        // nothing left past the retention
+        Assert.assertTrue(eventArchiver.archive(Instant.parse("2020-05-03T00:00:00Z")).isEmpty());
+    }
+
+    @Test
+    public void lateEventsAreArchivedNextRound() throws IOException {
+        // as if a round stopped right after the freeze, then an event of that day is replayed late
+        eventDao.freezeBucket(new EventBucket(stream, LocalDate.parse("2020-05-01")));
+        eventDao.createEvents(stream, Collections.singletonList(new Event(null, start.plusSeconds(3600L), "late")));
+        Assert.assertEquals(13, eventService.countEvents(stream));
+
+        List<Path> segments = eventArchiver.archive(Instant.parse("2020-05-02T00:00:00Z"));
+        Assert.assertEquals(1, segments.size());
+        Assert.assertEquals(1, mongoTemplate.getCollection(stream + ".2020-05-01").countDocuments());
+        Assert.assertFalse(mongoTemplate.collectionExists(stream + ".2020-05-01.archiving"));
+
+        segments.addAll(eventArchiver.archive(Instant.parse("2020-05-02T00:00:00Z")));
+        Assert.assertEquals(2, segments.size());
+        Assert.assertNotEquals(segments.get(0), segments.get(1));
+        Assert.assertFalse(mongoTemplate.collectionExists(stream + ".2020-05-01"));
+        Assert.assertEquals(8, eventService.countEvents(stream));
+        for (Path segment : segments) {
+            Files.delete(segment);
+        }
+    }
+
+}
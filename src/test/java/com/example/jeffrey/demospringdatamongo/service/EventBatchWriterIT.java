@@ -0,0 +1,89 @@
+package com.example.jeffrey.demospringdatamongo.service;
+
+import com.example.jeffrey.demospringdatamongo.config.DemoMongoDbConfig;
+import com.example.jeffrey.demospringdatamongo.dao.EventDao;
+import com.example.jeffrey.demospringdatamongo.util.EmbeddedMongoDb;
+import org.junit.*;
+import org.junit.runner.RunWith;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.test.autoconfigure.data.mongo.DataMongoTest;
+import org.springframework.context.annotation.Import;
+import org.springframework.test.annotation.DirtiesContext;
+import org.springframework.test.context.ActiveProfiles;
+import org.springframework.test.context.TestPropertySource;
+import org.springframework.test.context.junit4.SpringRunner;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+@RunWith(SpringRunner.class)
+@DataMongoTest
+@Import({DemoMongoDbConfig.class, EventService.class, EventBatchWriter.class, EventSpool.class, EventDao.class})
+@ActiveProfiles("test")
+@DirtiesContext(classMode = DirtiesContext.ClassMode.AFTER_EACH_TEST_METHOD)
+@TestPropertySource(locations = "/application.properties", properties = {
+        "event.writer.async=true",
+        "event.writer.queue-capacity=100"
+})
+public class EventBatchWriterIT {
+
+    @Value("${spring.data.mongodb.uri:#{null}}")
+    protected static String mongoDbConnectionString;
+
+    @BeforeClass
+    public static void setUp() throws IOException {
+        EmbeddedMongoDb.replicaSetConfigurer().start(
+                mongoDbConnectionString == null ? EmbeddedMongoDb.DEFAULT_CONN_STR : mongoDbConnectionString
+        );
+    }
+
+    @Autowired
+    EventService eventService;
+
+    @Autowired
+    EventDao eventDao;
+
+    private final String[] collections = new String[] {
+            "event-collection-0",
+            "event-collection-1",
+            "event-collection-2"
+    };
+
+    @Before
+    public void initialize() {
+        for (String collection:collections) {
+            eventDao.deleteAll(collection);
+        }
+    }
+
+    @Test
+    public void parallelWrites_groupCommitted() throws Exception {
+        // more events than the queue holds, callers wait for room instead of failing
+        final int MAX_THREAD = 10;
+        final int MAX_WRITE = 1000;
+
+        ExecutorService executor = Executors.newFixedThreadPool(MAX_THREAD);
+        List<CompletableFuture<Void>> written = new ArrayList<>();
+        for (int i = 0; i < MAX_WRITE; i++) {
+            String collectionName = collections[i % collections.length];
+            String payload = String.format("%s-%d", collectionName, i);
+            written.add(CompletableFuture.supplyAsync(() -> eventService.create(collectionName, payload), executor)
+                    .thenCompose(future -> future));
+        }
+        CompletableFuture.allOf(written.toArray(new CompletableFuture[0])).get(30, TimeUnit.SECONDS);
+        executor.shutdown();
+
+        int totalEvents = 0;
+        for (String collection:collections) {
+            totalEvents += eventDao.countEvents(collection);
+        }
+        Assert.assertEquals(MAX_WRITE, totalEvents);
+    }
+
+}
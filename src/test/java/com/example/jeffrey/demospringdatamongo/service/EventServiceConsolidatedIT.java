@@ -0,0 +1,102 @@
+package com.example.jeffrey.demospringdatamongo.service;
+
+import com.example.jeffrey.demospringdatamongo.config.DemoMongoDbConfig;
+import com.example.jeffrey.demospringdatamongo.dao.EventDao;
+import com.example.jeffrey.demospringdatamongo.model.Event;
+import com.example.jeffrey.demospringdatamongo.model.EventPage;
+import com.example.jeffrey.demospringdatamongo.util.EmbeddedMongoDb;
+import org.junit.*;
+import org.junit.runner.RunWith;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.test.autoconfigure.data.mongo.DataMongoTest;
+import org.springframework.context.annotation.Import;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.index.IndexInfo;
+import org.springframework.test.annotation.DirtiesContext;
+import org.springframework.test.context.ActiveProfiles;
+import org.springframework.test.context.TestPropertySource;
+import org.springframework.test.context.junit4.SpringRunner;
+
+import java.io.IOException;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+@RunWith(SpringRunner.class)
+@DataMongoTest
+@Import({DemoMongoDbConfig.class, EventService.class, EventBatchWriter.class, EventSpool.class, EventDao.class})
+@ActiveProfiles("test")
+@DirtiesContext(classMode = DirtiesContext.ClassMode.AFTER_EACH_TEST_METHOD)
+@TestPropertySource(locations = "/application.properties", properties = {
+        "event.storage.layout=CONSOLIDATED"
+})
+public class EventServiceConsolidatedIT {
+
+    @Value("${spring.data.mongodb.uri:#{null}}")
+    protected static String mongoDbConnectionString;
+
+    @BeforeClass
+    public static void setUp() throws IOException {
+        EmbeddedMongoDb.replicaSetConfigurer().start(
+                mongoDbConnectionString == null ? EmbeddedMongoDb.DEFAULT_CONN_STR : mongoDbConnectionString
+        );
+    }
+
+    @Autowired
+    EventService eventService;
+
+    @Autowired
+    EventDao eventDao;
+
+    @Autowired
+    MongoTemplate mongoTemplate;
+
+    private final String[] streams = new String[] {
+            "event-stream-0",
+            "event-stream-1"
+    };
+
+    @Before
+    public void initialize() {
+        mongoTemplate.dropCollection("EventCollection");
+    }
+
+    @Test
+    public void streamsShareOneCollection() {
+        for (int i = 0; i < 10; i++) {
+            eventService.create(streams[0], "payload-" + i);
+        }
+        Instant start = Instant.parse("2020-05-01T00:00:00Z");
+        List<Event> events = new ArrayList<>();
+        for (int i = 0; i < 5; i++) {
+            events.add(new Event(null, start.plusSeconds(i), "payload-" + i));
+        }
+        eventDao.createEvents(streams[1], events);
+
+        Assert.assertFalse(mongoTemplate.collectionExists(streams[0]));
+        Assert.assertFalse(mongoTemplate.collectionExists(streams[1]));
+        Assert.assertEquals(15, mongoTemplate.getCollection("EventCollection").countDocuments());
+        Assert.assertEquals(10, eventService.countEvents(streams[0]));
+        Assert.assertEquals(5, eventService.countEvents(streams[1]));
+
+        List<IndexInfo> indexes = mongoTemplate.indexOps("EventCollection").getIndexInfo();
+        Assert.assertTrue(indexes.stream().anyMatch(index -> index.getName().equals("stream_hashed")));
+        Assert.assertTrue(indexes.stream().anyMatch(index -> index.isIndexForFields(Arrays.asList("stream", "createdOn", "_id"))));
+
+        List<Event> streamed = new ArrayList<>();
+        eventService.streamEvents(streams[0], null, 0, streamed::add);
+        Assert.assertEquals(10, streamed.size());
+        Assert.assertEquals("payload-0", streamed.get(0).getPayload());
+
+        EventPage page = eventService.findEvents(streams[1], start, start.plusSeconds(3), null, 2, false);
+        Assert.assertEquals(2, page.events.size());
+        Assert.assertNotNull(page.nextPageToken);
+
+        eventDao.deleteAll(streams[0]);
+        Assert.assertEquals(0, eventService.countEvents(streams[0]));
+        Assert.assertEquals(5, eventService.countEvents(streams[1]));
+    }
+
+}
@@ -2,6 +2,9 @@ package com.example.jeffrey.demospringdatamongo.service;
 
 import com.example.jeffrey.demospringdatamongo.config.DemoMongoDbConfig;
 import com.example.jeffrey.demospringdatamongo.dao.EventDao;
+import com.example.jeffrey.demospringdatamongo.model.Event;
+import com.example.jeffrey.demospringdatamongo.model.EventKey;
+import com.example.jeffrey.demospringdatamongo.model.EventPage;
 import com.example.jeffrey.demospringdatamongo.util.EmbeddedMongoDb;
 import org.junit.*;
 import org.junit.runner.RunWith;
@@ -11,12 +14,17 @@ import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.boot.test.autoconfigure.data.mongo.DataMongoTest;
 import org.springframework.context.annotation.Import;
+import org.springframework.data.mongodb.core.MongoTemplate;
 import org.springframework.test.annotation.DirtiesContext;
 import org.springframework.test.context.ActiveProfiles;
 import org.springframework.test.context.TestPropertySource;
 import org.springframework.test.context.junit4.SpringRunner;
 
 import java.io.IOException;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 import java.util.Random;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.Executor;
@@ -25,7 +33,7 @@ import java.util.concurrent.TimeUnit;
 
 @RunWith(SpringRunner.class)
 @DataMongoTest
-@Import({DemoMongoDbConfig.class, EventService.class, EventDao.class})
+@Import({DemoMongoDbConfig.class, EventService.class, EventBatchWriter.class, EventSpool.class, EventDao.class})
 @ActiveProfiles("test")
 @DirtiesContext(classMode = DirtiesContext.ClassMode.AFTER_EACH_TEST_METHOD)
 @TestPropertySource(locations = "/application.properties")
@@ -51,6 +59,9 @@ public class EventServiceIT {
     @Autowired
     EventDao eventDao;
 
+    @Autowired
+    MongoTemplate mongoTemplate;
+
     private final String[] collections = new String[] {
             "event-collection-0",
             "event-collection-1",
@@ -73,6 +84,68 @@ public class EventServiceIT {
         }
     }
 
+    @Test
+    public void streamEvents_pagedByKeyset() {
+        for (int i = 0; i < 25; i++) {
+            eventService.create(collections[0], "payload-" + i);
+        }
+
+        List<Event> events = new ArrayList<>();
+        EventKey after = null;
+        for (int page = 0; page < 3; page++) {
+            after = eventService.streamEvents(collections[0], after, 10, events::add);
+        }
+        Assert.assertNull(eventService.streamEvents(collections[0], after, 10, events::add));
+
+        Assert.assertEquals(25, events.size());
+        Assert.assertEquals(25, eventService.countEvents(collections[0]));
+        Assert.assertEquals(25, events.stream().map(Event::getId).distinct().count());
+        for (int i = 1; i < events.size(); i++) {
+            EventKey previous = EventKey.of(events.get(i - 1));
+            Assert.assertFalse(events.get(i).getCreatedOn().isBefore(previous.createdOn));
+        }
+        Assert.assertEquals(EventKey.of(events.get(24)).toToken(), after.toToken());
+        Assert.assertEquals(after.id, EventKey.fromToken(after.toToken()).id);
+    }
+
+    @Test
+    public void findEvents_timeRangePaged() {
+        Instant start = Instant.parse("2020-05-01T00:00:00Z");
+        List<Event> created = new ArrayList<>();
+        for (int i = 0; i < 30; i++) {
+            created.add(new Event(null, start.plusSeconds(i), "payload-" + i));
+        }
+        eventDao.createEvents(collections[1], created);
+
+        // indexed on the first write to the collection
+        Assert.assertTrue(mongoTemplate.indexOps(collections[1]).getIndexInfo().stream()
+                .anyMatch(index -> index.isIndexForFields(Arrays.asList("createdOn", "_id"))));
+
+        List<Event> events = new ArrayList<>();
+        int pages = 0;
+        String token = null;
+        do {
+            EventPage page = eventService.findEvents(collections[1], start.plusSeconds(5), start.plusSeconds(25),
+                    EventKey.fromToken(token), 8, false);
+            events.addAll(page.events);
+            token = page.nextPageToken;
+            pages++;
+        } while (token != null);
+
+        Assert.assertEquals(3, pages);
+        Assert.assertEquals(20, events.size());
+        for (int i = 0; i < events.size(); i++) {
+            Assert.assertEquals("payload-" + (i + 5), events.get(i).getPayload());
+        }
+
+        EventPage ids = eventService.findEvents(collections[1], start, start.plusSeconds(60), null, 100, true);
+        Assert.assertEquals(30, ids.events.size());
+        Assert.assertNull(ids.nextPageToken);
+        Assert.assertNotNull(ids.events.get(0).getId());
+        Assert.assertEquals(start, ids.events.get(0).getCreatedOn());
+        Assert.assertNull(ids.events.get(0).getPayload());
+    }
+
     public void parallelWrites(int cycle) throws InterruptedException {
         /**
          * Suppose a single thread write of X records yields Y ms, writing the same amount
@@ -114,7 +187,7 @@ public class EventServiceIT {
 
         int totalEvents = 0;
         for (String collection:collections) {
-            totalEvents += eventDao.findAllEvents(collection).size();
+            totalEvents += eventDao.countEvents(collection);
         }
         Assert.assertEquals(MAX_WRITE * cycle, totalEvents);
     }
@@ -0,0 +1,135 @@
+package com.example.jeffrey.demospringdatamongo.service;
+
+import com.example.jeffrey.demospringdatamongo.config.DemoMongoDbConfig;
+import com.example.jeffrey.demospringdatamongo.dao.EventDao;
+import com.example.jeffrey.demospringdatamongo.model.Event;
+import com.example.jeffrey.demospringdatamongo.util.EmbeddedMongoDb;
+import com.mongodb.client.model.CreateCollectionOptions;
+import com.mongodb.client.model.Filters;
+import com.mongodb.client.model.ValidationOptions;
+import org.bson.Document;
+import org.junit.*;
+import org.junit.runner.RunWith;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.test.autoconfigure.data.mongo.DataMongoTest;
+import org.springframework.context.annotation.Import;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.test.annotation.DirtiesContext;
+import org.springframework.test.context.ActiveProfiles;
+import org.springframework.test.context.TestPropertySource;
+import org.springframework.test.context.junit4.SpringRunner;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.stream.Stream;
+
+@RunWith(SpringRunner.class)
+@DataMongoTest
+@Import({DemoMongoDbConfig.class, EventService.class, EventBatchWriter.class, EventSpool.class, EventDao.class})
+@ActiveProfiles("test")
+@DirtiesContext(classMode = DirtiesContext.ClassMode.AFTER_EACH_TEST_METHOD)
+@TestPropertySource(locations = "/application.properties", properties = {
+        "event.spool.enabled=true",
+        "event.spool.directory=target/event-spool-${random.uuid}",
+        // a few events per segment, so that segments roll and get deleted
+        "event.spool.segment-bytes=1024"
+})
+public class EventSpoolIT {
+
+    @Value("${spring.data.mongodb.uri:#{null}}")
+    protected static String mongoDbConnectionString;
+
+    @BeforeClass
+    public static void setUp() throws IOException {
+        EmbeddedMongoDb.replicaSetConfigurer().start(
+                mongoDbConnectionString == null ? EmbeddedMongoDb.DEFAULT_CONN_STR : mongoDbConnectionString
+        );
+    }
+
+    @Autowired
+    EventService eventService;
+
+    @Autowired
+    EventDao eventDao;
+
+    @Autowired
+    EventSpool eventSpool;
+
+    @Autowired
+    MongoTemplate mongoTemplate;
+
+    @Before
+    public void initialize() {
+        eventDao.deleteAll("event-collection-0");
+        eventDao.deleteAll("event-collection-1");
+    }
+
+    @Test
+    public void spooledEventsDrainedInOrder() throws Exception {
+        final int MAX_WRITE = 200;
+        for (int i = 0; i < MAX_WRITE; i++) {
+            Assert.assertTrue(eventService.create("event-collection-0", "payload-" + i).isDone());
+        }
+
+        long deadline = System.currentTimeMillis() + 10000;
+        while (eventDao.countEvents("event-collection-0") < MAX_WRITE && System.currentTimeMillis() < deadline) {
+            Thread.sleep(100);
+        }
+        Assert.assertEquals(MAX_WRITE, eventDao.countEvents("event-collection-0"));
+
+        // drained in spool order
+        List<Event> events = new ArrayList<>();
+        eventDao.streamEvents("event-collection-0", null, 0, events::add);
+        Set<String> ids = new HashSet<>();
+        for (int i = 0; i < MAX_WRITE; i++) {
+            Assert.assertEquals("payload-" + i, events.get(i).getPayload());
+            ids.add(events.get(i).getId());
+        }
+        Assert.assertEquals(MAX_WRITE, ids.size());
+
+        // only the segment appended to is left
+        while (segmentCount() > 1 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(100);
+        }
+        Assert.assertEquals(1, segmentCount());
+    }
+
+    @Test
+    public void rejectedEventMovedToDeadLetter() throws Exception {
+        mongoTemplate.getDb().createCollection("event-collection-1", new CreateCollectionOptions()
+                .validationOptions(new ValidationOptions().validator(Filters.regex("payload", "^payload-"))));
+
+        eventService.create("event-collection-1", "poison");
+        eventService.create("event-collection-1", "payload-1");
+
+        // the events after the rejected one are not blocked
+        long deadline = System.currentTimeMillis() + 10000;
+        while (eventDao.countEvents("event-collection-1") < 1 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(100);
+        }
+        Assert.assertEquals(1, eventDao.countEvents("event-collection-1"));
+
+        List<String> deadLetters = Files.readAllLines(Paths.get(eventSpool.directory, EventSpool.DEAD_LETTER_FILE));
+        Assert.assertEquals(1, deadLetters.size());
+        Assert.assertEquals("poison", Document.parse(deadLetters.get(0)).getString("payload"));
+    }
+
+    @Test(expected = BadRequestException.class)
+    public void invalidStreamNameRejectedBeforeSpooled() {
+        eventService.create("event$collection", "payload-0");
+    }
+
+    private long segmentCount() throws IOException {
+        try (Stream<Path> files = Files.list(Paths.get(eventSpool.directory))) {
+            return files.filter(file -> file.toString().endsWith(EventSpoolSegment.SUFFIX)).count();
+        }
+    }
+
+}
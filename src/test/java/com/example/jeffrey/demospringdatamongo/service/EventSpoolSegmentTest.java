@@ -0,0 +1,89 @@
+package com.example.jeffrey.demospringdatamongo.service;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Instant;
+import java.util.stream.Stream;
+
+public class EventSpoolSegmentTest {
+
+    private Path directory;
+
+    @Before
+    public void initialize() throws IOException {
+        directory = Files.createTempDirectory("event-spool");
+    }
+
+    @After
+    public void cleanUp() throws IOException {
+        try (Stream<Path> files = Files.list(directory)) {
+            files.forEach(file -> file.toFile().delete());
+        }
+        Files.delete(directory);
+    }
+
+    @Test
+    public void appendedRecordsReadBack() throws IOException {
+        Instant createdOn = Instant.ofEpochSecond(1_600_000_000L, 123_456_789);
+        try (EventSpoolSegment segment = EventSpoolSegment.create(directory, 1, 4096)) {
+            Assert.assertTrue(segment.append(new EventSpoolSegment.Record("event-collection-0", "id-1", createdOn, "payload-1")));
+            Assert.assertTrue(segment.append(new EventSpoolSegment.Record("event-collection-1", "id-2", createdOn, "payload-é")));
+
+            EventSpoolSegment.Record first = segment.read(0, segment.position());
+            Assert.assertEquals("event-collection-0", first.collectionName);
+            Assert.assertEquals("id-1", first.id);
+            Assert.assertEquals(createdOn, first.createdOn);
+            Assert.assertEquals("payload-1", first.payload);
+
+            EventSpoolSegment.Record second = segment.read(first.end, segment.position());
+            Assert.assertEquals("payload-é", second.payload);
+            Assert.assertEquals(segment.position(), second.end);
+            Assert.assertNull(segment.read(second.end, segment.position()));
+
+            // not acknowledged yet, beyond the limit
+            Assert.assertNull(segment.read(first.end, first.end));
+        }
+    }
+
+    @Test
+    public void fullSegmentRejectsAppend() throws IOException {
+        try (EventSpoolSegment segment = EventSpoolSegment.create(directory, 1, 64)) {
+            Assert.assertTrue(segment.append(new EventSpoolSegment.Record("c", "1", Instant.now(), "p")));
+            Assert.assertFalse(segment.append(new EventSpoolSegment.Record("c", "2", Instant.now(), "payload too large")));
+        }
+    }
+
+    @Test
+    public void reopenedSegmentEndsBeforeTornRecord() throws IOException {
+        Path path;
+        int end;
+        try (EventSpoolSegment segment = EventSpoolSegment.create(directory, 7, 4096)) {
+            segment.append(new EventSpoolSegment.Record("c", "1", Instant.now(), "first"));
+            end = segment.position();
+            segment.append(new EventSpoolSegment.Record("c", "2", Instant.now(), "second"));
+            segment.force();
+            path = segment.path;
+        }
+
+        // a crash in the middle of the second record
+        try (RandomAccessFile file = new RandomAccessFile(path.toFile(), "rw")) {
+            file.seek(end + 12);
+            file.write(0xff);
+        }
+
+        try (EventSpoolSegment segment = EventSpoolSegment.open(path)) {
+            Assert.assertEquals(7, segment.sequence);
+            Assert.assertEquals(end, segment.position());
+            Assert.assertEquals(end, segment.sealedAt());
+            Assert.assertEquals("first", segment.read(0, segment.sealedAt()).payload);
+        }
+    }
+
+}
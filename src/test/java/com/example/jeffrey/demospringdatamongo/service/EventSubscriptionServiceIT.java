@@ -0,0 +1,118 @@
+package com.example.jeffrey.demospringdatamongo.service;
+
+import com.example.jeffrey.demospringdatamongo.config.DemoMongoDbConfig;
+import com.example.jeffrey.demospringdatamongo.dao.EventDao;
+import com.example.jeffrey.demospringdatamongo.model.Event;
+import com.example.jeffrey.demospringdatamongo.util.EmbeddedMongoDb;
+import org.junit.*;
+import org.junit.runner.RunWith;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.test.autoconfigure.data.mongo.DataMongoTest;
+import org.springframework.context.annotation.Import;
+import org.springframework.test.annotation.DirtiesContext;
+import org.springframework.test.context.ActiveProfiles;
+import org.springframework.test.context.TestPropertySource;
+import org.springframework.test.context.junit4.SpringRunner;
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+@RunWith(SpringRunner.class)
+@DataMongoTest
+@Import({DemoMongoDbConfig.class, EventSubscriptionService.class, EventDao.class})
+@ActiveProfiles("test")
+@DirtiesContext(classMode = DirtiesContext.ClassMode.AFTER_EACH_TEST_METHOD)
+@TestPropertySource(locations = "/application.properties", properties = {
+        "event.subscription.enabled=true",
+        "event.subscription.buffer-size=2"
+})
+public class EventSubscriptionServiceIT {
+
+    @Value("${spring.data.mongodb.uri:#{null}}")
+    protected static String mongoDbConnectionString;
+
+    @BeforeClass
+    public static void setUp() throws IOException {
+        EmbeddedMongoDb.replicaSetConfigurer().start(
+                mongoDbConnectionString == null ? EmbeddedMongoDb.DEFAULT_CONN_STR : mongoDbConnectionString
+        );
+    }
+
+    @Autowired
+    EventSubscriptionService eventSubscriptionService;
+
+    @Autowired
+    EventDao eventDao;
+
+    private static final String COLLECTION = "event-collection-0";
+
+    @Before
+    public void initialize() {
+        eventDao.deleteAll(COLLECTION);
+    }
+
+    @Test
+    public void subscribers_resumeFromRingBufferOrCatchUp() throws Exception {
+        CapturingEmitter first = new CapturingEmitter();
+        eventSubscriptionService.subscribe(COLLECTION, null, first);
+        Assert.assertTrue(eventSubscriptionService.awaitWatching(COLLECTION, 10, TimeUnit.SECONDS));
+
+        // one at a time, not to overrun the ring buffer of 2 events
+        for (int i = 1; i <= 5; i++) {
+            eventDao.createEvent(COLLECTION, "payload-" + i);
+            first.await(i);
+        }
+        Assert.assertEquals("payload-1,payload-2,payload-3,payload-4,payload-5", first.payloads());
+
+        // event 4 is still in the ring buffer
+        CapturingEmitter resumed = new CapturingEmitter();
+        eventSubscriptionService.subscribe(COLLECTION, first.ids.get(3), resumed);
+        resumed.await(1);
+        Assert.assertEquals("payload-5", resumed.payloads());
+
+        // event 1 is not, caught up from a change stream of its own, then from the ring buffer
+        CapturingEmitter caughtUp = new CapturingEmitter();
+        eventSubscriptionService.subscribe(COLLECTION, first.ids.get(0), caughtUp);
+        caughtUp.await(4);
+        eventDao.createEvent(COLLECTION, "payload-6");
+        caughtUp.await(5);
+        first.await(6);
+        Assert.assertEquals("payload-2,payload-3,payload-4,payload-5,payload-6", caughtUp.payloads());
+        Assert.assertEquals(first.ids.subList(1, 6), caughtUp.ids);
+    }
+
+    private static class CapturingEmitter extends SseEmitter {
+        private final List<String> ids = new CopyOnWriteArrayList<>();
+        private final List<Event> events = new CopyOnWriteArrayList<>();
+
+        @Override
+        public void send(SseEventBuilder builder) {
+            for (DataWithMediaType data : builder.build()) {
+                if (data.getData() instanceof Event) {
+                    events.add((Event) data.getData());
+                } else if (data.getData().toString().startsWith("id:")) {
+                    String text = data.getData().toString();
+                    ids.add(text.substring(3, text.indexOf('\n')));
+                }
+            }
+        }
+
+        private void await(int count) throws InterruptedException {
+            long deadline = System.currentTimeMillis() + 10000;
+            while (events.size() < count && System.currentTimeMillis() < deadline) {
+                Thread.sleep(50);
+            }
+            Assert.assertEquals(count, events.size());
+        }
+
+        private String payloads() {
+            return events.stream().map(Event::getPayload).collect(Collectors.joining(","));
+        }
+    }
+
+}
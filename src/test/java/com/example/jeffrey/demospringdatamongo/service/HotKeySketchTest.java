@@ -0,0 +1,94 @@
+package com.example.jeffrey.demospringdatamongo.service;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+public class HotKeySketchTest {
+
+    @Test
+    public void estimateNeverUndercounts() {
+        HotKeySketch sketch = new HotKeySketch(4, 256, 10);
+        Map<String, Long> counts = new HashMap<>();
+        for (int i = 0; i < 10_000; i++) {
+            String key = "account-" + (i * 7919 % 1000);
+            sketch.add(key);
+            counts.merge(key, 1L, Long::sum);
+        }
+
+        Assert.assertEquals(10_000, sketch.total());
+        long overcount = 0;
+        int overBound = 0;
+        for (Map.Entry<String, Long> count : counts.entrySet()) {
+            long estimate = sketch.estimate(count.getKey());
+            // guaranteed
+            Assert.assertTrue(estimate >= count.getValue());
+            overcount += estimate - count.getValue();
+            // 2N / width, only with probability 1 - (1/2)^depth per key
+            if (estimate - count.getValue() > 2 * 10_000 / 256) {
+                overBound++;
+            }
+        }
+        // expected 1/16 of the keys at most, asserted with a wide margin
+        Assert.assertTrue("keys over 2N / width: " + overBound, overBound <= counts.size() / 4);
+        // each row overcounts by N / width on average, the minimum of the rows by less
+        Assert.assertTrue("mean overcount: " + overcount / counts.size(), overcount / counts.size() <= 10_000 / 256);
+    }
+
+    @Test
+    public void hotKeysReportedFirst() {
+        HotKeySketch sketch = new HotKeySketch(4, 1024, 3);
+        for (int i = 0; i < 5_000; i++) {
+            sketch.add("cold-" + i);
+            if (i % 5 == 0) {
+                sketch.add("hot-1");
+            }
+            if (i % 10 == 0) {
+                sketch.add("hot-2");
+            }
+            if (i % 20 == 0) {
+                sketch.add("hot-3");
+            }
+        }
+
+        List<String> top = new ArrayList<>(sketch.top().keySet());
+        Assert.assertEquals(3, top.size());
+        Assert.assertEquals("hot-1", top.get(0));
+        Assert.assertEquals("hot-2", top.get(1));
+        Assert.assertEquals("hot-3", top.get(2));
+        Assert.assertTrue(sketch.top().get("hot-1") >= 1000);
+    }
+
+    @Test
+    public void resetForgetsEverything() {
+        HotKeySketch sketch = new HotKeySketch(2, 64, 5);
+        sketch.add("account");
+        sketch.reset();
+
+        Assert.assertEquals(0, sketch.total());
+        Assert.assertEquals(0, sketch.estimate("account"));
+        Assert.assertTrue(sketch.top().isEmpty());
+        Assert.assertEquals(2 * 64 * 8, sketch.sizeInBytes());
+    }
+
+    @Test
+    public void latencyPercentilesWithinFactorOfTwo() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (int i = 1; i <= 1000; i++) {
+            histogram.record(i * 1000L);
+        }
+
+        Assert.assertEquals(1000, histogram.count());
+        Assert.assertEquals(1000, histogram.maxMicros());
+        Assert.assertEquals(500.5, histogram.meanMicros(), 0.001);
+        long p50 = histogram.percentileMicros(0.5);
+        Assert.assertTrue("p50: " + p50, p50 >= 500 && p50 <= 1000);
+        Assert.assertEquals(1000, histogram.percentileMicros(0.99));
+        Assert.assertEquals(0, new LatencyHistogram().percentileMicros(0.99));
+    }
+
+}
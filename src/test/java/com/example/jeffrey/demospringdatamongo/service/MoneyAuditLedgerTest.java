@@ -0,0 +1,111 @@
+package com.example.jeffrey.demospringdatamongo.service;
+
+import com.example.jeffrey.demospringdatamongo.model.MoneyAuditReport;
+import com.example.jeffrey.demospringdatamongo.model.UnbalancedTransaction;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+public class MoneyAuditLedgerTest {
+
+    private final List<UnbalancedTransaction> alerts = new ArrayList<>();
+
+    private MoneyAuditLedger ledger;
+
+    @Before
+    public void initialize() {
+        Map<String, Long> snapshot = new HashMap<>();
+        snapshot.put("A", 100L);
+        snapshot.put("B", 100L);
+
+        ledger = new MoneyAuditLedger(10, alerts::add);
+        ledger.seed(snapshot);
+    }
+
+    private MoneyAuditReport report() {
+        MoneyAuditReport report = new MoneyAuditReport();
+        ledger.report(report);
+        return report;
+    }
+
+    @Test
+    public void balancedTransactionsAreAudited() {
+        ledger.apply("tx1", 1, "A", 90L, false);
+        ledger.apply("tx1", 1, "B", 110L, false);
+        // the next transaction closes the previous one
+        ledger.apply("tx2", 2, "B", 60L, false);
+        ledger.apply("tx2", 2, "A", 140L, false);
+        ledger.close();
+
+        MoneyAuditReport report = report();
+        Assert.assertEquals(2, report.transactions);
+        Assert.assertEquals(0, report.unbalancedTransactions);
+        Assert.assertEquals(200L, report.total);
+        Assert.assertTrue(alerts.isEmpty());
+    }
+
+    @Test
+    public void unbalancedTransactionIsAlerted() {
+        ledger.apply("tx1", 1, "A", 90L, false);
+        ledger.apply("tx1", 1, "B", 115L, false);
+        ledger.close();
+
+        Assert.assertEquals(1, alerts.size());
+        Assert.assertEquals(5L, alerts.get(0).netDelta);
+        Assert.assertEquals(2, alerts.get(0).changes);
+        Assert.assertEquals(1, report().unbalancedTransactions);
+        Assert.assertEquals(205L, ledger.total());
+    }
+
+    @Test
+    public void insertsAndDeletesWithinTransactionAreBalanced() {
+        // e.g. striping an account, the balance moves into new stripe documents
+        ledger.apply("tx1", 1, "A", 0L, false);
+        ledger.apply("tx1", 1, "A#0", 50L, true);
+        ledger.apply("tx1", 1, "A#1", 50L, true);
+        ledger.apply("tx2", 2, "A#1", null, false);
+        ledger.apply("tx2", 2, "B", 150L, false);
+        ledger.close();
+
+        Assert.assertTrue(alerts.isEmpty());
+        Assert.assertEquals(200L, ledger.total());
+    }
+
+    @Test
+    public void nonTransactionalAndUnknownChangesAreNotAudited() {
+        ledger.apply(null, 1, "C", 100L, true);
+        ledger.apply(null, 1, "A", 50L, false);
+        // previous balance of D not known, the net delta can not be checked
+        ledger.apply("tx1", 2, "D", 10L, false);
+        ledger.close();
+
+        MoneyAuditReport report = report();
+        Assert.assertTrue(alerts.isEmpty());
+        Assert.assertEquals(2, report.nonTransactionalChanges);
+        Assert.assertEquals(50L, report.nonTransactionalDelta);
+        Assert.assertEquals(1, report.unverifiableTransactions);
+        Assert.assertEquals(260L, report.total);
+    }
+
+    @Test
+    public void reconcileAdoptsSnapshotOnDrift() {
+        ledger.apply("tx1", 1, "A", 90L, false);
+        ledger.apply("tx1", 1, "B", 110L, false);
+
+        Map<String, Long> snapshot = new HashMap<>();
+        snapshot.put("A", 90L);
+        snapshot.put("B", 110L);
+        Assert.assertEquals(0L, ledger.reconcile(snapshot));
+        Assert.assertEquals(1, report().transactions);
+
+        snapshot.put("B", 120L);
+        Assert.assertEquals(10L, ledger.reconcile(snapshot));
+        Assert.assertEquals(210L, ledger.total());
+    }
+
+}
@@ -0,0 +1,117 @@
+package com.example.jeffrey.demospringdatamongo.service;
+
+import com.example.jeffrey.demospringdatamongo.model.Account;
+import com.example.jeffrey.demospringdatamongo.model.MoneyAuditReport;
+import com.example.jeffrey.demospringdatamongo.repository.AccountRepository;
+import com.example.jeffrey.demospringdatamongo.util.EmbeddedMongoDb;
+import com.mongodb.ClientSessionOptions;
+import com.mongodb.client.ClientSession;
+import org.junit.*;
+import org.junit.runner.RunWith;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.test.autoconfigure.data.mongo.DataMongoTest;
+import org.springframework.context.annotation.Import;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.test.annotation.DirtiesContext;
+import org.springframework.test.context.ActiveProfiles;
+import org.springframework.test.context.TestPropertySource;
+import org.springframework.test.context.junit4.SpringRunner;
+
+import java.io.IOException;
+import java.util.function.Predicate;
+
+import static com.mongodb.client.model.Filters.eq;
+import static com.mongodb.client.model.Updates.inc;
+
+@RunWith(SpringRunner.class)
+@DataMongoTest
+@Import({MoneyAuditService.class})
+@ActiveProfiles("test")
+@DirtiesContext(classMode = DirtiesContext.ClassMode.AFTER_EACH_TEST_METHOD)
+@TestPropertySource(locations = "/application.properties", properties = "account.audit.enabled=true")
+public class MoneyAuditServiceIT {
+
+    @Value("${spring.data.mongodb.uri:#{null}}")
+    protected static String mongoDbConnectionString;
+
+    @BeforeClass
+    public static void setUp() throws IOException {
+        EmbeddedMongoDb.replicaSetConfigurer().start(
+                mongoDbConnectionString == null ? EmbeddedMongoDb.DEFAULT_CONN_STR : mongoDbConnectionString
+        );
+    }
+
+    @Autowired
+    AccountRepository accountRepository;
+
+    @Autowired
+    MongoTemplate mongoTemplate;
+
+    @Autowired
+    MoneyAuditService moneyAuditService;
+
+    String debitAccountNumber;
+    String creditAccountNumber;
+
+    @Before
+    public void initialize() {
+        accountRepository.deleteAll();
+        debitAccountNumber = accountRepository.save(new Account()).accountNumber;
+        creditAccountNumber = accountRepository.save(new Account()).accountNumber;
+    }
+
+    private void transfer(long debit, long credit) {
+        try (ClientSession session = mongoTemplate.getMongoDbFactory().getSession(ClientSessionOptions.builder().build())) {
+            session.withTransaction(() -> {
+                mongoTemplate.getCollection("AccountCollection").updateOne(session, eq("accountNumber", debitAccountNumber), inc("accountBalance", -debit));
+                mongoTemplate.getCollection("AccountCollection").updateOne(session, eq("accountNumber", creditAccountNumber), inc("accountBalance", credit));
+                return null;
+            });
+        }
+    }
+
+    private MoneyAuditReport awaitReport(Predicate<MoneyAuditReport> condition) throws InterruptedException {
+        // the audit is eventually consistent, wait for the change events
+        long deadline = System.currentTimeMillis() + 10000;
+        MoneyAuditReport report = moneyAuditService.report();
+        while (!condition.test(report) && System.currentTimeMillis() < deadline) {
+            Thread.sleep(50);
+            report = moneyAuditService.report();
+        }
+        return report;
+    }
+
+    @Test
+    public void balancedTransfersAreAudited() throws InterruptedException {
+        for (int i = 0; i < 10; i++) {
+            transfer(10, 10);
+        }
+
+        MoneyAuditReport report = awaitReport(r -> r.transactions >= 10);
+        Assert.assertEquals(10, report.transactions);
+        Assert.assertEquals(0, report.unbalancedTransactions);
+
+        moneyAuditService.requestReconcile();
+        report = awaitReport(r -> r.reconciliations > 0);
+        Assert.assertEquals(1, report.reconciliations);
+        Assert.assertEquals(0L, report.lastDrift);
+        Assert.assertEquals(200L, report.total);
+    }
+
+    @Test
+    public void unbalancedTransferIsDetected() throws InterruptedException {
+        transfer(10, 15);
+
+        MoneyAuditReport report = awaitReport(r -> r.transactions >= 1);
+        Assert.assertEquals(1, report.unbalancedTransactions);
+        Assert.assertEquals(5L, report.unbalancedSamples.get(0).netDelta);
+
+        // account opened outside of any transaction, not an audit failure
+        accountRepository.save(new Account());
+        report = awaitReport(r -> r.total == 305L);
+        Assert.assertEquals(305L, report.total);
+        Assert.assertEquals(1, report.unbalancedTransactions);
+    }
+
+}
@@ -0,0 +1,107 @@
+package com.example.jeffrey.demospringdatamongo.service;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+import java.util.Random;
+
+public class SequenceBitmapTest {
+
+    @Test
+    public void addAndContains() {
+        SequenceBitmap bitmap = new SequenceBitmap();
+
+        Assert.assertTrue(bitmap.add(5));
+        Assert.assertTrue(bitmap.add(70000));
+        Assert.assertFalse(bitmap.add(5));
+
+        Assert.assertTrue(bitmap.contains(5));
+        Assert.assertTrue(bitmap.contains(70000));
+        Assert.assertFalse(bitmap.contains(6));
+        Assert.assertEquals(2, bitmap.cardinality());
+        Assert.assertEquals(5, bitmap.min());
+        Assert.assertEquals(70000, bitmap.max());
+    }
+
+    @Test
+    public void gapsAndRanges() {
+        SequenceBitmap bitmap = new SequenceBitmap();
+        for (int i = 1; i <= 200000; i++) {
+            if (i != 10 && (i < 65530 || i > 65540) && i != 199999) {
+                bitmap.add(i);
+            }
+        }
+
+        List<String> gaps = new ArrayList<>();
+        bitmap.forEachGap((start, end) -> gaps.add(start + "-" + end));
+        Assert.assertEquals("[10-10, 65530-65540, 199999-199999]", gaps.toString());
+
+        List<String> ranges = new ArrayList<>();
+        bitmap.forEachRange((start, end) -> ranges.add(start + "-" + end));
+        Assert.assertEquals("[1-9, 11-65529, 65541-199998, 200000-200000]", ranges.toString());
+    }
+
+    @Test
+    public void denseNumbersUseLittleMemory() {
+        SequenceBitmap bitmap = new SequenceBitmap();
+        for (int i = 0; i < 10_000_000; i++) {
+            bitmap.add(i);
+        }
+
+        Assert.assertEquals(10_000_000, bitmap.cardinality());
+        // 152 full chunks and a partial one, far below one bit per number (1.2 MB)
+        Assert.assertTrue(bitmap.sizeInBytes() < 20_000);
+    }
+
+    @Test
+    public void addRange() {
+        SequenceBitmap bitmap = new SequenceBitmap();
+        List<Integer> duplicates = new ArrayList<>();
+
+        Assert.assertEquals(0, bitmap.addRange(100, 300000, duplicates::add));
+        Assert.assertEquals(2, bitmap.addRange(299999, 300001, duplicates::add));
+
+        Assert.assertEquals("[299999, 300000]", duplicates.toString());
+        Assert.assertEquals(300001 - 100 + 1, bitmap.cardinality());
+        Assert.assertEquals(100, bitmap.min());
+        Assert.assertEquals(300001, bitmap.max());
+    }
+
+    @Test
+    public void matchesBitSet() {
+        // random values exercise every container, compare against java.util.BitSet
+        Random random = new Random(42);
+        SequenceBitmap bitmap = new SequenceBitmap();
+        BitSet expected = new BitSet();
+
+        for (int i = 0; i < 300000; i++) {
+            // chunk 0 sparse, chunk 1 dense, chunk 2 nearly full
+            int value = i % 3 == 0 ? random.nextInt(1000)
+                    : i % 3 == 1 ? 65536 + random.nextInt(30000)
+                    : 131072 + random.nextInt(65536);
+            Assert.assertEquals(!expected.get(value), bitmap.add(value));
+            expected.set(value);
+        }
+
+        Assert.assertEquals(expected.cardinality(), bitmap.cardinality());
+        Assert.assertEquals(expected.nextSetBit(0), bitmap.min());
+        Assert.assertEquals(expected.length() - 1, bitmap.max());
+
+        BitSet actual = new BitSet();
+        bitmap.forEachRange((start, end) -> actual.set(start, end + 1));
+        Assert.assertEquals(expected, actual);
+
+        BitSet copy = new BitSet();
+        bitmap.copy().forEachRange((start, end) -> copy.set(start, end + 1));
+        Assert.assertEquals(expected, copy);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void negativeValue() {
+        new SequenceBitmap().add(-1);
+    }
+
+}
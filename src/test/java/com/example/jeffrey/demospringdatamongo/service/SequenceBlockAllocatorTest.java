@@ -0,0 +1,94 @@
+package com.example.jeffrey.demospringdatamongo.service;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class SequenceBlockAllocatorTest {
+
+    private final Map<String, AtomicInteger> sequences = new ConcurrentHashMap<>();
+    private final AtomicInteger roundTrips = new AtomicInteger();
+
+    // simulates the atomic $inc performed by the database
+    private final SequenceIncrementer incrementer = (sequenceName, delta) -> {
+        roundTrips.incrementAndGet();
+        return sequences.computeIfAbsent(String.valueOf(sequenceName), key -> new AtomicInteger()).addAndGet(delta);
+    };
+
+    private SequenceBlockAllocator allocator;
+
+    @After
+    public void cleanUp() {
+        if (allocator != null) {
+            allocator.shutdown();
+        }
+    }
+
+    @Test
+    public void nextWithinBlock() {
+        allocator = new SequenceBlockAllocator(incrementer, 10, 0);
+
+        for (int i = 1; i <= 9; i++) {
+            Assert.assertEquals(i, allocator.next(null));
+        }
+        // the last value of the block schedules the prefetch of the next one
+        Assert.assertEquals(1, roundTrips.get());
+
+        Assert.assertEquals(10, allocator.next(null));
+        Assert.assertEquals(11, allocator.next(null));
+    }
+
+    @Test
+    public void namedSequencesAreIndependent() {
+        allocator = new SequenceBlockAllocator(incrementer, 10, 0.5);
+
+        Assert.assertEquals(1, allocator.next("order"));
+        Assert.assertEquals(1, allocator.next("invoice"));
+        Assert.assertEquals(2, allocator.next("order"));
+        Assert.assertEquals(1, allocator.next(null));
+    }
+
+    @Test
+    public void blocksNeverOverlapAcrossNodes() throws InterruptedException {
+        // two allocators sharing the same counter behave like two nodes sharing a sequence document
+        allocator = new SequenceBlockAllocator(incrementer, 50, 0.25);
+        SequenceBlockAllocator otherNode = new SequenceBlockAllocator(incrementer, 50, 0.25);
+
+        final int MAX_THREAD = 20;
+        final int MAX_SEQUENCE_PER_THREAD = 500;
+        final Map<Integer, Boolean> issued = new ConcurrentHashMap<>();
+        final AtomicInteger duplicates = new AtomicInteger();
+        final CountDownLatch lock = new CountDownLatch(MAX_THREAD);
+        final ExecutorService executor = Executors.newFixedThreadPool(MAX_THREAD);
+
+        for (int i = 0; i < MAX_THREAD; i++) {
+            final SequenceBlockAllocator node = i % 2 == 0 ? allocator : otherNode;
+            executor.execute(() -> {
+                for (int j = 0; j < MAX_SEQUENCE_PER_THREAD; j++) {
+                    if (issued.put(node.next(null), Boolean.TRUE) != null) {
+                        duplicates.incrementAndGet();
+                    }
+                }
+                lock.countDown();
+            });
+        }
+
+        Assert.assertTrue(lock.await(30, TimeUnit.SECONDS));
+        executor.shutdown();
+        otherNode.shutdown();
+
+        Assert.assertEquals(0, duplicates.get());
+        Assert.assertEquals(MAX_THREAD * MAX_SEQUENCE_PER_THREAD, issued.size());
+        // one round trip per block, plus at most a partially used and a prefetched block per node
+        Assert.assertTrue(roundTrips.get() <= MAX_THREAD * MAX_SEQUENCE_PER_THREAD / 50 + 4);
+    }
+
+}
@@ -0,0 +1,74 @@
+package com.example.jeffrey.demospringdatamongo.service;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class SequenceCombiningAllocatorTest {
+
+    private final AtomicInteger sequence = new AtomicInteger();
+    private final AtomicInteger roundTrips = new AtomicInteger();
+
+    @Test
+    public void numbersAreDenseUnderConcurrency() throws Exception {
+        // simulates a slow findAndModify so that callers pile up behind it
+        SequenceIncrementer incrementer = (sequenceName, delta) -> {
+            roundTrips.incrementAndGet();
+            try {
+                Thread.sleep(2);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            return sequence.addAndGet(delta);
+        };
+        SequenceCombiningAllocator allocator = new SequenceCombiningAllocator(incrementer, 1000);
+
+        final int MAX_THREAD = 50;
+        final int MAX_SEQUENCE_PER_THREAD = 30;
+        final ExecutorService executor = Executors.newFixedThreadPool(MAX_THREAD);
+
+        // asserted by the test thread, an assertion failing in a pool thread would go unnoticed
+        List<Future<List<Integer>>> futures = new ArrayList<>();
+        for (int i = 0; i < MAX_THREAD; i++) {
+            futures.add(executor.submit(() -> {
+                List<Integer> sequenceNumbers = new ArrayList<>();
+                for (int j = 0; j < MAX_SEQUENCE_PER_THREAD; j++) {
+                    sequenceNumbers.add(allocator.next(null));
+                }
+                return sequenceNumbers;
+            }));
+        }
+
+        final BitSet issued = new BitSet();
+        for (Future<List<Integer>> future : futures) {
+            for (int sequenceNumber : future.get(30, TimeUnit.SECONDS)) {
+                Assert.assertFalse(issued.get(sequenceNumber));
+                issued.set(sequenceNumber);
+            }
+        }
+        executor.shutdown();
+
+        // gap-free: exactly 1..N have been handed out
+        Assert.assertEquals(MAX_THREAD * MAX_SEQUENCE_PER_THREAD, issued.cardinality());
+        Assert.assertEquals(1, issued.nextSetBit(0));
+        Assert.assertEquals(MAX_THREAD * MAX_SEQUENCE_PER_THREAD, issued.length() - 1);
+        Assert.assertTrue(roundTrips.get() < MAX_THREAD * MAX_SEQUENCE_PER_THREAD);
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void failedRoundTripIsPropagated() {
+        SequenceCombiningAllocator allocator = new SequenceCombiningAllocator((sequenceName, delta) -> {
+            throw new IllegalStateException("primary stepped down");
+        }, 10);
+        allocator.next("order");
+    }
+
+}
@@ -1,6 +1,7 @@
 package com.example.jeffrey.demospringdatamongo.service;
 
 import com.example.jeffrey.demospringdatamongo.model.Sequence;
+import com.example.jeffrey.demospringdatamongo.model.SequenceRange;
 import com.example.jeffrey.demospringdatamongo.repository.SequenceRepository;
 import com.example.jeffrey.demospringdatamongo.util.EmbeddedMongoDb;
 import org.junit.*;
@@ -17,8 +18,6 @@ import org.springframework.test.context.TestPropertySource;
 import org.springframework.test.context.junit4.SpringRunner;
 
 import java.io.IOException;
-import java.util.Set;
-import java.util.TreeSet;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.Executor;
 import java.util.concurrent.Executors;
@@ -60,6 +59,33 @@ public class SequenceServiceIT {
         Assert.assertEquals(1, sequenceNumber);
     }
 
+    @Test
+    public void namedSequenceTest() {
+        Assert.assertEquals(1, sequenceService.appendSequenceNumber("order"));
+        Assert.assertEquals(2, sequenceService.appendSequenceNumber("order"));
+        // named sequences never touch the anonymous sequence
+        Assert.assertEquals(1, sequenceService.appendSequenceNumber());
+    }
+
+    @Test
+    public void rangeTest() {
+        SequenceRange range = sequenceService.appendSequenceNumbers("order", 10000);
+        Assert.assertEquals(1, range.start);
+        Assert.assertEquals(10000, range.end);
+
+        // single numbers continue after the range
+        Assert.assertEquals(10001, sequenceService.appendSequenceNumber("order"));
+
+        range = sequenceService.appendSequenceNumbers(null, 5);
+        Assert.assertEquals(1, range.start);
+        Assert.assertEquals(5, range.end);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rangeTest_invalidCount() {
+        sequenceService.appendSequenceNumbers("order", 0);
+    }
+
     @Test
     public void loopTest() throws Exception {
         final int MAX_THREAD = 50;
@@ -68,7 +94,6 @@ public class SequenceServiceIT {
         final CountDownLatch lock = new CountDownLatch(MAX_THREAD);
         final Executor executor = Executors.newFixedThreadPool(MAX_THREAD);
 
-        // TODO: change to use bitwise manipulation to reduce memory consumption
         final int [] sequenceNumbers = new int [MAX_THREAD * MAX_SEQUENCE_PER_CYCLE];
 
         for (int i = 0; i < MAX_THREAD; i++) {
@@ -96,16 +121,17 @@ public class SequenceServiceIT {
     }
 
     public void findDuplicates(int [] input) {
-        Set<Integer> set = new TreeSet<>();
+        SequenceBitmap bitmap = new SequenceBitmap();
         for (int i=0; i<input.length; i++) {
-            if (set.contains(input[i])) {
+            if (!bitmap.add(input[i])) {
                 LOGGER.warn("{} already exists", input[i]);
-            } else {
-                set.add(input[i]);
             }
         }
 
-        Assert.assertEquals(input.length, set.size());
+        Assert.assertEquals(input.length, bitmap.cardinality());
+
+        // numbers handed out by a single node in SINGLE mode are dense
+        bitmap.forEachGap((start, end) -> Assert.fail(String.format("gap [%d, %d]", start, end)));
 
         // this test will always fail, database write have delay
 //        Assert.assertEquals(input[input.length-1], sequenceService.querySequenceNumber().get(0).sequenceNumber);
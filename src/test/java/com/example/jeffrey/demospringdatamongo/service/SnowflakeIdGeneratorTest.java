@@ -0,0 +1,90 @@
+package com.example.jeffrey.demospringdatamongo.service;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.time.Instant;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class SnowflakeIdGeneratorTest {
+
+    private final AtomicLong now = new AtomicLong(Instant.parse("2020-06-01T00:00:00Z").toEpochMilli());
+
+    private SnowflakeIdGenerator generator;
+
+    @Before
+    public void initialize() {
+        // pretend the worker id lease is already held, no database involved
+        generator = new SnowflakeIdGenerator();
+        generator.clock = now::get;
+        generator.maxClockBackwardMillis = 5;
+        generator.workerId = 42;
+        generator.leaseDeadlineNanos = System.nanoTime() + TimeUnit.DAYS.toNanos(1);
+    }
+
+    @Test
+    public void idLayout() {
+        long id = generator.nextId();
+
+        Assert.assertTrue(id > 0);
+        Assert.assertEquals(Instant.parse("2020-06-01T00:00:00Z"), SnowflakeIdGenerator.timestampOf(id));
+        Assert.assertEquals(42, SnowflakeIdGenerator.workerIdOf(id));
+    }
+
+    @Test
+    public void idsAreIncreasingWithinAndAcrossMilliseconds() {
+        long previous = generator.nextId();
+        for (int i = 0; i < 10000; i++) {
+            if (i % 1000 == 0) {
+                now.incrementAndGet();
+            }
+            long id = generator.nextId();
+            Assert.assertTrue(id > previous);
+            previous = id;
+        }
+    }
+
+    @Test
+    public void counterOverflowMovesToNextMillisecond() {
+        long first = generator.nextId();
+        for (int i = 0; i < SnowflakeIdGenerator.SEQUENCE_MASK; i++) {
+            generator.nextId();
+        }
+
+        // the counter of this millisecond is exhausted, the generator waits for the clock to tick
+        new Thread(() -> {
+            try {
+                Thread.sleep(50);
+            } catch (InterruptedException e) {}
+            now.incrementAndGet();
+        }).start();
+
+        long id = generator.nextId();
+        Assert.assertEquals(SnowflakeIdGenerator.timestampOf(first).plusMillis(1), SnowflakeIdGenerator.timestampOf(id));
+    }
+
+    @Test
+    public void smallClockRegressionIsWaitedOut() {
+        long first = generator.nextId();
+        now.addAndGet(-3);
+
+        new Thread(() -> {
+            try {
+                Thread.sleep(50);
+            } catch (InterruptedException e) {}
+            now.addAndGet(4);
+        }).start();
+
+        Assert.assertTrue(generator.nextId() > first);
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void largeClockRegressionIsRefused() {
+        generator.nextId();
+        now.addAndGet(-1000);
+        generator.nextId();
+    }
+
+}
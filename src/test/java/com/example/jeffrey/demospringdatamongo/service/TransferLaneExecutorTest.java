@@ -0,0 +1,95 @@
+package com.example.jeffrey.demospringdatamongo.service;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class TransferLaneExecutorTest {
+
+    private TransferLaneExecutor executor;
+
+    @Before
+    public void initialize() {
+        executor = new TransferLaneExecutor(4, 10000);
+    }
+
+    @After
+    public void shutdown() {
+        executor.shutdown();
+    }
+
+    @Test
+    public void sameAccountNeverRunsConcurrently() throws Exception {
+        String[] accounts = {"A-1", "A-2", "A-3", "A-4", "A-5", "A-6"};
+        Map<String, AtomicBoolean> busy = new ConcurrentHashMap<>();
+        for (String account : accounts) {
+            busy.put(account, new AtomicBoolean());
+        }
+        AtomicInteger violations = new AtomicInteger();
+
+        List<CompletableFuture<Void>> futures = new ArrayList<>();
+        for (int i = 0; i < 2000; i++) {
+            String debit = accounts[i % accounts.length];
+            String credit = accounts[(i * 7 + 1) % accounts.length];
+            if (debit.equals(credit)) {
+                continue;
+            }
+            futures.add(executor.submit(debit, credit, () -> {
+                if (!busy.get(debit).compareAndSet(false, true)) violations.incrementAndGet();
+                if (!busy.get(credit).compareAndSet(false, true)) violations.incrementAndGet();
+                busy.get(debit).set(false);
+                busy.get(credit).set(false);
+                return null;
+            }));
+        }
+
+        CompletableFuture.allOf(futures.toArray(new CompletableFuture[0])).get(30, TimeUnit.SECONDS);
+        Assert.assertEquals(0, violations.get());
+    }
+
+    @Test
+    public void oppositeDirectionsDoNotDeadlock() throws Exception {
+        List<CompletableFuture<Integer>> futures = new ArrayList<>();
+        for (int i = 0; i < 1000; i++) {
+            final int n = i;
+            futures.add(i % 2 == 0
+                    ? executor.submit("X", "Y", () -> n)
+                    : executor.submit("Y", "X", () -> n));
+        }
+
+        CompletableFuture.allOf(futures.toArray(new CompletableFuture[0])).get(30, TimeUnit.SECONDS);
+        Assert.assertEquals(999, futures.get(999).get().intValue());
+    }
+
+    @Test
+    public void failureIsPropagated() throws Exception {
+        CompletableFuture<Object> future = executor.submit("X", "Y", () -> {
+            throw new IllegalStateException("boom");
+        });
+
+        try {
+            future.get(5, TimeUnit.SECONDS);
+            Assert.fail();
+        } catch (ExecutionException e) {
+            Assert.assertTrue(e.getCause() instanceof IllegalStateException);
+        }
+    }
+
+    @Test
+    public void queueDepths() {
+        Assert.assertEquals(4, executor.queueDepths().length);
+        Assert.assertEquals(executor.laneOf("A-1"), executor.laneOf("A-1"));
+    }
+
+}